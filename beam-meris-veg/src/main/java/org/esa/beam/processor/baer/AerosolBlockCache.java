@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.baer;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The aerosol retrieved for the blocks of a scene, shared by all tiles of an operator. A tile also needs the
+ * ring of blocks around it for the interpolation, which are retrieved by its neighbours as well; the cache
+ * lets every block be retrieved only once. Blocks are aligned to the scene, so a block gives the same result
+ * whichever tile retrieves it, and two threads retrieving the same block at the same time is harmless.
+ */
+final class AerosolBlockCache {
+
+    private static final int UNKNOWN = 0;
+    private static final int INVALID = 1;
+    private static final int VALID = 2;
+
+    private final int numBlocksX;
+    private final double[] aot412;
+    private final double[] alpha;
+    // written after the values, so that a thread seeing VALID also sees the values
+    private final AtomicIntegerArray states;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param numBlocksX the number of blocks of the scene in x
+     * @param numBlocksY the number of blocks of the scene in y
+     */
+    AerosolBlockCache(int numBlocksX, int numBlocksY) {
+        this.numBlocksX = numBlocksX;
+        aot412 = new double[numBlocksX * numBlocksY];
+        alpha = new double[numBlocksX * numBlocksY];
+        states = new AtomicIntegerArray(numBlocksX * numBlocksY);
+    }
+
+    /**
+     * Copies a retrieved block into a grid, does nothing if the retrieval failed.
+     *
+     * @return <code>false</code> if the block has not been retrieved yet
+     */
+    boolean copyTo(int blockX, int blockY, AerosolBlockGrid grid) {
+        final int index = blockY * numBlocksX + blockX;
+        final int state = states.get(index);
+        if (state == VALID) {
+            grid.setBlock(blockX, blockY, aot412[index], alpha[index]);
+        }
+        return state != UNKNOWN;
+    }
+
+    /**
+     * Stores the successful retrieval of a block.
+     */
+    void setBlock(int blockX, int blockY, double aot, double alpha) {
+        final int index = blockY * numBlocksX + blockX;
+        aot412[index] = aot;
+        this.alpha[index] = alpha;
+        states.set(index, VALID);
+    }
+
+    /**
+     * Records that a block has no valid retrieval.
+     */
+    void setInvalid(int blockX, int blockY) {
+        states.set(blockY * numBlocksX + blockX, INVALID);
+    }
+}
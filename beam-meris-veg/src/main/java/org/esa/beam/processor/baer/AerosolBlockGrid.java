@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.baer;
+
+/**
+ * The aerosol retrieved on a grid of square pixel blocks. Block <code>(i, j)</code> covers the scene pixels
+ * <code>[i * blockSize, (i + 1) * blockSize)</code> in x and y clipped to the scene, its value is located at
+ * the centre of the clipped block, so the last blocks of a scene whose size is not a multiple of the block
+ * size are located at the centre of their pixels. Values at pixel positions are bilinearly interpolated between the surrounding block centres; blocks
+ * without a valid retrieval are left out and the weights of the remaining ones are renormalised.
+ */
+final class AerosolBlockGrid {
+
+    private final int blockSize;
+    private final int sceneWidth;
+    private final int sceneHeight;
+    private final int blockX0;
+    private final int blockY0;
+    private final int numBlocksX;
+    private final int numBlocksY;
+    private final double[] aot412;
+    private final double[] alpha;
+    private final boolean[] valid;
+
+    /**
+     * Creates an empty grid.
+     *
+     * @param blockSize  the block size in pixels
+     * @param sceneWidth  the scene width in pixels
+     * @param sceneHeight the scene height in pixels
+     * @param blockX0    the x index of the first block
+     * @param blockY0    the y index of the first block
+     * @param numBlocksX the number of blocks in x
+     * @param numBlocksY the number of blocks in y
+     */
+    AerosolBlockGrid(int blockSize, int sceneWidth, int sceneHeight, int blockX0, int blockY0, int numBlocksX,
+                     int numBlocksY) {
+        this.blockSize = blockSize;
+        this.sceneWidth = sceneWidth;
+        this.sceneHeight = sceneHeight;
+        this.blockX0 = blockX0;
+        this.blockY0 = blockY0;
+        this.numBlocksX = numBlocksX;
+        this.numBlocksY = numBlocksY;
+        aot412 = new double[numBlocksX * numBlocksY];
+        alpha = new double[numBlocksX * numBlocksY];
+        valid = new boolean[numBlocksX * numBlocksY];
+    }
+
+    /**
+     * Sets the retrieved aerosol of a block.
+     *
+     * @param blockX the x index of the block in scene coordinates
+     * @param blockY the y index of the block in scene coordinates
+     * @param aot    the AOT at 412 nm
+     * @param alpha  the Angstroem coefficient
+     */
+    void setBlock(int blockX, int blockY, double aot, double alpha) {
+        final int index = (blockY - blockY0) * numBlocksX + (blockX - blockX0);
+        this.aot412[index] = aot;
+        this.alpha[index] = alpha;
+        valid[index] = true;
+    }
+
+    /**
+     * Interpolates the aerosol at a pixel position.
+     *
+     * @param x        the pixel x coordinate
+     * @param y        the pixel y coordinate
+     * @param aotAlpha receives the AOT at 412 nm and the Angstroem coefficient
+     * @return <code>false</code> if none of the surrounding blocks has a valid retrieval
+     */
+    boolean interpolate(int x, int y, double[] aotAlpha) {
+        final double fx = getBlockCoordinate(x, sceneWidth) - blockX0;
+        final double fy = getBlockCoordinate(y, sceneHeight) - blockY0;
+        final int i0 = (int) Math.floor(fx);
+        final int j0 = (int) Math.floor(fy);
+        final double wx = fx - i0;
+        final double wy = fy - j0;
+
+        double weightSum = 0.0;
+        double aotSum = 0.0;
+        double alphaSum = 0.0;
+        for (int j = j0; j <= j0 + 1; j++) {
+            if (j < 0 || j >= numBlocksY) {
+                continue;
+            }
+            final double weightY = j == j0 ? 1.0 - wy : wy;
+            for (int i = i0; i <= i0 + 1; i++) {
+                if (i < 0 || i >= numBlocksX) {
+                    continue;
+                }
+                final int index = j * numBlocksX + i;
+                final double weight = weightY * (i == i0 ? 1.0 - wx : wx);
+                if (valid[index] && weight > 0.0) {
+                    weightSum += weight;
+                    aotSum += weight * aot412[index];
+                    alphaSum += weight * alpha[index];
+                }
+            }
+        }
+        if (weightSum <= 0.0) {
+            return false;
+        }
+        aotAlpha[0] = aotSum / weightSum;
+        aotAlpha[1] = alphaSum / weightSum;
+        return true;
+    }
+
+    /**
+     * Converts a pixel coordinate into a fractional block index: the integer part is the index of the last
+     * block whose centre is not beyond the pixel, the fraction is the relative distance to the centre of the
+     * next block.
+     *
+     * @param x         the pixel coordinate
+     * @param sceneSize the scene size in the direction of the coordinate
+     */
+    private double getBlockCoordinate(int x, int sceneSize) {
+        final int lastBlock = (sceneSize - 1) / blockSize;
+        final double fx = (x - 0.5 * (blockSize - 1)) / blockSize;
+        if (fx < lastBlock - 1) {
+            // between two full blocks
+            return fx;
+        }
+        final double lastCentre = getBlockCentre(lastBlock, sceneSize);
+        if (x >= lastCentre) {
+            return lastBlock;
+        }
+        final double centre = getBlockCentre(lastBlock - 1, sceneSize);
+        return lastBlock - 1 + (x - centre) / (lastCentre - centre);
+    }
+
+    private double getBlockCentre(int block, int sceneSize) {
+        return 0.5 * (block * blockSize + Math.min((block + 1) * blockSize, sceneSize) - 1);
+    }
+}
@@ -51,6 +51,7 @@ public class BaerConstants {
     public static final String AER_PHASE_PARAM_NAME = "aer_phase_lut";
     public static final String AER_PHASE_PARAM_LABEL = "Aerosol phase look-up table";
     public static final String AER_PHASE_PARAM_DESCRIPTION = "Look-up table for the aerosol phase function coefficients";
+    public static final String AER_PHASE_PARAM_DEFAULT = "LACE-98";
 
     // constants for the smac parameter
     // --------------------------------
@@ -77,6 +78,10 @@ public class BaerConstants {
     public static final String USE_ATM_COR_PARAM_DESCRIPTION = "Perform atmospheric correction and generate corrected reflectances";
     public static final String USE_ATM_COR_PARAM_LABEL = "Generate atmospherically corrected reflectances";
 
+    public static final String DIAGNOSTICS_PARAM_NAME = "diagnostics";
+    public static final String DIAGNOSTICS_PARAM_LABEL = "Collect retrieval statistics";
+    public static final String DIAGNOSTICS_PARAM_DESCRIPTION = "Collect convergence and timing statistics of the aerosol retrieval";
+
 
 
     // messaging constants
@@ -138,6 +143,9 @@ public class BaerConstants {
     public static final String CLOUD_BAND_NAME = "BAND_CLOUD";
     public static final String CLOUD_BAND_DESCRIPTION = "Cloud";
 
+    public static final String ITERATIONS_BAND_NAME = "ITERATIONS";
+    public static final String ITERATIONS_BAND_DESCRIPTION = "Number of iterations of the aerosol retrieval";
+
     public static final String OUT_FLAGS_BAND_NAME = "BAER_FLAGS";
     public static final String OUT_FLAGS_BAND_DESCRIPTION = "Quality flags";
 
@@ -234,6 +242,9 @@ public class BaerConstants {
     public static final String PROCESSOR_METADATA_NAME = "PROCESSOR";
     public static final String PROCESSOR_VERSION_METADATA_NAME = "PROCESSOR_VERSION";
     public static final String PROCESSING_TIME_METADATA_NAME = "PROC_TIME";
+    public static final String AOT_BLOCK_SIZE_METADATA_NAME = "AOT_BLOCK_SIZE";
+    public static final String WARM_START_METADATA_NAME = "WARM_START";
+    public static final String DIAGNOSTICS_METADATA_NAME = "DIAGNOSTICS";
 
     public static final String AUX_FILE_NAME_METADATA_NAME = "AUX_FILE_NAME";
     public static final String AUX_FILE_VERSION_METADATA_NAME = "AUX_FILE_VERSION";
@@ -0,0 +1,931 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.processor.baer;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.dataio.envisat.EnvisatConstants;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.Mask;
+import org.esa.beam.framework.datamodel.MetadataAttribute;
+import org.esa.beam.framework.datamodel.MetadataElement;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.TiePointGrid;
+import org.esa.beam.framework.gpf.Operator;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.OperatorSpi;
+import org.esa.beam.framework.gpf.Tile;
+import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
+import org.esa.beam.framework.gpf.annotations.Parameter;
+import org.esa.beam.framework.gpf.annotations.SourceProduct;
+import org.esa.beam.framework.gpf.annotations.TargetProduct;
+import org.esa.beam.framework.processor.ProcessorException;
+import org.esa.beam.processor.baer.algorithm.BaerAlgorithm;
+import org.esa.beam.processor.baer.algorithm.BaerContext;
+import org.esa.beam.processor.baer.algorithm.BaerDiagnostics;
+import org.esa.beam.processor.baer.auxdata.AerDiffTransmLoader;
+import org.esa.beam.processor.baer.auxdata.AerLut;
+import org.esa.beam.processor.baer.auxdata.AerPhaseLoader;
+import org.esa.beam.processor.baer.auxdata.AuxDataSnapshot;
+import org.esa.beam.processor.baer.auxdata.F_TuningLoader;
+import org.esa.beam.processor.baer.auxdata.GroundReflectanceLoader;
+import org.esa.beam.processor.baer.auxdata.HemisphReflecLoader;
+import org.esa.beam.processor.baer.auxdata.NdviLoader;
+import org.esa.beam.processor.baer.auxdata.RelAerPhaseLoader;
+import org.esa.beam.processor.baer.auxdata.SmacCoefficientsManager;
+import org.esa.beam.processor.baer.auxdata.SoilFractionLoader;
+import org.esa.beam.processor.baer.utils.AerPixel;
+import org.esa.beam.processor.baer.utils.FlagsManager;
+import org.esa.beam.processor.baer.utils.MerisPixel;
+import org.esa.beam.processor.baer.utils.ProcessorConfiguration;
+import org.esa.beam.processor.baer.utils.ProcessorConfigurationParser;
+import org.esa.beam.processor.common.auxdata.AuxDataRegistry;
+import org.esa.beam.util.ProductUtils;
+import org.esa.beam.util.ResourceInstaller;
+import org.esa.beam.util.StringUtils;
+import org.esa.beam.util.SystemUtils;
+
+import javax.management.JMException;
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * GPF operator version of the {@link BaerProcessor}.
+ * <p/>
+ * The per-pixel logic is the one of <code>BaerProcessor.processAerCorrection</code>, but the scene is
+ * computed tile by tile so that the GPF tile scheduler can spread the work over all available processors.
+ * The auxiliary data are loaded only once into a single {@link BaerAlgorithm} which is shared by all
+ * computing threads; every thread works on its own {@link BaerContext}.
+ */
+@OperatorMetadata(alias = "Baer", authors = "Wolfgang v. Hoyningen-Huene, Carine Castillon, Tom Block",
+                  copyright = BaerConstants.PROC_COPYRIGHT,
+                  version = BaerConstants.PROC_VERSION,
+                  description = "Computes the aerosol optical thickness and atmospherically corrected reflectances over land from MERIS L2 products.")
+public class BaerOp extends Operator {
+
+    private static final String VALID_MASK_NAME = "_baer_bitmask_";
+    private static final String CLOUD_MASK_NAME = "_baer_cloud_";
+    private static final String L2_CLOUD_EXPRESSION = "l2_flags.CLOUD";
+
+    @SourceProduct(alias = "source",
+                   description = "The path of the MERIS L2 source product",
+                   label = "MERIS L2 source product")
+    private Product sourceProduct;
+
+    @TargetProduct
+    private Product targetProduct;
+
+    @Parameter(defaultValue = BaerConstants.BITMASK_PARAM_DEFAULT, label = BaerConstants.BITMASK_PARAM_LABEL,
+               description = BaerConstants.BITMASK_PARAM_DESCRIPTION)
+    private String bitmask;
+
+    @Parameter(defaultValue = BaerConstants.AER_PHASE_PARAM_DEFAULT, label = BaerConstants.AER_PHASE_PARAM_LABEL,
+               description = BaerConstants.AER_PHASE_PARAM_DESCRIPTION)
+    private String aerPhaseLut;
+
+    @Parameter(defaultValue = "true", label = BaerConstants.USE_CLOUD_PARAM_LABEL,
+               description = BaerConstants.USE_CLOUD_PARAM_DESCRIPTION)
+    private boolean cloudProcess;
+
+    @Parameter(defaultValue = "true", label = BaerConstants.USE_BAER_PARAM_LABEL,
+               description = BaerConstants.USE_BAER_PARAM_DESCRIPTION)
+    private boolean baerProcess;
+
+    @Parameter(defaultValue = "true", label = BaerConstants.USE_ATM_COR_PARAM_LABEL,
+               description = BaerConstants.USE_ATM_COR_PARAM_DESCRIPTION)
+    private boolean atmCorProcess;
+
+    @Parameter(valueSet = {"SMAC", "UBAC"}, defaultValue = BaerConstants.SMAC_PARAM_DEFAULT,
+               label = BaerConstants.SMAC_PARAM_LABEL, description = BaerConstants.SMAC_PARAM_DESCRIPTION)
+    private String atmCorrMethod;
+
+    @Parameter(defaultValue = "true", label = "Legacy SMAC numerics",
+               description = "Reproduces the SMAC geometry of former versions, which converts the zenith angles to radians twice.")
+    private boolean smacLegacyNumerics;
+
+    @Parameter(defaultValue = "1", interval = "[1,64]", label = "AOT block size",
+               description = "Retrieves the aerosol on blocks of N x N pixels and interpolates it to full resolution. 1 retrieves it for every pixel.")
+    private int aotBlockSize;
+
+    @Parameter(defaultValue = "false", label = "Warm start",
+               description = "Starts the aerosol retrieval of a pixel from the result of its left or upper neighbour. Faster, but results depend slightly on the tiling.")
+    private boolean warmStart;
+
+    @Parameter(defaultValue = "false", label = "Output iterations",
+               description = "Writes the number of iterations of the aerosol retrieval of every pixel.")
+    private boolean outputIterations;
+
+    @Parameter(defaultValue = "false", label = "Diagnostics",
+               description = "Collects convergence and timing statistics of the aerosol retrieval, published via JMX and logged when the processing ends. Implies 'outputIterations'.")
+    private boolean diagnostics;
+
+    private transient String processFormat;
+
+    private transient Band[] merisReflecBands;
+    private transient Band toaVegBand;
+    private transient Band surfPressBand;
+    private transient TiePointGrid gridSza;
+    private transient TiePointGrid gridSaa;
+    private transient TiePointGrid gridVza;
+    private transient TiePointGrid gridVaa;
+    private transient Mask bitmaskMask;
+    private transient Mask l2CloudMask;
+
+    private transient Band[] aerReflecBands;
+    private transient Band aot412Band;
+    private transient Band aot440Band;
+    private transient Band aot550Band;
+    private transient Band alphaBand;
+    private transient Band toaVegTargetBand;
+    private transient Band flagsBand;
+    private transient Band cloudBand;
+    private transient Band iterationsBand;
+
+    private transient RelAerPhaseLoader relAerAux;
+    private transient AerPhaseLoader aerPhaseAux;
+    private transient AerLut aerPhaseLutAux;
+    private transient NdviLoader ndviAux;
+    private transient GroundReflectanceLoader groundReflecAux;
+    private transient SoilFractionLoader soilFractionAux;
+    private transient F_TuningLoader f_TuningAux;
+    private transient AerDiffTransmLoader aerDiffTransmAux;
+    private transient HemisphReflecLoader hemisphReflecAux;
+    private transient SmacCoefficientsManager coeffMgr;
+    private transient List<AuxDataRegistry.Handle<?>> auxDataHandles;
+
+    private transient BaerAlgorithm algorithm;
+    private transient AerosolBlockCache aerosolBlockCache;
+    private transient ThreadLocal<BaerContext> threadLocalContext;
+    private transient BaerDiagnostics totalDiagnostics;
+    // the tiles whose statistics have been collected, and the number of pixels of the others
+
+    @Override
+    public void initialize() throws OperatorException {
+        if (!baerProcess && !cloudProcess) {
+            throw new OperatorException("Neither '" + BaerConstants.USE_BAER_PARAM_NAME + "' nor '" +
+                                        BaerConstants.USE_CLOUD_PARAM_NAME + "' is set, nothing to compute.");
+        }
+        checkSourceProductType();
+        loadSourceNodes();
+        loadAuxiliaryData();
+        selectProcessFormat();
+        createMasks();
+        createTargetProduct();
+
+        algorithm = createAlgorithm();
+        if (baerProcess && aotBlockSize > 1) {
+            aerosolBlockCache = new AerosolBlockCache((sourceProduct.getSceneRasterWidth() - 1) / aotBlockSize + 1,
+                                                      (sourceProduct.getSceneRasterHeight() - 1) / aotBlockSize + 1);
+        }
+        if (diagnostics) {
+            totalDiagnostics = new BaerDiagnostics();
+            try {
+                totalDiagnostics.register(targetProduct.getName());
+            } catch (JMException e) {
+                getLogger().log(Level.WARNING, "Unable to register the BAER diagnostics MBean", e);
+            }
+        }
+        threadLocalContext = new ThreadLocal<BaerContext>() {
+            @Override
+            protected BaerContext initialValue() {
+                final BaerContext context = new BaerContext();
+                context.setWarmStart(warmStart);
+                if (diagnostics) {
+                    context.setDiagnostics(new BaerDiagnostics());
+                }
+                return context;
+            }
+        };
+    }
+
+    @Override
+    public void dispose() {
+        if (totalDiagnostics != null) {
+            getLogger().info("BAER diagnostics of " + targetProduct.getName() + ": " + totalDiagnostics.getSummary());
+            totalDiagnostics.unregister();
+        }
+        if (auxDataHandles != null) {
+            for (AuxDataRegistry.Handle<?> handle : auxDataHandles) {
+                handle.release();
+            }
+            auxDataHandles = null;
+        }
+        super.dispose();
+    }
+
+    @Override
+    public void computeTileStack(Map<Band, Tile> targetTiles, Rectangle targetRectangle, ProgressMonitor pm) throws
+                                                                                                            OperatorException {
+        pm.beginTask(BaerConstants.LOG_MSG_GENERATE_PIXEL, targetRectangle.height);
+        try {
+            final SourceTiles sourceTiles = new SourceTiles(targetRectangle);
+
+            Tile[] aerReflecTiles = null;
+            Tile aot412Tile = null;
+            Tile aot440Tile = null;
+            Tile aot550Tile = null;
+            Tile alphaTile = null;
+            Tile flagsTile = null;
+            Tile toaVegSourceTile = null;
+            Tile toaVegTile = null;
+            Tile iterationsTile = null;
+            if (baerProcess) {
+                if (atmCorProcess) {
+                    aerReflecTiles = new Tile[BaerConstants.NUM_OUT_REFLEC_BANDS];
+                    for (int n = 0; n < BaerConstants.NUM_OUT_REFLEC_BANDS; n++) {
+                        aerReflecTiles[n] = targetTiles.get(aerReflecBands[n]);
+                    }
+                }
+                aot412Tile = targetTiles.get(aot412Band);
+                aot440Tile = targetTiles.get(aot440Band);
+                aot550Tile = targetTiles.get(aot550Band);
+                alphaTile = targetTiles.get(alphaBand);
+                flagsTile = targetTiles.get(flagsBand);
+
+                toaVegSourceTile = getSourceTile(toaVegBand, targetRectangle);
+                toaVegTile = targetTiles.get(toaVegTargetBand);
+                if (iterationsBand != null) {
+                    iterationsTile = targetTiles.get(iterationsBand);
+                }
+            }
+            final Tile cloudTile = cloudProcess ? targetTiles.get(cloudBand) : null;
+
+            final BaerContext context = threadLocalContext.get();
+            // the rows of a tile are seeded from each other, but not from the last tile of this thread
+            context.resetWarmStart();
+            final AerosolBlockGrid blockGrid = baerProcess && aotBlockSize > 1 ?
+                                               retrieveAerosolBlocks(targetRectangle, context) : null;
+
+            final int width = targetRectangle.width;
+            // pixels of a row are checked first and then processed together, see BaerAlgorithm.processRow();
+            // pixels not to be processed have no input
+            final AerPixel[] results = new AerPixel[width];
+            final MerisPixel[] pixels = new MerisPixel[width];
+            final MerisPixel[] batchInputs = new MerisPixel[width];
+            final int[] batchSoilSpectra = new int[width];
+            final double[] batchAot412 = blockGrid != null ? new double[width] : null;
+            final double[] batchAlpha = blockGrid != null ? new double[width] : null;
+            for (int i = 0; i < width; i++) {
+                results[i] = new AerPixel();
+                pixels[i] = new MerisPixel();
+            }
+            final float[] inputReflec = new float[BaerConstants.NUM_IN_REFLEC_BANDS];
+            final double[] aotAlpha = new double[2];
+
+            for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; y++) {
+                for (int x = targetRectangle.x; x < targetRectangle.x + width; x++) {
+                    final int i = x - targetRectangle.x;
+                    final AerPixel result = results[i];
+                    sourceTiles.readReflectances(x, y, inputReflec);
+                    final boolean processPixel = screenPixel(sourceTiles, x, y, inputReflec, result);
+                    batchInputs[i] = null;
+
+                    if (processPixel) {
+                        result.setBands(inputReflec);
+                        if (baerProcess) {
+                            final MerisPixel inPixel = pixels[i];
+                            inPixel.setBands(inputReflec);
+                            sourceTiles.readGeometry(x, y, inPixel);
+                            batchInputs[i] = inPixel;
+                            batchSoilSpectra[i] = getSoilSpectraNumber(inputReflec);
+                            if (blockGrid != null) {
+                                if (blockGrid.interpolate(x, y, aotAlpha)) {
+                                    batchAot412[i] = aotAlpha[0];
+                                    batchAlpha[i] = aotAlpha[1];
+                                } else {
+                                    batchAot412[i] = Double.NaN;
+                                }
+                            }
+                        }
+                    }
+                }
+
+                if (baerProcess) {
+                    algorithm.processRow(batchInputs, results, batchSoilSpectra, batchAot412, batchAlpha,
+                                         width, context);
+                }
+
+                for (int x = targetRectangle.x; x < targetRectangle.x + width; x++) {
+                    final AerPixel result = results[x - targetRectangle.x];
+                    if (baerProcess) {
+                        if (atmCorProcess) {
+                            for (int n = 0; n < BaerConstants.NUM_OUT_REFLEC_BANDS; n++) {
+                                aerReflecTiles[n].setSample(x, y, result.getBand(n));
+                            }
+                        }
+                        aot412Tile.setSample(x, y, result.getAot_412());
+                        aot440Tile.setSample(x, y, result.getAot_440());
+                        aot550Tile.setSample(x, y, result.getAot_550());
+                        alphaTile.setSample(x, y, result.getAlpha());
+                        toaVegTile.setSample(x, y, toaVegSourceTile.getSampleFloat(x, y));
+                        flagsTile.setSample(x, y, result.getFlagMask());
+                        if (iterationsTile != null) {
+                            iterationsTile.setSample(x, y, result.getIterations());
+                        }
+                    }
+                    if (cloudProcess) {
+                        cloudTile.setSample(x, y, result.getBand_Cloud());
+                    }
+                }
+                pm.worked(1);
+            }
+            if (totalDiagnostics != null) {
+                context.getDiagnostics().flushTo(totalDiagnostics, targetRectangle.getLocation());
+            }
+        } finally {
+            pm.done();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Screens an input pixel as <code>BaerProcessor.processAerCorrection</code> does: resets the result and
+     * sets its invalid input and cloud flags.
+     *
+     * @return whether the pixel is to be processed
+     */
+    private boolean screenPixel(SourceTiles sourceTiles, int x, int y, float[] inputReflec, AerPixel result) {
+        boolean processPixel = true;
+
+        // reset to be sure - risk of pending flags ...
+        result.reset();
+
+        // check bitmask
+        if (sourceTiles.bitmask != null && sourceTiles.bitmask.getSampleInt(x, y) == 0) {
+            result.setInvalidInputFlag();
+            processPixel = false;
+        }
+
+        if (processFormat.equals("SMAC")) {
+            result.setAtmosphericCorrectionFlag();
+        }
+        // check for negative reflectance
+        for (int n = 0; n < BaerConstants.NUM_IN_REFLEC_BANDS; n++) {
+            if (inputReflec[n] < 0.f) {
+                result.setInvalidInputFlag();
+                processPixel = false;
+                break;
+            }
+        }
+
+        // discrimination of wrong L2 data
+        int errorPixel = 0;
+        if (inputReflec[0] <= 0.01f) {
+            errorPixel++;
+        }
+        if (inputReflec[1] <= 0.01f) {
+            errorPixel++;
+        }
+        if (inputReflec[2] <= 0.009f) {
+            errorPixel++;
+        }
+        if (inputReflec[3] <= 0.009f) {
+            errorPixel++;
+        }
+        if (errorPixel >= 2) {
+            result.setInvalidInputFlag();
+            processPixel = false;
+        }
+
+        if (cloudProcess) {
+            final boolean l2Cloud = sourceTiles.l2Cloud != null && sourceTiles.l2Cloud.getSampleInt(x, y) != 0;
+            processPixel = processCloud(inputReflec, result, getNdvi(inputReflec), l2Cloud, processPixel);
+        }
+        return processPixel;
+    }
+
+    private static double getNdvi(float[] inputReflec) {
+        return (inputReflec[12] - inputReflec[6]) / (inputReflec[12] + inputReflec[6]);
+    }
+
+    /**
+     * Discrimination of desert ground.
+     *
+     * @return the soil spectrum to use for the pixel
+     */
+    private static int getSoilSpectraNumber(float[] inputReflec) {
+        int desertPixel = 0;
+        if (getNdvi(inputReflec) < 0.1) {
+            if (inputReflec[12] > 0.28 && inputReflec[12] <= 0.53) {
+                desertPixel = 1;
+            }
+            if (inputReflec[6] > 0.22 && inputReflec[6] <= 0.32) {
+                desertPixel += 1;
+            }
+            if (inputReflec[2] > 0.13 && inputReflec[2] < 0.3) {
+                desertPixel += 1;
+            }
+        }
+        return desertPixel >= 2 ? 3 : 1;
+    }
+
+    /**
+     * Retrieves the aerosol for all blocks of <code>aotBlockSize</code> x <code>aotBlockSize</code> pixels which
+     * overlap the target rectangle, plus one ring of neighbouring blocks needed for the interpolation. A block
+     * is retrieved as one pixel with the mean reflectances and geometry of its valid pixels. As blocks are
+     * aligned to the scene, every block gives the same result whichever tile it is computed for, so blocks
+     * already retrieved for another tile are taken from the {@link AerosolBlockCache}.
+     */
+    private AerosolBlockGrid retrieveAerosolBlocks(Rectangle targetRectangle, BaerContext context) {
+        final int n = aotBlockSize;
+        final int maxBlockX = (sourceProduct.getSceneRasterWidth() - 1) / n;
+        final int maxBlockY = (sourceProduct.getSceneRasterHeight() - 1) / n;
+        final int blockX0 = Math.max(targetRectangle.x / n - 1, 0);
+        final int blockY0 = Math.max(targetRectangle.y / n - 1, 0);
+        final int blockX1 = Math.min((targetRectangle.x + targetRectangle.width - 1) / n + 1, maxBlockX);
+        final int blockY1 = Math.min((targetRectangle.y + targetRectangle.height - 1) / n + 1, maxBlockY);
+        final Rectangle sourceRectangle = new Rectangle(blockX0 * n, blockY0 * n,
+                                                        (blockX1 + 1) * n - blockX0 * n,
+                                                        (blockY1 + 1) * n - blockY0 * n).intersection(
+                new Rectangle(0, 0, sourceProduct.getSceneRasterWidth(), sourceProduct.getSceneRasterHeight()));
+        final AerosolBlockGrid grid = new AerosolBlockGrid(n, sourceProduct.getSceneRasterWidth(),
+                                                           sourceProduct.getSceneRasterHeight(), blockX0, blockY0,
+                                                           blockX1 - blockX0 + 1, blockY1 - blockY0 + 1);
+        boolean complete = true;
+        for (int blockY = blockY0; blockY <= blockY1; blockY++) {
+            for (int blockX = blockX0; blockX <= blockX1; blockX++) {
+                complete &= aerosolBlockCache.copyTo(blockX, blockY, grid);
+            }
+        }
+        if (complete) {
+            return grid;
+        }
+
+        final SourceTiles sourceTiles = new SourceTiles(sourceRectangle);
+        final float[] inputReflec = new float[BaerConstants.NUM_IN_REFLEC_BANDS];
+        final double[] reflecSum = new double[BaerConstants.NUM_IN_REFLEC_BANDS];
+        final float[] blockReflec = new float[BaerConstants.NUM_IN_REFLEC_BANDS];
+        final MerisPixel pixel = new MerisPixel();
+        final MerisPixel blockPixel = new MerisPixel();
+        final AerPixel screenResult = new AerPixel();
+        for (int blockY = blockY0; blockY <= blockY1; blockY++) {
+            for (int blockX = blockX0; blockX <= blockX1; blockX++) {
+                if (aerosolBlockCache.copyTo(blockX, blockY, grid)) {
+                    continue;
+                }
+                final Rectangle block = new Rectangle(blockX * n, blockY * n, n, n).intersection(sourceRectangle);
+                Arrays.fill(reflecSum, 0.0);
+                double szaSum = 0.0;
+                double vzaSum = 0.0;
+                double pressureSum = 0.0;
+                double saaSin = 0.0;
+                double saaCos = 0.0;
+                double vaaSin = 0.0;
+                double vaaCos = 0.0;
+                int numValid = 0;
+                int numDesert = 0;
+                for (int y = block.y; y < block.y + block.height; y++) {
+                    for (int x = block.x; x < block.x + block.width; x++) {
+                        sourceTiles.readReflectances(x, y, inputReflec);
+                        if (!screenPixel(sourceTiles, x, y, inputReflec, screenResult)) {
+                            continue;
+                        }
+                        for (int b = 0; b < BaerConstants.NUM_IN_REFLEC_BANDS; b++) {
+                            reflecSum[b] += inputReflec[b];
+                        }
+                        sourceTiles.readGeometry(x, y, pixel);
+                        szaSum += pixel.getBand_Sza();
+                        vzaSum += pixel.getBand_Vza();
+                        pressureSum += pixel.getPressure();
+                        // azimuths are averaged as directions
+                        saaSin += Math.sin(Math.toRadians(pixel.getBand_Saa()));
+                        saaCos += Math.cos(Math.toRadians(pixel.getBand_Saa()));
+                        vaaSin += Math.sin(Math.toRadians(pixel.getBand_Vaa()));
+                        vaaCos += Math.cos(Math.toRadians(pixel.getBand_Vaa()));
+                        if (getSoilSpectraNumber(inputReflec) == 3) {
+                            numDesert++;
+                        }
+                        numValid++;
+                    }
+                }
+                if (numValid == 0) {
+                    aerosolBlockCache.setInvalid(blockX, blockY);
+                    continue;
+                }
+
+                for (int b = 0; b < BaerConstants.NUM_IN_REFLEC_BANDS; b++) {
+                    blockReflec[b] = (float) (reflecSum[b] / numValid);
+                }
+                blockPixel.setBands(blockReflec);
+                blockPixel.setBand_Sza((float) (szaSum / numValid));
+                blockPixel.setBand_Vza((float) (vzaSum / numValid));
+                blockPixel.setBand_Saa((float) Math.toDegrees(Math.atan2(saaSin, saaCos)));
+                blockPixel.setBand_Vaa((float) Math.toDegrees(Math.atan2(vaaSin, vaaCos)));
+                blockPixel.setPressure((float) (pressureSum / numValid));
+                context.setSoilSpectraNumber(2 * numDesert > numValid ? 3 : 1);
+                if (algorithm.retrieveAerosol(blockPixel, context)) {
+                    grid.setBlock(blockX, blockY, context.getRetrievedAot412(), context.getRetrievedAlpha());
+                    aerosolBlockCache.setBlock(blockX, blockY, context.getRetrievedAot412(),
+                                               context.getRetrievedAlpha());
+                } else {
+                    aerosolBlockCache.setInvalid(blockX, blockY);
+                }
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Cloud screening, identical to <code>BaerProcessor.cloud_process</code>.
+     */
+    private static boolean processCloud(float[] inputReflec, AerPixel result, double ndvix, boolean l2Cloud,
+                                        boolean processPixel) {
+        result.setBand_Cloud(0);
+        if (l2Cloud) {
+            result.setBand_Cloud(2);
+            processPixel = false;
+        } else {
+            int cloudPixel = 0;
+            final double rhoclibx = 0.2;
+            if (inputReflec[1] >= rhoclibx) {
+                cloudPixel = 1;
+            }
+            if (inputReflec[2] >= rhoclibx) {
+                cloudPixel++;
+            }
+            if (inputReflec[3] >= rhoclibx) {
+                cloudPixel++;
+            }
+            if (ndvix < 0.1) {
+                if (inputReflec[12] > 0.53) {
+                    cloudPixel++;
+                }
+                if (inputReflec[6] > 0.32) {
+                    cloudPixel++;
+                }
+                if (inputReflec[2] > 0.30) {
+                    cloudPixel++;
+                }
+            }
+            if (cloudPixel >= 3) {
+                result.setCloudInputFlag();
+                result.setBand_Cloud(1);
+                processPixel = false;
+            }
+        }
+        return processPixel;
+    }
+
+    /**
+     * Accepts MERIS L2 products only - as the legacy processor does.
+     */
+    private void checkSourceProductType() {
+        final String prodType = sourceProduct.getProductType();
+        if (prodType == null ||
+            !(prodType.equalsIgnoreCase(EnvisatConstants.MERIS_FR_L2_PRODUCT_TYPE_NAME) ||
+              prodType.equalsIgnoreCase(EnvisatConstants.MERIS_RR_L2_PRODUCT_TYPE_NAME))) {
+            throw new OperatorException("Invalid product of type '" + prodType + "'.");
+        }
+    }
+
+    private void loadSourceNodes() {
+        merisReflecBands = new Band[BaerConstants.NUM_IN_REFLEC_BANDS];
+        for (int n = 0; n < BaerConstants.NUM_IN_REFLEC_BANDS; n++) {
+            merisReflecBands[n] = getSourceBand(EnvisatConstants.MERIS_L2_BAND_NAMES[n]);
+        }
+        toaVegBand = getSourceBand(EnvisatConstants.MERIS_L2_BAND_NAMES[15]);
+        surfPressBand = getSourceBand(EnvisatConstants.MERIS_L2_BAND_NAMES[21]);
+
+        gridSza = getSourceTiePointGrid(EnvisatConstants.MERIS_SUN_ZENITH_DS_NAME);
+        gridSaa = getSourceTiePointGrid(EnvisatConstants.MERIS_SUN_AZIMUTH_DS_NAME);
+        gridVza = getSourceTiePointGrid(EnvisatConstants.MERIS_VIEW_ZENITH_DS_NAME);
+        gridVaa = getSourceTiePointGrid(EnvisatConstants.MERIS_VIEW_AZIMUTH_DS_NAME);
+    }
+
+    private Band getSourceBand(String bandName) {
+        final Band band = sourceProduct.getBand(bandName);
+        if (band == null) {
+            throw new OperatorException("The requested band \"" + bandName + "\" was not found in product!");
+        }
+        return band;
+    }
+
+    private TiePointGrid getSourceTiePointGrid(String name) {
+        final TiePointGrid grid = sourceProduct.getTiePointGrid(name);
+        if (grid == null) {
+            throw new OperatorException("The requested tie point grid \"" + name + "\" is not found in product!");
+        }
+        return grid;
+    }
+
+    /**
+     * Resolves the atmospheric correction method the same way <code>BaerProcessor.loadRequestParameter</code> does.
+     */
+    private void selectProcessFormat() {
+        processFormat = "SMAC";
+        if (baerProcess) {
+            if (atmCorProcess) {
+                if ("SMAC".equalsIgnoreCase(atmCorrMethod)) {
+                    processFormat = "SMAC";
+                } else {
+                    processFormat = "UBAC";
+                }
+            } else {
+                processFormat = "";
+            }
+        }
+    }
+
+    private void createMasks() {
+        if (StringUtils.isNullOrEmpty(bitmask)) {
+            bitmaskMask = null;
+            l2CloudMask = null;
+            return;
+        }
+        bitmaskMask = createMask(VALID_MASK_NAME, bitmask);
+        l2CloudMask = createMask(CLOUD_MASK_NAME, L2_CLOUD_EXPRESSION);
+    }
+
+    private Mask createMask(String name, String expression) {
+        if (!sourceProduct.isCompatibleBandArithmeticExpression(expression)) {
+            throw new OperatorException("The expression '" + expression + "' is not compatible with the source product.");
+        }
+        final int width = sourceProduct.getSceneRasterWidth();
+        final int height = sourceProduct.getSceneRasterHeight();
+        final Mask mask = Mask.BandMathsType.create(name, "", width, height, expression, Color.BLACK, 0.0);
+        sourceProduct.getMaskGroup().add(mask);
+        return mask;
+    }
+
+    private void createTargetProduct() {
+        final int width = sourceProduct.getSceneRasterWidth();
+        final int height = sourceProduct.getSceneRasterHeight();
+
+        targetProduct = new Product(sourceProduct.getName() + BaerConstants.PRODUCT_TYPE_APPENDIX,
+                                    sourceProduct.getProductType() + BaerConstants.PRODUCT_TYPE_APPENDIX,
+                                    width, height);
+
+        ProductUtils.copyTiePointGrids(sourceProduct, targetProduct);
+        ProductUtils.copyFlagBands(sourceProduct, targetProduct, true);
+        ProductUtils.copyGeoCoding(sourceProduct, targetProduct);
+        targetProduct.setStartTime(sourceProduct.getStartTime());
+        targetProduct.setEndTime(sourceProduct.getEndTime());
+
+        if (baerProcess) {
+            if (atmCorProcess) {
+                aerReflecBands = new Band[BaerConstants.NUM_OUT_REFLEC_BANDS];
+                for (int n = 0; n < BaerConstants.NUM_OUT_REFLEC_BANDS; n++) {
+                    final Band merisBand = merisReflecBands[n];
+                    final Band band = targetProduct.addBand(merisBand.getName(), ProductData.TYPE_FLOAT32);
+                    band.setUnit(merisBand.getUnit());
+                    band.setSpectralBandIndex(merisBand.getSpectralBandIndex());
+                    band.setSpectralWavelength(merisBand.getSpectralWavelength());
+                    band.setSpectralBandwidth(merisBand.getSpectralBandwidth());
+                    band.setDescription(BaerConstants.OUT_REFLEC_BAND_DESCRIPTION);
+                    band.setValidPixelExpression(BaerConstants.VALID_PIXEL_EXPRESSION);
+                    aerReflecBands[n] = band;
+                }
+            }
+
+            aot412Band = addTargetBand(BaerConstants.AOT_412_BAND_NAME, BaerConstants.AOT_412_BAND_DESCRIPTION, true);
+            aot440Band = addTargetBand(BaerConstants.AOT_440_BAND_NAME, BaerConstants.AOT_440_BAND_DESCRIPTION, true);
+            aot550Band = addTargetBand(BaerConstants.AOT_550_BAND_NAME, BaerConstants.AOT_550_BAND_DESCRIPTION, true);
+            alphaBand = addTargetBand(BaerConstants.ALPHA_BAND_NAME, BaerConstants.ALPHA_BAND_DESCRIPTION, false);
+            toaVegTargetBand = addTargetBand(BaerConstants.TOA_VEG_BAND_NAME, BaerConstants.TOA_VEG_BAND_DESCRIPTION,
+                                             false);
+            if (outputIterations || diagnostics) {
+                iterationsBand = targetProduct.addBand(BaerConstants.ITERATIONS_BAND_NAME, ProductData.TYPE_INT16);
+                iterationsBand.setDescription(BaerConstants.ITERATIONS_BAND_DESCRIPTION);
+            }
+        }
+        if (cloudProcess) {
+            cloudBand = addTargetBand(BaerConstants.CLOUD_BAND_NAME, BaerConstants.CLOUD_BAND_DESCRIPTION, false);
+        }
+        if (baerProcess) {
+            final FlagCoding fc = FlagsManager.getFlagCoding();
+            targetProduct.getFlagCodingGroup().add(fc);
+            flagsBand = targetProduct.addBand(BaerConstants.OUT_FLAGS_BAND_NAME, ProductData.TYPE_UINT16);
+            flagsBand.setDescription(BaerConstants.OUT_FLAGS_BAND_DESCRIPTION);
+            flagsBand.setSampleCoding(fc);
+            FlagsManager.addBitmaskDefsToProduct(targetProduct);
+        }
+
+        addMetadataToTarget();
+    }
+
+    private Band addTargetBand(String name, String description, boolean useValidExpression) {
+        final Band band = targetProduct.addBand(name, ProductData.TYPE_FLOAT32);
+        band.setDescription(description);
+        if (useValidExpression) {
+            band.setValidPixelExpression(BaerConstants.VALID_PIXEL_EXPRESSION);
+        }
+        return band;
+    }
+
+    /**
+     * Adds the source MPH/SPH and the processor information to the target metadata - as the legacy processor does.
+     */
+    private void addMetadataToTarget() {
+        final MetadataElement srcRoot = sourceProduct.getMetadataRoot();
+        final MetadataElement destRoot = targetProduct.getMetadataRoot();
+
+        final MetadataElement srcFolder = new MetadataElement(BaerConstants.SRC_METADATA_NAME);
+        final MetadataElement srcMph = srcRoot.getElement("MPH");
+        if (srcMph != null) {
+            srcFolder.addElement(srcMph.createDeepClone());
+        }
+        final MetadataElement srcSph = srcRoot.getElement("SPH");
+        if (srcSph != null) {
+            srcFolder.addElement(srcSph.createDeepClone());
+        }
+        destRoot.addElement(srcFolder);
+
+        final MetadataElement mph = new MetadataElement(BaerConstants.MPH_METADATA_NAME);
+        mph.addAttribute(new MetadataAttribute(BaerConstants.PRODUCT_METADATA_NAME,
+                                               ProductData.createInstance(targetProduct.getName()), true));
+        mph.addAttribute(new MetadataAttribute(BaerConstants.SRC_PRODUCT_METADATA_NAME,
+                                               ProductData.createInstance(sourceProduct.getName()), true));
+        mph.addAttribute(new MetadataAttribute(BaerConstants.PROCESSOR_METADATA_NAME,
+                                               ProductData.createInstance(BaerConstants.PROC_NAME), true));
+        mph.addAttribute(new MetadataAttribute(BaerConstants.PROCESSOR_VERSION_METADATA_NAME,
+                                               ProductData.createInstance(BaerConstants.PROC_VERSION), true));
+        mph.addAttribute(new MetadataAttribute(BaerConstants.PROCESSING_TIME_METADATA_NAME,
+                                               ProductData.createInstance(Calendar.getInstance().getTime().toString()),
+                                               true));
+        mph.addAttribute(new MetadataAttribute(BaerConstants.AOT_BLOCK_SIZE_METADATA_NAME,
+                                               ProductData.createInstance(new int[]{aotBlockSize}), true));
+        mph.addAttribute(new MetadataAttribute(BaerConstants.WARM_START_METADATA_NAME,
+                                               ProductData.createInstance(String.valueOf(warmStart)), true));
+        destRoot.addElement(mph);
+    }
+
+    /**
+     * Installs and loads all auxiliary data. The loaders are read-only after loading and shared by
+     * all computing threads.
+     */
+    private void loadAuxiliaryData() {
+        File auxdataPath = new File(SystemUtils.getApplicationDataDir(), getSymbolicName() + "/auxdata");
+        File configFile = new File(auxdataPath, BaerConstants.CONFIG_FILE);
+        try {
+            final ResourceInstaller resourceInstaller = new ResourceInstaller(ResourceInstaller.getSourceUrl(getClass()),
+                                                                              "auxdata/" + BaerConstants.AUXDATA_DIR,
+                                                                              auxdataPath);
+            resourceInstaller.install(".*", ProgressMonitor.NULL);
+
+            final URL configPath = configFile.toURI().toURL();
+            final ProcessorConfigurationParser parser = new ProcessorConfigurationParser();
+            parser.parseConfigurationFile(configPath, auxdataPath);
+            final ProcessorConfiguration config = parser.getConfiguration();
+            final AuxDataSnapshot snapshot = AuxDataSnapshot.open(new File(auxdataPath, AuxDataSnapshot.FILE_NAME));
+            auxDataHandles = new ArrayList<AuxDataRegistry.Handle<?>>();
+
+            relAerAux = hold(snapshot.acquire(RelAerPhaseLoader.class, new RelAerPhaseLoader(),
+                                              config.getRelativeAerosolPhaseAuxFile()));
+
+            aerPhaseAux = hold(snapshot.acquire(AerPhaseLoader.class, new AerPhaseLoader(),
+                                                config.getAerosolPhaseAuxFile()));
+            aerPhaseLutAux = aerPhaseAux.getLUT(aerPhaseLut);
+            if (aerPhaseLutAux == null) {
+                throw new OperatorException(
+                        "Invalid processing parameter: '" + BaerConstants.AER_PHASE_PARAM_NAME + "' = '" + aerPhaseLut + "'");
+            }
+
+            ndviAux = hold(snapshot.acquire(NdviLoader.class, new NdviLoader(), config.getNdviAuxFile()));
+
+            groundReflecAux = hold(snapshot.acquire(GroundReflectanceLoader.class, new GroundReflectanceLoader(),
+                                                    config.getGroundReflectanceAuxFile()));
+
+            soilFractionAux = hold(snapshot.acquire(SoilFractionLoader.class, new SoilFractionLoader(),
+                                                    config.getSoilFractionAuxFile()));
+
+            f_TuningAux = hold(snapshot.acquire(F_TuningLoader.class, new F_TuningLoader(),
+                                                config.getF_TuningAuxFile()));
+
+            aerDiffTransmAux = hold(snapshot.acquire(AerDiffTransmLoader.class, new AerDiffTransmLoader(),
+                                                     config.getAerDiffTransmAuxFile()));
+
+            hemisphReflecAux = hold(snapshot.acquire(HemisphReflecLoader.class, new HemisphReflecLoader(),
+                                                     config.getHemisphReflecAuxFile()));
+
+            coeffMgr = hold(SmacCoefficientsManager.acquire(auxdataPath, snapshot));
+            snapshot.update();
+        } catch (MalformedURLException e) {
+            throw new OperatorException("Failed to create configuration URL for " + configFile.getPath(), e);
+        } catch (ProcessorException e) {
+            throw new OperatorException("Failed to parse configuration " + configFile.getPath() + " with aux data " + auxdataPath.getPath(), e);
+        } catch (IOException e) {
+            throw new OperatorException("Failed to load auxiliary from " + auxdataPath.getPath(), e);
+        }
+    }
+
+    /**
+     * Keeps a handle to shared auxiliary data until the operator is disposed.
+     */
+    private <T> T hold(AuxDataRegistry.Handle<T> handle) {
+        auxDataHandles.add(handle);
+        return handle.get();
+    }
+
+    /**
+     * Creates and initialises the algorithm. After initialisation it is only read and shared by all threads.
+     */
+    private BaerAlgorithm createAlgorithm() {
+        final BaerAlgorithm algorithm = new BaerAlgorithm();
+        algorithm.setRelAerPhaseAccess(relAerAux);
+        algorithm.setAerPhaseAccess(aerPhaseLutAux);
+        algorithm.setNdviAccess(ndviAux);
+        algorithm.setGroundReflectanceAccess(groundReflecAux);
+        algorithm.setSoilFractionAccess(soilFractionAux);
+        algorithm.setF_TuningAccess(f_TuningAux);
+        algorithm.setAerDiffTransmAccess(aerDiffTransmAux);
+        algorithm.setHemisphReflecAccess(hemisphReflecAux);
+        algorithm.setSmacCoeffManager(coeffMgr);
+        algorithm.setProductType(sourceProduct.getProductType());
+        if (baerProcess) {
+            algorithm.setAtmCorProcessFormat(atmCorProcess);
+            algorithm.setProcessFormat(processFormat);
+        }
+        algorithm.setAerosolType(SmacCoefficientsManager.AER_CONT_NAME);
+        algorithm.setSmacLegacyNumerics(smacLegacyNumerics);
+        algorithm.initAlgo();
+        return algorithm;
+    }
+
+    public String getSymbolicName() {
+        return StringUtils.createValidName(OperatorSpi.getOperatorAlias(getClass()).toLowerCase(), new char[]{'-', '.'}, '-');
+    }
+
+    /**
+     * The source tiles needed to screen and process the pixels of a rectangle.
+     */
+    private final class SourceTiles {
+
+        private final Tile[] reflec;
+        private final Tile sza;
+        private final Tile saa;
+        private final Tile vza;
+        private final Tile vaa;
+        private final Tile surfPress;
+        // the legacy processor only evaluates the L2 cloud flag together with the bitmask
+        private final Tile bitmask;
+        private final Tile l2Cloud;
+
+        private SourceTiles(Rectangle rectangle) {
+            reflec = new Tile[BaerConstants.NUM_IN_REFLEC_BANDS];
+            for (int n = 0; n < BaerConstants.NUM_IN_REFLEC_BANDS; n++) {
+                reflec[n] = getSourceTile(merisReflecBands[n], rectangle);
+            }
+            sza = getSourceTile(gridSza, rectangle);
+            saa = getSourceTile(gridSaa, rectangle);
+            vza = getSourceTile(gridVza, rectangle);
+            vaa = getSourceTile(gridVaa, rectangle);
+            surfPress = getSourceTile(surfPressBand, rectangle);
+            if (bitmaskMask != null) {
+                bitmask = getSourceTile(bitmaskMask, rectangle);
+                l2Cloud = getSourceTile(l2CloudMask, rectangle);
+            } else {
+                bitmask = null;
+                l2Cloud = null;
+            }
+        }
+
+        private void readReflectances(int x, int y, float[] inputReflec) {
+            for (int n = 0; n < BaerConstants.NUM_IN_REFLEC_BANDS; n++) {
+                inputReflec[n] = reflec[n].getSampleFloat(x, y);
+            }
+        }
+
+        private void readGeometry(int x, int y, MerisPixel pixel) {
+            pixel.setBand_Sza(sza.getSampleFloat(x, y));
+            pixel.setBand_Saa(saa.getSampleFloat(x, y));
+            pixel.setBand_Vza(vza.getSampleFloat(x, y));
+            pixel.setBand_Vaa(vaa.getSampleFloat(x, y));
+            pixel.setPressure(surfPress.getSampleFloat(x, y));
+        }
+    }
+
+    public static class Spi extends OperatorSpi {
+
+        public Spi() {
+            super(BaerOp.class);
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package org.esa.beam.processor.baer;
 
 import com.bc.ceres.core.ProgressMonitor;
-import com.bc.ceres.core.SubProgressMonitor;
 import com.bc.jexp.Term;
 import org.esa.beam.dataio.envisat.EnvisatConstants;
 import org.esa.beam.framework.dataio.ProductWriter;
@@ -23,8 +22,11 @@ import org.esa.beam.framework.processor.Request;
 import org.esa.beam.framework.processor.RequestElementFactory;
 import org.esa.beam.framework.processor.ui.ProcessorUI;
 import org.esa.beam.processor.baer.algorithm.BaerAlgorithm;
+import org.esa.beam.processor.baer.algorithm.BaerDiagnostics;
 import org.esa.beam.processor.baer.auxdata.AerDiffTransmLoader;
+import org.esa.beam.processor.baer.auxdata.AerLut;
 import org.esa.beam.processor.baer.auxdata.AerPhaseLoader;
+import org.esa.beam.processor.baer.auxdata.AuxDataSnapshot;
 import org.esa.beam.processor.baer.auxdata.AuxFileLoader;
 import org.esa.beam.processor.baer.auxdata.AuxFilePropsLoader;
 import org.esa.beam.processor.baer.auxdata.F_TuningLoader;
@@ -40,17 +42,23 @@ import org.esa.beam.processor.baer.utils.FlagsManager;
 import org.esa.beam.processor.baer.utils.MerisPixel;
 import org.esa.beam.processor.baer.utils.ProcessorConfiguration;
 import org.esa.beam.processor.baer.utils.ProcessorConfigurationParser;
+import org.esa.beam.processor.common.auxdata.AuxDataRegistry;
+import org.esa.beam.processor.common.utils.StripPipeline;
 import org.esa.beam.util.ProductUtils;
 import org.esa.beam.util.ResourceInstaller;
 import org.esa.beam.util.io.FileUtils;
 
+import javax.management.JMException;
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -68,6 +76,7 @@ public class BaerProcessor extends Processor {
     private boolean _baer_process;
     private boolean _atm_cor_process;
     private boolean _cloud_process;
+    private boolean _diagnostics;
     private ProcessorConfiguration _config;
 
     private Product _inputProduct;
@@ -101,8 +110,11 @@ public class BaerProcessor extends Processor {
     private Band _toa_veg_band;
     private Band _out_flags_band;
     private Band _out_cloud_band;
+    private Band _iterations_band;
 
     private BaerAlgorithm _baerAlgo;
+    private BaerDiagnostics _totalDiagnostics;
+    private BaerDiagnostics _lineDiagnostics;
 
 
     private NdviLoader _ndviAux;
@@ -114,6 +126,8 @@ public class BaerProcessor extends Processor {
     private AerDiffTransmLoader _aerDiffTransmAux;
     private HemisphReflecLoader _hemisphReflecAux;
     private SmacCoefficientsManager _coeffMgr;
+    private AuxDataSnapshot _auxSnapshot;
+    private List<AuxDataRegistry.Handle<?>> _auxDataHandles;
 
     private String _bitmaskExpression;
     private Term _bitMaskTerm;
@@ -148,14 +162,8 @@ public class BaerProcessor extends Processor {
         loadConfig();
 
         final File auxdataDir = getAuxdataInstallDir();
-        try {
-            _coeffMgr = new SmacCoefficientsManager(auxdataDir);
-            _baerAlgo.setSmacCoeffManager(_coeffMgr);
-        } catch (IOException e) {
-            String msg = "Unable to load SMAC auxdata from " + auxdataDir;
-            _logger.log(Level.SEVERE, msg, e);
-            throw new ProcessorException(msg, e);
-        }
+        _auxSnapshot = AuxDataSnapshot.open(new File(auxdataDir, AuxDataSnapshot.FILE_NAME));
+        _auxDataHandles = new ArrayList<AuxDataRegistry.Handle<?>>();
     }
 
     /**
@@ -184,15 +192,22 @@ public class BaerProcessor extends Processor {
 
             createBitmaskTerm();
 
-            /*  if (_processL1b) {
-              processL1bAerCorrection();
-          } else {*/
-            processAerCorrection(pm);
-            //}
+            startDiagnostics();
+            try {
+                /*  if (_processL1b) {
+                  processL1bAerCorrection();
+              } else {*/
+                processAerCorrection(pm);
+                //}
+            } finally {
+                finishDiagnostics();
+            }
 
             closeProducts();
         } catch (IOException e) {
             throw new ProcessorException(e.getMessage());
+        } finally {
+            releaseAuxiliaryData();
         }
 
         _logger.info(ProcessorConstants.LOG_MSG_FINISHED_REQUEST);
@@ -276,60 +291,79 @@ public class BaerProcessor extends Processor {
 
         // load relative aerosol phase coefficients
         // ----------------------------------------
-        _relAerAux = new RelAerPhaseLoader();
-
-        _relAerAux.load(_config.getRelativeAerosolPhaseAuxFile());
+        _relAerAux = hold(_auxSnapshot.acquire(RelAerPhaseLoader.class, new RelAerPhaseLoader(),
+                                               _config.getRelativeAerosolPhaseAuxFile()));
         _baerAlgo.setRelAerPhaseAccess(_relAerAux);
 
-        // load aersosl phase function coefficients
-        // ----------------------------------------
-        _aerPhaseAux = new AerPhaseLoader();
-
-        _aerPhaseAux.load(_config.getAerosolPhaseAuxFile());
-        _baerAlgo.setAerPhaseAccess(_aerPhaseAux);
+        // load aersosl phase function coefficients, the LUT is selected with the request parameters
+        // -----------------------------------------------------------------------------------------
+        _aerPhaseAux = hold(_auxSnapshot.acquire(AerPhaseLoader.class, new AerPhaseLoader(),
+                                                 _config.getAerosolPhaseAuxFile()));
 
         // load ndvi tuning factor
         // -----------------------
-        _ndviAux = new NdviLoader();
-
-        _ndviAux.load(_config.getNdviAuxFile());
+        _ndviAux = hold(_auxSnapshot.acquire(NdviLoader.class, new NdviLoader(), _config.getNdviAuxFile()));
         _baerAlgo.setNdviAccess(_ndviAux);
 
         // load ground reflectance data
         // ----------------------------
-        _groundReflecAux = new GroundReflectanceLoader();
-
-        _groundReflecAux.load(_config.getGroundReflectanceAuxFile());
+        _groundReflecAux = hold(_auxSnapshot.acquire(GroundReflectanceLoader.class, new GroundReflectanceLoader(),
+                                                     _config.getGroundReflectanceAuxFile()));
         _baerAlgo.setGroundReflectanceAccess(_groundReflecAux);
 
         // load soil fration factor data
         // -----------------------------
-        _soilFractionAux = new SoilFractionLoader();
-        _soilFractionAux.load(_config.getSoilFractionAuxFile());
+        _soilFractionAux = hold(_auxSnapshot.acquire(SoilFractionLoader.class, new SoilFractionLoader(),
+                                                     _config.getSoilFractionAuxFile()));
         _baerAlgo.setSoilFractionAccess(_soilFractionAux);
 
         // load f tuning factor data
         // -------------------------
-        _f_TuningAux = new F_TuningLoader();
-        _f_TuningAux.load(_config.getF_TuningAuxFile());
+        _f_TuningAux = hold(_auxSnapshot.acquire(F_TuningLoader.class, new F_TuningLoader(),
+                                                 _config.getF_TuningAuxFile()));
         _baerAlgo.setF_TuningAccess(_f_TuningAux);
 
         // load aerosol diffuse transmission file
         // --------------------------------------
-        _aerDiffTransmAux = new AerDiffTransmLoader();
-        _aerDiffTransmAux.load(_config.getAerDiffTransmAuxFile());
+        _aerDiffTransmAux = hold(_auxSnapshot.acquire(AerDiffTransmLoader.class, new AerDiffTransmLoader(),
+                                                      _config.getAerDiffTransmAuxFile()));
         _baerAlgo.setAerDiffTransmAccess(_aerDiffTransmAux);
 
         // load hemispherical reflectance file
         // ---------------------------------------
-        _hemisphReflecAux = new HemisphReflecLoader();
-        _hemisphReflecAux.load(_config.getHemisphReflecAuxFile());
+        _hemisphReflecAux = hold(_auxSnapshot.acquire(HemisphReflecLoader.class, new HemisphReflecLoader(),
+                                                      _config.getHemisphReflecAuxFile()));
         _baerAlgo.setHemisphReflecAccess(_hemisphReflecAux);
 
+        // load SMAC coefficients
+        // ----------------------
+        _coeffMgr = hold(SmacCoefficientsManager.acquire(getAuxdataInstallDir(), _auxSnapshot));
+        _baerAlgo.setSmacCoeffManager(_coeffMgr);
+
+        _auxSnapshot.update();
 
         _auxFilesLoaded = true;
     }
 
+    /**
+     * Keeps a handle to shared auxiliary data until the data are released.
+     */
+    private <T> T hold(AuxDataRegistry.Handle<T> handle) {
+        _auxDataHandles.add(handle);
+        return handle.get();
+    }
+
+    /**
+     * Releases the shared auxiliary data, they are acquired again for the next request.
+     */
+    private void releaseAuxiliaryData() {
+        for (AuxDataRegistry.Handle<?> handle : _auxDataHandles) {
+            handle.release();
+        }
+        _auxDataHandles.clear();
+        _auxFilesLoaded = false;
+    }
+
     /**
      * Checks the request for correct type.
      */
@@ -394,6 +428,10 @@ public class BaerProcessor extends Processor {
         }
         _baerAlgo.setAerosolType(SmacCoefficientsManager.AER_CONT_NAME);
 
+        // diagnostics, optional
+        param = request.getParameter(BaerConstants.DIAGNOSTICS_PARAM_NAME);
+        _diagnostics = param != null && ((Boolean) param.getValue()).booleanValue();
+
         // bitmask expression
         // ------------------
         param = request.getParameter(BaerConstants.BITMASK_PARAM_NAME);
@@ -416,10 +454,12 @@ public class BaerProcessor extends Processor {
         }
 
         String value = param.getValueAsText();
-        if (!_aerPhaseAux.selectLut(value)) {
+        final AerLut aerPhaseLut = _aerPhaseAux.getLUT(value);
+        if (aerPhaseLut == null) {
             throw new ProcessorException(
                     "Invalid processing request parameter: '" + BaerConstants.AER_PHASE_PARAM_NAME + "'");
         }
+        _baerAlgo.setAerPhaseAccess(aerPhaseLut);
         _logger.fine("... selected aerosol phase LUT: '" + value + "'");
     }
 
@@ -748,6 +788,50 @@ public class BaerProcessor extends Processor {
         _out_flags_band.setDescription(BaerConstants.OUT_FLAGS_BAND_DESCRIPTION);
         _out_flags_band.setSampleCoding(fc);
         _outputProduct.addBand(_out_flags_band);
+
+        if (_diagnostics && _baer_process) {
+            _iterations_band = new Band(BaerConstants.ITERATIONS_BAND_NAME, ProductData.TYPE_INT16, width, height);
+            _iterations_band.setDescription(BaerConstants.ITERATIONS_BAND_DESCRIPTION);
+            _outputProduct.addBand(_iterations_band);
+        } else {
+            _iterations_band = null;
+        }
+    }
+
+    /**
+     * Switches the statistics of the aerosol retrieval on, if requested, and publishes them via JMX.
+     */
+    private void startDiagnostics() {
+        _totalDiagnostics = null;
+        _lineDiagnostics = null;
+        if (_diagnostics) {
+            _totalDiagnostics = new BaerDiagnostics();
+            _lineDiagnostics = new BaerDiagnostics();
+            try {
+                _totalDiagnostics.register(_outputProduct.getName());
+            } catch (JMException e) {
+                _logger.log(Level.WARNING, "Unable to register the BAER diagnostics MBean", e);
+            }
+        }
+        _baerAlgo.setDiagnostics(_lineDiagnostics);
+    }
+
+    /**
+     * Adds the statistics of the aerosol retrieval to the output product metadata and the log.
+     */
+    private void finishDiagnostics() {
+        if (_totalDiagnostics == null) {
+            return;
+        }
+        _baerAlgo.setDiagnostics(null);
+        _totalDiagnostics.unregister();
+        _outputProduct.getMetadataRoot().addElement(
+                _totalDiagnostics.createMetadataElement(BaerConstants.DIAGNOSTICS_METADATA_NAME));
+        _logger.info("... aerosol retrieval: " + _totalDiagnostics.getPixelCount() + " pixels, "
+                     + _totalDiagnostics.getMeanIterations() + " iterations per pixel, "
+                     + _totalDiagnostics.getNotConvergedCount() + " not converged");
+        _logger.info("... time init/retrieval/correction [ms]: " + _totalDiagnostics.getInitTime() + " / "
+                     + _totalDiagnostics.getRetrievalTime() + " / " + _totalDiagnostics.getCorrectionTime());
     }
 
 
@@ -937,264 +1021,34 @@ public class BaerProcessor extends Processor {
     }
 
     /**
-     * Performs the actual aerosol correction for MERIS L2 input products.
+     * Performs the actual aerosol correction for MERIS L2 input products. The scene is processed in strips,
+     * the input of the next strip is read and the output of the previous strip is written while the
+     * current strip is computed.
      */
     private void processAerCorrection(ProgressMonitor pm) throws ProcessorException, IOException {
-        boolean processPixel = true;
         final int width = _inputProduct.getSceneRasterWidth();
         final int height = _inputProduct.getSceneRasterHeight();
 
-
-        final MerisPixel inPixel = new MerisPixel();
-        AerPixel result = new AerPixel();
-        double ndvix;
-        int desert_pixel;
-
-        // input
-        final float[][] input_reflec = new float[BaerConstants.NUM_IN_REFLEC_BANDS][width];
-
-        float[] band_boa_veg = new float[width];
-        float[] band_surfPress = new float[width];
-        float[] band_Lat = new float[width];
-        float[] band_Lon = new float[width];
-        float[] band_Sza = new float[width];
-        float[] band_Saa = new float[width];
-        float[] band_Vza = new float[width];
-        float[] band_Vaa = new float[width];
-        float[] band_aero_opt = new float[width];
-        //       int cloud_pixel;
-        int error_pixel;
-        //   double rhoclib = 0.3;
-        //      double rhoclibx;
-
-        boolean process_cloud[] = new boolean[width];
-
-        boolean process[] = new boolean[width];
-        for (int n = 0; n < width; n++) {
-            process[n] = true;
-            process_cloud[n] = false;
-        }
-
         //Baer Algo init
         _baerAlgo.initAlgo();
 
-        // output
-        final float[][] output_reflec = new float[BaerConstants.NUM_OUT_REFLEC_BANDS][width];
-        float[] band_aot_412 = new float[width];
-        float[] band_aot_440 = new float[width];
-        float[] band_aot_550 = new float[width];
-        float[] band_alpha = new float[width];
-        int[] out_flags = new int[width];
-        float[] out_cloud = new float[width];
-
-        // progress bar init
-        // -----------------
-        int work = BaerConstants.NUM_IN_REFLEC_BANDS + 9;
-        if (_baer_process) {
-            if (_atm_cor_process) {
-                work += BaerConstants.NUM_OUT_REFLEC_BANDS;
-            }
-            work += 6;
-        }
-        if (_cloud_process) {
-            work += 1;
-        }
-        work = work * height + 1;
-
-        pm.beginTask(BaerConstants.LOG_MSG_GENERATE_PIXEL, work); /*I18N*/
+        // progress bar init, one work unit per line
+        // -----------------------------------------
+        pm.beginTask(BaerConstants.LOG_MSG_GENERATE_PIXEL, height + 1); /*I18N*/
 
         copyFlagBands(_inputProduct, _outputProduct);
+        pm.worked(1);
 
         Mask bitmask = Mask.BandMathsType.create("bitmask", "description", width, height, _bitmaskExpression, Color.BLACK, 0.0);
         Mask bitmaskCloud = Mask.BandMathsType.create("bitmaskCloud", "description", width, height, _bitmaskL2CloudExpr, Color.BLACK, 0.0);
         _inputProduct.getMaskGroup().add(bitmask);
         _inputProduct.getMaskGroup().add(bitmaskCloud);
 
-        for (int line = 0; line < height; line++) {
-            // read input data
-            // ---------------
-            for (int n = 0; n < BaerConstants.NUM_IN_REFLEC_BANDS; n++) {
-                _merisReflecBands[n].readPixels(0, line, width, 1, input_reflec[n], SubProgressMonitor.create(pm, 1));
-
-            }
-
-            _aero_opt.readPixels(0, line, width, 1, band_aero_opt, SubProgressMonitor.create(pm, 1));
-            _toaVegBand.readPixels(0, line, width, 1, band_boa_veg, SubProgressMonitor.create(pm, 1));
-            _gridLat.readPixels(0, line, width, 1, band_Lat, SubProgressMonitor.create(pm, 1));
-            _gridLon.readPixels(0, line, width, 1, band_Lon, SubProgressMonitor.create(pm, 1));
-            _gridSza.readPixels(0, line, width, 1, band_Sza, SubProgressMonitor.create(pm, 1));
-            _gridSaa.readPixels(0, line, width, 1, band_Saa, SubProgressMonitor.create(pm, 1));
-            _gridVza.readPixels(0, line, width, 1, band_Vza, SubProgressMonitor.create(pm, 1));
-            _gridVaa.readPixels(0, line, width, 1, band_Vaa, SubProgressMonitor.create(pm, 1));
-            _surfPressBand.readPixels(0, line, width, 1, band_surfPress, SubProgressMonitor.create(pm, 1));
-
-            // evaluate bitmask
-            // ----------------
-            if (_bitMaskTerm != null) {
-                int[] temp = new int[width];
-                bitmask.getSourceImage().getData().getSamples(0, line, width, 1, 0, temp);
-                for (int i = 0; i < temp.length; i++) {
-                    process[i] = temp[i] == 255;
-                }
-                bitmaskCloud.getSourceImage().getData().getSamples(0, line, width, 1, 0, temp);
-                for (int i = 0; i < temp.length; i++) {
-                    process_cloud[i] = temp[i] == 255;
-                }
-            }
-
-            // loop over line, assemble pixel and dispatch to processing classes
-            // -----------------------------------------------------------------
-            for (int x = 0; x < width; x++) {
-                // reset to be sure - risk of pending flags ...
-                result.reset();
-
-                // check bitmask
-                if (!process[x]) {
-                    result.setInvalidInputFlag();
-                    processPixel = false;
-                }
-
-                if (_atm_corr_method.equals("SMAC")) {
-                    result.setAtmosphericCorrectionFlag();
-                }
-                // check for negative reflectance
-                for (int n = 0; n < BaerConstants.NUM_IN_REFLEC_BANDS; n++) {
-                    if (input_reflec[n][x] < 0.f) {
-                        result.setInvalidInputFlag();
-                        processPixel = false;
-                        break;
-                    }
-                }
-
-                /* Discrimination of wrong L2 data
-                      *
-                      */
-                error_pixel = 0;
-                if ((input_reflec[0][x] <= 0.01f)) {
-                    error_pixel++;
-                }
-                if ((input_reflec[1][x] <= 0.01f)) {
-                    error_pixel++;
-                }
-                if ((input_reflec[2][x] <= 0.009f)) {
-                    error_pixel++;
-                }
-                if ((input_reflec[3][x] <= 0.009f)) {
-                    error_pixel++;
-                }
-                if (error_pixel >= 2) {
-                    result.setInvalidInputFlag();
-                    processPixel = false;
-                }
-
-                // Discrimination of desert ground
-                ndvix = (input_reflec[12][x] - input_reflec[6][x]) /
-                        (input_reflec[12][x] + input_reflec[6][x]);
-
-                desert_pixel = 0;
-
-                if (ndvix < 0.1) {
-                    if (input_reflec[12][x] > 0.28 && input_reflec[12][x] <= 0.53) {
-                        desert_pixel = 1;
-                    }
-                    if (input_reflec[6][x] > 0.22 && input_reflec[6][x] <= 0.32) {
-                        desert_pixel += 1;
-                    }
-                    if (input_reflec[2][x] > 0.13 && input_reflec[2][x] < 0.3) {
-                        desert_pixel += 1;
-                    }
-                }
-
-                if (_cloud_process) {
-                    processPixel = cloud_process(input_reflec, result, x, ndvix, process_cloud[x], processPixel);
-                }
-
-
-                if (processPixel) {
-
-                    // only process after check was successful
-                    // init input and result with the meris data
-                    for (int n = 0; n < BaerConstants.NUM_IN_REFLEC_BANDS; n++) {
-                        inPixel.setBand(input_reflec[n][x], n);
-                        result.setBand(input_reflec[n][x], n);
-                    }
-
-                    inPixel.setBand_Lat(band_Lat[x]);
-                    inPixel.setBand_Lon(band_Lon[x]);
-                    inPixel.setBand_Sza(band_Sza[x]);
-                    inPixel.setBand_Saa(band_Saa[x]);
-                    inPixel.setBand_Vza(band_Vza[x]);
-                    inPixel.setBand_Vaa(band_Vaa[x]);
-                    inPixel.setBand_Aero_opt(band_aero_opt[x]);
-                    inPixel.setPressure(band_surfPress[x]);
-
-
-                    if (desert_pixel >= 2) {
-                        _baerAlgo.setSoilSpectraNumber(3);
-                    } else {
-                        _baerAlgo.setSoilSpectraNumber(1);
-                    }
-
-                    if (_baer_process) {
-                        result = _baerAlgo.processPixel(inPixel, result);
-                    }
-
-                }
-
-                if (_baer_process) {
-                    if (_atm_cor_process) {
-                        for (int n = 0; n < BaerConstants.NUM_OUT_REFLEC_BANDS; n++) {
-                            output_reflec[n][x] = result.getBand(n);
-                        }
-                    }
-
-                    band_aot_412[x] = result.getAot_412();
-                    band_aot_550[x] = result.getAot_550();
-                    band_aot_440[x] = result.getAot_440();
-                    band_alpha[x] = result.getAlpha();
-                    out_flags[x] = result.getFlagMask();
-                }
-                out_cloud[x] = result.getBand_Cloud();
-
-
-                processPixel = true;
-            } // end of pixel loop
-
-            if (_baer_process) {
-                if (_atm_cor_process) {
-                    for (int n = 0; n < BaerConstants.NUM_OUT_REFLEC_BANDS; n++) {
-                        _aerReflecBands[n].writePixels(0, line, width, 1, output_reflec[n],
-                                                       SubProgressMonitor.create(pm, 1));
-                    }
-                }
-                _aot_412_band.writePixels(0, line, width, 1, band_aot_412, SubProgressMonitor.create(pm, 1));
-                _aot_440_band.writePixels(0, line, width, 1, band_aot_440, SubProgressMonitor.create(pm, 1));
-                _aot_550_band.writePixels(0, line, width, 1, band_aot_550, SubProgressMonitor.create(pm, 1));
-                _toa_veg_band.writePixels(0, line, width, 1, band_boa_veg, SubProgressMonitor.create(pm, 1));
-                _alpha_band.writePixels(0, line, width, 1, band_alpha, SubProgressMonitor.create(pm, 1));
-                _out_flags_band.writePixels(0, line, width, 1, out_flags, SubProgressMonitor.create(pm, 1));
-            }
-            if (_cloud_process) {
-                _out_cloud_band.writePixels(0, line, width, 1, out_cloud, SubProgressMonitor.create(pm, 1));
-            }
-
-            // update progressbar
-            // ------------------
-            pm.worked(1);
-            if (pm.isCanceled()) {
-                _logger.warning(ProcessorConstants.LOG_MSG_PROC_CANCELED);
-                setCurrentStatus(ProcessorConstants.STATUS_ABORTED);
-                return;
-            }
-
-            // check aborted
-            // -------------
-            if (isAborted()) {
-                _logger.warning(ProcessorConstants.LOG_MSG_PROC_ABORTED);
-                pm.done();
-                return;
-            }
-        } // end of line loop
+        final AerCorrectionStage stage = new AerCorrectionStage(width, bitmask, bitmaskCloud, pm);
+        if (!new StripPipeline<AerStrip>(stage, height).run()) {
+            // canceled or aborted, already handled by the stage
+            return;
+        }
         _inputProduct.getMaskGroup().remove(bitmask);
         _inputProduct.getMaskGroup().remove(bitmaskCloud);
         pm.done();
@@ -1456,4 +1310,308 @@ public class BaerProcessor extends Processor {
              }
 
 	 }
+
+    ///////////////////////////////////////////////////////////////////////////
+    ////// CLASS //////////////////////////////////////////////////////////////
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The input and output buffers of a strip of the aerosol correction.
+     */
+    private static final class AerStrip {
+
+        private int _numPixels;
+        private float[][] input_reflec;
+        private float[] band_boa_veg;
+        private float[] band_surfPress;
+        private float[] band_Lat;
+        private float[] band_Lon;
+        private float[] band_Sza;
+        private float[] band_Saa;
+        private float[] band_Vza;
+        private float[] band_Vaa;
+        private float[] band_aero_opt;
+        private boolean[] process_cloud;
+        private boolean[] process;
+        private int[] temp;
+
+        private float[][] output_reflec;
+        private float[] band_aot_412;
+        private float[] band_aot_440;
+        private float[] band_aot_550;
+        private float[] band_alpha;
+        private int[] out_flags;
+        private float[] out_cloud;
+        private int[] out_iterations;
+
+        /**
+         * Allocates the buffers for the given number of pixels. The band readers and writers process
+         * the whole buffer, so the shorter last strip of the scene gets buffers of its own.
+         */
+        private void setSize(int numPixels) {
+            if (numPixels == _numPixels) {
+                return;
+            }
+            _numPixels = numPixels;
+            input_reflec = new float[BaerConstants.NUM_IN_REFLEC_BANDS][numPixels];
+            band_boa_veg = new float[numPixels];
+            band_surfPress = new float[numPixels];
+            band_Lat = new float[numPixels];
+            band_Lon = new float[numPixels];
+            band_Sza = new float[numPixels];
+            band_Saa = new float[numPixels];
+            band_Vza = new float[numPixels];
+            band_Vaa = new float[numPixels];
+            band_aero_opt = new float[numPixels];
+            process_cloud = new boolean[numPixels];
+            process = new boolean[numPixels];
+            for (int n = 0; n < numPixels; n++) {
+                process[n] = true;
+                process_cloud[n] = false;
+            }
+            temp = new int[numPixels];
+
+            output_reflec = new float[BaerConstants.NUM_OUT_REFLEC_BANDS][numPixels];
+            band_aot_412 = new float[numPixels];
+            band_aot_440 = new float[numPixels];
+            band_aot_550 = new float[numPixels];
+            band_alpha = new float[numPixels];
+            out_flags = new int[numPixels];
+            out_cloud = new float[numPixels];
+            out_iterations = new int[numPixels];
+        }
+    }
+
+    /**
+     * Reads, corrects and writes the strips of a MERIS L2 product.
+     */
+    private final class AerCorrectionStage implements StripPipeline.Stage<AerStrip> {
+
+        private final int width;
+        private final Mask bitmask;
+        private final Mask bitmaskCloud;
+        private final ProgressMonitor pm;
+        private final MerisPixel inPixel = new MerisPixel();
+        private AerPixel result = new AerPixel();
+
+        private AerCorrectionStage(int width, Mask bitmask, Mask bitmaskCloud, ProgressMonitor pm) {
+            this.width = width;
+            this.bitmask = bitmask;
+            this.bitmaskCloud = bitmaskCloud;
+            this.pm = pm;
+        }
+
+        public AerStrip createStrip(int stripHeight) {
+            final AerStrip strip = new AerStrip();
+            strip.setSize(width * stripHeight);
+            return strip;
+        }
+
+        public void read(AerStrip strip, int line, int lines) throws IOException {
+            strip.setSize(width * lines);
+
+            // read input data
+            // ---------------
+            for (int n = 0; n < BaerConstants.NUM_IN_REFLEC_BANDS; n++) {
+                _merisReflecBands[n].readPixels(0, line, width, lines, strip.input_reflec[n], ProgressMonitor.NULL);
+            }
+
+            _aero_opt.readPixels(0, line, width, lines, strip.band_aero_opt, ProgressMonitor.NULL);
+            _toaVegBand.readPixels(0, line, width, lines, strip.band_boa_veg, ProgressMonitor.NULL);
+            _gridLat.readPixels(0, line, width, lines, strip.band_Lat, ProgressMonitor.NULL);
+            _gridLon.readPixels(0, line, width, lines, strip.band_Lon, ProgressMonitor.NULL);
+            _gridSza.readPixels(0, line, width, lines, strip.band_Sza, ProgressMonitor.NULL);
+            _gridSaa.readPixels(0, line, width, lines, strip.band_Saa, ProgressMonitor.NULL);
+            _gridVza.readPixels(0, line, width, lines, strip.band_Vza, ProgressMonitor.NULL);
+            _gridVaa.readPixels(0, line, width, lines, strip.band_Vaa, ProgressMonitor.NULL);
+            _surfPressBand.readPixels(0, line, width, lines, strip.band_surfPress, ProgressMonitor.NULL);
+
+            // evaluate bitmask
+            // ----------------
+            if (_bitMaskTerm != null) {
+                final Rectangle rect = new Rectangle(0, line, width, lines);
+                final int[] temp = strip.temp;
+                bitmask.getSourceImage().getData(rect).getSamples(0, line, width, lines, 0, temp);
+                for (int i = 0; i < temp.length; i++) {
+                    strip.process[i] = temp[i] == 255;
+                }
+                bitmaskCloud.getSourceImage().getData(rect).getSamples(0, line, width, lines, 0, temp);
+                for (int i = 0; i < temp.length; i++) {
+                    strip.process_cloud[i] = temp[i] == 255;
+                }
+            }
+        }
+
+        public boolean compute(AerStrip strip, int line, int lines) {
+            final int numPixels = width * lines;
+            boolean processPixel = true;
+            double ndvix;
+            int desert_pixel;
+            int error_pixel;
+
+            // loop over strip, assemble pixel and dispatch to processing classes
+            // ------------------------------------------------------------------
+            for (int x = 0; x < numPixels; x++) {
+                // reset to be sure - risk of pending flags ...
+                result.reset();
+
+                // check bitmask
+                if (!strip.process[x]) {
+                    result.setInvalidInputFlag();
+                    processPixel = false;
+                }
+
+                if (_atm_corr_method.equals("SMAC")) {
+                    result.setAtmosphericCorrectionFlag();
+                }
+                // check for negative reflectance
+                for (int n = 0; n < BaerConstants.NUM_IN_REFLEC_BANDS; n++) {
+                    if (strip.input_reflec[n][x] < 0.f) {
+                        result.setInvalidInputFlag();
+                        processPixel = false;
+                        break;
+                    }
+                }
+
+                /* Discrimination of wrong L2 data
+                      *
+                      */
+                error_pixel = 0;
+                if ((strip.input_reflec[0][x] <= 0.01f)) {
+                    error_pixel++;
+                }
+                if ((strip.input_reflec[1][x] <= 0.01f)) {
+                    error_pixel++;
+                }
+                if ((strip.input_reflec[2][x] <= 0.009f)) {
+                    error_pixel++;
+                }
+                if ((strip.input_reflec[3][x] <= 0.009f)) {
+                    error_pixel++;
+                }
+                if (error_pixel >= 2) {
+                    result.setInvalidInputFlag();
+                    processPixel = false;
+                }
+
+                // Discrimination of desert ground
+                ndvix = (strip.input_reflec[12][x] - strip.input_reflec[6][x]) /
+                        (strip.input_reflec[12][x] + strip.input_reflec[6][x]);
+
+                desert_pixel = 0;
+
+                if (ndvix < 0.1) {
+                    if (strip.input_reflec[12][x] > 0.28 && strip.input_reflec[12][x] <= 0.53) {
+                        desert_pixel = 1;
+                    }
+                    if (strip.input_reflec[6][x] > 0.22 && strip.input_reflec[6][x] <= 0.32) {
+                        desert_pixel += 1;
+                    }
+                    if (strip.input_reflec[2][x] > 0.13 && strip.input_reflec[2][x] < 0.3) {
+                        desert_pixel += 1;
+                    }
+                }
+
+                if (_cloud_process) {
+                    processPixel = cloud_process(strip.input_reflec, result, x, ndvix, strip.process_cloud[x], processPixel);
+                }
+
+
+                if (processPixel) {
+
+                    // only process after check was successful
+                    // init input and result with the meris data
+                    for (int n = 0; n < BaerConstants.NUM_IN_REFLEC_BANDS; n++) {
+                        inPixel.setBand(strip.input_reflec[n][x], n);
+                        result.setBand(strip.input_reflec[n][x], n);
+                    }
+
+                    inPixel.setBand_Lat(strip.band_Lat[x]);
+                    inPixel.setBand_Lon(strip.band_Lon[x]);
+                    inPixel.setBand_Sza(strip.band_Sza[x]);
+                    inPixel.setBand_Saa(strip.band_Saa[x]);
+                    inPixel.setBand_Vza(strip.band_Vza[x]);
+                    inPixel.setBand_Vaa(strip.band_Vaa[x]);
+                    inPixel.setBand_Aero_opt(strip.band_aero_opt[x]);
+                    inPixel.setPressure(strip.band_surfPress[x]);
+
+
+                    if (desert_pixel >= 2) {
+                        _baerAlgo.setSoilSpectraNumber(3);
+                    } else {
+                        _baerAlgo.setSoilSpectraNumber(1);
+                    }
+
+                    if (_baer_process) {
+                        result = _baerAlgo.processPixel(inPixel, result);
+                    }
+
+                }
+
+                if (_baer_process) {
+                    if (_atm_cor_process) {
+                        for (int n = 0; n < BaerConstants.NUM_OUT_REFLEC_BANDS; n++) {
+                            strip.output_reflec[n][x] = result.getBand(n);
+                        }
+                    }
+
+                    strip.band_aot_412[x] = result.getAot_412();
+                    strip.band_aot_550[x] = result.getAot_550();
+                    strip.band_aot_440[x] = result.getAot_440();
+                    strip.band_alpha[x] = result.getAlpha();
+                    strip.out_flags[x] = result.getFlagMask();
+                    strip.out_iterations[x] = result.getIterations();
+                }
+                strip.out_cloud[x] = result.getBand_Cloud();
+
+
+                processPixel = true;
+            } // end of pixel loop
+
+            if (_iterations_band != null) {
+                _lineDiagnostics.flushTo(_totalDiagnostics);
+            }
+
+            // update progressbar
+            // ------------------
+            pm.worked(lines);
+            if (pm.isCanceled()) {
+                _logger.warning(ProcessorConstants.LOG_MSG_PROC_CANCELED);
+                setCurrentStatus(ProcessorConstants.STATUS_ABORTED);
+                return false;
+            }
+
+            // check aborted
+            // -------------
+            if (isAborted()) {
+                _logger.warning(ProcessorConstants.LOG_MSG_PROC_ABORTED);
+                pm.done();
+                return false;
+            }
+            return true;
+        }
+
+        public void write(AerStrip strip, int line, int lines) throws IOException {
+            if (_baer_process) {
+                if (_atm_cor_process) {
+                    for (int n = 0; n < BaerConstants.NUM_OUT_REFLEC_BANDS; n++) {
+                        _aerReflecBands[n].writePixels(0, line, width, lines, strip.output_reflec[n],
+                                                       ProgressMonitor.NULL);
+                    }
+                }
+                _aot_412_band.writePixels(0, line, width, lines, strip.band_aot_412, ProgressMonitor.NULL);
+                _aot_440_band.writePixels(0, line, width, lines, strip.band_aot_440, ProgressMonitor.NULL);
+                _aot_550_band.writePixels(0, line, width, lines, strip.band_aot_550, ProgressMonitor.NULL);
+                _toa_veg_band.writePixels(0, line, width, lines, strip.band_boa_veg, ProgressMonitor.NULL);
+                _alpha_band.writePixels(0, line, width, lines, strip.band_alpha, ProgressMonitor.NULL);
+                _out_flags_band.writePixels(0, line, width, lines, strip.out_flags, ProgressMonitor.NULL);
+                if (_iterations_band != null) {
+                    _iterations_band.writePixels(0, line, width, lines, strip.out_iterations, ProgressMonitor.NULL);
+                }
+            }
+            if (_cloud_process) {
+                _out_cloud_band.writePixels(0, line, width, lines, strip.out_cloud, ProgressMonitor.NULL);
+            }
+        }
+    }
 }
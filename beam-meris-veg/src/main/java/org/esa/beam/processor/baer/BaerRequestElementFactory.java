@@ -181,6 +181,7 @@ public class BaerRequestElementFactory implements RequestElementFactory {
         _paramInfoMap.put(BaerConstants.USE_ATM_COR_PARAM_NAME, createATMCORProcessFormatInfo());
         _paramInfoMap.put(BaerConstants.USE_CLOUD_PARAM_NAME, createCLOUDProcessFormatInfo());
         _paramInfoMap.put(BaerConstants.AER_PHASE_PARAM_NAME, createAerPhaseParamInfo());
+        _paramInfoMap.put(BaerConstants.DIAGNOSTICS_PARAM_NAME, createDiagnosticsInfo());
     }
 
 
@@ -243,6 +244,20 @@ public class BaerRequestElementFactory implements RequestElementFactory {
         return props;
     }
 
+    /**
+     * Creates the parameter properties for the parameter diagnostics.
+     * @return
+     */
+    private ParamProperties createDiagnosticsInfo() {
+        ParamProperties props = _defaultFactory.createBooleanParamProperties();
+
+        props.setLabel(BaerConstants.DIAGNOSTICS_PARAM_LABEL);
+        props.setDescription(BaerConstants.DIAGNOSTICS_PARAM_DESCRIPTION);
+        props.setDefaultValue(new Boolean(false));
+
+        return props;
+    }
+
     /**
      * Creates the parameter properties for the parameter cloud.
      * @return
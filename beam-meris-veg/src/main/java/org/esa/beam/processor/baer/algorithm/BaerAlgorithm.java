@@ -12,24 +12,19 @@
  */
 package org.esa.beam.processor.baer.algorithm;
 
-import org.esa.beam.framework.processor.ProcessorException;
 import org.esa.beam.processor.baer.BaerConstants;
 import org.esa.beam.processor.baer.auxdata.*;
 import org.esa.beam.processor.baer.utils.AerPixel;
 import org.esa.beam.processor.baer.utils.MerisPixel;
 import org.esa.beam.util.Guardian;
 
-import java.io.File;
-import java.io.IOException;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 
 public class BaerAlgorithm {
 
-
-
     private Logger _logger;
-    private org.esa.beam.processor.baer.utils.MerisPixel _inputMERIS;
     private AerPhaseAccess _aerPhaseAccess;
     private RelAerPhaseAccess _relPhaseAccess;
     private NdviAccess _ndviAccess;
@@ -38,92 +33,19 @@ public class BaerAlgorithm {
     private F_TuningAccess _f_tuningAccess;
     private AerDiffTransmAccess _aerDiffTransmAccess;
     private HemisphReflecAccess _hemisphReflecAccess;
-    private double[] _inputLocal;
-    private double[] _surfRefl;
-    private double[] _aotguess;
-    private double[] _aot;
-    private double[] _aeroRefl;
-    private double[][] _aertable;
-    private double[] _weight;
-    private double[] _aotTempxx;
-    private double[] _aotTempx;
-    private double[] _aotMin;
-    private double[] _lnLambda;
-    private double[] _lnAot;
-    private double[] _relPhaseCoef;
-
-    private double _muSun;
-    private double _muView;
-    private double _pressure_div;
-    private double _caerView;
-    private double _caerSun;
-
-    private double _p140;
-    private double _pTheta;
-    private float _band_vza;
-    private float _band_sza;
-    private float _band_saa;
-    private float _band_vaa;
-    private double _alpha;
-    private double _alphaTempY;
-    private double _beta;
-    private double _rmsd;
-    private double _alphaHelp;
-    private int _vegSpectraNumber;
-    private int _soilSpectraNumber;
-    private int[] _flagAotOutOfRange;
-    private int _flagAlphaOutOfRange;
     private String _atm_corr_method;
   //  private boolean _baer_process;
     private boolean _atm_cor_process;
-    private boolean _hasFlagAOT;
-
-    private Spectrum[] _reflVeg;
-    private Spectrum[] _reflSoil;
-    private double[] _caerCoef;
-    private double[] _rhemCoef;
-
-    private int _icx;
-    private int _icheck;
-
-    private boolean _nulloutput;
 
     // SMAC variables
     SmacCoefficientsManager _coeffMgr;
     String _smacAerosolType;
     String _smacProductType;
-    private double[] _SmacA0taup;
-    private double[] _SmacA1taup;
-    private double[] _Smaca0P;
-    private double[] _Smaca1P;
-    private double[] _Smaca2P;
-    private double[] _Smaca3P;
-    private double[] _Smaca4P;
-    private double[] _Smaca0T;
-    private double[] _Smaca1T;
-    private double[] _Smaca2T;
-    private double[] _Smaca3T;
-    private double[] _Smaca0s;
-    private double[] _Smaca1s;
-    private double[] _Smaca2s;
-    private double[] _Smaca3s;
-    private double[] _Smacresa1;
-    private double[] _Smacresa2;
-    private double[] _Smacresa3;
-    private double[] _Smacresa4;
-    private double[] _Smacrest1;
-    private double[] _Smacrest2;
-    private double[] _Smacrest3;
-    private double[] _Smacrest4;
-    private double[] _Smacwo;
-    private double[] _Smaconemwo;
-    private double[] _Smacgc;
-    private double[] _Smacak, _Smacak2, _Smacpfac;
-    private double[] _Smacb, _Smaconepb, _Smaconemb, _Smaconepb2, _Smaconemb2;
-    private double[] _Smacww;
-
-    private static final double _SmaconeQuarter = 1.0 / 4.0;
-    private static final double _SmactwoThird = 2.0 / 3.0;
+
+    private BaerModel _model;
+    private BaerContext _context;
+
+    private boolean _smacLegacyNumerics;
 
     /**
      * Constructs the object with default parameters
@@ -131,33 +53,21 @@ public class BaerAlgorithm {
     public BaerAlgorithm() {
         _logger = Logger.getLogger(BaerConstants.LOGGER_NAME);
 
-        _inputLocal = new double[BaerConstants.NUM_BANDS];
-        _aeroRefl = new double[BaerConstants.NUM_BANDS];
-        _weight = new double[BaerConstants.NUM_BANDS];
-        _aot = new double[BaerConstants.NUM_BANDS];
-        _flagAotOutOfRange = new int[BaerConstants.NUM_BANDS];
-        _aertable=new double[BaerConstants.NUM_BANDS][3];
-        _surfRefl = new double[BaerConstants.NUM_BANDS];
-        _aotguess = new double[BaerConstants.NUM_BANDS];
-        _aotTempxx = new double[BaerConstants.NUM_BANDS];
-        _aotTempx = new double[BaerConstants.NUM_BANDS];
-        _aotMin = new double[BaerConstants.NUM_BANDS];
-        _lnLambda = new double[BaerConstants.NUM_BANDS];
-        _lnAot = new double[BaerConstants.NUM_BANDS];
-
         _atm_corr_method="SMAC";
      //   _baer_process = false;
         _atm_cor_process = false;
-        _vegSpectraNumber=1;
-        _soilSpectraNumber=3;
+        _smacLegacyNumerics = true;
 
-        _reflVeg = new Spectrum[2];
-        _reflSoil = new Spectrum[4];
+        _context = new BaerContext();
     }
 
+    /**
+     * Sets the soil spectrum of the context used by {@link #processPixel(MerisPixel, AerPixel)}.
+     * @param spectranumber
+     */
     public void setSoilSpectraNumber(int spectranumber)
     {
-          _soilSpectraNumber= spectranumber;
+          _context.setSoilSpectraNumber(spectranumber);
     }
 
     /**
@@ -259,71 +169,175 @@ public class BaerAlgorithm {
 
     }
 
+    /**
+     * Selects whether the SMAC correction reproduces the numerics of the original implementation,
+     * which converts the sun and view zenith angles to radians twice. This is the default, it keeps
+     * the results bitwise comparable to former versions. Must be called before {@link #initAlgo()}.
+     * @param legacy <code>false</code> to use the correctly converted angles
+     */
+    public void setSmacLegacyNumerics(boolean legacy) {
+        _smacLegacyNumerics = legacy;
+    }
+
+    /**
+     * Sets the statistics filled by {@link #processPixel(MerisPixel, AerPixel)}.
+     * @param diagnostics the statistics, <code>null</code> to switch them off
+     */
+    public void setDiagnostics(BaerDiagnostics diagnostics) {
+        _context.setDiagnostics(diagnostics);
+    }
 
     /**
      * initialises org.esa.beam.processor.baer algorithm variables
      *
      */
     public void initAlgo() {
-        int b;
+        _model = new BaerModel(_aerPhaseAccess, _relPhaseAccess, _ndviAccess, _groundReflectanceAccess,
+                               _soilFractionAccess, _f_tuningAccess, _aerDiffTransmAccess, _hemisphReflecAccess,
+                               _coeffMgr, _smacAerosolType, _atm_corr_method, _atm_cor_process,
+                               _smacLegacyNumerics);
+    }
 
-       _rhemCoef = _hemisphReflecAccess.getHemisphReflecCoefficients();
-       _caerCoef = _aerDiffTransmAccess.getAerDiffTransmCoefficients();
+    /**
+     * Retrieves the read-only model created by {@link #initAlgo()}.
+     * @return the model or <code>null</code> when the algorithm is not initialised
+     */
+    public BaerModel getModel() {
+        return _model;
+    }
 
-       try {
-              _reflVeg[0] =  _groundReflectanceAccess.getSpectrum("LACE+MAPLE");
-       } catch (ProcessorException e) {
-       }
-       try {
-              _reflVeg[1] =  _groundReflectanceAccess.getSpectrum("CAMELEO");
-       } catch (ProcessorException e) {
-       }
+    /**
+     * Processes the aerosol algorithm for the input pixel, using the context owned by this
+     * algorithm instance. Not thread safe - use {@link #processPixel(MerisPixel, AerPixel, BaerContext)}
+     * with one context per thread for concurrent processing.
+     * @param input a Meris L2 Pixel
+     * @param output an aerosol corrected pixel
+     * @return the output pixel
+     */
+    public AerPixel processPixel(MerisPixel input, AerPixel output) {
+          return processPixel(input, output, _context);
+    }
 
-       try {
-              _reflSoil[0] = _groundReflectanceAccess.getSpectrum("CASI_1");
-       } catch (ProcessorException e) {
-       }
-       try {
-              _reflSoil[1] = _groundReflectanceAccess.getSpectrum("CASI_2");
-       } catch (ProcessorException e) {
-       }
-       try {
-              _reflSoil[2] = _groundReflectanceAccess.getSpectrum("KARNIELI");
-       } catch (ProcessorException e) {
-       }
-        try {
-               _reflSoil[3] = _groundReflectanceAccess.getSpectrum("KARNIELI2");
-        } catch (ProcessorException e) {
+    /**
+     * Processes the aerosol algorithm for the input pixel. Once initialised, the algorithm is
+     * only read, so this method may be called concurrently as long as every thread passes its own context.
+     * @param input a Meris L2 Pixel
+     * @param output an aerosol corrected pixel
+     * @param context the per-thread working state
+     * @return the output pixel
+     */
+    public AerPixel processPixel(MerisPixel input, AerPixel output, BaerContext context) {
+          output = BaerProcess(context, input, output, null, 0);
+           return output;
+    }
+
+    /**
+     * Processes the aerosol algorithm for a row of pixels. With the SMAC atmospheric correction the
+     * aerosol retrieval is done pixel by pixel and the surface reflectances of all pixels are then
+     * computed in one batched pass. The results are the same as calling
+     * {@link #processPixel(MerisPixel, AerPixel, BaerContext)} for every pixel, unless the warm start
+     * is enabled, see {@link BaerContext#setWarmStart(boolean)}. Consecutive calls with the same context
+     * are taken as consecutive rows of an image.
+     * @param inputs the Meris L2 pixels, <code>null</code> entries are skipped
+     * @param outputs the aerosol corrected pixels, one for every input pixel
+     * @param soilSpectraNumbers the soil spectrum of every pixel
+     * @param count the number of pixels to process
+     * @param context the per-thread working state
+     */
+    public void processRow(MerisPixel[] inputs, AerPixel[] outputs, int[] soilSpectraNumbers, int count,
+                           BaerContext context) {
+        processRow(inputs, outputs, soilSpectraNumbers, null, null, count, context);
+    }
+
+    /**
+     * Processes a row of pixels as {@link #processRow(MerisPixel[], AerPixel[], int[], int, BaerContext)} does,
+     * but skips the aerosol retrieval for all pixels with a given AOT. These pixels are only
+     * atmospherically corrected, using the AOT and Angstroem coefficient passed in.
+     * @param inputs the Meris L2 pixels, <code>null</code> entries are skipped
+     * @param outputs the aerosol corrected pixels, one for every input pixel
+     * @param soilSpectraNumbers the soil spectrum of every pixel
+     * @param aot412 the AOT at 412 nm of every pixel, <code>NaN</code> to retrieve it. May be <code>null</code>.
+     * @param alpha the Angstroem coefficient of every pixel, only read where an AOT is given
+     * @param count the number of pixels to process
+     * @param context the per-thread working state
+     */
+    public void processRow(MerisPixel[] inputs, AerPixel[] outputs, int[] soilSpectraNumbers, double[] aot412,
+                           double[] alpha, int count, BaerContext context) {
+        SmacRow row = null;
+        if (_model._atm_cor_process && _model._atm_corr_method.equals("SMAC")) {
+            if (context._smacRow == null) {
+                context._smacRow = new SmacRow(count);
+            }
+            row = context._smacRow;
+            row.ensureCapacity(count);
+            row.clear();
+        }
+        final boolean warmStart = context._warmStartEnabled;
+        if (warmStart) {
+            context._warmStart.nextRow(count);
         }
 
-        for (b=0; b<BaerConstants.NUM_BANDS; b++)
-        {
-            _lnLambda[b] = Math.log(BaerConstants.MERIS_BANDS[b]);
-            _aertable[b] = (_aerPhaseAccess.getAerPhase(b+1)).getA();
+        for (int i = 0; i < count; i++) {
+            if (inputs[i] == null) {
+                continue;
+            }
+            if (aot412 != null && !Double.isNaN(aot412[i])) {
+                BaerProcessFixedAerosol(context, inputs[i], outputs[i], aot412[i], alpha[i], row, i);
+            } else {
+                context._soilSpectraNumber = soilSpectraNumbers[i];
+                initPixel(context, inputs[i]);
+                context._iterations = 0;
+                final boolean useAotMin;
+                if (warmStart) {
+                    useAotMin = warmAerosolRetrieval(context, inputs[i], i);
+                } else {
+                    useAotMin = aerosolRetrieval(context, inputs[i], Double.NaN);
+                }
+                recordRetrieval(context);
+                outputs[i].setIterations(context._iterations);
+                finishPixel(context, outputs[i], useAotMin, row, i);
+            }
         }
-        _relPhaseCoef = _relPhaseAccess.getRelativeAerosolPhaseCoefficients();
 
+        if (row != null && row._count > 0) {
+            final BaerDiagnostics diagnostics = context._diagnostics;
+            final long start = diagnostics != null ? System.nanoTime() : 0;
+            row.correct(_model);
+            for (int k = 0; k < row._count; k++) {
+                context._aot[0] = row._aot412[k];
+                context._alpha = row._alpha[k];
+                context._flagAlphaOutOfRange = row._flagAlphaOutOfRange[k];
+                context._hasFlagAOT = false;
+                row.getSurfRefl(k, context._surfRefl);
+                createOutput(context, outputs[row._pixel[k]]);
+            }
+            if (diagnostics != null) {
+                diagnostics._correctionNanos += System.nanoTime() - start;
+            }
+        }
+    }
 
 
-        if (_atm_corr_method.equals("SMAC")){
-                  initSmac();
-        }
 
-    }
 
     /**
-     * Processes the aerosol algorithm for the input pixel
+     * Runs only the aerosol retrieval for the input pixel. The AOT at 412 nm and the Angstroem coefficient
+     * found are available from the context afterwards, see {@link BaerContext#getRetrievedAot412()}.
      * @param input a Meris L2 Pixel
-     * @param output an aerosol corrected pixel
-     * @return the output pixel
+     * @param context the per-thread working state
+     * @return <code>true</code> if the retrieval is valid, <code>false</code> if the AOT or the Angstroem
+     *         coefficient is out of range
      */
-    public AerPixel processPixel(MerisPixel input, AerPixel output) {
-          output = BaerProcess(input,output);
-           return output;
+    public boolean retrieveAerosol(MerisPixel input, BaerContext context) {
+        initPixel(context, input);
+        context._iterations = 0;
+        final boolean useAotMin = aerosolRetrieval(context, input, Double.NaN);
+        recordRetrieval(context);
+        context._retrievedAot412 = useAotMin ? context._aotMin[0] : context._aotTempx[0];
+        context._retrievedAlpha = context._alpha;
+        return !context._hasFlagAOT && context._flagAlphaOutOfRange == 0;
     }
 
-
-
     ////////////////////////////////////////////////////////////////////////////
     ////////   END OF PUBLIC
     ////////////////////////////////////////////////////////////////////////////
@@ -331,7 +345,153 @@ public class BaerAlgorithm {
     /** Process the Baer algoritm
      *
      */
-   private AerPixel BaerProcess(MerisPixel input, AerPixel output)
+   private AerPixel BaerProcess(BaerContext c, MerisPixel input, AerPixel output, SmacRow row, int pixel)
+    {
+        initPixel(c, input);
+        c._iterations = 0;
+        final boolean useAotMin = aerosolRetrieval(c, input, Double.NaN);
+        recordRetrieval(c);
+        output.setIterations(c._iterations);
+        return finishPixel(c, output, useAotMin, row, pixel);
+    }
+
+    /**
+     * Runs the aerosol retrieval of a pixel of a row starting from the state of a neighbouring pixel.
+     * If the warm started retrieval does not converge to a valid result it is repeated from the
+     * first guess, so that the warm start cannot invalidate a pixel. Valid results are kept as seeds
+     * for the following pixels.
+     */
+    private boolean warmAerosolRetrieval(BaerContext c, MerisPixel input, int pixel)
+    {
+        final WarmStart warmStart = c._warmStart;
+        final double seedAlpha = warmStart.getSeed(pixel, c._seedAot, c._seedFactor);
+        boolean useAotMin = aerosolRetrieval(c, input, seedAlpha);
+        if (c._warmStarted) {
+            final BaerDiagnostics diagnostics = c._diagnostics;
+            if (diagnostics != null) {
+                diagnostics._warmStarts++;
+            }
+            if (!isValidRetrieval(c)) {
+                if (diagnostics != null) {
+                    diagnostics._warmStartFallbacks++;
+                }
+                useAotMin = aerosolRetrieval(c, input, Double.NaN);
+            }
+        }
+        if (isValidRetrieval(c)) {
+            warmStart.setState(pixel, useAotMin ? c._aotMin : c._aotTempx, c._alpha, c._surfRefl, c._surfReflInit);
+        }
+        return useAotMin;
+    }
+
+    private static boolean isValidRetrieval(BaerContext c)
+    {
+        return c._converged && !c._hasFlagAOT && c._flagAlphaOutOfRange == 0;
+    }
+
+    /**
+     * Adds the outcome of the retrieval of the current pixel to the statistics, if any.
+     */
+    private static void recordRetrieval(BaerContext c)
+    {
+        final BaerDiagnostics diagnostics = c._diagnostics;
+        if (diagnostics != null) {
+            diagnostics.addPixel(c._iterations, c._rmsd, c._converged,
+                                 !c._hasFlagAOT && c._flagAlphaOutOfRange == 0);
+        }
+    }
+
+    /**
+     * Seeds the retrieval with the surface reflectance correction, the AOT spectrum and the
+     * Angstroem coefficient of a neighbouring pixel, which are held by the context.
+     * @return <code>false</code> if the seeded surface reflectances are out of range, nothing is changed then
+     */
+    private boolean applyWarmStart(BaerContext c, double alpha)
+    {
+        for (int b=0; b<BaerConstants.NUM_BANDS; b++) {
+            if (BaerConstants.FIT_SELECTED_MERIS_BAND[b]) {
+                final double surfRefl = c._surfRefl[b] * c._seedFactor[b];
+                if (!(surfRefl > 0.0 && surfRefl <= 1.0)) {
+                    return false;
+                }
+            }
+        }
+        for (int b=0; b<BaerConstants.NUM_BANDS; b++) {
+            if (BaerConstants.FIT_SELECTED_MERIS_BAND[b]) {
+                c._surfRefl[b] *= c._seedFactor[b];
+            }
+            c._aotguess[b] = c._seedAot[b];
+        }
+        c._alphaTempY = alpha;
+        return true;
+    }
+
+    /**
+     * Processes a pixel with a known aerosol: the AOT spectrum is derived from the AOT at 412 nm and the
+     * Angstroem coefficient and the pixel is corrected with it.
+     */
+    private AerPixel BaerProcessFixedAerosol(BaerContext c, MerisPixel input, AerPixel output, double aot412,
+                                             double alpha, SmacRow row, int pixel)
+    {
+        initPixel(c, input);
+        Arrays.fill(c._flagAotOutOfRange, 0);
+        for (int b=0; b<BaerConstants.NUM_BANDS; b++) {
+            c._aotTempx[b] = angstroemPowerLaw(aot412, BaerConstants.MERIS_BANDS[b], BaerConstants.MERIS_BANDS[0], -alpha);
+        }
+        c._alpha = alpha;
+        c._alphaTempY = alpha;
+        c._hasFlagAOT = false;
+        c._flagAlphaOutOfRange = 0;
+        output.setIterations(0);
+        return finishPixel(c, output, false, row, pixel);
+    }
+
+    /**
+     * Copies the input reflectances and computes the geometry dependent terms of a pixel.
+     */
+    private void initPixel(BaerContext c, MerisPixel input)
+    {
+        if (c._diagnostics != null) {
+            c._stageStart = System.nanoTime();
+        }
+        //initialisation
+        final float[] bands = c._bands;
+        input.getBands(bands);
+        for (int boucle=0;boucle<10;boucle++)
+            c._inputLocal[boucle] = bands[boucle];
+        c._inputLocal[11] = bands[10];
+        c._inputLocal[12] = bands[11];
+        c._inputLocal[13] = bands[12];
+
+
+        c._band_vza = input.getBand_Vza();
+        c._band_vaa = input.getBand_Vaa();
+        c._band_sza = input.getBand_Sza();
+        c._band_saa = input.getBand_Saa();
+
+       c._pressure_div = BaerConstants.PRESSURE_SEA / input.getPressure();
+         c._muSun = c._pressure_div * Math.cos(Math.toRadians(c._band_sza));
+        c._muView = c._pressure_div * Math.cos(Math.toRadians(c._band_vza));
+
+        c._caerView = _model._caerCoef[0]
+                   + _model._caerCoef[1] * c._muView
+                   + _model._caerCoef[2] * c._muView * c._muView
+                   + _model._caerCoef[3] * c._muView * c._muView * c._muView
+                   + _model._caerCoef[4] * c._muView * c._muView * c._muView * c._muView;
+
+        c._caerSun = _model._caerCoef[0]
+                  + _model._caerCoef[1] * c._muSun
+                  + _model._caerCoef[2] * c._muSun * c._muSun
+                  + _model._caerCoef[3] * c._muSun * c._muSun * c._muSun
+                  + _model._caerCoef[4] * c._muSun * c._muSun * c._muSun * c._muSun;
+    }
+
+    /**
+     * The iterative aerosol retrieval.
+     * @param seedAlpha the Angstroem coefficient of the seed held by the context, <code>NaN</code> for a cold start
+     * @return whether the AOT of the best fit (_aotMin) is to be used
+     */
+    private boolean aerosolRetrieval(BaerContext c, MerisPixel input, double seedAlpha)
     {
         int b=0;
         int jcount=0;
@@ -348,60 +508,29 @@ public class BaerAlgorithm {
         double alphaMin = 0.0;
         int countNbBandsFit=0;
 
-        //initialisation
-        _inputMERIS = input;
-        for (int boucle=0;boucle<10;boucle++)
-            _inputLocal[boucle] = _inputMERIS.getBand(boucle);
-        _inputLocal[11] = _inputMERIS.getBand(10);
-        _inputLocal[12] = _inputMERIS.getBand(11);
-        _inputLocal[13] = _inputMERIS.getBand(12);
-
-
-        _band_vza = _inputMERIS.getBand_Vza();
-        _band_vaa = _inputMERIS.getBand_Vaa();
-        _band_sza = _inputMERIS.getBand_Sza();
-        _band_saa = _inputMERIS.getBand_Saa();
-
-       _pressure_div = BaerConstants.PRESSURE_SEA / _inputMERIS.getPressure();
-         _muSun = _pressure_div * Math.cos(Math.toRadians(_band_sza));
-        _muView = _pressure_div * Math.cos(Math.toRadians(_band_vza));
-
-        _caerView = _caerCoef[0]
-                   + _caerCoef[1] * _muView
-                   + _caerCoef[2] * _muView * _muView
-                   + _caerCoef[3] * _muView * _muView * _muView
-                   + _caerCoef[4] * _muView * _muView * _muView * _muView;
-
-        _caerSun = _caerCoef[0]
-                  + _caerCoef[1] * _muSun
-                  + _caerCoef[2] * _muSun * _muSun
-                  + _caerCoef[3] * _muSun * _muSun * _muSun
-                  + _caerCoef[4] * _muSun * _muSun * _muSun * _muSun;
-
-
-
-        _alphaTempY=1.0; //0.0;
-        _rmsd=0.0;
-        _beta = 0.0;
-        _alpha=0.0;
+        c._alphaTempY=1.0; //0.0;
+        c._rmsd=0.0;
+        c._beta = 0.0;
+        c._alpha=0.0;
+        c._converged = true;
 
          // Computing of the scattering angle for a sun and view geometry
-        theta = _inputMERIS.getScatteringAngle();
+        theta = input.getScatteringAngle();
 
 
          //calculation of the relative aerosol phse at 140? and the current scattering angle
-        _p140 = _relPhaseCoef[0] * 19600.0    //Math.pow(140.0,2)
-               + _relPhaseCoef[1] * 140.0
-               + _relPhaseCoef[2];
+        c._p140 = _model._relPhaseCoef[0] * 19600.0    //Math.pow(140.0,2)
+               + _model._relPhaseCoef[1] * 140.0
+               + _model._relPhaseCoef[2];
 
-        _pTheta = _relPhaseCoef[0] * Math.toDegrees(theta) * Math.toDegrees(theta)
-                + _relPhaseCoef[1] * Math.toDegrees(theta)
-                + _relPhaseCoef[2];
+        c._pTheta = _model._relPhaseCoef[0] * Math.toDegrees(theta) * Math.toDegrees(theta)
+                + _model._relPhaseCoef[1] * Math.toDegrees(theta)
+                + _model._relPhaseCoef[2];
          /**
          * initialisation of the apparent surface reflectances
          * and calculation of a rough estimation of the AOT at 412 nm
          */
-        aotGuess1 = initSurfReflectance();
+        aotGuess1 = initSurfReflectance(c);
 
 
          /**
@@ -409,60 +538,73 @@ public class BaerAlgorithm {
         */
 
         for (b=0; b<BaerConstants.NUM_BANDS; b++){
-              _aotguess[b] = angstroemPowerLaw(aotGuess1, BaerConstants.MERIS_BANDS[b], BaerConstants.MERIS_BANDS[0], -_alphaHelp);
+              c._aotguess[b] = angstroemPowerLaw(aotGuess1, BaerConstants.MERIS_BANDS[b], BaerConstants.MERIS_BANDS[0], -c._alphaHelp);
          }
 
+        System.arraycopy(c._surfRefl, 0, c._surfReflInit, 0, BaerConstants.NUM_BANDS);
+        c._warmStarted = !Double.isNaN(seedAlpha) && applyWarmStart(c, seedAlpha);
+
+        final BaerDiagnostics diagnostics = c._diagnostics;
+        if (diagnostics != null) {
+            final long now = System.nanoTime();
+            diagnostics._initNanos += now - c._stageStart;
+            c._stageStart = now;
+        }
+
 
        whileLoop:while (true) {
 
-            rmsd0 = _rmsd;
+            c._iterations++;
+            rmsd0 = c._rmsd;
 
             // Calculation of the AOTs ans Aero_Refl
-            _hasFlagAOT=false;
+            c._hasFlagAOT=false;
             numconst= 0;
-            _icheck = 0;
+            c._icheck = 0;
              for (b=0; b<BaerConstants.NUM_BANDS; b++){
-                    numconst = aotLand(b,numconst);
+                    numconst = aotLand(c, b,numconst);
                     if (numconst > 1){
                         numconstT++;
                     }
             }
-             if ((numconst >= 1) && (_icheck == 1)) {
-                angstroemSimple(_aotTempx);
-               if (_icx > 1)
-                    _aotTempx[_icx] = _aotTempx[0] * Math.pow((BaerConstants.MERIS_BANDS[_icx]/ BaerConstants.MERIS_BANDS[0]), _alphaTempY);
-               angstroemSimple(_aotTempx);
-               if (_icx > 1)
-                    _aotTempx[_icx] = _aotTempx[0] * Math.pow((BaerConstants.MERIS_BANDS[_icx]/ BaerConstants.MERIS_BANDS[0]), _alphaTempY);
+             if ((numconst >= 1) && (c._icheck == 1)) {
+                if (diagnostics != null)
+                    diagnostics._boundaryCorrections++;
+                angstroemSimple(c, c._aotTempx);
+               if (c._icx > 1)
+                    c._aotTempx[c._icx] = c._aotTempx[0] * Math.pow((BaerConstants.MERIS_BANDS[c._icx]/ BaerConstants.MERIS_BANDS[0]), c._alphaTempY);
+               angstroemSimple(c, c._aotTempx);
+               if (c._icx > 1)
+                    c._aotTempx[c._icx] = c._aotTempx[0] * Math.pow((BaerConstants.MERIS_BANDS[c._icx]/ BaerConstants.MERIS_BANDS[0]), c._alphaTempY);
            }
 
 
             // calculation of the alpha and beta
-            angstroem();
+            angstroem(c);
 
 
             // calculation of RMSD
-            countNbBandsFit = rmsdCalculation();
+            countNbBandsFit = rmsdCalculation(c);
 
             if (rmsd0 > 0.0) {
-                if (_rmsd <= rmsd0) {
-                    rmsdMin = _rmsd;
+                if (c._rmsd <= rmsd0) {
+                    rmsdMin = c._rmsd;
                     for (b=0; b< BaerConstants.NUM_BANDS; b++) {
-                        _aotMin[b] = _aotTempx[b];
+                        c._aotMin[b] = c._aotTempx[b];
                     }
 
-                    angstroem();
-                    alphaMin = _alphaTempY;
+                    angstroem(c);
+                    alphaMin = c._alphaTempY;
                     rmsdMinT = 1.2 * rmsdMin;
                 }
                 //nouveau v15
-                else { //_rmsd > rmsd0
-                    _hasFlagAOT = false;
+                else { //c._rmsd > rmsd0
+                    c._hasFlagAOT = false;
                     for (b=0; b<BaerConstants.NUM_BANDS; b++){
                     if (BaerConstants.FIT_SELECTED_MERIS_BAND[b]){
-                        if (_flagAotOutOfRange[b]!=0)
+                        if (c._flagAotOutOfRange[b]!=0)
                         {
-                            _hasFlagAOT = true;
+                            c._hasFlagAOT = true;
                             break;
                         }
                         }
@@ -470,39 +612,39 @@ public class BaerAlgorithm {
 
 
 
-                    if ((!_hasFlagAOT) &&
+                    if ((!c._hasFlagAOT) &&
                          (rmsdMin > 0.0) &&
-                         (_rmsd > rmsdMinT)) {
+                         (c._rmsd > rmsdMinT)) {
                           for (b=0; b<BaerConstants.NUM_BANDS; b++){
-                              _aotTempx[b] = _aotMin[b];
+                              c._aotTempx[b] = c._aotMin[b];
                           }
-                        _alpha = alphaMin;
+                        c._alpha = alphaMin;
 
                         //nouveau v15
-                        angstroem();
-                        if ((alphaMin > 2.2) && (alphaMin > _alphaTempY))
-                            _alpha = _alphaTempY;
-                        if ((alphaMin < -0.5) && (alphaMin < _alphaTempY))
-                            _alpha = _alphaTempY;
+                        angstroem(c);
+                        if ((alphaMin > 2.2) && (alphaMin > c._alphaTempY))
+                            c._alpha = c._alphaTempY;
+                        if ((alphaMin < -0.5) && (alphaMin < c._alphaTempY))
+                            c._alpha = c._alphaTempY;
 
                         useAotMin = true;
                         break whileLoop;  //exit loop
                     }
                 }
             }
-           if (_hasFlagAOT){
+           if (c._hasFlagAOT){
 
                // pixel output invalid
                break whileLoop;
            }
 
-            if (!_hasFlagAOT){
-              if ((countNbBandsFit >= 2) && (_rmsd <= 0.005 )) { // v14 0.001)) {
-                switch (_flagAlphaOutOfRange) {
+            if (!c._hasFlagAOT){
+              if ((countNbBandsFit >= 2) && (c._rmsd <= 0.005 )) { // v14 0.001)) {
+                switch (c._flagAlphaOutOfRange) {
                     case 0:
-                        angstroem();
-                        if ((_alphaTempY >= -0.5 ) && (_alphaTempY <= 2.2))
-                            _alpha = _alphaTempY;
+                        angstroem(c);
+                        if ((c._alphaTempY >= -0.5 ) && (c._alphaTempY <= 2.2))
+                            c._alpha = c._alphaTempY;
 
                         break whileLoop;
                     case 1:
@@ -515,21 +657,24 @@ public class BaerAlgorithm {
             }
 
           //estimation of the surface reflectance
-            jcount = iterativeSurfaceRefl( jcount);
+            jcount = iterativeSurfaceRefl(c,  jcount);
 
             if(jcount > 150){
+                c._converged = false;
                 break whileLoop;
             }
 
             if (numconstT > BaerConstants.CONST_MAX) {
+                 c._converged = false;
                  break whileLoop;
             }
 
-             if (_rmsd > BaerConstants.RMSD_CONST) {
+             if (c._rmsd > BaerConstants.RMSD_CONST) {
                nbIterations++;
                if (nbIterations >= BaerConstants.ITERATION_MAX) {
-                   if (!_hasFlagAOT)
+                   if (!c._hasFlagAOT)
                  {
+                    c._converged = false;
                     break whileLoop;
                  }
                 }
@@ -537,33 +682,61 @@ public class BaerAlgorithm {
                 continue whileLoop;
             }
 
-            if (_flagAlphaOutOfRange == 1) {
+            if (c._flagAlphaOutOfRange == 1) {
                continue whileLoop;
             }
 
-            createAotAndAlpha();
+            createAotAndAlpha(c);
             break whileLoop;
         } // End WhileLoop
 
-        if (_hasFlagAOT){
-            if (_atm_cor_process)
+        if (diagnostics != null) {
+            final long now = System.nanoTime();
+            diagnostics._retrievalNanos += now - c._stageStart;
+            c._stageStart = now;
+        }
+        return useAotMin;
+    }
+
+    /**
+     * Performs the atmospheric correction, if requested, and writes the output pixel.
+     */
+    private AerPixel finishPixel(BaerContext c, AerPixel output, boolean useAotMin, SmacRow row, int pixel)
+    {
+        if (c._hasFlagAOT){
+            if (_model._atm_cor_process)
             {
-                   createOutput(output);
+                   createOutput(c, output);
             }
             else
-                   createOutputBaer(output);
+                   createOutputBaer(c, output);
         }
         else
         {
 
-            if (_atm_cor_process)
+            if (_model._atm_cor_process)
             {
-                atmCorProcess(useAotMin);
-                createOutput(output);
+                if (row != null) {
+                    // the surface reflectance is computed for the whole row, see processRow()
+                    setSmacAot(c, useAotMin);
+                    final int k = addSmacPixel(c, row, 0);
+                    row._pixel[k] = pixel;
+                    row._aot412[k] = c._aot[0];
+                    row._alpha[k] = c._alpha;
+                    row._flagAlphaOutOfRange[k] = c._flagAlphaOutOfRange;
+                    return output;
+                }
+                final BaerDiagnostics diagnostics = c._diagnostics;
+                final long start = diagnostics != null ? System.nanoTime() : 0;
+                atmCorProcess(c, useAotMin);
+                createOutput(c, output);
+                if (diagnostics != null) {
+                    diagnostics._correctionNanos += System.nanoTime() - start;
+                }
             }
             else
             {
-                createOutputBaer(output);
+                createOutputBaer(c, output);
             }
         }
         return output;
@@ -574,65 +747,67 @@ public class BaerAlgorithm {
      * Saves output values
      * @param output : result of org.esa.beam.processor.baer processing
      */
-    private void createOutput(AerPixel output){
+    private void createOutput(BaerContext c, AerPixel output){
 
         double aot_550;
         double aot_440;
 
-        _nulloutput=false;
-         if (_flagAlphaOutOfRange != 0){
+        c._nulloutput=false;
+         if (c._flagAlphaOutOfRange != 0){
             output.setAlphaOutOfRangeFlag();
              output.setInvalidOutputFlag();
-             setNullOutput();
+             setNullOutput(c);
         }
-          if (_hasFlagAOT){
+          if (c._hasFlagAOT){
             output.setAotOutOfRangeFlag();
             output.setInvalidOutputFlag();
-            setNullOutput();
+            setNullOutput(c);
         }
 
 
 
         //we write the surfRefl value for band 1-10, 12, 13, 14
-        if (_surfRefl[0] > 1.0 || _surfRefl[1] > 1.0 ||
-                _surfRefl[2] > 1.0 || _surfRefl[3] > 1.0 ||
-                _surfRefl[4] > 1.0 || _surfRefl[5] > 1.0 ||
-                _surfRefl[6] > 1.0 || _surfRefl[7] > 1.0 ||
-                _surfRefl[8] > 1.0 || _surfRefl[9] > 1.0 ||
-                _surfRefl[11] > 1.0 || _surfRefl[12] > 1.0 ||
-                _surfRefl[13] > 1.0) {
+        if (c._surfRefl[0] > 1.0 || c._surfRefl[1] > 1.0 ||
+                c._surfRefl[2] > 1.0 || c._surfRefl[3] > 1.0 ||
+                c._surfRefl[4] > 1.0 || c._surfRefl[5] > 1.0 ||
+                c._surfRefl[6] > 1.0 || c._surfRefl[7] > 1.0 ||
+                c._surfRefl[8] > 1.0 || c._surfRefl[9] > 1.0 ||
+                c._surfRefl[11] > 1.0 || c._surfRefl[12] > 1.0 ||
+                c._surfRefl[13] > 1.0) {
             output.setInvalidOutputFlag();
-            setNullOutput();
+            setNullOutput(c);
         }
 
-        if (_surfRefl[0] < 0.0 || _surfRefl[1] < 0.0 ||
-                _surfRefl[2] < 0.0 || _surfRefl[3] < 0.0 ||
-                _surfRefl[4] < 0.0 || _surfRefl[5] < 0.0 ||
-                _surfRefl[6] < 0.0 || _surfRefl[7] < 0.0 ||
-                _surfRefl[8] < 0.0 || _surfRefl[9] < 0.0 ||
-                _surfRefl[11] < 0.0 || _surfRefl[12] < 0.0 ||
-                _surfRefl[13] < 0.0) {
+        if (c._surfRefl[0] < 0.0 || c._surfRefl[1] < 0.0 ||
+                c._surfRefl[2] < 0.0 || c._surfRefl[3] < 0.0 ||
+                c._surfRefl[4] < 0.0 || c._surfRefl[5] < 0.0 ||
+                c._surfRefl[6] < 0.0 || c._surfRefl[7] < 0.0 ||
+                c._surfRefl[8] < 0.0 || c._surfRefl[9] < 0.0 ||
+                c._surfRefl[11] < 0.0 || c._surfRefl[12] < 0.0 ||
+                c._surfRefl[13] < 0.0) {
             output.setInvalidOutputFlag();
-            setNullOutput();
+            setNullOutput(c);
         }
+        final float[] bands = c._bands;
         for (int b=0; b<10; b++)
-                 output.setBand((float)_surfRefl[b],b);       // band 1-10
+                 bands[b] = (float)c._surfRefl[b];       // band 1-10
         for (int b=11; b<14; b++)
-                 output.setBand((float)_surfRefl[b],b-1);   // band 12-14
+                 bands[b-1] = (float)c._surfRefl[b];   // band 12-14
+        output.setBands(bands);
 
-         if (_nulloutput)
+         if (c._nulloutput)
          {
              aot_440=0.0;
              aot_550=0.0;
          }
         else
          {
-            aot_440=angstroemPowerLaw(_aot[0], 0.440, BaerConstants.MERIS_BANDS[0], -_alpha);
-            aot_550=angstroemPowerLaw(_aot[0], 0.550,BaerConstants.MERIS_BANDS[0], -_alpha);
+            aot_440=angstroemPowerLaw(c._aot[0], 0.440, BaerConstants.MERIS_BANDS[0], -c._alpha);
+            aot_550=angstroemPowerLaw(c._aot[0], 0.550,BaerConstants.MERIS_BANDS[0], -c._alpha);
          }
 
-        output.setAlpha((float)_alpha);
-        output.setAot_412((float)_aot[0]);
+        output.setAlpha((float)c._alpha);
+        output.setAot_412((float)c._aot[0]);
         output.setAot_440((float)aot_440);
         output.setAot_550((float)aot_550);
 
@@ -645,40 +820,40 @@ public class BaerAlgorithm {
      * Saves output values
      * @param output : result of org.esa.beam.processor.baer processing
      */
-    private void createOutputBaer(AerPixel output){
+    private void createOutputBaer(BaerContext c, AerPixel output){
 
         double aot_550;
         double aot_440;
 
 
-        _nulloutput=false;
-         if (_flagAlphaOutOfRange != 0){
+        c._nulloutput=false;
+         if (c._flagAlphaOutOfRange != 0){
             output.setAlphaOutOfRangeFlag();
              output.setInvalidOutputFlag();
-             setNullOutput();
+             setNullOutput(c);
         }
-           if (_hasFlagAOT){
+           if (c._hasFlagAOT){
             output.setAotOutOfRangeFlag();
             output.setInvalidOutputFlag();
-            setNullOutput();
+            setNullOutput(c);
         }
 
 
 
 
-         if (_nulloutput)
+         if (c._nulloutput)
          {
              aot_440=0.0;
              aot_550=0.0;
          }
         else
          {
-            aot_440=angstroemPowerLaw(_aot[0], 0.440, BaerConstants.MERIS_BANDS[0], -_alpha);
-            aot_550=angstroemPowerLaw(_aot[0], 0.550, BaerConstants.MERIS_BANDS[0], -_alpha);
+            aot_440=angstroemPowerLaw(c._aot[0], 0.440, BaerConstants.MERIS_BANDS[0], -c._alpha);
+            aot_550=angstroemPowerLaw(c._aot[0], 0.550, BaerConstants.MERIS_BANDS[0], -c._alpha);
          }
 
-        output.setAlpha((float)_alpha);
-        output.setAot_412((float)_aot[0]);
+        output.setAlpha((float)c._alpha);
+        output.setAot_412((float)c._aot[0]);
         output.setAot_440((float)aot_440);
         output.setAot_550((float)aot_550);
 
@@ -686,50 +861,54 @@ public class BaerAlgorithm {
 
     }
 
-    private void atmCorProcess(boolean useAotMin)
+    private void atmCorProcess(BaerContext c, boolean useAotMin)
     {
-        int b;
-         if (_atm_corr_method.equals("UBAC")){
+         if (_model._atm_corr_method.equals("UBAC")){
 
-                    surfaceRefl();
+                    surfaceRefl(c);
         }
         else
         {
 	       double airPressure=0;
-            if (useAotMin)
-            for (b=0; b<BaerConstants.NUM_BANDS;b++) {
-                        _aot[b] = _aotMin[b];
-            }
-            else
-                for (b=0; b<BaerConstants.NUM_BANDS;b++) {
-                        _aot[b] = _aotTempx[b];
-                }
-            SmacProcess(airPressure);
+            setSmacAot(c, useAotMin);
+            SmacProcess(c, airPressure);
 
         }
     }
-    private void setNullOutput(){
+
+    private void setSmacAot(BaerContext c, boolean useAotMin) {
+        int b;
+        if (useAotMin)
+            for (b=0; b<BaerConstants.NUM_BANDS;b++) {
+                        c._aot[b] = c._aotMin[b];
+            }
+        else
+            for (b=0; b<BaerConstants.NUM_BANDS;b++) {
+                        c._aot[b] = c._aotTempx[b];
+            }
+    }
+    private void setNullOutput(BaerContext c){
         for (int b=0; b<BaerConstants.NUM_BANDS;b++)
         {
-            _nulloutput = true;
-            _surfRefl[b] = 0.0;
-            _aot[b] = 0.0;
-            _alpha=0.0;
+            c._nulloutput = true;
+            c._surfRefl[b] = 0.0;
+            c._aot[b] = 0.0;
+            c._alpha=0.0;
         }
     }
 
 
-    private void createAotAndAlpha(){
-            angstroemSimple(_aotTempx);
-            _alpha = _alphaTempY;
+    private void createAotAndAlpha(BaerContext c){
+            angstroemSimple(c, c._aotTempx);
+            c._alpha = c._alphaTempY;
     }
 
-   private double tDifCalculation(double caer,  double aot, double mu)
+   private double tDifCalculation(BaerContext c, double caer,  double aot, double mu)
    {
        double tdif;
        tdif = Math.exp(- caer
                         * aot
-                        * (1/ _pressure_div)
+                        * (1/ c._pressure_div)
                         /mu);
        return tdif;
    }
@@ -754,18 +933,18 @@ public class BaerAlgorithm {
     }
 
 
-    private double reflCalculation(double vegc, int band)
+    private double reflCalculation(BaerContext c, double vegc, int band)
     {
         double result;
         double one_vegc = 1.0 - vegc;
          result = (vegc
-                   * _reflVeg[_vegSpectraNumber].getValueAt(band)
+                   * _model._reflVeg[_model._vegSpectraNumber].getValueAt(band)
                    + one_vegc
-                   * _soilFractionAccess.getSoilFraction()
-                   * _reflSoil[_soilSpectraNumber].getValueAt(band))
+                   * _model._soilFractionAccess.getSoilFraction()
+                   * _model._reflSoil[c._soilSpectraNumber].getValueAt(band))
                 / (vegc
                    + one_vegc
-                   * _soilFractionAccess.getSoilFraction());
+                   * _model._soilFractionAccess.getSoilFraction());
         return result;
     }
 
@@ -774,7 +953,7 @@ public class BaerAlgorithm {
      * and a rough estimation of the AOT in band 1
      * @return a rough estimation of the AOT at 412 nm
      */
-    private double initSurfReflectance() {
+    private double initSurfReflectance(BaerContext c) {
         double aotGuess1=0.0;
         double alpha=1.0;
         double aotGuess7=0.0;
@@ -795,13 +974,14 @@ public class BaerAlgorithm {
         double sun,view;
         double coef;
         double param4;
+        final BaerDiagnostics diagnostics = c._diagnostics;
 
-        sun = Math.cos(Math.toRadians(_band_sza));
-        view = Math.cos(Math.toRadians(_band_vza));
+        sun = Math.cos(Math.toRadians(c._band_sza));
+        view = Math.cos(Math.toRadians(c._band_vza));
         coef = BaerConstants.MU_LUT / (sun * view);
 
 
-        ndvi = ndviCalculation(_inputLocal[12], _inputLocal[6]);
+        ndvi = ndviCalculation(c._inputLocal[12], c._inputLocal[6]);
         if (ndvi >= 0.0)
                 vegc = 0.8*ndvi;
 
@@ -813,20 +993,24 @@ public class BaerAlgorithm {
 
         while ((correctBand7 <= 0.0 ) || (correctBand13 <= 0.0) || (correctBand1 <= 0.0))
         {
-          correctBand1= _inputLocal[0] - h2;
+          if (diagnostics != null)
+              diagnostics._initLoops++;
+          correctBand1= c._inputLocal[0] - h2;
             if ((correctBand1 <= 0.0) && (h2 > 0.002)){
+                if (diagnostics != null)
+                    diagnostics._initH2Adjustments++;
                 h2 -= 0.001;
                 if (h2 < 0.0)
                     h2 = 0.0;
-                correctBand1 = _inputLocal[0] - h2;
+                correctBand1 = c._inputLocal[0] - h2;
             }
-           aotGuess1 = aotCalculation(_aertable[0], correctBand1,sun, view);
+           aotGuess1 = aotCalculation(_model._aertable[0], correctBand1,sun, view);
 
           if (aotGuess1< 0.0) {
             aotGuess1 = 0.05;
 
               // NOUVEAU VERSION 15
-              if (_inputLocal[0] < 0.005)
+              if (c._inputLocal[0] < 0.005)
                   break;
               if (h2 > 0.002)
                   continue;
@@ -840,19 +1024,19 @@ public class BaerAlgorithm {
             //formula : (b*b) / ( 4* a * a)  -  (c - d*MUL/(sun*view)) / a
 
             param4 = aotGuess1 * coef;
-            reflAerGuess1 = equation_resolution(_aertable[0][0], _aertable[0][1],_aertable[0][2], param4);
+            reflAerGuess1 = equation_resolution(_model._aertable[0][0], _model._aertable[0][1],_model._aertable[0][2], param4);
 
 
            param4 = aotGuess7 * coef;
-            reflAerGuess7 = equation_resolution(_aertable[6][0], _aertable[6][1],_aertable[6][2], param4);
+            reflAerGuess7 = equation_resolution(_model._aertable[6][0], _model._aertable[6][1],_model._aertable[6][2], param4);
 
             param4 = aotGuess13 * coef;
-            reflAerGuess13 = equation_resolution(_aertable[12][0], _aertable[12][1],_aertable[12][2], param4);
+            reflAerGuess13 = equation_resolution(_model._aertable[12][0], _model._aertable[12][1],_model._aertable[12][2], param4);
 
 
-            correctBand1 = _inputLocal[0]  - reflAerGuess1;
-            correctBand7 = _inputLocal[6]  - reflAerGuess7;
-            correctBand13 = _inputLocal[12] - reflAerGuess13;
+            correctBand1 = c._inputLocal[0]  - reflAerGuess1;
+            correctBand7 = c._inputLocal[6]  - reflAerGuess7;
+            correctBand13 = c._inputLocal[12] - reflAerGuess13;
 
             if (flags)
             {
@@ -868,18 +1052,26 @@ public class BaerAlgorithm {
 
             if ((correctBand1 <= 0.0) && (correctBand7 <= 0.0))
             {
+                if (diagnostics != null)
+                    diagnostics._initH2Adjustments++;
                 h2 += 0.005;
                 alpha = 1.0;
                 continue;
             }
 
             if (correctBand1 <= 0.0){
+                if (diagnostics != null)
+                    diagnostics._initH2Adjustments++;
                 h2 += 0.005;
                 alpha = 1.0;
                 continue;
             }
            if ((correctBand7 <= 0.0) )
             {
+               if (diagnostics != null) {
+                   diagnostics._initAlphaAdjustments++;
+                   diagnostics._initH2Adjustments++;
+               }
                alpha += 0.05;
                h2 += 0.005;
                if (alpha > 2.5){
@@ -891,6 +1083,8 @@ public class BaerAlgorithm {
             }
              if ((correctBand13 <= 0.0) )
             {
+               if (diagnostics != null)
+                   diagnostics._initAlphaAdjustments++;
                alpha += 0.05;
                if (alpha > 2.5){
                     alpha = 1.3;
@@ -902,28 +1096,28 @@ public class BaerAlgorithm {
             break;
         }
 
-        _alphaHelp = alpha;
-        ndvi =  ndviCalculation((_inputLocal[12] - reflAerGuess13) , (_inputLocal[6] - reflAerGuess7));
+        c._alphaHelp = alpha;
+        ndvi =  ndviCalculation((c._inputLocal[12] - reflAerGuess13) , (c._inputLocal[6] - reflAerGuess7));
 
 	    if (ndvi >= 0.0)
-	        vegc = _ndviAccess.getNdviTuningFactor() * ndvi;
+	        vegc = _model._ndviAccess.getNdviTuningFactor() * ndvi;
 
 
           one_vegc = 1.0 - vegc;
-        reflMix7 = reflCalculation(vegc, 6);
+        reflMix7 = reflCalculation(c, vegc, 6);
 
 
 
 
-        f = (_inputLocal[6] - reflAerGuess7)/ reflMix7;
+        f = (c._inputLocal[6] - reflAerGuess7)/ reflMix7;
 
 
-        f = _f_tuningAccess.getF_TuningFactor()
-            * (vegc + _soilFractionAccess.getSoilFraction() * one_vegc)
+        f = _model._f_tuningAccess.getF_TuningFactor()
+            * (vegc + _model._soilFractionAccess.getSoilFraction() * one_vegc)
             * f;
 
           for (int b=0; b< BaerConstants.NUM_BANDS; b++){
-                    _surfRefl[b] = f * reflCalculation(vegc, b);
+                    c._surfRefl[b] = f * reflCalculation(c, vegc, b);
 
         }
 
@@ -1002,7 +1196,7 @@ public class BaerAlgorithm {
      * @param band MERIS band number
      * @return numconst
      */
-    private int aotLand(int band, int numconst){
+    private int aotLand(BaerContext c, int band, int numconst){
         double tdifAeroS;
         double tdifAeroV;
         double h2;
@@ -1010,84 +1204,86 @@ public class BaerAlgorithm {
 
         double rhem;
 
-        tdifAeroS = tDifCalculation(_caerSun, _aotguess[band], _muSun);
-        tdifAeroV = tDifCalculation(_caerView,_aotguess[band], _muView);
+        tdifAeroS = tDifCalculation(c, c._caerSun, c._aotguess[band], c._muSun);
+        tdifAeroV = tDifCalculation(c, c._caerView,c._aotguess[band], c._muView);
 
 
 
         // calculation of the hemispherical reflectance
-        rhem =  _rhemCoef[0]
-                + _rhemCoef[1] * _aotguess[band]
-                + _rhemCoef[2] * _aotguess[band] * _aotguess[band]
-                + _rhemCoef[3] * _aotguess[band] * _aotguess[band] * _aotguess[band]
-                + _rhemCoef[4] * _aotguess[band] * _aotguess[band] * _aotguess[band] * _aotguess[band];
+        rhem =  _model._rhemCoef[0]
+                + _model._rhemCoef[1] * c._aotguess[band]
+                + _model._rhemCoef[2] * c._aotguess[band] * c._aotguess[band]
+                + _model._rhemCoef[3] * c._aotguess[band] * c._aotguess[band] * c._aotguess[band]
+                + _model._rhemCoef[4] * c._aotguess[band] * c._aotguess[band] * c._aotguess[band] * c._aotguess[band];
 
 
         // calculation of the H2 term based on the use of direct transmissions
         h2 = (tdifAeroS
               * tdifAeroV
-              * Math.cos(Math.toRadians(_band_sza))
-              * Math.cos(Math.toRadians(_band_vza))
-              * _surfRefl[band])
+              * Math.cos(Math.toRadians(c._band_sza))
+              * Math.cos(Math.toRadians(c._band_vza))
+              * c._surfRefl[band])
               / (1.0
-                 - _surfRefl[band]
-                 * Math.cos(Math.toRadians(_band_vza))
+                 - c._surfRefl[band]
+                 * Math.cos(Math.toRadians(c._band_vza))
                  * rhem);
 
 
          //calculation of the aerosol reflectance
-         _aeroRefl[band] = (_inputLocal[band] - h2)
-                         * _p140
-                         / _pTheta;
+         c._aeroRefl[band] = (c._inputLocal[band] - h2)
+                         * c._p140
+                         / c._pTheta;
 
 
          //calculation of the aot
 
-       _aotTempx[band] = aotCalculation(_aertable[band], _aeroRefl[band], _muSun, _muView);
+       c._aotTempx[band] = aotCalculation(_model._aertable[band], c._aeroRefl[band], c._muSun, c._muView);
 
         //boudary of the aot
 
-          aeroReflMax = - _aertable[band][1] /
-                (2.0 * _aertable[band][0]);
+          aeroReflMax = - _model._aertable[band][1] /
+                (2.0 * _model._aertable[band][0]);
 
-        if ((aeroReflMax >= 0.0)  && (_aeroRefl[band] > aeroReflMax)) {
-            _aotTempx[band] = aotCalculation(_aertable[band], aeroReflMax, _muSun, _muView);
+        if ((aeroReflMax >= 0.0)  && (c._aeroRefl[band] > aeroReflMax)) {
+            c._aotTempx[band] = aotCalculation(_model._aertable[band], aeroReflMax, c._muSun, c._muView);
         }
-        _aotguess[band] =  _aotTempx[band];
+        c._aotguess[band] =  c._aotTempx[band];
 
          if (BaerConstants.FIT_SELECTED_MERIS_BAND[band])
               {
-                 if (_aeroRefl[band] <= 0.0)         {
-                  _aotguess[band] = angstroemPowerLaw(_aotTempx[0],BaerConstants.MERIS_BANDS[band], BaerConstants.MERIS_BANDS[0], -_alphaTempY);
-                  _aotTempx[band] = angstroemPowerLaw(_aotTempx[0],BaerConstants.MERIS_BANDS[band], BaerConstants.MERIS_BANDS[0] , -_alphaTempY);
+                 if (c._aeroRefl[band] <= 0.0)         {
+                  c._aotguess[band] = angstroemPowerLaw(c._aotTempx[0],BaerConstants.MERIS_BANDS[band], BaerConstants.MERIS_BANDS[0], -c._alphaTempY);
+                  c._aotTempx[band] = angstroemPowerLaw(c._aotTempx[0],BaerConstants.MERIS_BANDS[band], BaerConstants.MERIS_BANDS[0] , -c._alphaTempY);
                  }
               }
          else{
-                  _aotguess[band] = angstroemPowerLaw(_aotTempx[0],BaerConstants.MERIS_BANDS[band], BaerConstants.MERIS_BANDS[0], -_alphaTempY);
-                  _aotTempx[band] = angstroemPowerLaw(_aotTempx[0],BaerConstants.MERIS_BANDS[band], BaerConstants.MERIS_BANDS[0] , -_alphaTempY);
+                  c._aotguess[band] = angstroemPowerLaw(c._aotTempx[0],BaerConstants.MERIS_BANDS[band], BaerConstants.MERIS_BANDS[0], -c._alphaTempY);
+                  c._aotTempx[band] = angstroemPowerLaw(c._aotTempx[0],BaerConstants.MERIS_BANDS[band], BaerConstants.MERIS_BANDS[0] , -c._alphaTempY);
              }
 
-        _aot[band] = _aotTempx[band];
+        c._aot[band] = c._aotTempx[band];
 
-        _flagAotOutOfRange[band]=0;
+        c._flagAotOutOfRange[band]=0;
 
-        if (_aotTempx[band] <= 0.0){
-            _aotTempx[band] = 0.02;
-            _flagAotOutOfRange[band] = 1;
-            _hasFlagAOT=true;
+        if (c._aotTempx[band] <= 0.0){
+            c._aotTempx[band] = 0.02;
+            c._flagAotOutOfRange[band] = 1;
+            c._hasFlagAOT=true;
             numconst = numconst + 1;
         }
         else {
-            if (_aotTempx[band] >= 2.0){
-                _aotTempx[band] = 2.0;
-                _flagAotOutOfRange[band] = 2;
-                _hasFlagAOT = true;
-                _icx = band;
-                _icheck++;
+            if (c._aotTempx[band] >= 2.0){
+                c._aotTempx[band] = 2.0;
+                c._flagAotOutOfRange[band] = 2;
+                c._hasFlagAOT = true;
+                c._icx = band;
+                c._icheck++;
+                if (c._diagnostics != null)
+                    c._diagnostics._boundaryHits[band]++;
                 numconst = numconst + 1;
             }
             else
-                _flagAotOutOfRange[band] = 0;
+                c._flagAotOutOfRange[band] = 0;
         }
 
        return numconst;
@@ -1098,45 +1294,45 @@ public class BaerAlgorithm {
      * Calculates alpha and beta Angstrom coefficients
      * Calculates alpha and beta Angstrom coefficients
       */
-    private void angstroem(){
+    private void angstroem(BaerContext c){
         int nbSelectedBands;
         int b,i;
         double meanLnAOT;
         double meanLnLambda;
         double t1, t2;
-        double[] factor;
+        final double[] factor = c._factor;
          double alphaTempX;
-        double[] a;
-        double[] d;
+        final double[] a = c._angA;
+        final double[] d = c._angD;
 
-        factor =  new double[BaerConstants.NUM_BANDS];
-        a = new double[6];
-        d = new double[6];
+        Arrays.fill(factor, 0.0);
+        Arrays.fill(a, 0.0);
+        Arrays.fill(d, 0.0);
 
       //calculation of factor
 
         for (b=0; b<BaerConstants.NUM_BANDS; b++){
             if (BaerConstants.FIT_SELECTED_MERIS_BAND[b]) {
 
-             _lnAot[b] = Math.log(_aotTempx[b]);
-            _weight[b] = 1.0;
+             c._lnAot[b] = Math.log(c._aotTempx[b]);
+            c._weight[b] = 1.0;
             factor[b] = 1.0;
             }
         }
 
 
-        if (_flagAotOutOfRange[0] != 1){
+        if (c._flagAotOutOfRange[0] != 1){
             for (i=0; i<6; i++)
             {
-                a[i] = (_lnAot[0] - _lnAot[i+1]) / (_lnLambda[i+1] - _lnLambda[0]);
-                d[i] = angstroemPowerLaw(_aotTempx[i+1],BaerConstants.MERIS_BANDS[0],
+                a[i] = (c._lnAot[0] - c._lnAot[i+1]) / (_model._lnLambda[i+1] - _model._lnLambda[0]);
+                d[i] = angstroemPowerLaw(c._aotTempx[i+1],BaerConstants.MERIS_BANDS[0],
                         BaerConstants.MERIS_BANDS[i+1],-a[i]);
-                d[i] = (_aotTempx[0] - d[i]) / _aotTempx[0];
+                d[i] = (c._aotTempx[0] - d[i]) / c._aotTempx[0];
              }
             if ((d[0] > -0.03) && (d[0] < 0.1)){
               if ((a[0] > -0.2) && (a[0] < 1.8)){
-                _weight[0] = 0.15;
-                _weight[1] = 0.20;
+                c._weight[0] = 0.15;
+                c._weight[1] = 0.20;
                 factor[0] = 2;
                 factor[1] = 2;
                 }
@@ -1144,8 +1340,8 @@ public class BaerAlgorithm {
 
             if ((d[1] > -0.06) && (d[1] < 0.18)){
                 if ((a[1] > -0.3) && (a[1] < 1.9)){
-                 _weight[0] = 0.15;
-                 _weight[2] = 0.20;
+                 c._weight[0] = 0.15;
+                 c._weight[2] = 0.20;
                  factor[0] = 2;
                  factor[2] = 2;
                 }
@@ -1153,8 +1349,8 @@ public class BaerAlgorithm {
 
             if ((d[2] > -0.08) && (d[2] < 0.22)){
                 if ((a[2] > -0.3) && (a[2] < 1.9)){
-                    _weight[0] = 0.15;
-                    _weight[3] = 0.20;
+                    c._weight[0] = 0.15;
+                    c._weight[3] = 0.20;
                     factor[0] = 2;
                     factor[3] = 2;
                 }
@@ -1162,8 +1358,8 @@ public class BaerAlgorithm {
 
             if ((d[3] > -0.011) && (d[3] < 0.28)){
                 if ((a[3] > -0.3) && (a[3] < 1.9)){
-                    _weight[0] = 0.15;
-                    _weight[4] = 0.60;
+                    c._weight[0] = 0.15;
+                    c._weight[4] = 0.60;
                     factor[0] = 2;
                     factor[4] = 1;
                 }
@@ -1171,8 +1367,8 @@ public class BaerAlgorithm {
 
              if ((d[4] > -0.011) && (d[4] < 0.28)){
                 if ((a[4] > -0.3) && (a[4] < 1.9)){
-                    _weight[0] = 0.15;
-                    _weight[5] = 0.20;
+                    c._weight[0] = 0.15;
+                    c._weight[5] = 0.20;
                     factor[0] = 2;
                     factor[5] = 1;
                 }
@@ -1180,8 +1376,8 @@ public class BaerAlgorithm {
 
             if ((d[5] > -0.011) && (d[5] < 0.28)){
                 if ((a[5] > -0.3) && (a[5] < 1.9)){
-                    _weight[0] = 0.15;
-                    _weight[6] = 0.20;
+                    c._weight[0] = 0.15;
+                    c._weight[6] = 0.20;
                     factor[0] = 2;
                     factor[6] = 1;
                 }
@@ -1190,20 +1386,20 @@ public class BaerAlgorithm {
 
          }
         else{
-         if (_flagAotOutOfRange[1] != 1){
-          if (_aotTempx[0] == 0.02) {
+         if (c._flagAotOutOfRange[1] != 1){
+          if (c._aotTempx[0] == 0.02) {
               for (i=1; i<6; i++)
               {
-                  a[i] = (_lnAot[1] - _lnAot[i+1]) / (_lnLambda[i+1] - _lnLambda[1]);
-                  d[i] = angstroemPowerLaw(_aotTempx[i+1], BaerConstants.MERIS_BANDS[0], BaerConstants.MERIS_BANDS[i+1], -a[i]);
+                  a[i] = (c._lnAot[1] - c._lnAot[i+1]) / (_model._lnLambda[i+1] - _model._lnLambda[1]);
+                  d[i] = angstroemPowerLaw(c._aotTempx[i+1], BaerConstants.MERIS_BANDS[0], BaerConstants.MERIS_BANDS[i+1], -a[i]);
 
-                  d[i] = (_aotTempx[1] - d[i]) / _aotTempx[1];
+                  d[i] = (c._aotTempx[1] - d[i]) / c._aotTempx[1];
 
               }
                if ((d[1] > -0.03) && (d[1] < 0.1)){
                     if ((a[1] > -0.5) && (a[1] < 2.0)){
-                        _weight[1] = 0.20;
-                        _weight[2] = 0.30;
+                        c._weight[1] = 0.20;
+                        c._weight[2] = 0.30;
                         factor[1] = 2;
                         factor[2] = 2;
                     }
@@ -1211,32 +1407,32 @@ public class BaerAlgorithm {
 
               if ((d[2] > -0.03) && (d[2] < 0.1)){
                     if ((a[2] > -0.5) && (a[2] < 2.0)){
-                        _weight[1] = 0.20;
-                        _weight[3] = 0.30;
+                        c._weight[1] = 0.20;
+                        c._weight[3] = 0.30;
                         factor[1] = 2;
                         factor[3] = 2;
                     }
               }
               if ((d[3] > -0.03) && (d[3] < 0.1)){
                     if ((a[3] > -0.5) && (a[3] < 2.0)){
-                        _weight[1] = 0.20;
-                        _weight[4] = 0.60;
+                        c._weight[1] = 0.20;
+                        c._weight[4] = 0.60;
                         factor[1] = 2;
                         factor[4] = 1;
                     }
               }
               if ((d[4] > -0.03) && (d[4] < 0.1)){
                     if ((a[4] > -0.5) && (a[4] < 2.0)){
-                        _weight[1] = 0.20;
-                        _weight[5] = 0.30;
+                        c._weight[1] = 0.20;
+                        c._weight[5] = 0.30;
                         factor[1] = 2;
                         factor[5] = 1;
                     }
               }
               if ((d[5] > -0.03) && (d[5] < 0.1)){
                     if ((a[5] > -0.5) && (a[5] < 2.0)){
-                        _weight[1] = 0.20;
-                        _weight[6] = 0.30;
+                        c._weight[1] = 0.20;
+                        c._weight[6] = 0.30;
                         factor[1] = 2;
                         factor[6] = 1;
                     }
@@ -1249,8 +1445,8 @@ public class BaerAlgorithm {
 
 
         //calculation of alpha and beta angstroem coefficients
-           _alpha=alphaTempX=_alphaTempY=0;
-           _beta = 0;
+           c._alpha=alphaTempX=c._alphaTempY=0;
+           c._beta = 0;
            nbSelectedBands=0;
            meanLnAOT = 0;
            meanLnLambda = 0;
@@ -1258,15 +1454,15 @@ public class BaerAlgorithm {
              for (b = 0; b < BaerConstants.NUM_BANDS; b++) {
                  if (BaerConstants.FIT_SELECTED_MERIS_BAND[b]) {
                     nbSelectedBands++;
-                    meanLnAOT += _lnAot[b];
-                    meanLnLambda += _lnLambda[b];
+                    meanLnAOT += c._lnAot[b];
+                    meanLnLambda += _model._lnLambda[b];
                     if (factor[b] == 2 ){
                         nbSelectedBands += 2;
-                        meanLnAOT += 2*_lnAot[b];
-                        meanLnLambda += 2*_lnLambda[b];
+                        meanLnAOT += 2*c._lnAot[b];
+                        meanLnLambda += 2*_model._lnLambda[b];
                     }
 
-                     if (_aotTempx[b] <= 0.0){
+                     if (c._aotTempx[b] <= 0.0){
                          nbSelectedBands--;
                      }
                  }
@@ -1280,45 +1476,45 @@ public class BaerAlgorithm {
 
            for (b = 0; b < BaerConstants.NUM_BANDS; b++) {
                  if (BaerConstants.FIT_SELECTED_MERIS_BAND[b]) {
-                     t1 += (_lnAot[b] - meanLnAOT)
-                           * (_lnLambda[b] - meanLnLambda);
-                     t2 += ((_lnLambda[b] - meanLnLambda) * (_lnLambda[b] - meanLnLambda));
+                     t1 += (c._lnAot[b] - meanLnAOT)
+                           * (_model._lnLambda[b] - meanLnLambda);
+                     t2 += ((_model._lnLambda[b] - meanLnLambda) * (_model._lnLambda[b] - meanLnLambda));
                     if (factor[b] == 2) {
-                        t1 += 2*((_lnAot[b] - meanLnAOT)
-                              * (_lnLambda[b] - meanLnLambda));
-                        t2 += 2*((_lnLambda[b] - meanLnLambda) * (_lnLambda[b] - meanLnLambda));
+                        t1 += 2*((c._lnAot[b] - meanLnAOT)
+                              * (_model._lnLambda[b] - meanLnLambda));
+                        t2 += 2*((_model._lnLambda[b] - meanLnLambda) * (_model._lnLambda[b] - meanLnLambda));
                     }
                  }
            }
 
 
-           _alphaTempY = - t1 / t2;
-        _beta = Math.exp(meanLnAOT + meanLnLambda * _alphaTempY);
+           c._alphaTempY = - t1 / t2;
+        c._beta = Math.exp(meanLnAOT + meanLnLambda * c._alphaTempY);
 
           // alpha  constraints
-          _alpha = alphaTempX = _alphaTempY;
+          c._alpha = alphaTempX = c._alphaTempY;
 
 
-          if (_alpha > 2.0) {
+          if (c._alpha > 2.0) {
             alphaTempX = 1.3;
-            _alphaTempY = - 2.0;
-            _flagAlphaOutOfRange = 1;
+            c._alphaTempY = - 2.0;
+            c._flagAlphaOutOfRange = 1;
          }
          else
-            if (_alpha < 0.0) {
+            if (c._alpha < 0.0) {
                 alphaTempX = 1.3;
-                 _alphaTempY = - 2.0;
-                 _flagAlphaOutOfRange = 2;
+                 c._alphaTempY = - 2.0;
+                 c._flagAlphaOutOfRange = 2;
             }
             else
-                 _flagAlphaOutOfRange = 0;
+                 c._flagAlphaOutOfRange = 0;
 
 
-        if (_flagAlphaOutOfRange != 0) {
-              if (_flagAotOutOfRange[0] != 1){
-                  if (_aotTempx[1] < 2.0 ){      //v14   1.0) {
-                      if  (_flagAotOutOfRange[1] != 1) {
-                          _beta = (_aotTempx[0] + _aotTempx[1])
+        if (c._flagAlphaOutOfRange != 0) {
+              if (c._flagAotOutOfRange[0] != 1){
+                  if (c._aotTempx[1] < 2.0 ){      //v14   1.0) {
+                      if  (c._flagAotOutOfRange[1] != 1) {
+                          c._beta = (c._aotTempx[0] + c._aotTempx[1])
                                   / 2.0
                                   * Math.pow(((BaerConstants.MERIS_BANDS[0]
                                                + BaerConstants.MERIS_BANDS[1])
@@ -1328,9 +1524,9 @@ public class BaerAlgorithm {
                   }
                   else
                   {
-                      _beta = 0.1;
+                      c._beta = 0.1;
                   }
-                   _alpha = alphaTempX;
+                   c._alpha = alphaTempX;
               }
 
        }
@@ -1339,7 +1535,7 @@ public class BaerAlgorithm {
     /**
      * Calculates alpha and beta Angstrom coefficients
      */
-    private void angstroemSimple(double[] aotTemp){
+    private void angstroemSimple(BaerContext c, double[] aotTemp){
         int b;
         double meanLnAOT = 0;
         double meanLnLambda = 0;
@@ -1350,9 +1546,9 @@ public class BaerAlgorithm {
         for (b=0; b<BaerConstants.NUM_BANDS; b++) {
             if (BaerConstants.FIT_SELECTED_MERIS_BAND[b]){
             nbBands++;
-            meanLnLambda += _lnLambda[b];
-            _lnAot[b] = Math.log(aotTemp[b]);
-            meanLnAOT += _lnAot[b];
+            meanLnLambda += _model._lnLambda[b];
+            c._lnAot[b] = Math.log(aotTemp[b]);
+            meanLnAOT += c._lnAot[b];
             }
         }
         meanLnAOT = meanLnAOT / nbBands;
@@ -1361,60 +1557,60 @@ public class BaerAlgorithm {
           for (b=0; b<BaerConstants.NUM_BANDS; b++) {
             if (BaerConstants.FIT_SELECTED_MERIS_BAND[b]){
 
-            t1 += (_lnAot[b] - meanLnAOT) * (_lnLambda[b] - meanLnLambda);
-            t2 += ((_lnLambda[b] - meanLnLambda) * (_lnLambda[b] - meanLnLambda));
+            t1 += (c._lnAot[b] - meanLnAOT) * (_model._lnLambda[b] - meanLnLambda);
+            t2 += ((_model._lnLambda[b] - meanLnLambda) * (_model._lnLambda[b] - meanLnLambda));
             }
         }
 
         // calculation of alpha and beta angstroem coefficients
-        _alphaTempY = - t1 / t2;
+        c._alphaTempY = - t1 / t2;
     }
 
     /**
      * Estimates the spectral AOT smoothness
      * @return  number of bands selected for the fitting function
      */
-    private int rmsdCalculation(){
+    private int rmsdCalculation(BaerContext c){
         int countNbBandsFit=0;
 
 
-        _rmsd = 0.0;
+        c._rmsd = 0.0;
 
         for (int b=0; b<BaerConstants.NUM_BANDS; b++) {
          if ((BaerConstants.FIT_SELECTED_MERIS_BAND[b]) &&
-                    (_aotTempx[b] <= 2.0)) {
+                    (c._aotTempx[b] <= 2.0)) {
                 countNbBandsFit ++;
-                if	(_flagAotOutOfRange[0] != 1) {
-                    if (_flagAotOutOfRange[1] != 1) {
-                        _aotTempxx[b] = ((6*_aotTempx[0] + _aotTempx[1])/7)
+                if	(c._flagAotOutOfRange[0] != 1) {
+                    if (c._flagAotOutOfRange[1] != 1) {
+                        c._aotTempxx[b] = ((6*c._aotTempx[0] + c._aotTempx[1])/7)
                                       * Math.pow((BaerConstants.MERIS_BANDS[b]
                                                   / ((6 * BaerConstants.MERIS_BANDS[0]
                                                     + BaerConstants.MERIS_BANDS[1])/7))
-                                                 ,(- _alpha));
+                                                 ,(- c._alpha));
                     }
                     else
                     {
-                        _aotTempxx[b] = angstroemPowerLaw(_aotTempx[0],BaerConstants.MERIS_BANDS[b],
-                                BaerConstants.MERIS_BANDS[0],- _alpha);
+                        c._aotTempxx[b] = angstroemPowerLaw(c._aotTempx[0],BaerConstants.MERIS_BANDS[b],
+                                BaerConstants.MERIS_BANDS[0],- c._alpha);
                     }
                 }
                 else
                 {
-                    if (_flagAotOutOfRange[1] != 1) {
-                        _aotTempxx[b] = angstroemPowerLaw(_aotTempx[1],BaerConstants.MERIS_BANDS[b],
-                                BaerConstants.MERIS_BANDS[1], -_alpha);
+                    if (c._flagAotOutOfRange[1] != 1) {
+                        c._aotTempxx[b] = angstroemPowerLaw(c._aotTempx[1],BaerConstants.MERIS_BANDS[b],
+                                BaerConstants.MERIS_BANDS[1], -c._alpha);
                     }
                     else
                     {
-                        _aotTempxx[b] = angstroemPowerLaw(_beta, BaerConstants.MERIS_BANDS[b],
-                                1.0, -_alpha);
+                        c._aotTempxx[b] = angstroemPowerLaw(c._beta, BaerConstants.MERIS_BANDS[b],
+                                1.0, -c._alpha);
                     }
                 }
-                 _rmsd = _rmsd + ((_aotTempx[b] - _aotTempxx[b]) * (_aotTempx[b] - _aotTempxx[b]));
+                 c._rmsd = c._rmsd + ((c._aotTempx[b] - c._aotTempxx[b]) * (c._aotTempx[b] - c._aotTempxx[b]));
 
             }
         }
-       _rmsd = Math.sqrt(_rmsd) / countNbBandsFit;
+       c._rmsd = Math.sqrt(c._rmsd) / countNbBandsFit;
 
        return countNbBandsFit;
     }
@@ -1424,7 +1620,7 @@ public class BaerAlgorithm {
      * @param jcount
      * @return jcount
      */
-    private int iterativeSurfaceRefl(int jcount){
+    private int iterativeSurfaceRefl(BaerContext c, int jcount){
         double delta=0.0;
         int b=0;
         double surfaceRefl=0.0;
@@ -1433,56 +1629,56 @@ public class BaerAlgorithm {
 
          for (b=0; b<BaerConstants.NUM_BANDS; b++){
             if (BaerConstants.FIT_SELECTED_MERIS_BAND[b]){
-                if (_aeroRefl[b] > 0.0) {
-                    delta = (_aotTempx[b] - _aotTempxx[b]) / _aotTempx[b];
+                if (c._aeroRefl[b] > 0.0) {
+                    delta = (c._aotTempx[b] - c._aotTempxx[b]) / c._aotTempx[b];
                     if (delta < -0.5) {
                         delta = - 0.5;
                     }
                 }
                 else
                 {
-                    delta = (0.025 - _aotTempxx[b]) / 0.025;
+                    delta = (0.025 - c._aotTempxx[b]) / 0.025;
                     if (delta == 0.0) {
                         delta = -0.1;
                     }
                 }
 
-                surfaceRefl = _surfRefl[b];
-               _surfRefl[b] = _surfRefl[b]
+                surfaceRefl = c._surfRefl[b];
+               c._surfRefl[b] = c._surfRefl[b]
                                * (1.0
                                   + BaerConstants.COEFF[b]
-                                  * _weight[b]
+                                  * c._weight[b]
                                   * delta);
 
 
-                if (_surfRefl[b] == 0.0) {
-                    _surfRefl[b] = 0.002;
+                if (c._surfRefl[b] == 0.0) {
+                    c._surfRefl[b] = 0.002;
                 }
-                if ((_surfRefl[b] < 0.0) || (_surfRefl[b] > 1.0)) {
+                if ((c._surfRefl[b] < 0.0) || (c._surfRefl[b] > 1.0)) {
                      jcount = jcount + 1;
                     if (jcount > 150) {
                         break;
                     }
                     if (delta == 0.0){ //((delta < epsilon) && (delta > -epsilon)) {
-                        _surfRefl[b] = surfaceRefl;
+                        c._surfRefl[b] = surfaceRefl;
                     }
                     else {
                         if (delta < 0.0) {
-                            if  (_surfRefl[b] < 0.0) {
-                                _surfRefl[b] = surfaceRefl
+                            if  (c._surfRefl[b] < 0.0) {
+                                c._surfRefl[b] = surfaceRefl
                                                * (1.0 + 0.1 * delta);
                             } else {
-                               _surfRefl[b] = surfaceRefl
+                               c._surfRefl[b] = surfaceRefl
                                                   * (1.0 - 0.1 * delta);
                             }
                         }
                         else {
                             if (delta <1.0){
-                                if (_surfRefl[b] < 0.0) {
-                                    _surfRefl[b] = surfaceRefl
+                                if (c._surfRefl[b] < 0.0) {
+                                    c._surfRefl[b] = surfaceRefl
                                                   * (1.0 - 0.1 * delta);
                                 } else {
-                                        _surfRefl[b] = surfaceRefl
+                                        c._surfRefl[b] = surfaceRefl
                                                       * (1.0
                                                          + 0.1
                                                          * delta);
@@ -1490,11 +1686,11 @@ public class BaerAlgorithm {
                             }
                             else {
                                 if (delta > 1.0) {
-                                    if (_surfRefl[b] < 0.0) {
-                                        _surfRefl[b] = surfaceRefl
+                                    if (c._surfRefl[b] < 0.0) {
+                                        c._surfRefl[b] = surfaceRefl
                                                       * (1.0 + 0.01);
                                     } else {
-                                        _surfRefl[b] = surfaceRefl
+                                        c._surfRefl[b] = surfaceRefl
                                                           * (1.0 - 0.01);
                                     }
                                 }
@@ -1513,301 +1709,52 @@ public class BaerAlgorithm {
     /**
      * Computes the surface reflectances
      */
-    private void surfaceRefl(){
+    private void surfaceRefl(BaerContext c){
         double tdifAeroS;
         double tdifAeroV;
         double h3;
         double reflAer=0.0;
         double off = 0.005;
 
-         angstroem();
+         angstroem(c);
 
         for (int i=1; i<10;i++)
-            _aotTempx[i] = angstroemPowerLaw(_aotTempx[0], BaerConstants.MERIS_BANDS[i],
-                 BaerConstants.MERIS_BANDS[0], -_alphaTempY);
+            c._aotTempx[i] = angstroemPowerLaw(c._aotTempx[0], BaerConstants.MERIS_BANDS[i],
+                 BaerConstants.MERIS_BANDS[0], -c._alphaTempY);
         for (int i=11; i<14;i++)
-            _aotTempx[i] = angstroemPowerLaw(_aotTempx[0], BaerConstants.MERIS_BANDS[i],
-                 BaerConstants.MERIS_BANDS[0], -_alphaTempY);
+            c._aotTempx[i] = angstroemPowerLaw(c._aotTempx[0], BaerConstants.MERIS_BANDS[i],
+                 BaerConstants.MERIS_BANDS[0], -c._alphaTempY);
 
 
 
         for (int b=0;b<BaerConstants.NUM_BANDS; b++){
            if (BaerConstants.USED_MERIS_BAND[b]){
-               reflAer = equation_resolution(_aertable[b][0],_aertable[b][1],_aertable[b][2], _aotTempx[b]);
+               reflAer = equation_resolution(_model._aertable[b][0],_model._aertable[b][1],_model._aertable[b][2], c._aotTempx[b]);
 
-                h3 = reflAer * (BaerConstants.MU_LUT/(_muSun*_muView));
-             tdifAeroS = tDifCalculation(_caerSun, _aotTempx[b], _muSun);
-               tdifAeroV = tDifCalculation(_caerView, _aotTempx[b], _muView);
+                h3 = reflAer * (BaerConstants.MU_LUT/(c._muSun*c._muView));
+             tdifAeroS = tDifCalculation(c, c._caerSun, c._aotTempx[b], c._muSun);
+               tdifAeroV = tDifCalculation(c, c._caerView, c._aotTempx[b], c._muView);
 
-                _surfRefl[b] = (_inputLocal[b] - h3 + off) / (tdifAeroS * tdifAeroV);
-                _aot[b] = _aotTempx[b];
+                c._surfRefl[b] = (c._inputLocal[b] - h3 + off) / (tdifAeroS * tdifAeroV);
+                c._aot[b] = c._aotTempx[b];
 
            }
 
         }
 
     }
-    private void initSmac(){
-
-        _SmacA0taup = new double[BaerConstants.NUM_BANDS];
-        _SmacA1taup = new double[BaerConstants.NUM_BANDS];
-        _Smaca0T = new double[BaerConstants.NUM_BANDS];
-        _Smaca1T = new double[BaerConstants.NUM_BANDS];
-        _Smaca2T = new double[BaerConstants.NUM_BANDS];
-        _Smaca3T = new double[BaerConstants.NUM_BANDS];
-        _Smaca0s = new double[BaerConstants.NUM_BANDS];
-        _Smaca1s = new double[BaerConstants.NUM_BANDS];
-        _Smaca2s = new double[BaerConstants.NUM_BANDS];
-        _Smaca3s = new double[BaerConstants.NUM_BANDS];
-        _Smaca0P = new double[BaerConstants.NUM_BANDS];
-        _Smaca1P = new double[BaerConstants.NUM_BANDS];
-        _Smaca2P = new double[BaerConstants.NUM_BANDS];
-        _Smaca3P = new double[BaerConstants.NUM_BANDS];
-        _Smaca4P = new double[BaerConstants.NUM_BANDS];
-        _Smacwo  = new double[BaerConstants.NUM_BANDS];
-        _Smacgc  = new double[BaerConstants.NUM_BANDS];
-        _Smacresa1 = new double[BaerConstants.NUM_BANDS];
-        _Smacresa2 = new double[BaerConstants.NUM_BANDS];
-        _Smacresa3 = new double[BaerConstants.NUM_BANDS];
-        _Smacresa4 = new double[BaerConstants.NUM_BANDS];
-        _Smacrest1 = new double[BaerConstants.NUM_BANDS];
-        _Smacrest2 = new double[BaerConstants.NUM_BANDS];
-        _Smacrest3 = new double[BaerConstants.NUM_BANDS];
-        _Smacrest4 = new double[BaerConstants.NUM_BANDS];
-        _Smacak2 = new double[BaerConstants.NUM_BANDS];
-        _Smacak = new double[BaerConstants.NUM_BANDS];
-        _Smacb = new double[BaerConstants.NUM_BANDS];
-        _Smaconepb = new double[BaerConstants.NUM_BANDS];
-        _Smaconepb2= new double[BaerConstants.NUM_BANDS];
-        _Smaconemb = new double[BaerConstants.NUM_BANDS];
-        _Smaconemb2= new double[BaerConstants.NUM_BANDS];
-        _Smacww    = new double[BaerConstants.NUM_BANDS];
-        _Smaconemwo = new double[BaerConstants.NUM_BANDS];
-        _Smacpfac   = new double[BaerConstants.NUM_BANDS];
-
-        for (int b=0; b<BaerConstants.NUM_IN_REFLEC_BANDS; b++){
-            SmacLoadBandCoefficients(b);
-         }
-    }
-    private void SmacLoadBandCoefficients(int band){
-        File file;
-        SmacCoefficientsLoader coeffload = new SmacCoefficientsLoader();
-        SmacCoefficientsAccess coeffAccess;
-        int nextBand = band+1;
-        String name_band = "radiance_"+nextBand;
-        _smacProductType = "MERIS";
-        try {
-            file = _coeffMgr.getCoefficientFile(_smacProductType, name_band, _smacAerosolType);
-            if (file != null) {
-                  coeffload.load(file.getPath());
-                  coeffAccess = coeffload;
-                  SmacSetSensorCoefficients(coeffAccess, band);
-            }
-        } catch (IOException e) {
-            _logger.severe(e.getMessage());
-        }
 
+    private void SmacProcess(BaerContext c, double airPressure){
+        final SmacRow row = c._smacPixel;
+        row.clear();
+        addSmacPixel(c, row, airPressure);
+        row.correct(_model);
+        row.getSurfRefl(0, c._surfRefl);
     }
 
-    private void SmacSetSensorCoefficients(SmacCoefficientsAccess coeff, int band) {
-
-        _SmacA0taup[band] = coeff.getA0taup();
-        _SmacA1taup[band] = coeff.getA1taup();
-
-
-        // scattering transmission coefficients
-        _Smaca0T[band] = coeff.getA0T();
-        _Smaca1T[band] = coeff.getA1T();
-        _Smaca2T[band] = coeff.getA2T();
-        _Smaca3T[band] = coeff.getA3T();
-
-        // spherical albedo coefficients
-        _Smaca0s[band] = coeff.getA0s();
-        _Smaca1s[band] = coeff.getA1s();
-        _Smaca2s[band] = coeff.getA2s();
-        _Smaca3s[band] = coeff.getA3s();
-
-
-        // aerosol reflectance
-        _Smaca0P[band] = coeff.getA0P();
-        _Smaca1P[band] = coeff.getA1P();
-        _Smaca2P[band] = coeff.getA2P();
-        _Smaca3P[band] = coeff.getA3P();
-        _Smaca4P[band] = coeff.getA4P();
-
-        _Smacwo[band] = coeff.getWo();
-        _Smacgc[band] = coeff.getGc();
-
-        // residual aerosols
-        _Smacresa1[band] = coeff.getResa1();
-        _Smacresa2[band] = coeff.getResa2();
-        _Smacresa3[band] = coeff.getResa3();
-        _Smacresa4[band] = coeff.getResa4();
-
-        // residual transmission
-        _Smacrest1[band] = coeff.getRest1();
-        _Smacrest2[band] = coeff.getRest2();
-        _Smacrest3[band] = coeff.getRest3();
-        _Smacrest4[band] = coeff.getRest4();
-
-        // do some calculations which are NOT product dependent
-        // ----------------------------------------------------
-        _Smacak2[band] = (1.0 - _Smacwo[band]) * 3.0 * (1.0 - _Smacwo[band] * _Smacgc[band]);
-        _Smacak[band] = Math.sqrt(_Smacak2[band]);
-        _Smacb[band] = _SmactwoThird * _Smacak[band] / (1.0 - _Smacwo[band] * _Smacgc[band]);
-        _Smaconepb[band] = 1.0 + _Smacb[band];
-        _Smaconepb2[band] = _Smaconepb[band] * _Smaconepb[band];
-        _Smaconemb[band] = 1.0 - _Smacb[band];
-        _Smaconemb2[band] = _Smaconemb[band] * _Smaconemb[band];
-        _Smacww[band] = _Smacwo[band] * _SmaconeQuarter;
-        _Smaconemwo[band] = 1.0 - _Smacwo[band];
-        _Smacpfac[band] = _Smacak[band] / (3.0 * (1.0 - _Smacwo[band] * _Smacgc[band]));
-
-    }
-    private void SmacProcess(double airPressure){
-        double us;
-        double invUs;
-        double us2;
-        double uv;
-        double invUv;
-        double usTimesuv;
-        double invUsTimesUv;
-        double dphi, Peq, m, s, cksi, ksiD;
-        double taup,  Res_6s;
-        double ttetas, ttetav;
-        double aer_phase, aer_ref, Res_aer;
-        double atm_ref;
-        double d, del, dp, e, f, ss;
-        double q1, q2, q3;
-        double c1, c2, cp1, cp2;
-        double x, y, z;
-        double aa1, aa2, aa3;
-        double temp;
-        double cdr = Math.PI / 180.0;
-        double crd = 180.0 / Math.PI;
-        double invMaxPressure = 1.0 / 1013.0;
-
-        double aot550;
-        int b;
-        int band_meris;
-
-       aot550=angstroemPowerLaw(_aot[0],0.550, BaerConstants.MERIS_BANDS[0], -_alpha);
-
-        // loop over vectors
-        // -----------------
-
-        for (b = 0; b < BaerConstants.NUM_IN_REFLEC_BANDS; b++) {
-            // parameter setup
-            us = Math.cos(Math.toRadians(_band_sza) * cdr);
-            invUs = 1.0 / us;
-            us2 = us*us;
-
-            uv = Math.cos(Math.toRadians(_band_vza) * cdr);
-            invUv = 1.0 / uv;
-            usTimesuv = us * uv;
-            invUsTimesUv = 1.0 / usTimesuv;
-
-            dphi = (_band_saa - _band_vaa) * cdr;
-            Peq = airPressure * invMaxPressure;
-            // Peq equals 0
-
-            /*------ 1) air mass */
-            m = invUs + invUv;
-
-            /*------ 2) aerosol optical depth in the spectral band, taup  */
-            taup = _SmacA0taup[b] + _SmacA1taup[b] * aot550; //taup550[n];
-
-            /*------ 3) gaseous transmissions (downward and upward paths)*/
-
-            /*------  5) Total scattering transmission */
-            temp = _Smaca2T[b] * Peq + _Smaca3T[b];
-
-            /* downward */
-            ttetas = _Smaca0T[b] + _Smaca1T[b] * aot550 * invUs + temp / (1.0 + us);
-            /* upward   */
-            ttetav = _Smaca0T[b] + _Smaca1T[b] * aot550 * invUv + temp / (1.0 + uv);
-
-            /*------ 6) spherical albedo of the atmosphere */
-            s = _Smaca0s[b] * Peq + _Smaca3s[b] + _Smaca1s[b] * aot550 + _Smaca2s[b] * aot550*aot550; //Math.pow(aot550,2);
-
-            /*------ 7) scattering angle cosine */
-            cksi = -(usTimesuv + (Math.sqrt(1.0 - us2) * Math.sqrt(1.0 - uv * uv ) * Math.cos(dphi)));
-            if (cksi < -1) {
-                cksi = -1.0;
-            }
-
-            /*------ 8) scattering angle in degree */
-            ksiD = crd * Math.acos(cksi);
-
-            /*------ 9) rayleigh atmospheric reflectance */
-
-
-            /*------ 10) aerosol atmospheric reflectance */
-            temp = ksiD * ksiD;
-            aer_phase = _Smaca0P[b] + _Smaca1P[b] * ksiD
-                    + _Smaca2P[b] * temp + _Smaca3P[b] * temp * ksiD
-                    + _Smaca4P[b] * temp *temp; //Math.pow(temp,2);
-
-            // now the uncommented block :-)
-            // -----------------------------
-            temp = 1.0 / (4.0 * (1.0 - _Smacak2[b] * us2));
-            e = -3.0 * us2 * _Smacwo[b] * temp;
-            f = -_Smaconemwo[b] * 3.0 * _Smacgc[b] * us2 * _Smacwo[b] * temp;
-            dp = e / (3.0 * us) + us * f;
-            d = e + f;
-            temp = Math.exp(_Smacak[b] * taup);
-            del = temp * _Smaconepb2[b] - temp * _Smaconemb2[b] ;
-            ss = us / (1.0 - _Smacak2[b] * us2);
-            temp = 3.0 * us;
-            q1 = 2.0 + temp + _Smaconemwo[b] * temp * _Smacgc[b] * (1.0 + 2.0 * us);
-            q2 = 2.0 - temp - _Smaconemwo[b] * temp * _Smacgc[b] * (1.0 - 2.0 * us);
-            q3 = q2 * Math.exp(-taup * invUs);
-            temp = (_Smacww[b] * ss) / del;
-            c1 = temp * (q1 * Math.exp(_Smacak[b] * taup) * _Smaconepb[b] + q3 * _Smaconemb[b]);
-            c2 = -temp * (q1 * Math.exp(-_Smacak[b] * taup) * _Smaconemb[b] + q3 * _Smaconepb[b]);
-            cp1 = c1 * _Smacpfac[b];
-            cp2 = -c2 * _Smacpfac[b];
-            temp = _Smacwo[b] * 3.0 * _Smacgc[b] * uv;
-            z = d - temp * dp + _Smacwo[b] * aer_phase * _SmaconeQuarter;
-            x = c1 - temp * cp1;
-            y = c2 - temp * cp2;
-            temp = _Smacak[b] * uv;
-            aa1 = uv / (1.0 + temp);
-            aa2 = uv / (1.0 - temp);
-            aa3 = usTimesuv / (us + uv);
-
-            aer_ref = x * aa1 * (1.0 - Math.exp(-taup / aa1));
-            aer_ref += y * aa2 * (1.0 - Math.exp(-taup / aa2));
-            aer_ref += z * aa3 * (1.0 - Math.exp(-taup / aa3));
-            aer_ref *= invUsTimesUv;
-
-            /*--------Residu Aerosol --------*/
-            temp = taup * m * cksi;
-            Res_aer = (_Smacresa1[b] + _Smacresa2[b] * temp + _Smacresa3[b] * temp * temp)
-                    + _Smacresa4[b] * temp * temp * temp ;
-
-            /*---------Residu 6s-----------*/
-            temp = taup * m * cksi;
-            Res_6s = (_Smacrest1[b] + _Smacrest2[b] * temp + _Smacrest3[b] * temp * temp)
-                    + _Smacrest4[b] * temp * temp * temp;
-
-            /*------ 11) total atmospheric reflectance */
-              atm_ref = aer_ref - Res_aer + Res_6s;
-
-
-            /* reflectance at surface */
-            /*------------------------ */
-            if (b<10)
-                band_meris= b;
-            else
-                band_meris = b+1;
-            temp = _inputLocal[band_meris] - atm_ref; //r_toa;
-            temp = temp / ((ttetas * ttetav) + (temp * s));
-
-           _surfRefl[band_meris] = (float) temp;
-
-            }
-
-
+    private int addSmacPixel(BaerContext c, SmacRow row, double airPressure) {
+        final double aot550 = angstroemPowerLaw(c._aot[0], 0.550, BaerConstants.MERIS_BANDS[0], -c._alpha);
+        return row.add(c._band_sza, c._band_vza, c._band_saa, c._band_vaa, airPressure, aot550, c._inputLocal,
+                       _model._smacLegacyNumerics);
     }
 }
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.baer.algorithm;
+
+import org.esa.beam.processor.baer.BaerConstants;
+
+/**
+ * The mutable working state of the BAER algorithm for one pixel. A context must not be shared
+ * between threads - every thread calling {@link BaerAlgorithm#processPixel(org.esa.beam.processor.baer.utils.MerisPixel,
+ * org.esa.beam.processor.baer.utils.AerPixel, BaerContext)} needs its own instance. It is cheap to create
+ * and can be re-used for any number of pixels. All working arrays are allocated here, so processing a pixel
+ * does not allocate any memory.
+ */
+public final class BaerContext {
+
+    final double[] _inputLocal;
+    final double[] _surfRefl;
+    final double[] _aotguess;
+    final double[] _aot;
+    final double[] _aeroRefl;
+    final double[] _weight;
+    final double[] _aotTempxx;
+    final double[] _aotTempx;
+    final double[] _aotMin;
+    final double[] _lnAot;
+    final int[] _flagAotOutOfRange;
+
+    // scratch arrays, re-used for every pixel so that processing does not allocate
+    final float[] _bands;
+    final double[] _factor;
+    final double[] _angA;
+    final double[] _angD;
+
+    // SMAC batches: a single pixel one and a row one that grows with the row width
+    final SmacRow _smacPixel;
+    SmacRow _smacRow;
+
+    // warm start of the retrieval from a neighbouring pixel, see processRow()
+    boolean _warmStartEnabled;
+    WarmStart _warmStart;
+    final double[] _surfReflInit;
+    final double[] _seedAot;
+    final double[] _seedFactor;
+
+    double _muSun;
+    double _muView;
+    double _pressure_div;
+    double _caerView;
+    double _caerSun;
+
+    double _p140;
+    double _pTheta;
+    float _band_vza;
+    float _band_sza;
+    float _band_saa;
+    float _band_vaa;
+    double _alpha;
+    double _alphaTempY;
+    double _beta;
+    double _rmsd;
+    double _alphaHelp;
+    int _soilSpectraNumber;
+    int _flagAlphaOutOfRange;
+    boolean _hasFlagAOT;
+
+    int _icx;
+    int _icheck;
+
+    boolean _nulloutput;
+
+    // number of passes of the retrieval loop for the last pixel and whether it converged
+    int _iterations;
+    boolean _converged;
+    boolean _warmStarted;
+
+    // statistics, null if switched off, and the start time of the current processing stage
+    BaerDiagnostics _diagnostics;
+    long _stageStart;
+
+    // result of BaerAlgorithm.retrieveAerosol()
+    double _retrievedAot412;
+    double _retrievedAlpha;
+
+    /**
+     * Constructs a context with the default soil spectrum.
+     */
+    public BaerContext() {
+        _inputLocal = new double[BaerConstants.NUM_BANDS];
+        _aeroRefl = new double[BaerConstants.NUM_BANDS];
+        _weight = new double[BaerConstants.NUM_BANDS];
+        _aot = new double[BaerConstants.NUM_BANDS];
+        _flagAotOutOfRange = new int[BaerConstants.NUM_BANDS];
+        _surfRefl = new double[BaerConstants.NUM_BANDS];
+        _aotguess = new double[BaerConstants.NUM_BANDS];
+        _aotTempxx = new double[BaerConstants.NUM_BANDS];
+        _aotTempx = new double[BaerConstants.NUM_BANDS];
+        _aotMin = new double[BaerConstants.NUM_BANDS];
+        _lnAot = new double[BaerConstants.NUM_BANDS];
+        _bands = new float[BaerConstants.NUM_IN_REFLEC_BANDS];
+        _factor = new double[BaerConstants.NUM_BANDS];
+        _angA = new double[6];
+        _angD = new double[6];
+        _smacPixel = new SmacRow(1);
+        _surfReflInit = new double[BaerConstants.NUM_BANDS];
+        _seedAot = new double[BaerConstants.NUM_BANDS];
+        _seedFactor = new double[BaerConstants.NUM_BANDS];
+
+        _soilSpectraNumber = 3;
+    }
+
+    /**
+     * Selects the soil spectrum used for the next pixel processed with this context.
+     *
+     * @param spectranumber index of the soil spectrum
+     */
+    public void setSoilSpectraNumber(int spectranumber) {
+        _soilSpectraNumber = spectranumber;
+    }
+
+    /**
+     * Retrieves the AOT at 412 nm found by the last call of
+     * {@link BaerAlgorithm#retrieveAerosol(org.esa.beam.processor.baer.utils.MerisPixel, BaerContext)}.
+     */
+    public double getRetrievedAot412() {
+        return _retrievedAot412;
+    }
+
+    /**
+     * Retrieves the Angstroem coefficient found by the last call of
+     * {@link BaerAlgorithm#retrieveAerosol(org.esa.beam.processor.baer.utils.MerisPixel, BaerContext)}.
+     */
+    public double getRetrievedAlpha() {
+        return _retrievedAlpha;
+    }
+
+    /**
+     * Enables the warm start of the aerosol retrieval in
+     * {@link BaerAlgorithm#processRow(org.esa.beam.processor.baer.utils.MerisPixel[],
+     * org.esa.beam.processor.baer.utils.AerPixel[], int[], int, BaerContext)}. The iteration of a pixel is then
+     * started from the converged state of the previous valid pixel on the row or of the pixel above,
+     * instead of the first guess derived from the NDVI. Results depend slightly on the order in which
+     * the pixels are processed. Disabled by default.
+     *
+     * @param enabled whether to use the warm start
+     */
+    public void setWarmStart(boolean enabled) {
+        _warmStartEnabled = enabled;
+        if (enabled && _warmStart == null) {
+            _warmStart = new WarmStart();
+        }
+        resetWarmStart();
+    }
+
+    /**
+     * Forgets the states of the rows processed so far, so that the next row is not seeded from
+     * the row above. To be called whenever the next row is not adjacent to the last one.
+     */
+    public void resetWarmStart() {
+        if (_warmStart != null) {
+            _warmStart.reset();
+        }
+    }
+
+    /**
+     * Sets the statistics filled when processing with this context. They belong to the thread
+     * owning the context, see {@link BaerDiagnostics#flushTo(BaerDiagnostics)}.
+     *
+     * @param diagnostics the statistics, <code>null</code> to switch them off
+     */
+    public void setDiagnostics(BaerDiagnostics diagnostics) {
+        _diagnostics = diagnostics;
+    }
+
+    /**
+     * Retrieves the statistics filled when processing with this context.
+     *
+     * @return the statistics or <code>null</code> if switched off
+     */
+    public BaerDiagnostics getDiagnostics() {
+        return _diagnostics;
+    }
+
+    /**
+     * Retrieves the number of iterations of the aerosol retrieval for the last pixel processed.
+     */
+    public int getIterations() {
+        return _iterations;
+    }
+}
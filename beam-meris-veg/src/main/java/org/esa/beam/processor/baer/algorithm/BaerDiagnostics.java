@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.baer.algorithm;
+
+import org.esa.beam.framework.datamodel.MetadataAttribute;
+import org.esa.beam.framework.datamodel.MetadataElement;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.processor.baer.BaerConstants;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Convergence and timing statistics of the BAER aerosol retrieval.
+ * <p/>
+ * An instance set on a {@link BaerContext} is filled by the thread owning the context without any
+ * synchronisation. It is periodically moved into a shared instance with {@link #flushTo(BaerDiagnostics)} or
+ * {@link #flushTo(BaerDiagnostics, Object)}, which can be read while the processing is running, e.g. via JMX
+ * after {@link #register(String)}.
+ */
+public final class BaerDiagnostics implements BaerDiagnosticsMBean {
+
+    /**
+     * The number of bins of the iteration histogram, one per iteration count.
+     */
+    public static final int ITERATION_BINS = 64;
+    /**
+     * The number of bins of the RMSD histogram.
+     */
+    public static final int RMSD_BINS = 40;
+    /**
+     * The width of a bin of the RMSD histogram.
+     */
+    public static final double RMSD_BIN_WIDTH = 0.0005;
+
+    private static final String DOMAIN = "org.esa.beam.processor.baer";
+
+    long _pixels;
+    long _iterations;
+    int _maxIterations;
+    final long[] _iterationHistogram;
+    final long[] _rmsdHistogram;
+    long _notConverged;
+    long _invalid;
+    final long[] _boundaryHits;
+    long _boundaryCorrections;
+    long _initLoops;
+    long _initH2Adjustments;
+    long _initAlphaAdjustments;
+    long _warmStarts;
+    long _warmStartFallbacks;
+    long _initNanos;
+    long _retrievalNanos;
+    long _correctionNanos;
+
+    private Map<Object, BaerDiagnostics> _parts;
+    private ObjectName _objectName;
+
+    /**
+     * Creates empty statistics.
+     */
+    public BaerDiagnostics() {
+        _iterationHistogram = new long[ITERATION_BINS];
+        _rmsdHistogram = new long[RMSD_BINS];
+        _boundaryHits = new long[BaerConstants.NUM_BANDS];
+    }
+
+    /**
+     * Adds the statistics to another, shared instance and clears them. Only to be called by the thread
+     * filling these statistics.
+     *
+     * @param total the statistics to add to
+     */
+    public void flushTo(BaerDiagnostics total) {
+        synchronized (total) {
+            add(total, this, 1);
+        }
+        clear();
+    }
+
+    /**
+     * Adds the statistics to another, shared instance as the statistics of a part of the scene, e.g. a tile,
+     * and clears them. The statistics of an earlier computation of the same part, e.g. of a tile computed again
+     * after it was evicted from the tile cache, are replaced so that the part is not counted twice. The highest
+     * number of iterations is the maximum of all computations. Only to be called by the thread filling these
+     * statistics.
+     *
+     * @param total the statistics to add to
+     * @param part  the key of the part, e.g. the location of the tile
+     */
+    public void flushTo(BaerDiagnostics total, Object part) {
+        final BaerDiagnostics partDiagnostics = new BaerDiagnostics();
+        add(partDiagnostics, this, 1);
+        clear();
+        synchronized (total) {
+            if (total._parts == null) {
+                total._parts = new HashMap<Object, BaerDiagnostics>();
+            }
+            final BaerDiagnostics replaced = total._parts.put(part, partDiagnostics);
+            if (replaced != null) {
+                add(total, replaced, -1);
+            }
+            add(total, partDiagnostics, 1);
+        }
+    }
+
+    public synchronized void reset() {
+        clear();
+        _parts = null;
+    }
+
+    public synchronized long getPixelCount() {
+        return _pixels;
+    }
+
+    public synchronized long getTotalIterations() {
+        return _iterations;
+    }
+
+    public synchronized double getMeanIterations() {
+        return _pixels > 0 ? (double) _iterations / _pixels : 0.0;
+    }
+
+    public synchronized int getMaxIterations() {
+        return _maxIterations;
+    }
+
+    public synchronized long[] getIterationHistogram() {
+        return _iterationHistogram.clone();
+    }
+
+    public synchronized long[] getRmsdHistogram() {
+        return _rmsdHistogram.clone();
+    }
+
+    public synchronized long getNotConvergedCount() {
+        return _notConverged;
+    }
+
+    public synchronized long getInvalidCount() {
+        return _invalid;
+    }
+
+    public synchronized long[] getBoundaryHits() {
+        return _boundaryHits.clone();
+    }
+
+    public synchronized long getBoundaryCorrections() {
+        return _boundaryCorrections;
+    }
+
+    public synchronized long getInitLoops() {
+        return _initLoops;
+    }
+
+    public synchronized long getInitH2Adjustments() {
+        return _initH2Adjustments;
+    }
+
+    public synchronized long getInitAlphaAdjustments() {
+        return _initAlphaAdjustments;
+    }
+
+    public synchronized long getWarmStarts() {
+        return _warmStarts;
+    }
+
+    public synchronized long getWarmStartFallbacks() {
+        return _warmStartFallbacks;
+    }
+
+    public synchronized double getInitTime() {
+        return _initNanos * 1.0e-6;
+    }
+
+    public synchronized double getRetrievalTime() {
+        return _retrievalNanos * 1.0e-6;
+    }
+
+    public synchronized double getCorrectionTime() {
+        return _correctionNanos * 1.0e-6;
+    }
+
+    /**
+     * Registers these statistics with the platform MBean server.
+     *
+     * @param name the name of the processing, e.g. the target product name
+     * @throws JMException if the registration fails
+     */
+    public synchronized void register(String name) throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName objectName = new ObjectName(DOMAIN + ":type=BaerDiagnostics,name=" + ObjectName.quote(name)
+                                                     + ",id=" + System.identityHashCode(this));
+        server.registerMBean(this, objectName);
+        _objectName = objectName;
+    }
+
+    /**
+     * Removes these statistics from the platform MBean server, if registered.
+     */
+    public synchronized void unregister() {
+        if (_objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(_objectName);
+            } catch (JMException ignored) {
+                // already gone
+            }
+            _objectName = null;
+        }
+    }
+
+    /**
+     * Creates a metadata element holding the current statistics.
+     *
+     * @param name the name of the element
+     * @return the element
+     */
+    public synchronized MetadataElement createMetadataElement(String name) {
+        final MetadataElement element = new MetadataElement(name);
+        addAttribute(element, "PIXELS", _pixels);
+        addAttribute(element, "ITERATIONS", _iterations);
+        element.addAttribute(new MetadataAttribute("MEAN_ITERATIONS",
+                                                   ProductData.createInstance(new double[]{getMeanIterations()}), true));
+        addAttribute(element, "MAX_ITERATIONS", _maxIterations);
+        addAttribute(element, "ITERATION_HISTOGRAM", _iterationHistogram);
+        element.addAttribute(new MetadataAttribute("RMSD_BIN_WIDTH",
+                                                   ProductData.createInstance(new double[]{RMSD_BIN_WIDTH}), true));
+        addAttribute(element, "RMSD_HISTOGRAM", _rmsdHistogram);
+        addAttribute(element, "NOT_CONVERGED", _notConverged);
+        addAttribute(element, "INVALID", _invalid);
+        addAttribute(element, "BOUNDARY_HITS", _boundaryHits);
+        addAttribute(element, "BOUNDARY_CORRECTIONS", _boundaryCorrections);
+        addAttribute(element, "INIT_LOOPS", _initLoops);
+        addAttribute(element, "INIT_H2_ADJUSTMENTS", _initH2Adjustments);
+        addAttribute(element, "INIT_ALPHA_ADJUSTMENTS", _initAlphaAdjustments);
+        addAttribute(element, "WARM_STARTS", _warmStarts);
+        addAttribute(element, "WARM_START_FALLBACKS", _warmStartFallbacks);
+        element.addAttribute(new MetadataAttribute("STAGE_TIME_MS",
+                                                   ProductData.createInstance(new double[]{
+                                                           getInitTime(), getRetrievalTime(), getCorrectionTime()
+                                                   }), true));
+        element.addAttribute(new MetadataAttribute("STAGES",
+                                                   ProductData.createInstance("init, retrieval, correction"), true));
+        return element;
+    }
+
+    /**
+     * @return a one line summary of the current statistics, e.g. for logging
+     */
+    public synchronized String getSummary() {
+        return String.format("%d pixels, %.2f iterations per pixel (max. %d), %d not converged, %d invalid, " +
+                             "%d warm starts (%d fallbacks), stage times init/retrieval/correction %.0f/%.0f/%.0f ms",
+                             _pixels, getMeanIterations(), _maxIterations, _notConverged, _invalid,
+                             _warmStarts, _warmStartFallbacks, getInitTime(), getRetrievalTime(), getCorrectionTime());
+    }
+
+    /**
+     * Records the result of the retrieval of a pixel.
+     */
+    void addPixel(int iterations, double rmsd, boolean converged, boolean valid) {
+        _pixels++;
+        _iterations += iterations;
+        if (iterations > _maxIterations) {
+            _maxIterations = iterations;
+        }
+        _iterationHistogram[Math.min(iterations, ITERATION_BINS - 1)]++;
+        _rmsdHistogram[Math.min((int) (rmsd / RMSD_BIN_WIDTH), RMSD_BINS - 1)]++;
+        if (!converged) {
+            _notConverged++;
+        }
+        if (!valid) {
+            _invalid++;
+        }
+    }
+
+    private void clear() {
+        _pixels = 0;
+        _iterations = 0;
+        _maxIterations = 0;
+        Arrays.fill(_iterationHistogram, 0);
+        Arrays.fill(_rmsdHistogram, 0);
+        _notConverged = 0;
+        _invalid = 0;
+        Arrays.fill(_boundaryHits, 0);
+        _boundaryCorrections = 0;
+        _initLoops = 0;
+        _initH2Adjustments = 0;
+        _initAlphaAdjustments = 0;
+        _warmStarts = 0;
+        _warmStartFallbacks = 0;
+        _initNanos = 0;
+        _retrievalNanos = 0;
+        _correctionNanos = 0;
+    }
+
+    private static void add(BaerDiagnostics total, BaerDiagnostics values, int sign) {
+        total._pixels += sign * values._pixels;
+        total._iterations += sign * values._iterations;
+        total._maxIterations = Math.max(total._maxIterations, values._maxIterations);
+        add(total._iterationHistogram, values._iterationHistogram, sign);
+        add(total._rmsdHistogram, values._rmsdHistogram, sign);
+        total._notConverged += sign * values._notConverged;
+        total._invalid += sign * values._invalid;
+        add(total._boundaryHits, values._boundaryHits, sign);
+        total._boundaryCorrections += sign * values._boundaryCorrections;
+        total._initLoops += sign * values._initLoops;
+        total._initH2Adjustments += sign * values._initH2Adjustments;
+        total._initAlphaAdjustments += sign * values._initAlphaAdjustments;
+        total._warmStarts += sign * values._warmStarts;
+        total._warmStartFallbacks += sign * values._warmStartFallbacks;
+        total._initNanos += sign * values._initNanos;
+        total._retrievalNanos += sign * values._retrievalNanos;
+        total._correctionNanos += sign * values._correctionNanos;
+    }
+
+    private static void add(long[] total, long[] values, int sign) {
+        for (int i = 0; i < total.length; i++) {
+            total[i] += sign * values[i];
+        }
+    }
+
+    // metadata has no 64 bit integers, counts are clamped to the int range
+    private static void addAttribute(MetadataElement element, String name, long value) {
+        addAttribute(element, name, new long[]{value});
+    }
+
+    private static void addAttribute(MetadataElement element, String name, long[] values) {
+        final int[] data = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            data[i] = (int) Math.min(values[i], Integer.MAX_VALUE);
+        }
+        element.addAttribute(new MetadataAttribute(name, ProductData.createInstance(data), true));
+    }
+}
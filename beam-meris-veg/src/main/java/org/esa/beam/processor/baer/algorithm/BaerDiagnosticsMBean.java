@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.baer.algorithm;
+
+/**
+ * The management interface of {@link BaerDiagnostics}, gives read access to the statistics of a
+ * running BAER processing via JMX.
+ */
+public interface BaerDiagnosticsMBean {
+
+    /**
+     * @return the number of pixels for which the aerosol was retrieved
+     */
+    long getPixelCount();
+
+    /**
+     * @return the total number of iterations of the aerosol retrieval
+     */
+    long getTotalIterations();
+
+    /**
+     * @return the mean number of iterations per pixel
+     */
+    double getMeanIterations();
+
+    /**
+     * @return the highest number of iterations of a single pixel
+     */
+    int getMaxIterations();
+
+    /**
+     * @return the number of pixels by number of iterations, the last bin counts all pixels with more iterations
+     */
+    long[] getIterationHistogram();
+
+    /**
+     * @return the number of pixels by RMSD at the exit of the retrieval in bins of
+     *         {@link BaerDiagnostics#RMSD_BIN_WIDTH}, the last bin counts all pixels with a higher RMSD
+     */
+    long[] getRmsdHistogram();
+
+    /**
+     * @return the number of pixels whose retrieval stopped at one of the iteration limits
+     */
+    long getNotConvergedCount();
+
+    /**
+     * @return the number of pixels with an AOT or Angstroem coefficient out of range
+     */
+    long getInvalidCount();
+
+    /**
+     * @return the number of times the AOT was clipped at its upper limit of 2, per MERIS band
+     */
+    long[] getBoundaryHits();
+
+    /**
+     * @return the number of iterations in which the AOT of a clipped band was replaced by the Angstroem law
+     */
+    long getBoundaryCorrections();
+
+    /**
+     * @return the number of passes through the loop of the surface reflectance first guess
+     */
+    long getInitLoops();
+
+    /**
+     * @return the number of path reflectance (h2) adjustments in the surface reflectance first guess
+     */
+    long getInitH2Adjustments();
+
+    /**
+     * @return the number of Angstroem coefficient adjustments in the surface reflectance first guess
+     */
+    long getInitAlphaAdjustments();
+
+    /**
+     * @return the number of pixels started from the state of a neighbour
+     */
+    long getWarmStarts();
+
+    /**
+     * @return the number of warm started pixels which had to be repeated from the cold start
+     */
+    long getWarmStartFallbacks();
+
+    /**
+     * @return the time spent for the pixel set-up and the first guess, in milliseconds
+     */
+    double getInitTime();
+
+    /**
+     * @return the time spent in the iterative retrieval, in milliseconds
+     */
+    double getRetrievalTime();
+
+    /**
+     * @return the time spent in the atmospheric correction (SMAC or UBAC), in milliseconds
+     */
+    double getCorrectionTime();
+
+    /**
+     * @return a one line summary of the statistics
+     */
+    String getSummary();
+
+    /**
+     * Clears all statistics.
+     */
+    void reset();
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.baer.algorithm;
+
+import org.esa.beam.framework.processor.ProcessorException;
+import org.esa.beam.processor.baer.BaerConstants;
+import org.esa.beam.processor.baer.auxdata.AerDiffTransmAccess;
+import org.esa.beam.processor.baer.auxdata.AerPhaseAccess;
+import org.esa.beam.processor.baer.auxdata.F_TuningAccess;
+import org.esa.beam.processor.baer.auxdata.GroundReflectanceAccess;
+import org.esa.beam.processor.baer.auxdata.HemisphReflecAccess;
+import org.esa.beam.processor.baer.auxdata.NdviAccess;
+import org.esa.beam.processor.baer.auxdata.RelAerPhaseAccess;
+import org.esa.beam.processor.baer.auxdata.SmacCoefficientsAccess;
+import org.esa.beam.processor.baer.auxdata.SmacCoefficientsManager;
+import org.esa.beam.processor.baer.auxdata.SoilFractionAccess;
+import org.esa.beam.processor.baer.auxdata.Spectrum;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * The read-only part of the BAER algorithm: auxiliary data, ground reflectance spectra, aerosol tables
+ * and the SMAC coefficients. A model is created once by {@link BaerAlgorithm#initAlgo()} and never changes
+ * afterwards, so it can be shared by any number of threads. All per-pixel state lives in a {@link BaerContext}.
+ */
+public final class BaerModel {
+
+    private static final double _SmaconeQuarter = 1.0 / 4.0;
+    private static final double _SmactwoThird = 2.0 / 3.0;
+
+    final NdviAccess _ndviAccess;
+    final SoilFractionAccess _soilFractionAccess;
+    final F_TuningAccess _f_tuningAccess;
+
+    final String _atm_corr_method;
+    final boolean _atm_cor_process;
+    final int _vegSpectraNumber;
+    final boolean _smacLegacyNumerics;
+
+    final Spectrum[] _reflVeg;
+    final Spectrum[] _reflSoil;
+    final double[] _caerCoef;
+    final double[] _rhemCoef;
+    final double[][] _aertable;
+    final double[] _lnLambda;
+    final double[] _relPhaseCoef;
+
+    // SMAC coefficients - only loaded when the SMAC method is selected
+    final double[] _SmacA0taup;
+    final double[] _SmacA1taup;
+    final double[] _Smaca0P;
+    final double[] _Smaca1P;
+    final double[] _Smaca2P;
+    final double[] _Smaca3P;
+    final double[] _Smaca4P;
+    final double[] _Smaca0T;
+    final double[] _Smaca1T;
+    final double[] _Smaca2T;
+    final double[] _Smaca3T;
+    final double[] _Smaca0s;
+    final double[] _Smaca1s;
+    final double[] _Smaca2s;
+    final double[] _Smaca3s;
+    final double[] _Smacresa1;
+    final double[] _Smacresa2;
+    final double[] _Smacresa3;
+    final double[] _Smacresa4;
+    final double[] _Smacrest1;
+    final double[] _Smacrest2;
+    final double[] _Smacrest3;
+    final double[] _Smacrest4;
+    final double[] _Smacwo;
+    final double[] _Smaconemwo;
+    final double[] _Smacgc;
+    final double[] _Smacak;
+    final double[] _Smacak2;
+    final double[] _Smacpfac;
+    final double[] _Smacb;
+    final double[] _Smaconepb;
+    final double[] _Smaconemb;
+    final double[] _Smaconepb2;
+    final double[] _Smaconemb2;
+    final double[] _Smacww;
+
+    /**
+     * Creates the model from the auxiliary data accessors. All tables needed per pixel are read here.
+     */
+    BaerModel(AerPhaseAccess aerPhaseAccess, RelAerPhaseAccess relPhaseAccess, NdviAccess ndviAccess,
+              GroundReflectanceAccess groundReflectanceAccess, SoilFractionAccess soilFractionAccess,
+              F_TuningAccess f_tuningAccess, AerDiffTransmAccess aerDiffTransmAccess,
+              HemisphReflecAccess hemisphReflecAccess, SmacCoefficientsManager coeffMgr,
+              String smacAerosolType, String atmCorrMethod, boolean atmCorProcess, boolean smacLegacyNumerics) {
+        _ndviAccess = ndviAccess;
+        _soilFractionAccess = soilFractionAccess;
+        _f_tuningAccess = f_tuningAccess;
+        _atm_corr_method = atmCorrMethod;
+        _atm_cor_process = atmCorProcess;
+        _vegSpectraNumber = 1;
+        _smacLegacyNumerics = smacLegacyNumerics;
+
+        _rhemCoef = hemisphReflecAccess.getHemisphReflecCoefficients();
+        _caerCoef = aerDiffTransmAccess.getAerDiffTransmCoefficients();
+
+        _reflVeg = new Spectrum[2];
+        _reflVeg[0] = getSpectrum(groundReflectanceAccess, "LACE+MAPLE");
+        _reflVeg[1] = getSpectrum(groundReflectanceAccess, "CAMELEO");
+
+        _reflSoil = new Spectrum[4];
+        _reflSoil[0] = getSpectrum(groundReflectanceAccess, "CASI_1");
+        _reflSoil[1] = getSpectrum(groundReflectanceAccess, "CASI_2");
+        _reflSoil[2] = getSpectrum(groundReflectanceAccess, "KARNIELI");
+        _reflSoil[3] = getSpectrum(groundReflectanceAccess, "KARNIELI2");
+
+        _lnLambda = new double[BaerConstants.NUM_BANDS];
+        _aertable = new double[BaerConstants.NUM_BANDS][];
+        for (int b = 0; b < BaerConstants.NUM_BANDS; b++) {
+            _lnLambda[b] = Math.log(BaerConstants.MERIS_BANDS[b]);
+            _aertable[b] = (aerPhaseAccess.getAerPhase(b + 1)).getA();
+        }
+        _relPhaseCoef = relPhaseAccess.getRelativeAerosolPhaseCoefficients();
+
+        _SmacA0taup = new double[BaerConstants.NUM_BANDS];
+        _SmacA1taup = new double[BaerConstants.NUM_BANDS];
+        _Smaca0T = new double[BaerConstants.NUM_BANDS];
+        _Smaca1T = new double[BaerConstants.NUM_BANDS];
+        _Smaca2T = new double[BaerConstants.NUM_BANDS];
+        _Smaca3T = new double[BaerConstants.NUM_BANDS];
+        _Smaca0s = new double[BaerConstants.NUM_BANDS];
+        _Smaca1s = new double[BaerConstants.NUM_BANDS];
+        _Smaca2s = new double[BaerConstants.NUM_BANDS];
+        _Smaca3s = new double[BaerConstants.NUM_BANDS];
+        _Smaca0P = new double[BaerConstants.NUM_BANDS];
+        _Smaca1P = new double[BaerConstants.NUM_BANDS];
+        _Smaca2P = new double[BaerConstants.NUM_BANDS];
+        _Smaca3P = new double[BaerConstants.NUM_BANDS];
+        _Smaca4P = new double[BaerConstants.NUM_BANDS];
+        _Smacwo = new double[BaerConstants.NUM_BANDS];
+        _Smacgc = new double[BaerConstants.NUM_BANDS];
+        _Smacresa1 = new double[BaerConstants.NUM_BANDS];
+        _Smacresa2 = new double[BaerConstants.NUM_BANDS];
+        _Smacresa3 = new double[BaerConstants.NUM_BANDS];
+        _Smacresa4 = new double[BaerConstants.NUM_BANDS];
+        _Smacrest1 = new double[BaerConstants.NUM_BANDS];
+        _Smacrest2 = new double[BaerConstants.NUM_BANDS];
+        _Smacrest3 = new double[BaerConstants.NUM_BANDS];
+        _Smacrest4 = new double[BaerConstants.NUM_BANDS];
+        _Smacak2 = new double[BaerConstants.NUM_BANDS];
+        _Smacak = new double[BaerConstants.NUM_BANDS];
+        _Smacb = new double[BaerConstants.NUM_BANDS];
+        _Smaconepb = new double[BaerConstants.NUM_BANDS];
+        _Smaconepb2 = new double[BaerConstants.NUM_BANDS];
+        _Smaconemb = new double[BaerConstants.NUM_BANDS];
+        _Smaconemb2 = new double[BaerConstants.NUM_BANDS];
+        _Smacww = new double[BaerConstants.NUM_BANDS];
+        _Smaconemwo = new double[BaerConstants.NUM_BANDS];
+        _Smacpfac = new double[BaerConstants.NUM_BANDS];
+
+        if (_atm_corr_method.equals("SMAC")) {
+            for (int b = 0; b < BaerConstants.NUM_IN_REFLEC_BANDS; b++) {
+                SmacLoadBandCoefficients(coeffMgr, smacAerosolType, b);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the atmospheric correction method this model was set up for.
+     *
+     * @return "SMAC", "UBAC" or an empty string
+     */
+    public String getAtmCorrMethod() {
+        return _atm_corr_method;
+    }
+
+    /**
+     * Retrieves whether the atmospheric correction is performed.
+     */
+    public boolean isAtmCorProcess() {
+        return _atm_cor_process;
+    }
+
+    /**
+     * Retrieves whether the SMAC correction reproduces the numerics of the original implementation.
+     */
+    public boolean isSmacLegacyNumerics() {
+        return _smacLegacyNumerics;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    ////////   END OF PUBLIC
+    ////////////////////////////////////////////////////////////////////////////
+
+    private static Spectrum getSpectrum(GroundReflectanceAccess access, String name) {
+        try {
+            return access.getSpectrum(name);
+        } catch (ProcessorException e) {
+            return null;
+        }
+    }
+
+    private void SmacLoadBandCoefficients(SmacCoefficientsManager coeffMgr, String smacAerosolType, int band) {
+        int nextBand = band + 1;
+        String name_band = "radiance_" + nextBand;
+        try {
+            final SmacCoefficientsAccess coeff = coeffMgr.getCoefficients("MERIS", name_band, smacAerosolType);
+            if (coeff != null) {
+                SmacSetSensorCoefficients(coeff, band);
+            }
+        } catch (IOException e) {
+            Logger.getLogger(BaerConstants.LOGGER_NAME).severe(e.getMessage());
+        }
+    }
+
+    private void SmacSetSensorCoefficients(SmacCoefficientsAccess coeff, int band) {
+
+        _SmacA0taup[band] = coeff.getA0taup();
+        _SmacA1taup[band] = coeff.getA1taup();
+
+        // scattering transmission coefficients
+        _Smaca0T[band] = coeff.getA0T();
+        _Smaca1T[band] = coeff.getA1T();
+        _Smaca2T[band] = coeff.getA2T();
+        _Smaca3T[band] = coeff.getA3T();
+
+        // spherical albedo coefficients
+        _Smaca0s[band] = coeff.getA0s();
+        _Smaca1s[band] = coeff.getA1s();
+        _Smaca2s[band] = coeff.getA2s();
+        _Smaca3s[band] = coeff.getA3s();
+
+        // aerosol reflectance
+        _Smaca0P[band] = coeff.getA0P();
+        _Smaca1P[band] = coeff.getA1P();
+        _Smaca2P[band] = coeff.getA2P();
+        _Smaca3P[band] = coeff.getA3P();
+        _Smaca4P[band] = coeff.getA4P();
+
+        _Smacwo[band] = coeff.getWo();
+        _Smacgc[band] = coeff.getGc();
+
+        // residual aerosols
+        _Smacresa1[band] = coeff.getResa1();
+        _Smacresa2[band] = coeff.getResa2();
+        _Smacresa3[band] = coeff.getResa3();
+        _Smacresa4[band] = coeff.getResa4();
+
+        // residual transmission
+        _Smacrest1[band] = coeff.getRest1();
+        _Smacrest2[band] = coeff.getRest2();
+        _Smacrest3[band] = coeff.getRest3();
+        _Smacrest4[band] = coeff.getRest4();
+
+        // do some calculations which are NOT product dependent
+        // ----------------------------------------------------
+        _Smacak2[band] = (1.0 - _Smacwo[band]) * 3.0 * (1.0 - _Smacwo[band] * _Smacgc[band]);
+        _Smacak[band] = Math.sqrt(_Smacak2[band]);
+        _Smacb[band] = _SmactwoThird * _Smacak[band] / (1.0 - _Smacwo[band] * _Smacgc[band]);
+        _Smaconepb[band] = 1.0 + _Smacb[band];
+        _Smaconepb2[band] = _Smaconepb[band] * _Smaconepb[band];
+        _Smaconemb[band] = 1.0 - _Smacb[band];
+        _Smaconemb2[band] = _Smaconemb[band] * _Smaconemb[band];
+        _Smacww[band] = _Smacwo[band] * _SmaconeQuarter;
+        _Smaconemwo[band] = 1.0 - _Smacwo[band];
+        _Smacpfac[band] = _Smacak[band] / (3.0 * (1.0 - _Smacwo[band] * _Smacgc[band]));
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.baer.algorithm;
+
+import org.esa.beam.processor.baer.BaerConstants;
+
+/**
+ * The SMAC surface reflectance correction for a batch of pixels, held in structure-of-arrays layout.
+ * The band independent geometry (air mass, scattering angle, ...) is computed once per pixel when the
+ * pixel is added; {@link #correct(BaerModel)} then applies the per-band coefficients band by band over
+ * all pixels of the batch.
+ * <p/>
+ * With the legacy numerics the sun and view zenith angles are converted to radians twice, exactly as
+ * the original per-pixel implementation did, so that results are bitwise identical to it.
+ */
+final class SmacRow {
+
+    private static final double _SmaconeQuarter = 1.0 / 4.0;
+    private static final double cdr = Math.PI / 180.0;
+    private static final double crd = 180.0 / Math.PI;
+    private static final double invMaxPressure = 1.0 / 1013.0;
+
+    int _count;
+
+    // band independent geometry, one entry per pixel
+    double[] _us;
+    double[] _invUs;
+    double[] _us2;
+    double[] _uv;
+    double[] _invUv;
+    double[] _usTimesuv;
+    double[] _invUsTimesUv;
+    double[] _peq;
+    double[] _m;
+    double[] _cksi;
+    double[] _ksiD;
+    double[] _aot550;
+
+    // top of atmosphere input and surface reflectance output, [band][pixel]
+    double[][] _toa;
+    double[][] _surf;
+
+    // BAER state needed to complete the output of a pixel once the batch is corrected
+    int[] _pixel;
+    double[] _aot412;
+    double[] _alpha;
+    int[] _flagAlphaOutOfRange;
+
+    /**
+     * Creates a batch holding up to <code>capacity</code> pixels.
+     */
+    SmacRow(int capacity) {
+        allocate(capacity);
+    }
+
+    /**
+     * Makes sure the batch can hold <code>capacity</code> pixels. Clears the batch when it has to grow.
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > _us.length) {
+            allocate(capacity);
+        }
+    }
+
+    /**
+     * Empties the batch.
+     */
+    void clear() {
+        _count = 0;
+    }
+
+    /**
+     * Adds a pixel to the batch and computes its band independent geometry.
+     *
+     * @param sza            sun zenith angle in degree
+     * @param vza            view zenith angle in degree
+     * @param saa            sun azimuth angle in degree
+     * @param vaa            view azimuth angle in degree
+     * @param airPressure    the air pressure
+     * @param aot550         the aerosol optical thickness at 550 nm
+     * @param inputLocal     the top of atmosphere reflectances, indexed by MERIS band
+     * @param legacyNumerics whether to reproduce the numerics of the original implementation
+     * @return the index of the pixel within the batch
+     */
+    int add(float sza, float vza, float saa, float vaa, double airPressure, double aot550, double[] inputLocal,
+            boolean legacyNumerics) {
+        final int i = _count++;
+        final double us;
+        final double uv;
+        if (legacyNumerics) {
+            us = Math.cos(Math.toRadians(sza) * cdr);
+            uv = Math.cos(Math.toRadians(vza) * cdr);
+        } else {
+            us = Math.cos(Math.toRadians(sza));
+            uv = Math.cos(Math.toRadians(vza));
+        }
+        final double us2 = us * us;
+        final double usTimesuv = us * uv;
+        final double dphi = (saa - vaa) * cdr;
+
+        /*------ 7) scattering angle cosine */
+        double cksi = -(usTimesuv + (Math.sqrt(1.0 - us2) * Math.sqrt(1.0 - uv * uv) * Math.cos(dphi)));
+        if (cksi < -1) {
+            cksi = -1.0;
+        }
+
+        _us[i] = us;
+        _invUs[i] = 1.0 / us;
+        _us2[i] = us2;
+        _uv[i] = uv;
+        _invUv[i] = 1.0 / uv;
+        _usTimesuv[i] = usTimesuv;
+        _invUsTimesUv[i] = 1.0 / usTimesuv;
+        _peq[i] = airPressure * invMaxPressure;
+        /*------ 1) air mass */
+        _m[i] = _invUs[i] + _invUv[i];
+        _cksi[i] = cksi;
+        /*------ 8) scattering angle in degree */
+        _ksiD[i] = crd * Math.acos(cksi);
+        _aot550[i] = aot550;
+
+        for (int b = 0; b < BaerConstants.NUM_IN_REFLEC_BANDS; b++) {
+            _toa[b][i] = inputLocal[getMerisBand(b)];
+        }
+        return i;
+    }
+
+    /**
+     * Computes the surface reflectances of all pixels in the batch.
+     */
+    void correct(BaerModel model) {
+        for (int b = 0; b < BaerConstants.NUM_IN_REFLEC_BANDS; b++) {
+            final double a0taup = model._SmacA0taup[b];
+            final double a1taup = model._SmacA1taup[b];
+            final double a0T = model._Smaca0T[b];
+            final double a1T = model._Smaca1T[b];
+            final double a2T = model._Smaca2T[b];
+            final double a3T = model._Smaca3T[b];
+            final double a0s = model._Smaca0s[b];
+            final double a1s = model._Smaca1s[b];
+            final double a2s = model._Smaca2s[b];
+            final double a3s = model._Smaca3s[b];
+            final double a0P = model._Smaca0P[b];
+            final double a1P = model._Smaca1P[b];
+            final double a2P = model._Smaca2P[b];
+            final double a3P = model._Smaca3P[b];
+            final double a4P = model._Smaca4P[b];
+            final double wo = model._Smacwo[b];
+            final double onemwo = model._Smaconemwo[b];
+            final double gc = model._Smacgc[b];
+            final double ak = model._Smacak[b];
+            final double ak2 = model._Smacak2[b];
+            final double pfac = model._Smacpfac[b];
+            final double onepb = model._Smaconepb[b];
+            final double onemb = model._Smaconemb[b];
+            final double onepb2 = model._Smaconepb2[b];
+            final double onemb2 = model._Smaconemb2[b];
+            final double ww = model._Smacww[b];
+            final double resa1 = model._Smacresa1[b];
+            final double resa2 = model._Smacresa2[b];
+            final double resa3 = model._Smacresa3[b];
+            final double resa4 = model._Smacresa4[b];
+            final double rest1 = model._Smacrest1[b];
+            final double rest2 = model._Smacrest2[b];
+            final double rest3 = model._Smacrest3[b];
+            final double rest4 = model._Smacrest4[b];
+            final double[] toa = _toa[b];
+            final double[] surf = _surf[b];
+
+            for (int i = 0; i < _count; i++) {
+                final double us = _us[i];
+                final double invUs = _invUs[i];
+                final double us2 = _us2[i];
+                final double uv = _uv[i];
+                final double invUv = _invUv[i];
+                final double peq = _peq[i];
+                final double ksiD = _ksiD[i];
+                final double aot550 = _aot550[i];
+                double temp;
+
+                /*------ 2) aerosol optical depth in the spectral band, taup  */
+                final double taup = a0taup + a1taup * aot550;
+
+                /*------  5) Total scattering transmission */
+                temp = a2T * peq + a3T;
+                /* downward */
+                final double ttetas = a0T + a1T * aot550 * invUs + temp / (1.0 + us);
+                /* upward   */
+                final double ttetav = a0T + a1T * aot550 * invUv + temp / (1.0 + uv);
+
+                /*------ 6) spherical albedo of the atmosphere */
+                final double s = a0s * peq + a3s + a1s * aot550 + a2s * aot550 * aot550;
+
+                /*------ 10) aerosol atmospheric reflectance */
+                temp = ksiD * ksiD;
+                final double aer_phase = a0P + a1P * ksiD + a2P * temp + a3P * temp * ksiD + a4P * temp * temp;
+
+                temp = 1.0 / (4.0 * (1.0 - ak2 * us2));
+                final double e = -3.0 * us2 * wo * temp;
+                final double f = -onemwo * 3.0 * gc * us2 * wo * temp;
+                final double dp = e / (3.0 * us) + us * f;
+                final double d = e + f;
+                final double expAkTaup = Math.exp(ak * taup);
+                final double del = expAkTaup * onepb2 - expAkTaup * onemb2;
+                final double ss = us / (1.0 - ak2 * us2);
+                temp = 3.0 * us;
+                final double q1 = 2.0 + temp + onemwo * temp * gc * (1.0 + 2.0 * us);
+                final double q2 = 2.0 - temp - onemwo * temp * gc * (1.0 - 2.0 * us);
+                final double q3 = q2 * Math.exp(-taup * invUs);
+                temp = (ww * ss) / del;
+                final double c1 = temp * (q1 * expAkTaup * onepb + q3 * onemb);
+                final double c2 = -temp * (q1 * Math.exp(-ak * taup) * onemb + q3 * onepb);
+                final double cp1 = c1 * pfac;
+                final double cp2 = -c2 * pfac;
+                temp = wo * 3.0 * gc * uv;
+                final double z = d - temp * dp + wo * aer_phase * _SmaconeQuarter;
+                final double x = c1 - temp * cp1;
+                final double y = c2 - temp * cp2;
+                temp = ak * uv;
+                final double aa1 = uv / (1.0 + temp);
+                final double aa2 = uv / (1.0 - temp);
+                final double aa3 = _usTimesuv[i] / (us + uv);
+
+                double aer_ref = x * aa1 * (1.0 - Math.exp(-taup / aa1));
+                aer_ref += y * aa2 * (1.0 - Math.exp(-taup / aa2));
+                aer_ref += z * aa3 * (1.0 - Math.exp(-taup / aa3));
+                aer_ref *= _invUsTimesUv[i];
+
+                /*--------Residu Aerosol and Residu 6s --------*/
+                temp = taup * _m[i] * _cksi[i];
+                final double res_aer = (resa1 + resa2 * temp + resa3 * temp * temp) + resa4 * temp * temp * temp;
+                final double res_6s = (rest1 + rest2 * temp + rest3 * temp * temp) + rest4 * temp * temp * temp;
+
+                /*------ 11) total atmospheric reflectance */
+                final double atm_ref = aer_ref - res_aer + res_6s;
+
+                /* reflectance at surface */
+                temp = toa[i] - atm_ref;
+                temp = temp / ((ttetas * ttetav) + (temp * s));
+                surf[i] = (float) temp;
+            }
+        }
+    }
+
+    /**
+     * Copies the surface reflectances of a pixel of the batch to an array indexed by MERIS band.
+     */
+    void getSurfRefl(int i, double[] surfRefl) {
+        for (int b = 0; b < BaerConstants.NUM_IN_REFLEC_BANDS; b++) {
+            surfRefl[getMerisBand(b)] = _surf[b][i];
+        }
+    }
+
+    private static int getMerisBand(int b) {
+        // band 11 (O2 absorption) is not an input reflectance
+        return b < 10 ? b : b + 1;
+    }
+
+    private void allocate(int capacity) {
+        _count = 0;
+        _us = new double[capacity];
+        _invUs = new double[capacity];
+        _us2 = new double[capacity];
+        _uv = new double[capacity];
+        _invUv = new double[capacity];
+        _usTimesuv = new double[capacity];
+        _invUsTimesUv = new double[capacity];
+        _peq = new double[capacity];
+        _m = new double[capacity];
+        _cksi = new double[capacity];
+        _ksiD = new double[capacity];
+        _aot550 = new double[capacity];
+        _toa = new double[BaerConstants.NUM_IN_REFLEC_BANDS][capacity];
+        _surf = new double[BaerConstants.NUM_IN_REFLEC_BANDS][capacity];
+        _pixel = new int[capacity];
+        _aot412 = new double[capacity];
+        _alpha = new double[capacity];
+        _flagAlphaOutOfRange = new int[capacity];
+    }
+}
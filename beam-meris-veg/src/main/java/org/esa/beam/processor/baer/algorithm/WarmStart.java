@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.baer.algorithm;
+
+import org.esa.beam.processor.baer.BaerConstants;
+
+import java.util.Arrays;
+
+/**
+ * The converged retrieval states of the current and the previous row, used to seed the iterative
+ * aerosol retrieval of a pixel from one of its neighbours. A state consists of the AOT spectrum, the
+ * Angstroem coefficient and, per band, the ratio of the fitted surface reflectance to the first guess
+ * derived from the NDVI. The ratio rather than the reflectance itself is kept, so that the seed adapts
+ * to the reflectance level of the pixel it is applied to.
+ */
+final class WarmStart {
+
+    /**
+     * The maximum distance, in pixels, of the previous valid pixel on a row to be used as a seed.
+     */
+    static final int MAX_ROW_DISTANCE = 2;
+
+    private static final int N = BaerConstants.NUM_BANDS;
+
+    private int _width;
+    private int _last;
+
+    private boolean[] _valid;
+    private double[] _aot;
+    private double[] _alpha;
+    private double[] _factor;
+
+    private boolean[] _validAbove;
+    private double[] _aotAbove;
+    private double[] _alphaAbove;
+    private double[] _factorAbove;
+
+    WarmStart() {
+        allocate(0);
+    }
+
+    /**
+     * Forgets all stored states, the next row is not seeded from the rows processed so far.
+     */
+    void reset() {
+        Arrays.fill(_valid, false);
+        Arrays.fill(_validAbove, false);
+        _last = -1;
+    }
+
+    /**
+     * Starts a new row: the current row becomes the row above. A change of the row width resets the states.
+     */
+    void nextRow(int width) {
+        if (width != _width) {
+            allocate(width);
+        }
+        boolean[] valid = _validAbove;
+        _validAbove = _valid;
+        _valid = valid;
+        double[] temp = _aotAbove;
+        _aotAbove = _aot;
+        _aot = temp;
+        temp = _alphaAbove;
+        _alphaAbove = _alpha;
+        _alpha = temp;
+        temp = _factorAbove;
+        _factorAbove = _factor;
+        _factor = temp;
+        Arrays.fill(_valid, false);
+        _last = -1;
+    }
+
+    /**
+     * Copies the seed of a pixel: the state of the previous valid pixel on the row if it is close enough,
+     * otherwise the state of the pixel above.
+     *
+     * @param pixel  the index of the pixel within the row
+     * @param aot    receives the AOT spectrum
+     * @param factor receives the surface reflectance correction factors
+     * @return the Angstroem coefficient or <code>NaN</code> if there is no seed
+     */
+    double getSeed(int pixel, double[] aot, double[] factor) {
+        if (_last >= 0 && pixel - _last <= MAX_ROW_DISTANCE) {
+            System.arraycopy(_aot, _last * N, aot, 0, N);
+            System.arraycopy(_factor, _last * N, factor, 0, N);
+            return _alpha[_last];
+        }
+        if (_validAbove[pixel]) {
+            System.arraycopy(_aotAbove, pixel * N, aot, 0, N);
+            System.arraycopy(_factorAbove, pixel * N, factor, 0, N);
+            return _alphaAbove[pixel];
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Stores the converged state of a pixel of the current row.
+     *
+     * @param pixel        the index of the pixel within the row
+     * @param aot          the AOT spectrum
+     * @param alpha        the Angstroem coefficient
+     * @param surfRefl     the fitted surface reflectances
+     * @param surfReflInit the first guess of the surface reflectances
+     */
+    void setState(int pixel, double[] aot, double alpha, double[] surfRefl, double[] surfReflInit) {
+        final int offset = pixel * N;
+        System.arraycopy(aot, 0, _aot, offset, N);
+        for (int b = 0; b < N; b++) {
+            _factor[offset + b] = surfReflInit[b] > 0.0 ? surfRefl[b] / surfReflInit[b] : 1.0;
+        }
+        _alpha[pixel] = alpha;
+        _valid[pixel] = true;
+        _last = pixel;
+    }
+
+    private void allocate(int width) {
+        _width = width;
+        _last = -1;
+        _valid = new boolean[width];
+        _aot = new double[width * N];
+        _alpha = new double[width];
+        _factor = new double[width * N];
+        _validAbove = new boolean[width];
+        _aotAbove = new double[width * N];
+        _alphaAbove = new double[width];
+        _factorAbove = new double[width * N];
+    }
+}
@@ -13,10 +13,12 @@
 package org.esa.beam.processor.baer.auxdata;
 
 import org.esa.beam.framework.processor.ProcessorException;
+import org.esa.beam.processor.baer.BaerConstants;
 import org.esa.beam.util.Guardian;
 import java.util.HashMap;
+import java.util.logging.Logger;
 
-public class AerLut {
+public class AerLut implements AerPhaseAccess {
 
     private int _numBands;
     private HashMap<String,AerBandParam> _map;
@@ -78,6 +80,21 @@ public class AerLut {
         return pRet;
     }
 
+    /**
+     * Retrieves the aerosol phase function coefficients for the band with the given index, or null if the
+     * index is invalid. Unlike the loader, the LUT itself can be shared between processor instances.
+     * @param bandIdx
+     * @return
+     */
+    public AerBandParam getAerPhase(int bandIdx) {
+        try {
+            return getBand(bandIdx);
+        } catch (ProcessorException e) {
+            Logger.getLogger(BaerConstants.LOGGER_NAME).severe("Unable to access LUT." + e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Adds a set of band parameters to the LUT
      * @param idx
@@ -17,8 +17,10 @@ import org.esa.beam.framework.processor.ProcessorException;
 import org.xml.sax.SAXException;
 import org.xml.sax.Attributes;
 import org.xml.sax.helpers.DefaultHandler;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Vector;
 import javax.xml.parsers.ParserConfigurationException;
@@ -143,6 +145,84 @@ public class AerPhaseLoader extends AuxFileLoader implements AerPhaseAccess {
         _logger.info("... success");
     }
 
+    /**
+     * Writes the loaded LUTs to an aux data snapshot entry.
+     * @param out
+     */
+    public void writeSnapshot(DataOutput out) throws IOException {
+        AuxDataSnapshot.writeString(out, _version);
+        AuxDataSnapshot.writeString(out, _description);
+        out.writeInt(_lutNames.size());
+        for (String lutName : _lutNames) {
+            final AerLut lut = _luts.get(lutName);
+            AuxDataSnapshot.writeString(out, lut.getName());
+            out.writeInt(lut.getNumBands());
+            for (int idx = 1; idx <= lut.getNumBands(); idx++) {
+                final AerBandParam band;
+                try {
+                    band = lut.getBand(idx);
+                } catch (ProcessorException e) {
+                    throw new IOException(e.getMessage());
+                }
+                // bands missing in the file are reported as invalid by the LUT
+                out.writeBoolean(band.isValid());
+                if (band.isValid()) {
+                    AuxDataSnapshot.writeString(out, band.getName());
+                    AuxDataSnapshot.writeDoubles(out, band.getA());
+                }
+            }
+        }
+    }
+
+    /**
+     * Restores the LUTs from an aux data snapshot entry.
+     * @param in
+     */
+    public void readSnapshot(ByteBuffer in) throws IOException {
+        final String version = AuxDataSnapshot.readString(in);
+        final String description = AuxDataSnapshot.readString(in);
+        final int numLuts = in.getInt();
+        final HashMap<String, AerLut> luts = new HashMap<String, AerLut>();
+        final Vector<String> lutNames = new Vector<String>();
+        try {
+            for (int n = 0; n < numLuts; n++) {
+                final String lutName = AuxDataSnapshot.readString(in);
+                if (lutName == null) {
+                    throw new IOException("Corrupted snapshot entry");
+                }
+                final AerLut lut = new AerLut(in.getInt());
+                lut.setName(lutName);
+                for (int idx = 1; idx <= lut.getNumBands(); idx++) {
+                    if (!readBoolean(in)) {
+                        continue;
+                    }
+                    final AerBandParam band = new AerBandParam();
+                    band.setName(AuxDataSnapshot.readString(in));
+                    final double[] a = AuxDataSnapshot.readDoubles(in);
+                    if (a.length != 3) {
+                        throw new IOException("Corrupted snapshot entry");
+                    }
+                    band.setA0(a[0]);
+                    band.setA1(a[1]);
+                    band.setA2(a[2]);
+                    band.validate(true);
+                    lut.addBand(idx, band);
+                }
+                luts.put(lutName, lut);
+                lutNames.add(lutName);
+            }
+        } catch (ProcessorException e) {
+            throw new IOException(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        _version = version;
+        _description = description;
+        _luts = luts;
+        _lutNames = lutNames;
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     /////// END OF PUBLIC
     ///////////////////////////////////////////////////////////////////////////
@@ -416,6 +496,10 @@ public class AerPhaseLoader extends AuxFileLoader implements AerPhaseAccess {
         }
     }
 
+    private static boolean readBoolean(ByteBuffer in) {
+        return in.get() != 0;
+    }
+
     /**
      * Initializes all state variables for a new parser run
      */
@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.baer.auxdata;
+
+import org.esa.beam.processor.baer.BaerConstants;
+import org.esa.beam.processor.common.auxdata.AuxDataRegistry;
+import org.esa.beam.util.Guardian;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A binary snapshot of the parsed BAER auxiliary data, which saves the XML, properties and SMAC coefficient
+ * parsing on every start-up.
+ * <p/>
+ * The snapshot holds one entry per auxiliary file, keyed by its absolute path. An entry is only used if the
+ * size and the modification time of its source file are unchanged, otherwise the source is parsed again and the
+ * entry replaced. The whole snapshot is protected by a CRC32 checksum; a missing, corrupt or outdated snapshot
+ * is ignored. The snapshot file is memory mapped, so the entries are decoded straight from the page cache.
+ * <p/>
+ * Typical use:
+ * <pre>
+ *   AuxDataSnapshot snapshot = AuxDataSnapshot.open(new File(auxdataDir, AuxDataSnapshot.FILE_NAME));
+ *   snapshot.load(ndviLoader, ndviPath);
+ *   ...
+ *   snapshot.update();
+ * </pre>
+ */
+public final class AuxDataSnapshot {
+
+    /**
+     * The default name of the snapshot file within the auxiliary data directory.
+     */
+    public static final String FILE_NAME = "baer_auxdata.snapshot";
+
+    private static final int MAGIC = 0x42414552; // "BAER"
+    private static final int VERSION = 1;
+    // magic, version, checksum, number of entries
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    private final File _file;
+    private final Map<String, Entry> _entries;
+    private final Logger _logger;
+    private boolean _modified;
+
+    /**
+     * Auxiliary data which can be stored in a snapshot.
+     */
+    public interface Content {
+
+        /**
+         * Loads the data from the source file.
+         *
+         * @param auxPath the path to the source file
+         */
+        void load(String auxPath) throws IOException;
+
+        /**
+         * Writes the loaded data to a snapshot entry.
+         *
+         * @param out the entry to write to
+         */
+        void writeSnapshot(DataOutput out) throws IOException;
+
+        /**
+         * Restores the data from a snapshot entry written by {@link #writeSnapshot(DataOutput)}.
+         *
+         * @param in the entry to read from
+         */
+        void readSnapshot(ByteBuffer in) throws IOException;
+    }
+
+    /**
+     * Opens a snapshot file. If the file does not exist or is not a valid snapshot, an empty snapshot is
+     * returned, which is written to the file on {@link #update()}.
+     *
+     * @param file the snapshot file
+     * @return the snapshot, never <code>null</code>
+     */
+    public static AuxDataSnapshot open(File file) {
+        Guardian.assertNotNull("file", file);
+        final AuxDataSnapshot snapshot = new AuxDataSnapshot(file);
+        if (file.isFile()) {
+            try {
+                snapshot.read();
+            } catch (IOException e) {
+                snapshot.discard("unable to read snapshot '" + file + "': " + e.getMessage());
+            } catch (BufferUnderflowException e) {
+                snapshot.discard("truncated snapshot '" + file + "'");
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Loads auxiliary data, either from its snapshot entry, if it is up to date, or from the source file.
+     * Data loaded from the source are added to the snapshot.
+     *
+     * @param content the auxiliary data to load
+     * @param auxPath the path to the source file
+     */
+    public void load(Content content, String auxPath) throws IOException {
+        Guardian.assertNotNull("content", content);
+        Guardian.assertNotNull("auxPath", auxPath);
+
+        final File source = new File(auxPath);
+        final ByteBuffer buffer = getEntry(source);
+        if (buffer != null) {
+            try {
+                content.readSnapshot(buffer);
+                _logger.fine("Restored auxiliary data file '" + auxPath + "' from snapshot");
+                return;
+            } catch (IOException e) {
+                removeEntry(source, e.getMessage());
+            } catch (BufferUnderflowException e) {
+                removeEntry(source, "entry truncated");
+            }
+        }
+
+        content.load(auxPath);
+        putEntry(source, content);
+    }
+
+    /**
+     * Acquires auxiliary data from the process-wide {@link AuxDataRegistry}. If the file is not registered
+     * yet, the given content is loaded through this snapshot and registered, otherwise it is discarded.
+     *
+     * @param type    the type of the content
+     * @param content an empty instance of the content
+     * @param auxPath the path to the source file
+     * @return a handle to the shared content, to be released when done
+     */
+    public <T extends Content> AuxDataRegistry.Handle<T> acquire(Class<T> type, final T content,
+                                                                 final String auxPath) throws IOException {
+        Guardian.assertNotNull("content", content);
+        return AuxDataRegistry.getInstance().acquire(type, auxPath, new AuxDataRegistry.Loader<T>() {
+            public T load(File file) throws IOException {
+                AuxDataSnapshot.this.load(content, auxPath);
+                return content;
+            }
+        });
+    }
+
+    /**
+     * Retrieves whether the snapshot holds an up-to-date entry for the given source file.
+     *
+     * @param source the source file
+     */
+    public boolean contains(File source) {
+        final Entry entry = _entries.get(getKey(source));
+        return entry != null && entry.isUpToDate(source);
+    }
+
+    /**
+     * Retrieves whether the snapshot has to be written to reflect the data loaded.
+     */
+    public boolean isModified() {
+        return _modified;
+    }
+
+    /**
+     * Writes the snapshot file if entries have been added or removed. Entries of source files which
+     * have changed in the meantime are left out. A failure to write, e.g. in a read-only auxiliary
+     * data directory, is only logged - the snapshot is merely an optimisation.
+     */
+    public void update() {
+        if (!_modified) {
+            return;
+        }
+        try {
+            write();
+            _modified = false;
+            _logger.fine("Updated auxiliary data snapshot '" + _file + "'");
+        } catch (IOException e) {
+            _logger.warning("Unable to write auxiliary data snapshot '" + _file + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a string to a snapshot entry.
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written with {@link #writeString(DataOutput, String)} from a snapshot entry.
+     */
+    public static String readString(ByteBuffer in) throws IOException {
+        final int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new IOException("Invalid string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Writes an array of doubles to a snapshot entry.
+     */
+    public static void writeDoubles(DataOutput out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    /**
+     * Reads an array of doubles written with {@link #writeDoubles(DataOutput, double[])} from a snapshot entry.
+     */
+    public static double[] readDoubles(ByteBuffer in) throws IOException {
+        final int length = in.getInt();
+        if (length < 0 || length > in.remaining() / 8) {
+            throw new IOException("Invalid array length " + length);
+        }
+        final double[] values = new double[length];
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + length * 8);
+        return values;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private AuxDataSnapshot(File file) {
+        _file = file;
+        _entries = new LinkedHashMap<String, Entry>();
+        _logger = Logger.getLogger(BaerConstants.LOGGER_NAME);
+    }
+
+    /**
+     * Maps the snapshot file and reads the entry table. The data of the entries stay in the mapped buffer.
+     */
+    private void read() throws IOException {
+        final ByteBuffer buffer;
+        final RandomAccessFile raf = new RandomAccessFile(_file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            // the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("not a snapshot file");
+        }
+        if (buffer.getInt() != VERSION) {
+            throw new IOException("unsupported snapshot version");
+        }
+        final long checksum = buffer.getLong();
+        if (checksum != computeChecksum(buffer.slice())) {
+            throw new IOException("checksum mismatch");
+        }
+
+        final int numEntries = buffer.getInt();
+        for (int n = 0; n < numEntries; n++) {
+            final String key = readString(buffer);
+            final long size = buffer.getLong();
+            final long lastModified = buffer.getLong();
+            final int length = buffer.getInt();
+            if (key == null || length < 0 || length > buffer.remaining()) {
+                throw new IOException("invalid entry " + n);
+            }
+            final ByteBuffer data = buffer.slice();
+            data.limit(length);
+            buffer.position(buffer.position() + length);
+            _entries.put(key, new Entry(size, lastModified, data));
+        }
+    }
+
+    /**
+     * Writes all up-to-date entries to a temporary file, which then replaces the snapshot file.
+     */
+    private void write() throws IOException {
+        final File tempFile = File.createTempFile(_file.getName(), ".tmp", _file.getAbsoluteFile().getParentFile());
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(payload);
+        int numEntries = 0;
+        for (Iterator<Map.Entry<String, Entry>> it = _entries.entrySet().iterator(); it.hasNext();) {
+            final Map.Entry<String, Entry> mapEntry = it.next();
+            final Entry entry = mapEntry.getValue();
+            if (!entry.isUpToDate(new File(mapEntry.getKey()))) {
+                it.remove();
+                continue;
+            }
+            final ByteBuffer data = entry.getData();
+            final byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+
+            writeString(out, mapEntry.getKey());
+            out.writeLong(entry._size);
+            out.writeLong(entry._lastModified);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            numEntries++;
+        }
+        out.close();
+
+        final byte[] entryBytes = payload.toByteArray();
+        final ByteBuffer checked = ByteBuffer.allocate(4 + entryBytes.length);
+        checked.putInt(numEntries);
+        checked.put(entryBytes);
+        checked.flip();
+
+        final DataOutputStream fileOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            fileOut.writeInt(MAGIC);
+            fileOut.writeInt(VERSION);
+            fileOut.writeLong(computeChecksum(checked.duplicate()));
+            fileOut.write(checked.array(), 0, checked.limit());
+        } catch (IOException e) {
+            fileOut.close();
+            tempFile.delete();
+            throw e;
+        }
+        fileOut.close();
+
+        if (!tempFile.renameTo(_file)) {
+            // some platforms do not replace on rename
+            if (!_file.delete() || !tempFile.renameTo(_file)) {
+                tempFile.delete();
+                throw new IOException("unable to replace '" + _file + "'");
+            }
+        }
+    }
+
+    private ByteBuffer getEntry(File source) {
+        final Entry entry = _entries.get(getKey(source));
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.isUpToDate(source)) {
+            removeEntry(source, "source file changed");
+            return null;
+        }
+        return entry.getData();
+    }
+
+    private void putEntry(File source, Content content) throws IOException {
+        // take the file state before serialising, a concurrent change then only invalidates the entry
+        final long size = source.length();
+        final long lastModified = source.lastModified();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        content.writeSnapshot(out);
+        out.close();
+        _entries.put(getKey(source), new Entry(size, lastModified, ByteBuffer.wrap(bytes.toByteArray())));
+        _modified = true;
+    }
+
+    private void removeEntry(File source, String reason) {
+        _logger.fine("Ignoring snapshot entry of '" + source + "': " + reason);
+        _entries.remove(getKey(source));
+        _modified = true;
+    }
+
+    private void discard(String reason) {
+        _logger.fine("Ignoring auxiliary data snapshot: " + reason);
+        _entries.clear();
+        _modified = true;
+    }
+
+    private static String getKey(File source) {
+        return source.getAbsolutePath();
+    }
+
+    private static long computeChecksum(ByteBuffer buffer) {
+        final CRC32 crc = new CRC32();
+        final byte[] chunk = new byte[8192];
+        while (buffer.hasRemaining()) {
+            final int length = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return crc.getValue();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    ////// CLASS //////////////////////////////////////////////////////////////
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * A snapshot entry: the state of the source file and the serialised data.
+     */
+    private static final class Entry {
+
+        private final long _size;
+        private final long _lastModified;
+        private final ByteBuffer _data;
+
+        private Entry(long size, long lastModified, ByteBuffer data) {
+            _size = size;
+            _lastModified = lastModified;
+            _data = data;
+        }
+
+        private boolean isUpToDate(File source) {
+            return source.isFile() && source.length() == _size && source.lastModified() == _lastModified;
+        }
+
+        /**
+         * Retrieves a new view of the data, positioned at its start.
+         */
+        private ByteBuffer getData() {
+            return _data.duplicate();
+        }
+    }
+}
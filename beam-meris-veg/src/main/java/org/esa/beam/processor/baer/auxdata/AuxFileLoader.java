@@ -12,10 +12,11 @@
  */
 package org.esa.beam.processor.baer.auxdata;
 
+import java.io.IOException;
 import java.util.logging.Logger;
 import org.esa.beam.processor.baer.BaerConstants;
 
-public abstract class AuxFileLoader {
+public abstract class AuxFileLoader implements AuxDataSnapshot.Content {
 
     protected Logger _logger;
 
@@ -31,7 +32,11 @@ public abstract class AuxFileLoader {
      */
     public abstract String getDescription();
 
-  //  public abstract void load(String auxPath) throws IOException;
+    /**
+     * Loads the aux file from the given path.
+     * @param auxPath the path to the aux file
+     */
+    public abstract void load(String auxPath) throws IOException;
 
     ///////////////////////////////////////////////////////////////////////////
     /////// END OF PUBLIC
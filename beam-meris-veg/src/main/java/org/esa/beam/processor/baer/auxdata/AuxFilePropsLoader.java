@@ -16,15 +16,18 @@
  */
 package org.esa.beam.processor.baer.auxdata;
 
+import java.util.Map;
 import java.util.Properties;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.FileInputStream;
 import java.io.File;
+import java.nio.ByteBuffer;
 import org.esa.beam.processor.baer.BaerConstants;
 import org.esa.beam.util.Guardian;
 
-public class AuxFilePropsLoader extends AuxFileLoader {
+public abstract class AuxFilePropsLoader extends AuxFileLoader {
 
     protected Properties _props;
     protected double[] _coeffs;
@@ -53,6 +56,44 @@ public class AuxFilePropsLoader extends AuxFileLoader {
         return _coeffs;
     }
 
+    /**
+     * Writes the properties and the coefficients to an aux data snapshot entry.
+     * @param out
+     * @throws IOException
+     */
+    public void writeSnapshot(DataOutput out) throws IOException {
+        out.writeInt(_props.size());
+        for (Map.Entry<Object, Object> entry : _props.entrySet()) {
+            AuxDataSnapshot.writeString(out, (String) entry.getKey());
+            AuxDataSnapshot.writeString(out, (String) entry.getValue());
+        }
+        AuxDataSnapshot.writeDoubles(out, _coeffs);
+    }
+
+    /**
+     * Restores the properties and the coefficients from an aux data snapshot entry.
+     * @param in
+     * @throws IOException
+     */
+    public void readSnapshot(ByteBuffer in) throws IOException {
+        final Properties props = new Properties();
+        final int numProps = in.getInt();
+        for (int n = 0; n < numProps; n++) {
+            final String key = AuxDataSnapshot.readString(in);
+            final String value = AuxDataSnapshot.readString(in);
+            if (key == null || value == null) {
+                throw new IOException("Corrupted snapshot entry");
+            }
+            props.setProperty(key, value);
+        }
+        final double[] coeffs = AuxDataSnapshot.readDoubles(in);
+        if (coeffs.length != _coeffs.length) {
+            throw new IOException("Corrupted snapshot entry");
+        }
+        _props = props;
+        _coeffs = coeffs;
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     /////// END OF PUBLIC
     ///////////////////////////////////////////////////////////////////////////
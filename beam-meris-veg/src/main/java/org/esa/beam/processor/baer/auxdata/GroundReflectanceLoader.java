@@ -19,6 +19,8 @@ import org.xml.sax.Attributes;
 import org.xml.sax.helpers.DefaultHandler;
 import java.util.HashMap;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.io.DataOutput;
 import java.io.IOException;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParserFactory;
@@ -109,6 +111,60 @@ public class GroundReflectanceLoader extends AuxFileLoader implements GroundRefl
         _logger.info("... success");
     }
 
+    /**
+     * Writes the loaded spectra to an aux data snapshot entry.
+     * @param out
+     */
+    public void writeSnapshot(DataOutput out) throws IOException {
+        AuxDataSnapshot.writeString(out, _version);
+        AuxDataSnapshot.writeString(out, _description);
+        out.writeInt(_spectra.size());
+        final double[] values = new double[Spectrum.MAX_BAND_IDX + 1];
+        for (Spectrum spectrum : _spectra.values()) {
+            AuxDataSnapshot.writeString(out, spectrum.getShortName());
+            AuxDataSnapshot.writeString(out, spectrum.getDescription());
+            AuxDataSnapshot.writeString(out, spectrum.getGroundType());
+            for (int n = 0; n < values.length; n++) {
+                values[n] = spectrum.getValueAt(n);
+            }
+            AuxDataSnapshot.writeDoubles(out, values);
+        }
+    }
+
+    /**
+     * Restores the spectra from an aux data snapshot entry.
+     * @param in
+     */
+    public void readSnapshot(ByteBuffer in) throws IOException {
+        final String version = AuxDataSnapshot.readString(in);
+        final String description = AuxDataSnapshot.readString(in);
+        final int numSpectra = in.getInt();
+        final HashMap<String, Spectrum> spectra = new HashMap<String, Spectrum>();
+        try {
+            for (int n = 0; n < numSpectra; n++) {
+                final Spectrum spectrum = new Spectrum();
+                spectrum.setShortName(AuxDataSnapshot.readString(in));
+                spectrum.setDescription(AuxDataSnapshot.readString(in));
+                spectrum.setGroundType(AuxDataSnapshot.readString(in));
+                final double[] values = AuxDataSnapshot.readDoubles(in);
+                if (values.length != Spectrum.MAX_BAND_IDX + 1) {
+                    throw new IOException("Corrupted snapshot entry");
+                }
+                for (int i = 0; i < values.length; i++) {
+                    spectrum.setValueAt(i, values[i]);
+                }
+                spectra.put(spectrum.getShortName(), spectrum);
+            }
+        } catch (IllegalArgumentException e) {
+            // a null string rejected by the spectrum
+            throw new IOException("Corrupted snapshot entry");
+        }
+
+        _version = version;
+        _description = description;
+        _spectra = spectra;
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     /////// END OF PUBLIC
     ///////////////////////////////////////////////////////////////////////////
@@ -14,8 +14,14 @@ package org.esa.beam.processor.baer.auxdata;
 
 import org.esa.beam.util.Guardian;
 import java.io.*;
+import java.nio.ByteBuffer;
 
-public class SmacCoefficientsLoader implements SmacCoefficientsAccess {
+public class SmacCoefficientsLoader implements SmacCoefficientsAccess, AuxDataSnapshot.Content {
+
+    /**
+     * The number of coefficients in a coefficient file.
+     */
+    public static final int NUM_COEFFICIENTS = 49;
 
     private double _ah2o;
     private double _nh2o;
@@ -430,10 +436,140 @@ public class SmacCoefficientsLoader implements SmacCoefficientsAccess {
         return _resa4;
     }
 
+    /**
+     * Writes the coefficients to an aux data snapshot entry.
+     */
+    public void writeSnapshot(DataOutput out) throws IOException {
+        AuxDataSnapshot.writeDoubles(out, getCoefficients());
+    }
+
+    /**
+     * Restores the coefficients from an aux data snapshot entry.
+     */
+    public void readSnapshot(ByteBuffer in) throws IOException {
+        final double[] coefficients = AuxDataSnapshot.readDoubles(in);
+        if (coefficients.length != NUM_COEFFICIENTS) {
+            throw new IOException("Corrupted snapshot entry");
+        }
+        setCoefficients(coefficients);
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     /////// END OF PUBLIC
     ///////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Retrieves all coefficients in the order of the coefficient file.
+     */
+    private double[] getCoefficients() {
+        final double[] coefficients = new double[NUM_COEFFICIENTS];
+        coefficients[0] = _ah2o;
+        coefficients[1] = _nh2o;
+        coefficients[2] = _ao3;
+        coefficients[3] = _no3;
+        coefficients[4] = _ao2;
+        coefficients[5] = _no2;
+        coefficients[6] = _po2;
+        coefficients[7] = _aco2;
+        coefficients[8] = _nco2;
+        coefficients[9] = _pco2;
+        coefficients[10] = _ach4;
+        coefficients[11] = _nch4;
+        coefficients[12] = _pch4;
+        coefficients[13] = _ano2;
+        coefficients[14] = _nno2;
+        coefficients[15] = _pno2;
+        coefficients[16] = _aco;
+        coefficients[17] = _nco;
+        coefficients[18] = _pco;
+        coefficients[19] = _a0s;
+        coefficients[20] = _a1s;
+        coefficients[21] = _a2s;
+        coefficients[22] = _a3s;
+        coefficients[23] = _a0T;
+        coefficients[24] = _a1T;
+        coefficients[25] = _a2T;
+        coefficients[26] = _a3T;
+        coefficients[27] = _taur;
+        coefficients[28] = _sr;
+        coefficients[29] = _a0taup;
+        coefficients[30] = _a1taup;
+        coefficients[31] = _wo;
+        coefficients[32] = _gc;
+        coefficients[33] = _a0P;
+        coefficients[34] = _a1P;
+        coefficients[35] = _a2P;
+        coefficients[36] = _a3P;
+        coefficients[37] = _a4P;
+        coefficients[38] = _rest1;
+        coefficients[39] = _rest2;
+        coefficients[40] = _rest3;
+        coefficients[41] = _rest4;
+        coefficients[42] = _resr1;
+        coefficients[43] = _resr2;
+        coefficients[44] = _resr3;
+        coefficients[45] = _resa1;
+        coefficients[46] = _resa2;
+        coefficients[47] = _resa3;
+        coefficients[48] = _resa4;
+        return coefficients;
+    }
+
+    /**
+     * Sets all coefficients in the order of the coefficient file.
+     */
+    private void setCoefficients(double[] coefficients) {
+        _ah2o = coefficients[0];
+        _nh2o = coefficients[1];
+        _ao3 = coefficients[2];
+        _no3 = coefficients[3];
+        _ao2 = coefficients[4];
+        _no2 = coefficients[5];
+        _po2 = coefficients[6];
+        _aco2 = coefficients[7];
+        _nco2 = coefficients[8];
+        _pco2 = coefficients[9];
+        _ach4 = coefficients[10];
+        _nch4 = coefficients[11];
+        _pch4 = coefficients[12];
+        _ano2 = coefficients[13];
+        _nno2 = coefficients[14];
+        _pno2 = coefficients[15];
+        _aco = coefficients[16];
+        _nco = coefficients[17];
+        _pco = coefficients[18];
+        _a0s = coefficients[19];
+        _a1s = coefficients[20];
+        _a2s = coefficients[21];
+        _a3s = coefficients[22];
+        _a0T = coefficients[23];
+        _a1T = coefficients[24];
+        _a2T = coefficients[25];
+        _a3T = coefficients[26];
+        _taur = coefficients[27];
+        _sr = coefficients[28];
+        _a0taup = coefficients[29];
+        _a1taup = coefficients[30];
+        _wo = coefficients[31];
+        _gc = coefficients[32];
+        _a0P = coefficients[33];
+        _a1P = coefficients[34];
+        _a2P = coefficients[35];
+        _a3P = coefficients[36];
+        _a4P = coefficients[37];
+        _rest1 = coefficients[38];
+        _rest2 = coefficients[39];
+        _rest3 = coefficients[40];
+        _rest4 = coefficients[41];
+        _resr1 = coefficients[42];
+        _resr2 = coefficients[43];
+        _resr3 = coefficients[44];
+        _resa1 = coefficients[45];
+        _resa2 = coefficients[46];
+        _resa3 = coefficients[47];
+        _resa4 = coefficients[48];
+    }
+
    /**
      * Scans the file for coefficients
      */
@@ -447,55 +583,11 @@ public class SmacCoefficientsLoader implements SmacCoefficientsAccess {
            tokenizer.eolIsSignificant(false);
            tokenizer.wordChars(33, 255);
 
-           _ah2o = getNextCoefficient(tokenizer);
-           _nh2o = getNextCoefficient(tokenizer);
-           _ao3 = getNextCoefficient(tokenizer);
-           _no3 = getNextCoefficient(tokenizer);
-           _ao2 = getNextCoefficient(tokenizer);
-           _no2 = getNextCoefficient(tokenizer);
-           _po2 = getNextCoefficient(tokenizer);
-           _aco2 = getNextCoefficient(tokenizer);
-           _nco2 = getNextCoefficient(tokenizer);
-           _pco2 = getNextCoefficient(tokenizer);
-           _ach4 = getNextCoefficient(tokenizer);
-           _nch4 = getNextCoefficient(tokenizer);
-           _pch4 = getNextCoefficient(tokenizer);
-           _ano2 = getNextCoefficient(tokenizer);
-           _nno2 = getNextCoefficient(tokenizer);
-           _pno2 = getNextCoefficient(tokenizer);
-           _aco = getNextCoefficient(tokenizer);
-           _nco = getNextCoefficient(tokenizer);
-           _pco = getNextCoefficient(tokenizer);
-           _a0s = getNextCoefficient(tokenizer);
-           _a1s = getNextCoefficient(tokenizer);
-           _a2s = getNextCoefficient(tokenizer);
-           _a3s = getNextCoefficient(tokenizer);
-           _a0T = getNextCoefficient(tokenizer);
-           _a1T = getNextCoefficient(tokenizer);
-           _a2T = getNextCoefficient(tokenizer);
-           _a3T = getNextCoefficient(tokenizer);
-           _taur = getNextCoefficient(tokenizer);
-           _sr = getNextCoefficient(tokenizer);
-           _a0taup = getNextCoefficient(tokenizer);
-           _a1taup = getNextCoefficient(tokenizer);
-           _wo = getNextCoefficient(tokenizer);
-           _gc = getNextCoefficient(tokenizer);
-           _a0P = getNextCoefficient(tokenizer);
-           _a1P = getNextCoefficient(tokenizer);
-           _a2P = getNextCoefficient(tokenizer);
-           _a3P = getNextCoefficient(tokenizer);
-           _a4P = getNextCoefficient(tokenizer);
-           _rest1 = getNextCoefficient(tokenizer);
-           _rest2 = getNextCoefficient(tokenizer);
-           _rest3 = getNextCoefficient(tokenizer);
-           _rest4 = getNextCoefficient(tokenizer);
-           _resr1 = getNextCoefficient(tokenizer);
-           _resr2 = getNextCoefficient(tokenizer);
-           _resr3 = getNextCoefficient(tokenizer);
-           _resa1 = getNextCoefficient(tokenizer);
-           _resa2 = getNextCoefficient(tokenizer);
-           _resa3 = getNextCoefficient(tokenizer);
-           _resa4 = getNextCoefficient(tokenizer);
+           final double[] coefficients = new double[NUM_COEFFICIENTS];
+           for (int n = 0; n < coefficients.length; n++) {
+               coefficients[n] = getNextCoefficient(tokenizer);
+           }
+           setCoefficients(coefficients);
        } finally {
            reader.close();
        }
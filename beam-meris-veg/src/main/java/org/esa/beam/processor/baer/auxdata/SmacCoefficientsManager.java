@@ -17,15 +17,19 @@
 package org.esa.beam.processor.baer.auxdata;
 
 
+import org.esa.beam.processor.common.auxdata.AuxDataRegistry;
 import org.esa.beam.util.Guardian;
 import org.esa.beam.util.ObjectUtils;
 import org.esa.beam.util.io.CsvReader;
 
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.Vector;
 
 /**
@@ -44,6 +48,9 @@ import java.util.Vector;
  * BAND_NAME - must match the band names defined in <code>EnvisatConstants</code>
  * ATMOSPHERE_TYPE - dependent on the coefficient set - this string will be seen in the SMAC UI
  * COEFFICIENT_FILE - name of the coefficient file
+ * <p/>
+ * When constructed with an {@link AuxDataSnapshot}, the map file and all coefficient files present are
+ * restored from, or added to, the snapshot.
  */
 
 public class SmacCoefficientsManager {
@@ -59,6 +66,8 @@ public class SmacCoefficientsManager {
     private CsvReader _csvReader;
     private Vector<SensorDb> _sensors;
     private File _location;
+    private AuxDataSnapshot _snapshot;
+    private HashMap<String, SmacCoefficientsLoader> _coefficients;
 
     /**
      * Constructs the object with default parameters.
@@ -82,6 +91,46 @@ public class SmacCoefficientsManager {
         loadSensorCoefficients(location);
     }
 
+    /**
+     * Constructs the object with a given location for the sensor coefficient files, which are
+     * loaded through the given aux data snapshot.
+     *
+     * @param location the directory where the sensor coefficient files reside
+     * @param snapshot the aux data snapshot
+     *
+     * @throws java.io.IOException when unable to access <code>location</code>
+     */
+    public SmacCoefficientsManager(File location, AuxDataSnapshot snapshot) throws IOException {
+        Guardian.assertNotNull("location", location);
+        Guardian.assertNotNull("snapshot", snapshot);
+
+        init();
+        _snapshot = snapshot;
+        loadSensorCoefficients(location);
+    }
+
+    /**
+     * Acquires the coefficients manager for a directory from the process-wide {@link AuxDataRegistry}. The
+     * manager is shared, it must not be reloaded by its users.
+     *
+     * @param location the directory where the coefficients reside
+     * @param snapshot the snapshot used if the manager is not registered yet
+     * @return a handle to the shared manager, to be released when done
+     */
+    public static AuxDataRegistry.Handle<SmacCoefficientsManager> acquire(final File location,
+                                                                          final AuxDataSnapshot snapshot)
+            throws IOException {
+        Guardian.assertNotNull("location", location);
+        Guardian.assertNotNull("snapshot", snapshot);
+        final String mapPath = new File(location, _mapFileName).getPath();
+        final AuxDataRegistry.Loader<SmacCoefficientsManager> loader = new AuxDataRegistry.Loader<SmacCoefficientsManager>() {
+            public SmacCoefficientsManager load(File file) throws IOException {
+                return new SmacCoefficientsManager(location, snapshot);
+            }
+        };
+        return AuxDataRegistry.getInstance().acquire(SmacCoefficientsManager.class, mapPath, loader);
+    }
+
     /**
      * Scans the directory for valid files.
      *
@@ -94,31 +143,37 @@ public class SmacCoefficientsManager {
         File mapFile = new File(location, _mapFileName);
 
         _location = location;
+        _coefficients.clear();
 
-        final InputStream in = new FileInputStream(mapFile);
-        try {
-            _csvReader = new CsvReader(new InputStreamReader(in), _fieldSeparators);
+        final SensorMap sensorMap = new SensorMap();
+        if (_snapshot != null) {
+            _snapshot.load(sensorMap, mapFile.getPath());
+        } else {
+            sensorMap.load(mapFile.getPath());
+        }
 
-            // read sensor map file completely and assemble the database
-            // ---------------------------------------------------------
-            String[] record;
-            SensorDb sensorDb;
-            BandDb bandDb;
-            while ((record = _csvReader.readRecord()) != null) {
-                // retrieve the sensor db entry
-                sensorDb = getSensorDb(record[0]);
-                if (sensorDb == null) {
-                    // is not in database yet, create and add to database
-                    sensorDb = new SensorDb(record[0]);
-                    _sensors.add(sensorDb);
-                }
+        // assemble the database from the sensor map records
+        // -------------------------------------------------
+        SensorDb sensorDb;
+        BandDb bandDb;
+        for (String[] record : sensorMap._records) {
+            // retrieve the sensor db entry
+            sensorDb = getSensorDb(record[0]);
+            if (sensorDb == null) {
+                // is not in database yet, create and add to database
+                sensorDb = new SensorDb(record[0]);
+                _sensors.add(sensorDb);
+            }
 
-                // add the band entry to sensorDb
-                bandDb = new BandDb(record[1], record[2], record[3]);
-                sensorDb.addBand(bandDb);
+            // add the band entry to sensorDb
+            bandDb = new BandDb(record[1], record[2], record[3]);
+            sensorDb.addBand(bandDb);
+
+            // with a snapshot all coefficient files present are taken over at once
+            final File coeffFile = new File(_location, bandDb.getCoefficientFileName());
+            if (_snapshot != null && coeffFile.isFile()) {
+                loadCoefficients(coeffFile);
             }
-        } finally {
-            in.close();
         }
     }
 
@@ -150,6 +205,26 @@ public class SmacCoefficientsManager {
         return ret;
     }
 
+    /**
+     * Returns the coefficient set for a given sensor and band name.
+     * Or <code>null</code> when the sensor or band are not in the database.
+     *
+     * @param sensor      the sensor name
+     * @param band        the band name
+     * @param aerosolType the aerosol type
+     * @return the coefficients
+     *
+     * @throws IOException when the coefficient file cannot be read
+     */
+    public synchronized SmacCoefficientsAccess getCoefficients(String sensor, String band, String aerosolType)
+            throws IOException {
+        final File file = getCoefficientFile(sensor, band, aerosolType);
+        if (file == null) {
+            return null;
+        }
+        return loadCoefficients(file);
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     /////// END OF PUBLIC
     ///////////////////////////////////////////////////////////////////////////
@@ -159,6 +234,26 @@ public class SmacCoefficientsManager {
      */
     private void init() {
         _sensors = new Vector<SensorDb>();
+        _coefficients = new HashMap<String, SmacCoefficientsLoader>();
+    }
+
+    /**
+     * Loads a coefficient file, unless it has already been loaded.
+     *
+     * @param file the coefficient file
+     */
+    private SmacCoefficientsLoader loadCoefficients(File file) throws IOException {
+        SmacCoefficientsLoader loader = _coefficients.get(file.getPath());
+        if (loader == null) {
+            loader = new SmacCoefficientsLoader();
+            if (_snapshot != null) {
+                _snapshot.load(loader, file.getPath());
+            } else {
+                loader.load(file.getPath());
+            }
+            _coefficients.put(file.getPath(), loader);
+        }
+        return loader;
     }
 
     /**
@@ -181,6 +276,63 @@ public class SmacCoefficientsManager {
         return ret;
     }
 
+    ///////////////////////////////////////////////////////////////////////////
+    ////// CLASS //////////////////////////////////////////////////////////////
+    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * Class holding the records of the sensor map file.
+     */
+    private class SensorMap implements AuxDataSnapshot.Content {
+
+        private final Vector<String[]> _records = new Vector<String[]>();
+
+        /**
+         * Reads the sensor map file completely.
+         *
+         * @param auxPath the path to the sensor map file
+         */
+        public void load(String auxPath) throws IOException {
+            final InputStream in = new FileInputStream(auxPath);
+            try {
+                _csvReader = new CsvReader(new InputStreamReader(in), _fieldSeparators);
+
+                _records.clear();
+                String[] record;
+                while ((record = _csvReader.readRecord()) != null) {
+                    _records.add(record);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        public void writeSnapshot(DataOutput out) throws IOException {
+            out.writeInt(_records.size());
+            for (String[] record : _records) {
+                out.writeInt(record.length);
+                for (String field : record) {
+                    AuxDataSnapshot.writeString(out, field);
+                }
+            }
+        }
+
+        public void readSnapshot(ByteBuffer in) throws IOException {
+            _records.clear();
+            final int numRecords = in.getInt();
+            for (int n = 0; n < numRecords; n++) {
+                final int numFields = in.getInt();
+                if (numFields < 4 || numFields > in.remaining()) {
+                    throw new IOException("Corrupted snapshot entry");
+                }
+                final String[] record = new String[numFields];
+                for (int i = 0; i < numFields; i++) {
+                    record[i] = AuxDataSnapshot.readString(in);
+                }
+                _records.add(record);
+            }
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     ////// CLASS //////////////////////////////////////////////////////////////
     ///////////////////////////////////////////////////////////////////////////
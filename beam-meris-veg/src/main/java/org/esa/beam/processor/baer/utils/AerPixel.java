@@ -14,7 +14,7 @@ package org.esa.beam.processor.baer.utils;
 
 public class AerPixel {
 
-    private static int NUM_BANDS = 13;
+    private static final int NUM_BANDS = 13;
     private float[] _reflec;
     private float _aot_412;
     private float _aot_560;
@@ -32,6 +32,7 @@ public class AerPixel {
     private float _band_cloud;
     private float _alpha;
     private int _flags;
+    private int _iterations;
 
     /**
      * Constructs the object with default parameters.
@@ -63,6 +64,7 @@ public class AerPixel {
         _band_lon=0.f;
         _alpha = 0.f;
         _flags = 0;
+        _iterations = 0;
     }
 
     /**
@@ -96,6 +98,24 @@ public class AerPixel {
         }
     }
 
+    /**
+     * Copies the corrected reflectances of all bands into the array passed in, without a per band index check.
+     * Band indexing as for {@link #getBand(int)}.
+     * @param dest array of at least 13 elements
+     */
+    public void getBands(float[] dest) {
+        System.arraycopy(_reflec, 0, dest, 0, NUM_BANDS);
+    }
+
+    /**
+     * Sets the corrected reflectances of all bands from the array passed in, without a per band index check.
+     * Band indexing as for {@link #setBand(float, int)}.
+     * @param src array of at least 13 elements
+     */
+    public void setBands(float[] src) {
+        System.arraycopy(src, 0, _reflec, 0, NUM_BANDS);
+    }
+
     /**
         * Retrieves the value for the Cloud.
         * @return
@@ -346,6 +366,20 @@ public class AerPixel {
          _band_lon = fVal;
      }
 
+    /**
+     * Retrieves the number of iterations the aerosol retrieval took for this pixel.
+     */
+    public int getIterations() {
+        return _iterations;
+    }
+
+    /**
+     * Sets the number of iterations the aerosol retrieval took for this pixel.
+     */
+    public void setIterations(int iterations) {
+        _iterations = iterations;
+    }
+
     /**
      * Retrieves the flag mask integer for the pixel.
      * @return
@@ -85,6 +85,24 @@ public class MerisPixel {
         }
     }
 
+    /**
+     * Copies the reflectances of all bands into the array passed in, without a per band index check.
+     * Band indexing as for {@link #getBand(int)}.
+     * @param dest array of at least 13 elements
+     */
+    public void getBands(float[] dest) {
+        System.arraycopy(_reflec, 0, dest, 0, NUM_BANDS);
+    }
+
+    /**
+     * Sets the reflectances of all bands from the array passed in, without a per band index check.
+     * Band indexing as for {@link #setBand(float, int)}.
+     * @param src array of at least 13 elements
+     */
+    public void setBands(float[] src) {
+        System.arraycopy(src, 0, _reflec, 0, NUM_BANDS);
+    }
+
     /**
      * Calculates the scattering angle
      * @return the scattering angle
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.common.auxdata;
+
+import com.bc.jnn.Jnn;
+import com.bc.jnn.JnnException;
+import com.bc.jnn.JnnNet;
+import org.esa.beam.util.Guardian;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A process-wide registry of loaded auxiliary data, shared by all processor and operator instances of the
+ * JVM. Each auxiliary file is loaded once per loader type and handed out to all users as the same object,
+ * so these objects must not be modified after loading.
+ * <p/>
+ * Entries are keyed by the canonical path and a CRC32 checksum of the file content, a changed file is
+ * therefore loaded again. Users hold a {@link Handle} while they use the data and release it when done.
+ * Entries without users are kept for later requests and evicted in least-recently-used order when the
+ * memory budget is exceeded. The memory taken by an entry is estimated by the size of its file.
+ * <p/>
+ * The budget defaults to {@link #DEFAULT_MEMORY_BUDGET} and can be set by the system property
+ * {@link #MEMORY_BUDGET_PROPERTY} (in bytes) or by {@link #setMemoryBudget(long)}.
+ */
+public final class AuxDataRegistry {
+
+    /**
+     * The name of the system property holding the memory budget in bytes.
+     */
+    public static final String MEMORY_BUDGET_PROPERTY = "beam.meris.veg.auxdataRegistry.memoryBudget";
+    /**
+     * The default memory budget in bytes.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024L * 1024L;
+
+    private static final AuxDataRegistry INSTANCE = new AuxDataRegistry(Long.getLong(MEMORY_BUDGET_PROPERTY,
+                                                                                     DEFAULT_MEMORY_BUDGET));
+
+    // access ordered, the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> _entries;
+    private final Map<String, FileState> _fileStates;
+    private final Logger _logger;
+    private long _memoryBudget;
+    private long _memoryUsage;
+
+    /**
+     * Loads auxiliary data from a file.
+     */
+    public interface Loader<T> {
+
+        /**
+         * Loads the data.
+         *
+         * @param file the canonical auxiliary file
+         * @return the loaded data, not modified afterwards
+         */
+        T load(File file) throws IOException;
+    }
+
+    /**
+     * A reference to a registry entry. The data stay valid after {@link #release()}, but may then be
+     * evicted from the registry and loaded again by the next user.
+     */
+    public static final class Handle<T> {
+
+        private final AuxDataRegistry _registry;
+        private final Entry _entry;
+        private final T _data;
+        private boolean _released;
+
+        private Handle(AuxDataRegistry registry, Entry entry, T data) {
+            _registry = registry;
+            _entry = entry;
+            _data = data;
+        }
+
+        /**
+         * Retrieves the shared data.
+         */
+        public T get() {
+            return _data;
+        }
+
+        /**
+         * Releases the reference. Subsequent calls have no effect.
+         */
+        public void release() {
+            synchronized (_registry) {
+                if (!_released) {
+                    _released = true;
+                    _registry.release(_entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieves the process-wide registry.
+     */
+    public static AuxDataRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Constructs an empty registry. Usually the process-wide instance {@link #getInstance()} is used.
+     *
+     * @param memoryBudget the memory budget in bytes
+     */
+    public AuxDataRegistry(long memoryBudget) {
+        _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        _fileStates = new HashMap<String, FileState>();
+        _logger = Logger.getLogger(AuxDataRegistry.class.getName());
+        _memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Acquires the data of an auxiliary file, loading it if it is not in the registry yet. Concurrent
+     * requests for the same file wait for a single load.
+     *
+     * @param type   the type of the data, together with the file it identifies the entry
+     * @param path   the path to the auxiliary file
+     * @param loader the loader used if the data are not registered
+     * @return a handle to the shared data, to be released when done
+     * @throws IOException if the file cannot be read or loaded
+     */
+    public <T> Handle<T> acquire(final Class<T> type, String path, final Loader<? extends T> loader) throws IOException {
+        Guardian.assertNotNull("type", type);
+        Guardian.assertNotNull("path", path);
+        Guardian.assertNotNull("loader", loader);
+
+        final File file = new File(path).getCanonicalFile();
+        final String key = type.getName() + '|' + file.getPath() + '|' + Long.toHexString(getChecksum(file));
+
+        final Entry entry;
+        final boolean created;
+        synchronized (this) {
+            Entry existing = _entries.get(key);
+            created = existing == null;
+            if (created) {
+                existing = new Entry(key, new FutureTask<Object>(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        return loader.load(file);
+                    }
+                }));
+                _entries.put(key, existing);
+            }
+            existing._refCount++;
+            entry = existing;
+        }
+
+        if (created) {
+            _logger.fine("Loading shared auxiliary data '" + file + "'");
+            entry._task.run();
+        }
+
+        final Object data;
+        try {
+            data = entry._task.get();
+        } catch (InterruptedException e) {
+            release(entry, false);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading '" + file + "'");
+        } catch (ExecutionException e) {
+            release(entry, true);
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+
+        synchronized (this) {
+            if (created) {
+                entry._size = file.length();
+                _memoryUsage += entry._size;
+                evict();
+            }
+            return new Handle<T>(this, entry, type.cast(data));
+        }
+    }
+
+    /**
+     * Creates a neural net from a <code>.nna</code> file. The file is parsed once and kept in the registry,
+     * each call returns a private copy of the net, as nets keep state while processing.
+     *
+     * @param path the path to the neural net file
+     * @return a new copy of the net
+     */
+    public JnnNet createNeuralNet(String path) throws IOException, JnnException {
+        final Handle<JnnNet> handle;
+        try {
+            handle = acquire(JnnNet.class, path, new Loader<JnnNet>() {
+                public JnnNet load(File file) throws IOException {
+                    try {
+                        return Jnn.readNna(file);
+                    } catch (JnnException e) {
+                        throw new IOException(e.getMessage(), e);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            if (e.getCause() instanceof JnnException) {
+                throw (JnnException) e.getCause();
+            }
+            throw e;
+        }
+        try {
+            return (JnnNet) handle.get().clone();
+        } finally {
+            handle.release();
+        }
+    }
+
+    /**
+     * Acquires the weights of a neural net from a <code>.nna</code> file. The file is parsed once and kept in
+     * the registry, all callers get the same instance as the weights are not modified while processing.
+     *
+     * @param path the path to the neural net file
+     * @return a handle to the shared net, to be released when the net is no longer used
+     */
+    public Handle<NnaNet> acquireNnaNet(String path) throws IOException {
+        return acquire(NnaNet.class, path, new Loader<NnaNet>() {
+            public NnaNet load(File file) throws IOException {
+                return NnaNet.read(file);
+            }
+        });
+    }
+
+    /**
+     * Sets the memory budget. Unused entries are evicted until the budget is kept.
+     *
+     * @param memoryBudget the budget in bytes
+     */
+    public synchronized void setMemoryBudget(long memoryBudget) {
+        _memoryBudget = memoryBudget;
+        evict();
+    }
+
+    /**
+     * Retrieves the memory budget in bytes.
+     */
+    public synchronized long getMemoryBudget() {
+        return _memoryBudget;
+    }
+
+    /**
+     * Retrieves the estimated memory taken by all entries, in bytes.
+     */
+    public synchronized long getMemoryUsage() {
+        return _memoryUsage;
+    }
+
+    /**
+     * Retrieves the number of entries.
+     */
+    public synchronized int getEntryCount() {
+        return _entries.size();
+    }
+
+    /**
+     * Removes all unused entries.
+     */
+    public synchronized void clear() {
+        for (Iterator<Entry> it = _entries.values().iterator(); it.hasNext();) {
+            final Entry entry = it.next();
+            if (entry._refCount == 0) {
+                _memoryUsage -= entry._size;
+                it.remove();
+            }
+        }
+        _fileStates.clear();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private synchronized void release(Entry entry) {
+        release(entry, false);
+    }
+
+    /**
+     * Drops a reference to an entry.
+     *
+     * @param failed whether the entry could not be loaded, it is then removed at once
+     */
+    private synchronized void release(Entry entry, boolean failed) {
+        entry._refCount--;
+        if (failed && _entries.get(entry._key) == entry) {
+            _entries.remove(entry._key);
+            _memoryUsage -= entry._size;
+            entry._size = 0;
+        } else {
+            evict();
+        }
+    }
+
+    /**
+     * Removes unused entries, least recently used first, until the memory budget is kept.
+     */
+    private void evict() {
+        for (Iterator<Entry> it = _entries.values().iterator(); it.hasNext() && _memoryUsage > _memoryBudget;) {
+            final Entry entry = it.next();
+            if (entry._refCount == 0 && entry._task.isDone()) {
+                _logger.fine("Evicting shared auxiliary data '" + entry._key + "'");
+                _memoryUsage -= entry._size;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Retrieves the checksum of a file. The checksum is only recomputed if size or time stamp of the
+     * file have changed since the last call.
+     */
+    private long getChecksum(File file) throws IOException {
+        final long size = file.length();
+        final long lastModified = file.lastModified();
+        synchronized (this) {
+            final FileState state = _fileStates.get(file.getPath());
+            if (state != null && state._size == size && state._lastModified == lastModified) {
+                return state._checksum;
+            }
+        }
+
+        final CRC32 crc = new CRC32();
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+
+        synchronized (this) {
+            _fileStates.put(file.getPath(), new FileState(size, lastModified, crc.getValue()));
+        }
+        return crc.getValue();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    ////// CLASS //////////////////////////////////////////////////////////////
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static final class Entry {
+
+        private final String _key;
+        private final FutureTask<Object> _task;
+        private int _refCount;
+        private long _size;
+
+        private Entry(String key, FutureTask<Object> task) {
+            _key = key;
+            _task = task;
+        }
+    }
+
+    private static final class FileState {
+
+        private final long _size;
+        private final long _lastModified;
+        private final long _checksum;
+
+        private FileState(long size, long lastModified, long checksum) {
+            _size = size;
+            _lastModified = lastModified;
+            _checksum = checksum;
+        }
+    }
+}
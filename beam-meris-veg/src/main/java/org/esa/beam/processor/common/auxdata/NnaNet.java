@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.common.auxdata;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The weights of a feed-forward neural net read from a <code>.nna</code> file. Only the kind of nets used
+ * by the vegetation processors is supported: an identity input layer followed by fully connected layers,
+ * each unit computing <code>f(bias + sum(weight * input))</code> with f being the identity or the
+ * hyperbolic tangent ("TangSigmoid"). Other nets are rejected when read.
+ * <p/>
+ * The weights of a layer are held row by row in a flat array, the row of a unit holding the weights
+ * of all units of the preceding layer. Instances are not modified after reading and can be shared.
+ */
+public final class NnaNet {
+
+    /**
+     * The activation function f(x) = x.
+     */
+    public static final int ACTIVATION_IDENTITY = 0;
+    /**
+     * The activation function f(x) = tanh(x).
+     */
+    public static final int ACTIVATION_TANH = 1;
+
+    private static final Pattern SECTION_PATTERN = Pattern.compile("\\[\\s*(\\w+)\\s*(?:\\(([^)]*)\\))?\\s*\\]");
+    private static final Pattern CONNECTION_PATTERN = Pattern.compile("C\\(\\d+\\)");
+
+    private final int[] _unitCounts;
+    private final double[][] _weights;
+    private final double[][] _biases;
+    private final int[] _activations;
+
+    private NnaNet(int[] unitCounts, double[][] weights, double[][] biases, int[] activations) {
+        _unitCounts = unitCounts;
+        _weights = weights;
+        _biases = biases;
+        _activations = activations;
+    }
+
+    /**
+     * Reads a net from a <code>.nna</code> file.
+     *
+     * @param file the file
+     * @return the net
+     * @throws IOException if the file cannot be read or holds a net which is not supported
+     */
+    public static NnaNet read(File file) throws IOException {
+        final Reader reader = new FileReader(file);
+        try {
+            return read(reader, file.getPath());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads a net in <code>.nna</code> format.
+     *
+     * @param reader the reader, not closed by this method
+     * @param source the name of the source used in error messages
+     * @return the net
+     * @throws IOException if the net cannot be read or is not supported
+     */
+    public static NnaNet read(Reader reader, String source) throws IOException {
+        final Map<String, Map<String, String>> sections = readSections(reader);
+        try {
+            return createNet(sections);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unsupported neural net '" + source + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * Retrieves the number of layers, including the input layer.
+     */
+    public int getLayerCount() {
+        return _unitCounts.length;
+    }
+
+    /**
+     * Retrieves the number of units of a layer.
+     *
+     * @param layer the zero based layer index, 0 being the input layer
+     */
+    public int getUnitCount(int layer) {
+        return _unitCounts[layer];
+    }
+
+    /**
+     * Retrieves the number of inputs of the net.
+     */
+    public int getInputCount() {
+        return _unitCounts[0];
+    }
+
+    /**
+     * Retrieves the number of outputs of the net.
+     */
+    public int getOutputCount() {
+        return _unitCounts[_unitCounts.length - 1];
+    }
+
+    /**
+     * Retrieves the weights of a layer, the weight of the connection from unit i of the preceding layer
+     * to unit u being at <code>u * getUnitCount(layer - 1) + i</code>. The array must not be modified.
+     *
+     * @param layer the zero based layer index, at least 1
+     */
+    public double[] getWeights(int layer) {
+        return _weights[layer];
+    }
+
+    /**
+     * Retrieves the input biases of the units of a layer. The array must not be modified.
+     *
+     * @param layer the zero based layer index, at least 1
+     */
+    public double[] getBiases(int layer) {
+        return _biases[layer];
+    }
+
+    /**
+     * Retrieves the activation function of a layer, either {@link #ACTIVATION_IDENTITY} or
+     * {@link #ACTIVATION_TANH}.
+     *
+     * @param layer the zero based layer index
+     */
+    public int getActivation(int layer) {
+        return _activations[layer];
+    }
+
+    /**
+     * Retrieves a 64 bit hash (FNV-1a) of the layer sizes, activation functions, biases and weights. Two nets
+     * having the same fingerprint compute the same outputs, apart from hash collisions.
+     */
+    public long getFingerprint() {
+        long hash = 0xcbf29ce484222325L;
+        for (int l = 0; l < _unitCounts.length; l++) {
+            hash = fingerprint(hash, _unitCounts[l]);
+            hash = fingerprint(hash, _activations[l]);
+            if (l > 0) {
+                for (double bias : _biases[l]) {
+                    hash = fingerprint(hash, Double.doubleToLongBits(bias));
+                }
+                for (double weight : _weights[l]) {
+                    hash = fingerprint(hash, Double.doubleToLongBits(weight));
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Computes the outputs of the net for one input vector, layer by layer. This is the reference
+     * implementation for the optimised evaluators.
+     *
+     * @param input  the input vector
+     * @param output receives the outputs
+     */
+    public void process(double[] input, double[] output) {
+        double[] values = input;
+        for (int l = 1; l < _unitCounts.length; l++) {
+            final int numUnits = _unitCounts[l];
+            final int numInputs = _unitCounts[l - 1];
+            final double[] next = l == _unitCounts.length - 1 ? output : new double[numUnits];
+            for (int u = 0; u < numUnits; u++) {
+                double sum = _biases[l][u];
+                for (int i = 0; i < numInputs; i++) {
+                    sum += _weights[l][u * numInputs + i] * values[i];
+                }
+                next[u] = activate(_activations[l], sum);
+            }
+            values = next;
+        }
+    }
+
+    /**
+     * Applies an activation function.
+     *
+     * @param activation the activation function
+     * @param x          the argument
+     * @return the function value
+     */
+    public static double activate(int activation, double x) {
+        if (activation == ACTIVATION_TANH) {
+            return Math.tanh(x);
+        }
+        return x;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Reads the sections of the file. The key of a section is its name without blanks, e.g.
+     * <code>Unit(2,1)</code>, the values are the key value pairs of the section without comments.
+     */
+    private static Map<String, Map<String, String>> readSections(Reader reader) throws IOException {
+        final Map<String, Map<String, String>> sections = new HashMap<String, Map<String, String>>();
+        final BufferedReader lineReader = new BufferedReader(reader);
+        Map<String, String> current = null;
+        String line;
+        while ((line = lineReader.readLine()) != null) {
+            final int commentPos = line.indexOf(';');
+            if (commentPos >= 0) {
+                line = line.substring(0, commentPos);
+            }
+            line = line.trim();
+            if (line.length() == 0) {
+                continue;
+            }
+            final Matcher matcher = SECTION_PATTERN.matcher(line);
+            if (matcher.matches()) {
+                String name = matcher.group(1);
+                if (matcher.group(2) != null) {
+                    name += "(" + matcher.group(2).replaceAll("\\s", "") + ")";
+                }
+                current = new HashMap<String, String>();
+                sections.put(name, current);
+            } else {
+                final int equalsPos = line.indexOf('=');
+                if (current != null && equalsPos > 0) {
+                    current.put(line.substring(0, equalsPos).trim(), line.substring(equalsPos + 1).trim());
+                }
+            }
+        }
+        return sections;
+    }
+
+    private static long fingerprint(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (8 * i)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static NnaNet createNet(Map<String, Map<String, String>> sections) {
+        final Map<String, String> net = getSection(sections, "Net");
+        final int numLayers = getInt(net, "NumLayers");
+        if (numLayers < 2) {
+            throw new IllegalArgumentException("at least two layers expected");
+        }
+        if (getInt(net, "InpLayer") != 1 || getInt(net, "OutLayer") != numLayers) {
+            throw new IllegalArgumentException("the first layer must be the input and the last the output layer");
+        }
+
+        final int[] unitCounts = new int[numLayers];
+        final double[][] weights = new double[numLayers][];
+        final double[][] biases = new double[numLayers][];
+        final int[] activations = new int[numLayers];
+        for (int l = 0; l < numLayers; l++) {
+            final Map<String, String> layer = getSection(sections, "Layer(" + (l + 1) + ")");
+            unitCounts[l] = getInt(layer, "NumUnits");
+            if (l == 0) {
+                expect(layer, "InpFunc", "Zero");
+                expect(layer, "ActFunc", "Identity");
+            } else {
+                expect(layer, "InpFunc", "Sum_1");
+                activations[l] = getActivation(layer.get("ActFunc"));
+            }
+            expect(layer, "OutFunc", "Identity");
+            expect(layer, "ActThres", 0.0);
+            expect(layer, "ActSlope", 1.0);
+
+            if (l > 0) {
+                weights[l] = new double[unitCounts[l] * unitCounts[l - 1]];
+                biases[l] = new double[unitCounts[l]];
+            }
+            for (int u = 0; u < unitCounts[l]; u++) {
+                final Map<String, String> unit = getSection(sections, "Unit(" + (l + 1) + "," + (u + 1) + ")");
+                expect(unit, "InpScale", 1.0);
+                expect(unit, "OutScale", 1.0);
+                expect(unit, "OutBias", 0.0);
+                if (l == 0) {
+                    expect(unit, "InpBias", 0.0);
+                } else {
+                    biases[l][u] = getDouble(unit, "InpBias");
+                    readConnections(unit, l, u, unitCounts[l - 1], weights[l]);
+                }
+            }
+        }
+        return new NnaNet(unitCounts, weights, biases, activations);
+    }
+
+    /**
+     * Reads the connections <code>C(k) = layer, unit, weight</code> of a unit, all connections must come
+     * from the preceding layer.
+     */
+    private static void readConnections(Map<String, String> unit, int layer, int unitIndex, int numInputs,
+                                        double[] weights) {
+        for (Map.Entry<String, String> entry : unit.entrySet()) {
+            if (!CONNECTION_PATTERN.matcher(entry.getKey()).matches()) {
+                continue;
+            }
+            final String[] parts = entry.getValue().split(",");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("invalid connection '" + entry.getValue() + "'");
+            }
+            final int srcLayer = Integer.parseInt(parts[0].trim()) - 1;
+            final int srcUnit = Integer.parseInt(parts[1].trim()) - 1;
+            if (srcLayer != layer - 1 || srcUnit < 0 || srcUnit >= numInputs) {
+                throw new IllegalArgumentException("connection '" + entry.getValue() + "' of layer " + (layer + 1)
+                                                   + " does not come from the preceding layer");
+            }
+            weights[unitIndex * numInputs + srcUnit] = Double.parseDouble(parts[2].trim());
+        }
+    }
+
+    private static int getActivation(String name) {
+        if ("Identity".equals(name)) {
+            return ACTIVATION_IDENTITY;
+        }
+        if ("TangSigmoid".equals(name)) {
+            return ACTIVATION_TANH;
+        }
+        throw new IllegalArgumentException("activation function '" + name + "'");
+    }
+
+    private static Map<String, String> getSection(Map<String, Map<String, String>> sections, String name) {
+        final Map<String, String> section = sections.get(name);
+        if (section == null) {
+            throw new IllegalArgumentException("missing section '" + name + "'");
+        }
+        return section;
+    }
+
+    private static String getValue(Map<String, String> section, String key) {
+        final String value = section.get(key);
+        if (value == null) {
+            throw new IllegalArgumentException("missing value '" + key + "'");
+        }
+        return value;
+    }
+
+    private static int getInt(Map<String, String> section, String key) {
+        return (int) getDouble(section, key);
+    }
+
+    private static double getDouble(Map<String, String> section, String key) {
+        final String value = getValue(section, key);
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid number '" + value + "' for '" + key + "'");
+        }
+    }
+
+    private static void expect(Map<String, String> section, String key, String expected) {
+        final String value = getValue(section, key);
+        if (!expected.equals(value)) {
+            throw new IllegalArgumentException(key + " '" + value + "'");
+        }
+    }
+
+    private static void expect(Map<String, String> section, String key, double expected) {
+        final String value = section.get(key);
+        if (value != null && getDouble(section, key) != expected) {
+            throw new IllegalArgumentException(key + " '" + value + "'");
+        }
+    }
+}
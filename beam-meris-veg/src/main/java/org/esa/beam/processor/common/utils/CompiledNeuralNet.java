@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.common.utils;
+
+/**
+ * A neural net compiled into Java code by the {@link NnaNetCompiler}. The weights are constants of the
+ * generated class and the units are evaluated in straight-line code, in the same order as
+ * {@link org.esa.beam.processor.common.auxdata.NnaNet#process(double[], double[])}, so both compute
+ * identical outputs. Implementations hold no mutable state and can be shared by several threads.
+ */
+public interface CompiledNeuralNet {
+
+    /**
+     * Retrieves the fingerprint of the net the code was generated from, see
+     * {@link org.esa.beam.processor.common.auxdata.NnaNet#getFingerprint()}.
+     */
+    long getFingerprint();
+
+    /**
+     * Retrieves the number of inputs of the net.
+     */
+    int getInputCount();
+
+    /**
+     * Retrieves the number of outputs of the net.
+     */
+    int getOutputCount();
+
+    /**
+     * Computes the outputs of the net for one input vector.
+     *
+     * @param input        the input vector
+     * @param output       receives the outputs
+     * @param outputOffset the index of the first output within <code>output</code>
+     */
+    void process(double[] input, double[] output, int outputOffset);
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.common.utils;
+
+import org.esa.beam.processor.common.auxdata.NnaNet;
+import org.esa.beam.util.Guardian;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selects between the neural net interpreter and the nets compiled by the {@link NnaNetCompiler}. The
+ * compiled nets are used if the system property {@link #ENABLED_PROPERTY} is <code>true</code>; a net
+ * read at runtime is replaced by its compiled version only if both have the same fingerprint, so nets
+ * changed by the user in the auxdata directory are always interpreted.
+ */
+public final class CompiledNeuralNets {
+
+    /**
+     * The name of the system property switching the compiled nets on.
+     */
+    public static final String ENABLED_PROPERTY = "beam.meris.veg.compiledNets";
+
+    private static CompiledNeuralNet[] _nets;
+
+    private CompiledNeuralNets() {
+    }
+
+    /**
+     * Retrieves whether the compiled nets are switched on by the system property {@link #ENABLED_PROPERTY}.
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_PROPERTY);
+    }
+
+    /**
+     * Retrieves the compiled version of a net.
+     *
+     * @param net the net
+     * @return the compiled net, or <code>null</code> if the net has not been compiled
+     */
+    public static CompiledNeuralNet find(NnaNet net) {
+        Guardian.assertNotNull("net", net);
+        return find(net, getNets());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Retrieves the compiled version of a net from the given compiled nets.
+     */
+    static CompiledNeuralNet find(NnaNet net, CompiledNeuralNet[] compiledNets) {
+        final long fingerprint = net.getFingerprint();
+        for (CompiledNeuralNet compiledNet : compiledNets) {
+            if (compiledNet.getFingerprint() == fingerprint
+                && compiledNet.getInputCount() == net.getInputCount()
+                && compiledNet.getOutputCount() == net.getOutputCount()) {
+                return compiledNet;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Loads the index generated by the build profile <code>compiled-nets</code>. Without it, e.g. when the
+     * module was built without the profile or compiled by an IDE only, there are no compiled nets and the
+     * interpreter is used.
+     */
+    private static synchronized CompiledNeuralNet[] getNets() {
+        if (_nets == null) {
+            try {
+                final Class<?> indexClass = Class.forName(NnaNetCompiler.INDEX_CLASS_NAME);
+                _nets = (CompiledNeuralNet[]) indexClass.getMethod("createNets").invoke(null);
+            } catch (Exception e) {
+                Logger.getLogger(CompiledNeuralNets.class.getName()).log(
+                        Level.WARNING, "No compiled neural nets available, build with profile compiled-nets", e);
+                _nets = new CompiledNeuralNet[0];
+            }
+        }
+        return _nets;
+    }
+}
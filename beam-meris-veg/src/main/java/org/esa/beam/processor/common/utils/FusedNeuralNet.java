@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.common.utils;
+
+import org.esa.beam.processor.common.auxdata.NnaNet;
+import org.esa.beam.util.Guardian;
+
+/**
+ * Evaluates several neural nets sharing the same input vector in a single pass. The nets ("heads") are
+ * merged layer by layer into one net whose units are stored in evaluation order: all units of the first
+ * hidden layer of all heads, then those of the second hidden layer, and so on. The weights of every unit
+ * are held in one flat array in the same order, so a pass reads the weights strictly sequentially and
+ * reads the input vector once for all heads.
+ * <p/>
+ * The outputs of the heads are concatenated in the order the heads are given. An instance is not modified
+ * after construction and can be shared by several threads, each thread passing its own buffer created by
+ * {@link #createBuffer()}.
+ * <p/>
+ * A batch of input vectors is evaluated in blocks of up to {@link #BLOCK_SIZE} vectors, unit by unit with the
+ * input vector being the innermost loop, so the products run over contiguous values and are computed by the
+ * {@link NeuralNetKernel} selected by {@link NeuralNetKernels}, the SIMD implementation if available. Every
+ * output still sums its terms in the same order as a single pass, so the results are identical.
+ */
+public final class FusedNeuralNet {
+
+    /**
+     * The maximum number of input vectors evaluated together in a batch.
+     */
+    public static final int BLOCK_SIZE = 64;
+
+    private static final NeuralNetKernel _defaultKernel = NeuralNetKernels.getDefault();
+
+    private final int _inputCount;
+    private final int _outputCount;
+    private final int _unitCount;
+    // index of the first output unit within the values buffer
+    private final int _outputOffset;
+
+    // per unit, in evaluation order
+    private final double[] _biases;
+    private final int[] _sourceOffsets;
+    private final int[] _sourceCounts;
+    private final int[] _activations;
+
+    // the weights of all units, row by row in evaluation order
+    private final double[] _weights;
+
+    /**
+     * Constructs a fused net.
+     *
+     * @param heads the nets, all with the same number of inputs and layers
+     */
+    public FusedNeuralNet(NnaNet... heads) {
+        Guardian.assertNotNull("heads", heads);
+        if (heads.length == 0) {
+            throw new IllegalArgumentException("at least one net expected");
+        }
+        final int numLayers = heads[0].getLayerCount();
+        _inputCount = heads[0].getInputCount();
+        for (NnaNet head : heads) {
+            Guardian.assertNotNull("head", head);
+            if (head.getInputCount() != _inputCount || head.getLayerCount() != numLayers) {
+                throw new IllegalArgumentException("nets differ in the number of inputs or layers");
+            }
+        }
+
+        int numUnits = 0;
+        int numWeights = 0;
+        for (NnaNet head : heads) {
+            for (int l = 1; l < numLayers; l++) {
+                numUnits += head.getUnitCount(l);
+                numWeights += head.getUnitCount(l) * head.getUnitCount(l - 1);
+            }
+        }
+        _unitCount = numUnits;
+        _biases = new double[numUnits];
+        _sourceOffsets = new int[numUnits];
+        _sourceCounts = new int[numUnits];
+        _activations = new int[numUnits];
+        _weights = new double[numWeights];
+
+        // the values buffer holds the input vector followed by the unit values in evaluation order
+        final int[] layerOffsets = new int[heads.length];
+        int unit = 0;
+        int weight = 0;
+        int layerStart = _inputCount;
+        for (int l = 1; l < numLayers; l++) {
+            int unitOffset = layerStart;
+            for (int h = 0; h < heads.length; h++) {
+                final NnaNet head = heads[h];
+                final int numHeadUnits = head.getUnitCount(l);
+                final int numSources = head.getUnitCount(l - 1);
+                final double[] headWeights = head.getWeights(l);
+                final double[] headBiases = head.getBiases(l);
+                for (int u = 0; u < numHeadUnits; u++) {
+                    _biases[unit] = headBiases[u];
+                    // the first hidden layer reads the input vector shared by all heads
+                    _sourceOffsets[unit] = l == 1 ? 0 : layerOffsets[h];
+                    _sourceCounts[unit] = numSources;
+                    _activations[unit] = head.getActivation(l);
+                    System.arraycopy(headWeights, u * numSources, _weights, weight, numSources);
+                    weight += numSources;
+                    unit++;
+                }
+                layerOffsets[h] = unitOffset;
+                unitOffset += numHeadUnits;
+            }
+            layerStart = unitOffset;
+        }
+        int numOutputs = 0;
+        for (NnaNet head : heads) {
+            numOutputs += head.getOutputCount();
+        }
+        _outputCount = numOutputs;
+        _outputOffset = layerStart - numOutputs;
+    }
+
+    /**
+     * Retrieves the number of inputs shared by all heads.
+     */
+    public int getInputCount() {
+        return _inputCount;
+    }
+
+    /**
+     * Retrieves the number of outputs of all heads.
+     */
+    public int getOutputCount() {
+        return _outputCount;
+    }
+
+    /**
+     * Creates a buffer for the intermediate values of a pass or a batch. A buffer must not be shared between
+     * threads.
+     */
+    public double[] createBuffer() {
+        return new double[(_inputCount + _unitCount) * BLOCK_SIZE];
+    }
+
+    /**
+     * Computes the outputs of all heads for one input vector.
+     *
+     * @param input  the input vector
+     * @param output receives the outputs of all heads
+     * @param buffer a buffer created by {@link #createBuffer()}
+     */
+    public void process(double[] input, double[] output, double[] buffer) {
+        evaluate(input, buffer);
+        System.arraycopy(buffer, _outputOffset, output, 0, _outputCount);
+    }
+
+    /**
+     * Computes the outputs of all heads for a batch of input vectors.
+     *
+     * @param inputs  the input vectors
+     * @param count   the number of input vectors to process
+     * @param outputs receives the outputs, <code>outputs[k][i]</code> being output k of input vector i
+     * @param buffer  a buffer created by {@link #createBuffer()}
+     */
+    public void process(double[][] inputs, int count, double[][] outputs, double[] buffer) {
+        process(inputs, count, outputs, buffer, _defaultKernel);
+    }
+
+    /**
+     * Same as {@link #process(double[][], int, double[][], double[])}, using the given kernel.
+     */
+    void process(double[][] inputs, int count, double[][] outputs, double[] buffer, NeuralNetKernel kernel) {
+        for (int start = 0; start < count; start += BLOCK_SIZE) {
+            final int n = Math.min(BLOCK_SIZE, count - start);
+            evaluateBlock(inputs, start, n, buffer, kernel);
+            for (int k = 0; k < _outputCount; k++) {
+                final int offset = (_outputOffset + k) * BLOCK_SIZE;
+                final double[] output = outputs[k];
+                for (int p = 0; p < n; p++) {
+                    output[start + p] = buffer[offset + p];
+                }
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private void evaluate(double[] input, double[] values) {
+        System.arraycopy(input, 0, values, 0, _inputCount);
+        final double[] weights = _weights;
+        int w = 0;
+        for (int u = 0; u < _unitCount; u++) {
+            final int offset = _sourceOffsets[u];
+            final int end = offset + _sourceCounts[u];
+            double sum = _biases[u];
+            for (int i = offset; i < end; i++) {
+                sum += weights[w++] * values[i];
+            }
+            values[_inputCount + u] = NnaNet.activate(_activations[u], sum);
+        }
+    }
+
+    /*
+     * Evaluates a block of input vectors, the values are stored as [input or unit][vector].
+     */
+    private void evaluateBlock(double[][] inputs, int start, int n, double[] values, NeuralNetKernel kernel) {
+        for (int i = 0; i < _inputCount; i++) {
+            final int offset = i * BLOCK_SIZE;
+            for (int p = 0; p < n; p++) {
+                values[offset + p] = inputs[start + p][i];
+            }
+        }
+        final double[] weights = _weights;
+        int w = 0;
+        for (int u = 0; u < _unitCount; u++) {
+            final int offset = (_inputCount + u) * BLOCK_SIZE;
+            final double bias = _biases[u];
+            for (int p = 0; p < n; p++) {
+                values[offset + p] = bias;
+            }
+            final int sourceOffset = _sourceOffsets[u];
+            final int sourceEnd = sourceOffset + _sourceCounts[u];
+            for (int i = sourceOffset; i < sourceEnd; i++) {
+                kernel.axpy(weights[w++], values, i * BLOCK_SIZE, values, offset, n);
+            }
+            final int activation = _activations[u];
+            for (int p = 0; p < n; p++) {
+                values[offset + p] = NnaNet.activate(activation, values[offset + p]);
+            }
+        }
+    }
+}
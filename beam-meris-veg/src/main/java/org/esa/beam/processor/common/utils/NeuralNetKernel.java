@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.common.utils;
+
+/**
+ * The vector operation of the batch evaluation of a {@link FusedNeuralNet}. Every element is computed by the
+ * same operations as in scalar code, a multiplication followed by an addition without fused multiply-add, so
+ * all implementations give identical results. Use {@link NeuralNetKernels} to get an implementation.
+ */
+public interface NeuralNetKernel {
+
+    /**
+     * Retrieves a short name of the implementation, e.g. for log messages.
+     */
+    String getName();
+
+    /**
+     * Computes <code>y[yOffset + p] += a * x[xOffset + p]</code> for <code>0 &lt;= p &lt; n</code>.
+     */
+    void axpy(double a, double[] x, int xOffset, double[] y, int yOffset, int n);
+}
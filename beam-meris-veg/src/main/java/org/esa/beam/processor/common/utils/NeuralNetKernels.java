@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.common.utils;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selects the implementation of {@link NeuralNetKernel}.
+ * <p/>
+ * The SIMD implementation uses the vector API of the module <code>jdk.incubator.vector</code>. It is compiled
+ * into the Java 16 layer of the multi-release module JAR, see the profile <code>simd</code> of the
+ * <code>pom.xml</code>, and is only available on Java 16 or later with
+ * <code>--add-modules jdk.incubator.vector</code>. It is used if available, unless the system property
+ * {@link #SIMD_PROPERTY} is set to <code>false</code>; else the scalar implementation is used.
+ */
+public final class NeuralNetKernels {
+
+    /**
+     * The name of the system property switching the SIMD implementation off.
+     */
+    public static final String SIMD_PROPERTY = "beam.meris.veg.simd";
+
+    private static final String VECTOR_KERNEL_CLASS_NAME =
+            "org.esa.beam.processor.common.utils.VectorNeuralNetKernel";
+
+    private static final NeuralNetKernel _scalarKernel = new ScalarNeuralNetKernel();
+    private static final NeuralNetKernel _vectorKernel = createVectorKernel();
+
+    private NeuralNetKernels() {
+    }
+
+    /**
+     * Retrieves the implementation to be used.
+     */
+    public static NeuralNetKernel getDefault() {
+        if (_vectorKernel != null && !"false".equalsIgnoreCase(System.getProperty(SIMD_PROPERTY))) {
+            return _vectorKernel;
+        }
+        return _scalarKernel;
+    }
+
+    /**
+     * Retrieves the scalar implementation.
+     */
+    public static NeuralNetKernel getScalar() {
+        return _scalarKernel;
+    }
+
+    /**
+     * Retrieves the SIMD implementation.
+     *
+     * @return the SIMD implementation, or <code>null</code> if not available
+     */
+    public static NeuralNetKernel getVector() {
+        return _vectorKernel;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static NeuralNetKernel createVectorKernel() {
+        try {
+            final Class<?> kernelClass = Class.forName(VECTOR_KERNEL_CLASS_NAME);
+            if (!(Boolean) kernelClass.getMethod("isSupported").invoke(null)) {
+                Logger.getLogger(NeuralNetKernels.class.getName()).fine(
+                        "SIMD neural net kernel not supported by the platform");
+                return null;
+            }
+            return (NeuralNetKernel) kernelClass.getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            // Java before 16, or not built with the SIMD layer
+            return null;
+        } catch (Throwable t) {
+            // LinkageError if the module jdk.incubator.vector has not been added
+            Logger.getLogger(NeuralNetKernels.class.getName()).log(Level.FINE,
+                                                                   "SIMD neural net kernel not available", t);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.common.utils;
+
+import org.esa.beam.processor.common.auxdata.NnaNet;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates Java code for the neural nets of the vegetation processors. Every <code>.nna</code> file is
+ * turned into a class implementing {@link CompiledNeuralNet}: the weights and biases become static final
+ * arrays and every unit is computed by one straight-line expression, the input and unit values being held
+ * in local variables. An index class {@link #INDEX_CLASS_NAME} lists all generated nets, it is looked up
+ * at runtime by {@link CompiledNeuralNets}.
+ * <p/>
+ * The generator is run by the build profile <code>compiled-nets</code> (see the <code>pom.xml</code>) on the
+ * nets shipped in the auxdata resources. It only depends on {@link NnaNet} and the JDK, so it can be
+ * compiled before the module.
+ * <p/>
+ * Usage: <code>NnaNetCompiler &lt;outputDir&gt; &lt;nnaFile&gt;...</code>
+ */
+public final class NnaNetCompiler {
+
+    /**
+     * The package of the generated classes.
+     */
+    public static final String PACKAGE_NAME = "org.esa.beam.processor.common.utils.nets";
+    /**
+     * The fully qualified name of the generated index class.
+     */
+    public static final String INDEX_CLASS_NAME = PACKAGE_NAME + ".GeneratedNeuralNets";
+
+    // HotSpot does not compile methods with more than 8000 bytes of bytecode, a weight takes about 10 bytes
+    private static final int MAX_WEIGHT_COUNT = 750;
+
+    private NnaNetCompiler() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: NnaNetCompiler <outputDir> <nnaFile>...");
+            System.exit(1);
+        }
+        final File packageDir = new File(args[0], PACKAGE_NAME.replace('.', File.separatorChar));
+        if (!packageDir.isDirectory() && !packageDir.mkdirs()) {
+            throw new IOException("Cannot create directory '" + packageDir + "'");
+        }
+
+        final List<String> classNames = new ArrayList<String>();
+        for (int i = 1; i < args.length; i++) {
+            final File nnaFile = new File(args[i]);
+            final String className = getClassName(nnaFile.getName());
+            if (classNames.contains(className)) {
+                throw new IOException("Two nets map to the class name '" + className + "'");
+            }
+            final NnaNet net = NnaNet.read(nnaFile);
+            final Writer writer = new FileWriter(new File(packageDir, className + ".java"));
+            try {
+                writeNet(net, nnaFile.getName(), className, writer);
+            } finally {
+                writer.close();
+            }
+            classNames.add(className);
+        }
+
+        final String indexClassName = INDEX_CLASS_NAME.substring(PACKAGE_NAME.length() + 1);
+        final Writer writer = new FileWriter(new File(packageDir, indexClassName + ".java"));
+        try {
+            writeIndex(classNames, indexClassName, writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes the class of a net.
+     *
+     * @param net       the net
+     * @param source    the name of the <code>.nna</code> file, written into the class comment
+     * @param className the simple name of the class
+     * @param writer    the writer, not closed by this method
+     * @throws IOException if the net has too many weights to be compiled into a single method
+     */
+    public static void writeNet(NnaNet net, String source, String className, Writer writer) throws IOException {
+        final int numLayers = net.getLayerCount();
+        int numWeights = 0;
+        for (int l = 1; l < numLayers; l++) {
+            numWeights += net.getWeights(l).length;
+        }
+        if (numWeights > MAX_WEIGHT_COUNT) {
+            throw new IOException("Net '" + source + "' has " + numWeights + " weights, at most "
+                                  + MAX_WEIGHT_COUNT + " can be compiled");
+        }
+
+        final PrintWriter out = new PrintWriter(writer);
+        out.println("// Generated by " + NnaNetCompiler.class.getName() + " from " + source + " - do not edit.");
+        out.println("package " + PACKAGE_NAME + ";");
+        out.println();
+        out.println("import " + CompiledNeuralNet.class.getName() + ";");
+        out.println();
+        out.println("public final class " + className + " implements CompiledNeuralNet {");
+        out.println();
+        out.println("    private static final long FINGERPRINT = 0x" + Long.toHexString(net.getFingerprint()) + "L;");
+        for (int l = 1; l < numLayers; l++) {
+            out.println();
+            writeArray(out, "W" + l, net.getWeights(l));
+            writeArray(out, "B" + l, net.getBiases(l));
+        }
+        out.println();
+        out.println("    public long getFingerprint() {");
+        out.println("        return FINGERPRINT;");
+        out.println("    }");
+        out.println();
+        out.println("    public int getInputCount() {");
+        out.println("        return " + net.getInputCount() + ";");
+        out.println("    }");
+        out.println();
+        out.println("    public int getOutputCount() {");
+        out.println("        return " + net.getOutputCount() + ";");
+        out.println("    }");
+        out.println();
+        out.println("    public void process(double[] input, double[] output, int outputOffset) {");
+        for (int l = 1; l < numLayers; l++) {
+            out.println("        final double[] w" + l + " = W" + l + ";");
+            out.println("        final double[] b" + l + " = B" + l + ";");
+        }
+        for (int i = 0; i < net.getInputCount(); i++) {
+            out.println("        final double v0_" + i + " = input[" + i + "];");
+        }
+        for (int l = 1; l < numLayers; l++) {
+            final int numUnits = net.getUnitCount(l);
+            final int numSources = net.getUnitCount(l - 1);
+            final boolean tanh = net.getActivation(l) == NnaNet.ACTIVATION_TANH;
+            for (int u = 0; u < numUnits; u++) {
+                // same summation order as NnaNet.process, so the results are identical
+                final StringBuilder sum = new StringBuilder("b" + l + "[" + u + "]");
+                for (int i = 0; i < numSources; i++) {
+                    sum.append(" + w").append(l).append('[').append(u * numSources + i).append("] * v")
+                            .append(l - 1).append('_').append(i);
+                }
+                final String value = tanh ? "Math.tanh(" + sum + ")" : sum.toString();
+                if (l < numLayers - 1) {
+                    out.println("        final double v" + l + "_" + u + " = " + value + ";");
+                } else {
+                    out.println("        output[outputOffset + " + u + "] = " + value + ";");
+                }
+            }
+        }
+        out.println("    }");
+        out.println("}");
+        out.flush();
+        if (out.checkError()) {
+            throw new IOException("Cannot write class '" + className + "'");
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Derives the class name from the file name, e.g. <code>toa_veg_nn_LAI.nna</code> becomes
+     * <code>ToaVegNnLAI</code>.
+     */
+    static String getClassName(String fileName) {
+        final String baseName = fileName.endsWith(".nna") ? fileName.substring(0, fileName.length() - 4) : fileName;
+        final StringBuilder className = new StringBuilder();
+        for (String part : baseName.split("[^A-Za-z0-9]+")) {
+            if (part.length() > 0) {
+                className.append(Character.toUpperCase(part.charAt(0))).append(part.substring(1));
+            }
+        }
+        if (className.length() == 0 || !Character.isJavaIdentifierStart(className.charAt(0))) {
+            className.insert(0, "Net");
+        }
+        return className.toString();
+    }
+
+    private static void writeArray(PrintWriter out, String name, double[] values) throws IOException {
+        out.print("    private static final double[] " + name + " = {");
+        for (int i = 0; i < values.length; i++) {
+            if (Double.isNaN(values[i]) || Double.isInfinite(values[i])) {
+                throw new IOException("Invalid value " + values[i] + " in " + name);
+            }
+            out.print(i % 4 == 0 ? "\n            " : " ");
+            // Double.toString gives the shortest literal which reads back to the same value
+            out.print(Double.toString(values[i]));
+            if (i < values.length - 1) {
+                out.print(",");
+            }
+        }
+        out.println();
+        out.println("    };");
+    }
+
+    private static void writeIndex(List<String> classNames, String indexClassName, Writer writer) throws
+                                                                                                  IOException {
+        final PrintWriter out = new PrintWriter(writer);
+        out.println("// Generated by " + NnaNetCompiler.class.getName() + " - do not edit.");
+        out.println("package " + PACKAGE_NAME + ";");
+        out.println();
+        out.println("import " + CompiledNeuralNet.class.getName() + ";");
+        out.println();
+        out.println("public final class " + indexClassName + " {");
+        out.println();
+        out.println("    private " + indexClassName + "() {");
+        out.println("    }");
+        out.println();
+        out.println("    public static CompiledNeuralNet[] createNets() {");
+        out.println("        return new CompiledNeuralNet[]{");
+        for (int i = 0; i < classNames.size(); i++) {
+            out.println("                new " + classNames.get(i) + "()" + (i < classNames.size() - 1 ? "," : ""));
+        }
+        out.println("        };");
+        out.println("    }");
+        out.println("}");
+        out.flush();
+        if (out.checkError()) {
+            throw new IOException("Cannot write class '" + indexClassName + "'");
+        }
+    }
+}
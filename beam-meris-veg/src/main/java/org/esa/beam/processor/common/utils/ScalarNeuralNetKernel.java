@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.common.utils;
+
+/**
+ * The plain Java implementation of {@link NeuralNetKernel}, used if no SIMD implementation is available.
+ */
+final class ScalarNeuralNetKernel implements NeuralNetKernel {
+
+    public String getName() {
+        return "scalar";
+    }
+
+    public void axpy(double a, double[] x, int xOffset, double[] y, int yOffset, int n) {
+        for (int p = 0; p < n; p++) {
+            y[yOffset + p] += a * x[xOffset + p];
+        }
+    }
+}
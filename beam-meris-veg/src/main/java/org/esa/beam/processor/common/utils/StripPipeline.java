@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.common.utils;
+
+import org.esa.beam.util.Guardian;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overlaps reading, computing and writing of the line processors. The scene is processed in strips of
+ * several lines: a reader thread reads strip k+1 while the calling thread computes strip k, and a writer
+ * thread writes the computed strips. The strips are kept in a fixed number of buffers which are passed
+ * through bounded queues, so at most {@link #NUM_BUFFERS} strips are held in memory.
+ * <p/>
+ * All product reads are done by the reader thread and all product writes by the writer thread, the
+ * {@link Stage#compute} method runs on the calling thread and may use the progress monitor. When it
+ * returns <code>false</code>, no more strips are read, but all strips computed so far are written before
+ * {@link #run()} returns, as the line loops did before.
+ * <p/>
+ * The strip height defaults to {@link #DEFAULT_STRIP_HEIGHT} and can be set by the system property
+ * {@link #STRIP_HEIGHT_PROPERTY}.
+ */
+public final class StripPipeline<T> {
+
+    /**
+     * The name of the system property holding the strip height in lines.
+     */
+    public static final String STRIP_HEIGHT_PROPERTY = "beam.meris.veg.stripHeight";
+    /**
+     * The default strip height in lines.
+     */
+    public static final int DEFAULT_STRIP_HEIGHT = 16;
+    /**
+     * The number of strip buffers: one being read, one being computed and one being written.
+     */
+    public static final int NUM_BUFFERS = 3;
+
+    private final Stage<T> _stage;
+    private final int _height;
+    private final int _stripHeight;
+    private final BlockingQueue<Strip<T>> _free;
+    private final BlockingQueue<Strip<T>> _read;
+    private final BlockingQueue<Strip<T>> _computed;
+    private final Strip<T> _end;
+    private volatile boolean _stopped;
+    private IOException _error;
+
+    /**
+     * The processing steps of a strip.
+     */
+    public interface Stage<T> {
+
+        /**
+         * Allocates the buffers of a strip.
+         *
+         * @param stripHeight the maximum number of lines of the strip
+         */
+        T createStrip(int stripHeight);
+
+        /**
+         * Reads the input data of a strip. Called on the reader thread.
+         *
+         * @param strip  the strip buffers
+         * @param y      the first line of the strip
+         * @param height the number of lines of the strip
+         */
+        void read(T strip, int y, int height) throws IOException;
+
+        /**
+         * Computes the output data of a strip. Called on the thread running the pipeline.
+         *
+         * @param strip  the strip buffers
+         * @param y      the first line of the strip
+         * @param height the number of lines of the strip
+         * @return false to stop processing after this strip
+         */
+        boolean compute(T strip, int y, int height) throws IOException;
+
+        /**
+         * Writes the output data of a strip. Called on the writer thread.
+         *
+         * @param strip  the strip buffers
+         * @param y      the first line of the strip
+         * @param height the number of lines of the strip
+         */
+        void write(T strip, int y, int height) throws IOException;
+    }
+
+    /**
+     * Constructs a pipeline with the strip height given by the system property
+     * {@link #STRIP_HEIGHT_PROPERTY}.
+     *
+     * @param stage  the processing steps
+     * @param height the number of lines of the scene
+     */
+    public StripPipeline(Stage<T> stage, int height) {
+        this(stage, height, getStripHeight());
+    }
+
+    /**
+     * Constructs a pipeline.
+     *
+     * @param stage       the processing steps
+     * @param height      the number of lines of the scene
+     * @param stripHeight the number of lines per strip
+     */
+    public StripPipeline(Stage<T> stage, int height, int stripHeight) {
+        Guardian.assertNotNull("stage", stage);
+        if (stripHeight < 1) {
+            throw new IllegalArgumentException("stripHeight < 1");
+        }
+        _stage = stage;
+        _height = height;
+        _stripHeight = Math.max(1, Math.min(stripHeight, height));
+        // one more slot than buffers, so the end marker always fits
+        _free = new ArrayBlockingQueue<Strip<T>>(NUM_BUFFERS + 1);
+        _read = new ArrayBlockingQueue<Strip<T>>(NUM_BUFFERS + 1);
+        _computed = new ArrayBlockingQueue<Strip<T>>(NUM_BUFFERS + 1);
+        _end = new Strip<T>(null);
+    }
+
+    /**
+     * Retrieves the strip height set by the system property {@link #STRIP_HEIGHT_PROPERTY}, or the default.
+     */
+    public static int getStripHeight() {
+        return Math.max(1, Integer.getInteger(STRIP_HEIGHT_PROPERTY, DEFAULT_STRIP_HEIGHT));
+    }
+
+    /**
+     * Processes all strips of the scene and waits until the last computed strip is written.
+     *
+     * @return true if all strips have been processed, false if {@link Stage#compute} has stopped the
+     *         processing
+     * @throws IOException if a strip could not be read, computed or written
+     */
+    public boolean run() throws IOException {
+        for (int i = 0; i < NUM_BUFFERS; i++) {
+            _free.add(new Strip<T>(_stage.createStrip(_stripHeight)));
+        }
+
+        final Thread reader = new Thread(new Runnable() {
+            public void run() {
+                readStrips();
+            }
+        }, "StripPipeline-reader");
+        final Thread writer = new Thread(new Runnable() {
+            public void run() {
+                writeStrips();
+            }
+        }, "StripPipeline-writer");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+
+        boolean completed = false;
+        try {
+            completed = computeStrips();
+        } finally {
+            _stopped = true;
+            _computed.add(_end);
+            join(reader);
+            join(writer);
+        }
+
+        synchronized (this) {
+            if (_error != null) {
+                throw _error;
+            }
+        }
+        return completed;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private boolean computeStrips() throws IOException {
+        while (true) {
+            final Strip<T> strip = take(_read);
+            if (strip == _end) {
+                // all strips read, or the reader has failed
+                return !hasFailed();
+            }
+            boolean proceed = false;
+            boolean computed = false;
+            try {
+                proceed = _stage.compute(strip._data, strip._y, strip._height);
+                computed = true;
+            } finally {
+                // a strip which failed to compute is not written
+                if (computed) {
+                    _computed.add(strip);
+                } else {
+                    _free.add(strip);
+                }
+            }
+            if (!proceed || hasFailed()) {
+                return false;
+            }
+        }
+    }
+
+    private void readStrips() {
+        try {
+            for (int y = 0; y < _height; y += _stripHeight) {
+                final Strip<T> strip = takeFree();
+                if (strip == null) {
+                    break;
+                }
+                strip._y = y;
+                strip._height = Math.min(_stripHeight, _height - y);
+                _stage.read(strip._data, strip._y, strip._height);
+                _read.add(strip);
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(e);
+        } finally {
+            _read.add(_end);
+        }
+    }
+
+    private void writeStrips() {
+        while (true) {
+            final Strip<T> strip;
+            try {
+                strip = take(_computed);
+            } catch (InterruptedIOException e) {
+                fail(e);
+                return;
+            }
+            if (strip == _end) {
+                return;
+            }
+            // after a failure the strips are only passed back, so that the other threads can finish
+            if (!hasFailed()) {
+                try {
+                    _stage.write(strip._data, strip._y, strip._height);
+                } catch (IOException e) {
+                    fail(e);
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+            }
+            _free.add(strip);
+        }
+    }
+
+    /**
+     * Waits for a free strip buffer.
+     *
+     * @return the buffer, or null if the pipeline has been stopped
+     */
+    private Strip<T> takeFree() throws InterruptedIOException {
+        try {
+            while (!_stopped) {
+                final Strip<T> strip = _free.poll(100, TimeUnit.MILLISECONDS);
+                if (strip != null) {
+                    return strip;
+                }
+            }
+            return null;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Strip pipeline interrupted");
+        }
+    }
+
+    private synchronized void fail(Exception e) {
+        if (_error == null) {
+            if (e instanceof IOException) {
+                _error = (IOException) e;
+            } else {
+                _error = new IOException(e.getMessage(), e);
+            }
+        }
+        _stopped = true;
+    }
+
+    private synchronized boolean hasFailed() {
+        return _error != null;
+    }
+
+    private static <T> Strip<T> take(BlockingQueue<Strip<T>> queue) throws InterruptedIOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Strip pipeline interrupted");
+        }
+    }
+
+    private static void join(Thread thread) throws InterruptedIOException {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Strip pipeline interrupted");
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    ////// CLASS //////////////////////////////////////////////////////////////
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static final class Strip<T> {
+
+        private final T _data;
+        private int _y;
+        private int _height;
+
+        private Strip(T data) {
+            _data = data;
+        }
+    }
+}
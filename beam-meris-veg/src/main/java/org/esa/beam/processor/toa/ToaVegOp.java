@@ -17,13 +17,13 @@
 package org.esa.beam.processor.toa;
 
 import com.bc.ceres.core.ProgressMonitor;
-import com.bc.jnn.JnnException;
 import org.esa.beam.dataio.envisat.EnvisatConstants;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.FlagCoding;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.datamodel.ProductData;
 import org.esa.beam.framework.datamodel.ProductNodeFilter;
+import org.esa.beam.framework.gpf.Operator;
 import org.esa.beam.framework.gpf.OperatorException;
 import org.esa.beam.framework.gpf.OperatorSpi;
 import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
@@ -35,10 +35,14 @@ import org.esa.beam.framework.gpf.pointop.Sample;
 import org.esa.beam.framework.gpf.pointop.SampleConfigurer;
 import org.esa.beam.framework.gpf.pointop.WritableSample;
 import org.esa.beam.framework.processor.ProcessorException;
+import org.esa.beam.processor.common.auxdata.AuxDataRegistry;
+import org.esa.beam.processor.common.auxdata.NnaNet;
+import org.esa.beam.processor.common.auxdata.VegAuxFilePropsLoader;
 import org.esa.beam.processor.common.utils.VegFlagsManager;
 import org.esa.beam.processor.common.utils.VegGenericPixel;
 import org.esa.beam.processor.common.utils.VegProcessorConfiguration;
 import org.esa.beam.processor.toa.algorithm.ToaVegAlgorithm;
+import org.esa.beam.processor.toa.algorithm.ToaVegContext;
 import org.esa.beam.processor.toa.auxdata.ToaVegInputStatisticsLoader;
 import org.esa.beam.processor.toa.auxdata.ToaVegOutputStatisticsLoader;
 import org.esa.beam.processor.toa.auxdata.ToaVegUncertaintyModelLoader;
@@ -53,15 +57,59 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * GPF operator version of the TOA_VEG processor. The auxiliary data and the neural nets are loaded only once
+ * into a single {@link ToaVegAlgorithm} which is shared by all computing threads; every thread works on its
+ * own {@link ToaVegContext}.
+ */
 @OperatorMetadata(alias = "ToaVeg", authors = "Martin Boettcher, Ralf Quast", copyright = "Brockmann Consult GmbH",
                   version = "1.1.2",
                   description = "Computes LAI from MERIS products.")
 public class ToaVegOp extends PixelOperator {
 
+    static final String ALL_OUTPUT_BANDS = ToaVegConstants.LAI_BAND_NAME + "," +
+                                           ToaVegConstants.FCOVER_BAND_NAME + "," +
+                                           ToaVegConstants.LAIXCAB_BAND_NAME + "," +
+                                           ToaVegConstants.FAPAR_BAND_NAME + "," +
+                                           ToaVegConstants.SIGMA_LAI_BAND_NAME + "," +
+                                           ToaVegConstants.SIGMA_FCOVER_BAND_NAME + "," +
+                                           ToaVegConstants.SIGMA_FAPAR_BAND_NAME + "," +
+                                           ToaVegConstants.SIGMA_LAIXCAB_BAND_NAME;
+
+    // the target bands in the order of the computePixel samples
+    private static final String[] TARGET_BAND_NAMES = {
+            ToaVegConstants.LAI_BAND_NAME,
+            ToaVegConstants.FCOVER_BAND_NAME,
+            ToaVegConstants.LAIXCAB_BAND_NAME,
+            ToaVegConstants.FAPAR_BAND_NAME,
+            ToaVegConstants.SIGMA_LAI_BAND_NAME,
+            ToaVegConstants.SIGMA_FCOVER_BAND_NAME,
+            ToaVegConstants.SIGMA_FAPAR_BAND_NAME,
+            ToaVegConstants.SIGMA_LAIXCAB_BAND_NAME,
+            ToaVegConstants.VEG_FLAGS_BAND_NAME
+    };
+
     @Parameter(defaultValue = "false", label = "If set to true, Lai will be multiplied by 10000 and written as int")
     private boolean outputLaiAsInt = false;
 
+    @Parameter(valueSet = {
+            ToaVegConstants.LAI_BAND_NAME,
+            ToaVegConstants.FCOVER_BAND_NAME,
+            ToaVegConstants.LAIXCAB_BAND_NAME,
+            ToaVegConstants.FAPAR_BAND_NAME,
+            ToaVegConstants.SIGMA_LAI_BAND_NAME,
+            ToaVegConstants.SIGMA_FCOVER_BAND_NAME,
+            ToaVegConstants.SIGMA_FAPAR_BAND_NAME,
+            ToaVegConstants.SIGMA_LAIXCAB_BAND_NAME
+    }, defaultValue = ALL_OUTPUT_BANDS, label = "Output bands",
+               description = "The vegetation bands written to the target product, the flag band is always written. " +
+                             "Only the variables of these bands are computed.")
+    private String[] outputBands;
+
     @SourceProduct(alias = "source",
                    description = "The path of the MERIS source product",
                    label = "MERIS source product",
@@ -84,7 +132,11 @@ public class ToaVegOp extends PixelOperator {
     private Product sourceProduct;
 
     private final transient ToaVegAlgorithm algorithm = new ToaVegAlgorithm();
+    private transient ThreadLocal<ToaVegContext> threadLocalContext;
+    private final transient List<AuxDataRegistry.Handle<?>> auxDataHandles = new ArrayList<AuxDataRegistry.Handle<?>>();
     private final float[] solarSpecFlux = new float[ToaVegConstants.NUM_BANDS];
+    // the target sample index of each of the TARGET_BAND_NAMES, -1 if the band is not written
+    private final int[] targetSampleIndexes = new int[TARGET_BAND_NAMES.length];
 
     @Override
     protected void computePixel(int x, int y, Sample[] sourceSamples, WritableSample[] targetSamples) {
@@ -106,24 +158,32 @@ public class ToaVegOp extends PixelOperator {
                 inPixel.setBand(sourceSamples[8 + n].getFloat(), n);
                 inPixel.setBand_SolarSpecFlux(solarSpecFlux[n],n);
             }
-            synchronized (algorithm){
-                algorithm.processPixel(inPixel, outPixel);
+            algorithm.processPixel(inPixel, outPixel, threadLocalContext.get());
+        }
+
+        final int laiIndex = targetSampleIndexes[0];
+        if (laiIndex >= 0) {
+            if (outputLaiAsInt) {
+                targetSamples[laiIndex].set((int) (outPixel.getBand_LAI() * 10000.0f));
+            } else {
+                targetSamples[laiIndex].set(outPixel.getBand_LAI());
             }
         }
+        setTargetSample(targetSamples, 1, outPixel.getBand_fCover());
+        setTargetSample(targetSamples, 2, outPixel.getBand_CabxLAI());
+        setTargetSample(targetSamples, 3, outPixel.getBand_fAPAR());
+        setTargetSample(targetSamples, 4, outPixel.getBand_sigma_LAI());
+        setTargetSample(targetSamples, 5, outPixel.getBand_sigma_fCover());
+        setTargetSample(targetSamples, 6, outPixel.getBand_sigma_fApar());
+        setTargetSample(targetSamples, 7, outPixel.getBand_sigma_LAIxCab());
+        targetSamples[targetSampleIndexes[8]].set(outPixel.getFlagMask());
+    }
 
-        if (outputLaiAsInt) {
-            targetSamples[0].set((int) (outPixel.getBand_LAI() * 10000.0f));
-        } else {
-            targetSamples[0].set(outPixel.getBand_LAI());
+    private void setTargetSample(WritableSample[] targetSamples, int band, float value) {
+        final int index = targetSampleIndexes[band];
+        if (index >= 0) {
+            targetSamples[index].set(value);
         }
-        targetSamples[1].set(outPixel.getBand_fCover());
-        targetSamples[2].set(outPixel.getBand_CabxLAI());
-        targetSamples[3].set(outPixel.getBand_fAPAR());
-        targetSamples[4].set(outPixel.getBand_sigma_LAI());
-        targetSamples[5].set(outPixel.getBand_sigma_fCover());
-        targetSamples[6].set(outPixel.getBand_sigma_fApar());
-        targetSamples[7].set(outPixel.getBand_sigma_LAIxCab());
-        targetSamples[8].set(outPixel.getFlagMask());
     }
 
     @Override
@@ -144,15 +204,17 @@ public class ToaVegOp extends PixelOperator {
 
     @Override
     protected void configureTargetSamples(SampleConfigurer sampleConfigurer) throws OperatorException {
-        sampleConfigurer.defineSample(0, ToaVegConstants.LAI_BAND_NAME);
-        sampleConfigurer.defineSample(1, ToaVegConstants.FCOVER_BAND_NAME);
-        sampleConfigurer.defineSample(2, ToaVegConstants.LAIXCAB_BAND_NAME);
-        sampleConfigurer.defineSample(3, ToaVegConstants.FAPAR_BAND_NAME);
-        sampleConfigurer.defineSample(4, ToaVegConstants.SIGMA_LAI_BAND_NAME);
-        sampleConfigurer.defineSample(5, ToaVegConstants.SIGMA_FCOVER_BAND_NAME);
-        sampleConfigurer.defineSample(6, ToaVegConstants.SIGMA_FAPAR_BAND_NAME);
-        sampleConfigurer.defineSample(7, ToaVegConstants.SIGMA_LAIXCAB_BAND_NAME);
-        sampleConfigurer.defineSample(8, ToaVegConstants.VEG_FLAGS_BAND_NAME);
+        final List<String> bandNames = getTargetBandNames(outputBands);
+        int index = 0;
+        for (int i = 0; i < TARGET_BAND_NAMES.length; i++) {
+            if (bandNames.contains(TARGET_BAND_NAMES[i])) {
+                sampleConfigurer.defineSample(index, TARGET_BAND_NAMES[i]);
+                targetSampleIndexes[i] = index;
+                index++;
+            } else {
+                targetSampleIndexes[i] = -1;
+            }
+        }
     }
 
     @Override
@@ -176,62 +238,97 @@ public class ToaVegOp extends PixelOperator {
                                     EnvisatConstants.MERIS_AMORGOS_L1B_ALTIUDE_BAND_NAME);
         productConfigurer.copyGeoCoding();
 
+        addTargetBands(productConfigurer.getTargetProduct(), outputLaiAsInt, outputBands);
+
+        productConfigurer.copyMetadata();
+    }
+
+
+    /**
+     * Adds the selected bands computed by the TOA_VEG algorithm, the flag band and the flag coding to a
+     * target product.
+     *
+     * @param targetProduct  the target product
+     * @param outputLaiAsInt if true, the LAI band is a scaled integer band
+     * @param outputBands    the names of the vegetation bands to be added
+     */
+    static void addTargetBands(Product targetProduct, boolean outputLaiAsInt, String[] outputBands) {
+        final List<String> bandNames = getTargetBandNames(outputBands);
         int laiProductType = ProductData.TYPE_FLOAT32;
         if (outputLaiAsInt) {
             laiProductType = ProductData.TYPE_INT16;
         }
-        final Band laiBand = productConfigurer.addBand(ToaVegConstants.LAI_BAND_NAME, laiProductType);
-        laiBand.setDescription(ToaVegConstants.LAI_BAND_DESCRIPTION);
-        laiBand.setUnit(ToaVegConstants.LAI_BAND_UNIT);
-        laiBand.setValidPixelExpression(
-                "!" + ToaVegConstants.VEG_FLAGS_BAND_NAME + "." + VegFlagsManager.INVALID_FLAG_NAME + " && !" + ToaVegConstants.VEG_FLAGS_BAND_NAME + "." + VegFlagsManager.LAI_OUT_OF_RANGE_FLAG_NAME);
+        if (bandNames.contains(ToaVegConstants.LAI_BAND_NAME)) {
+            final Band laiBand = targetProduct.addBand(ToaVegConstants.LAI_BAND_NAME, laiProductType);
+            laiBand.setDescription(ToaVegConstants.LAI_BAND_DESCRIPTION);
+            laiBand.setUnit(ToaVegConstants.LAI_BAND_UNIT);
+            laiBand.setValidPixelExpression(
+                    "!" + ToaVegConstants.VEG_FLAGS_BAND_NAME + "." + VegFlagsManager.INVALID_FLAG_NAME + " && !" + ToaVegConstants.VEG_FLAGS_BAND_NAME + "." + VegFlagsManager.LAI_OUT_OF_RANGE_FLAG_NAME);
+        }
 
-        final Band _fCover_band = productConfigurer.addBand(ToaVegConstants.FCOVER_BAND_NAME, ProductData.TYPE_FLOAT32);
-        _fCover_band.setDescription(ToaVegConstants.FCOVER_BAND_DESCRIPTION);
-        _fCover_band.setValidPixelExpression(
-                "!" + ToaVegConstants.VEG_FLAGS_BAND_NAME + "." + VegFlagsManager.INVALID_FLAG_NAME + " && !" + ToaVegConstants.VEG_FLAGS_BAND_NAME + "." + VegFlagsManager.FCOVER_OUT_OF_RANGE_FLAG_NAME);
+        if (bandNames.contains(ToaVegConstants.FCOVER_BAND_NAME)) {
+            final Band _fCover_band = targetProduct.addBand(ToaVegConstants.FCOVER_BAND_NAME, ProductData.TYPE_FLOAT32);
+            _fCover_band.setDescription(ToaVegConstants.FCOVER_BAND_DESCRIPTION);
+            _fCover_band.setValidPixelExpression(
+                    "!" + ToaVegConstants.VEG_FLAGS_BAND_NAME + "." + VegFlagsManager.INVALID_FLAG_NAME + " && !" + ToaVegConstants.VEG_FLAGS_BAND_NAME + "." + VegFlagsManager.FCOVER_OUT_OF_RANGE_FLAG_NAME);
+        }
 
-        final Band _cabxLai_band = productConfigurer.addBand(ToaVegConstants.LAIXCAB_BAND_NAME, ProductData.TYPE_FLOAT32);
-        _cabxLai_band.setDescription(ToaVegConstants.LAIXCAB_BAND_DESCRIPTION);
-        _cabxLai_band.setUnit(ToaVegConstants.LAIXCAB_BAND_UNIT);
-        _cabxLai_band.setValidPixelExpression(
-                "!" + ToaVegConstants.VEG_FLAGS_BAND_NAME + "." + VegFlagsManager.INVALID_FLAG_NAME + " && !" + ToaVegConstants.VEG_FLAGS_BAND_NAME + "." + VegFlagsManager.LAIXCAB_OUT_OF_RANGE_FLAG_NAME);
+        if (bandNames.contains(ToaVegConstants.LAIXCAB_BAND_NAME)) {
+            final Band _cabxLai_band = targetProduct.addBand(ToaVegConstants.LAIXCAB_BAND_NAME, ProductData.TYPE_FLOAT32);
+            _cabxLai_band.setDescription(ToaVegConstants.LAIXCAB_BAND_DESCRIPTION);
+            _cabxLai_band.setUnit(ToaVegConstants.LAIXCAB_BAND_UNIT);
+            _cabxLai_band.setValidPixelExpression(
+                    "!" + ToaVegConstants.VEG_FLAGS_BAND_NAME + "." + VegFlagsManager.INVALID_FLAG_NAME + " && !" + ToaVegConstants.VEG_FLAGS_BAND_NAME + "." + VegFlagsManager.LAIXCAB_OUT_OF_RANGE_FLAG_NAME);
+        }
 
-        final Band _fapar_band = productConfigurer.addBand(ToaVegConstants.FAPAR_BAND_NAME, ProductData.TYPE_FLOAT32);
-        _fapar_band.setDescription(ToaVegConstants.FAPAR_BAND_DESCRIPTION);
-        _fapar_band.setValidPixelExpression(
-                "!" + ToaVegConstants.VEG_FLAGS_BAND_NAME + "." + VegFlagsManager.INVALID_FLAG_NAME + " && !" + ToaVegConstants.VEG_FLAGS_BAND_NAME + "." + VegFlagsManager.FAPAR_OUT_OF_RANGE_FLAG_NAME);
+        if (bandNames.contains(ToaVegConstants.FAPAR_BAND_NAME)) {
+            final Band _fapar_band = targetProduct.addBand(ToaVegConstants.FAPAR_BAND_NAME, ProductData.TYPE_FLOAT32);
+            _fapar_band.setDescription(ToaVegConstants.FAPAR_BAND_DESCRIPTION);
+            _fapar_band.setValidPixelExpression(
+                    "!" + ToaVegConstants.VEG_FLAGS_BAND_NAME + "." + VegFlagsManager.INVALID_FLAG_NAME + " && !" + ToaVegConstants.VEG_FLAGS_BAND_NAME + "." + VegFlagsManager.FAPAR_OUT_OF_RANGE_FLAG_NAME);
+        }
 
-        final Band _sigma_lai_band = productConfigurer.addBand(ToaVegConstants.SIGMA_LAI_BAND_NAME, ProductData.TYPE_FLOAT32);
-        _sigma_lai_band.setDescription(ToaVegConstants.SIGMA_LAI_BAND_DESCRIPTION);
+        if (bandNames.contains(ToaVegConstants.SIGMA_LAI_BAND_NAME)) {
+            final Band _sigma_lai_band = targetProduct.addBand(ToaVegConstants.SIGMA_LAI_BAND_NAME, ProductData.TYPE_FLOAT32);
+            _sigma_lai_band.setDescription(ToaVegConstants.SIGMA_LAI_BAND_DESCRIPTION);
+        }
 
-        final Band _sigma_fcover_band = productConfigurer.addBand(ToaVegConstants.SIGMA_FCOVER_BAND_NAME, ProductData.TYPE_FLOAT32);
-        _sigma_fcover_band.setDescription(ToaVegConstants.SIGMA_FCOVER_BAND_DESCRIPTION);
+        if (bandNames.contains(ToaVegConstants.SIGMA_FCOVER_BAND_NAME)) {
+            final Band _sigma_fcover_band = targetProduct.addBand(ToaVegConstants.SIGMA_FCOVER_BAND_NAME, ProductData.TYPE_FLOAT32);
+            _sigma_fcover_band.setDescription(ToaVegConstants.SIGMA_FCOVER_BAND_DESCRIPTION);
+        }
 
-        final Band _sigma_fapar_band = productConfigurer.addBand(ToaVegConstants.SIGMA_FAPAR_BAND_NAME, ProductData.TYPE_FLOAT32);
-        _sigma_fapar_band.setDescription(ToaVegConstants.SIGMA_FAPAR_BAND_DESCRIPTION);
+        if (bandNames.contains(ToaVegConstants.SIGMA_FAPAR_BAND_NAME)) {
+            final Band _sigma_fapar_band = targetProduct.addBand(ToaVegConstants.SIGMA_FAPAR_BAND_NAME, ProductData.TYPE_FLOAT32);
+            _sigma_fapar_band.setDescription(ToaVegConstants.SIGMA_FAPAR_BAND_DESCRIPTION);
+        }
 
-        final Band _sigma_laixcab_band = productConfigurer.addBand(ToaVegConstants.SIGMA_LAIXCAB_BAND_NAME, ProductData.TYPE_FLOAT32);
-        _sigma_laixcab_band.setDescription(ToaVegConstants.SIGMA_LAIXCAB_BAND_DESCRIPTION);
+        if (bandNames.contains(ToaVegConstants.SIGMA_LAIXCAB_BAND_NAME)) {
+            final Band _sigma_laixcab_band = targetProduct.addBand(ToaVegConstants.SIGMA_LAIXCAB_BAND_NAME, ProductData.TYPE_FLOAT32);
+            _sigma_laixcab_band.setDescription(ToaVegConstants.SIGMA_LAIXCAB_BAND_DESCRIPTION);
+        }
 
-        final Band vegFlagsBand = productConfigurer.addBand(ToaVegConstants.VEG_FLAGS_BAND_NAME, ProductData.TYPE_UINT16);
+        final Band vegFlagsBand = targetProduct.addBand(ToaVegConstants.VEG_FLAGS_BAND_NAME, ProductData.TYPE_UINT16);
         vegFlagsBand.setDescription(ToaVegConstants.VEG_FLAGS_BAND_DESCRIPTION);
         final FlagCoding flagCoding = VegFlagsManager.getCoding(ToaVegConstants.VEG_FLAGS_BAND_NAME);
         vegFlagsBand.setSampleCoding(flagCoding);
 
-        final Product targetProduct = productConfigurer.getTargetProduct();
         targetProduct.getFlagCodingGroup().add(flagCoding);
         VegFlagsManager.addBitmaskDefsToProduct(targetProduct, ToaVegConstants.VEG_FLAGS_BAND_NAME);
-
-        productConfigurer.copyMetadata();
     }
 
-
     @Override
     protected void prepareInputs() throws OperatorException {
         super.prepareInputs();
         sourceProduct.addMask("_mask_", "l1_flags.LAND_OCEAN", "", Color.RED, 1f);
         loadAuxiliaryData();
+        setComputedVariables(algorithm, outputBands);
+        threadLocalContext = new ThreadLocal<ToaVegContext>() {
+            @Override
+            protected ToaVegContext initialValue() {
+                return algorithm.createContext();
+            }
+        };
     }
 
     public void setSolarSpecFlux(float value, int n) {
@@ -239,12 +336,24 @@ public class ToaVegOp extends PixelOperator {
     }
 
     protected void loadAuxiliaryData() {
-
         // TODO - allow for parameter for aux data location
         File auxdataPath = new File(SystemUtils.getApplicationDataDir(), getSymbolicName() + "/auxdata");
+        loadAuxiliaryData(algorithm, auxdataPath, auxDataHandles);
+    }
+
+    /**
+     * Installs the auxiliary data into the given directory if needed and loads them into the algorithm.
+     *
+     * @param algorithm      the algorithm to be initialised
+     * @param auxdataPath    the auxiliary data directory
+     * @param auxDataHandles receives the handles of the shared auxiliary data, to be released when the
+     *                       operator is disposed
+     */
+    static void loadAuxiliaryData(ToaVegAlgorithm algorithm, File auxdataPath,
+                                  List<AuxDataRegistry.Handle<?>> auxDataHandles) {
         File configFile = new File(auxdataPath, ToaVegConstants.CONFIG_FILE);
         try {
-            final ResourceInstaller resourceInstaller = new ResourceInstaller(ResourceInstaller.getSourceUrl(getClass()),
+            final ResourceInstaller resourceInstaller = new ResourceInstaller(ResourceInstaller.getSourceUrl(ToaVegOp.class),
                                                                               "auxdata/"+ ToaVegConstants.AUXDATA_DIR,
                                                                               auxdataPath);
             resourceInstaller.install(".*", ProgressMonitor.NULL);
@@ -261,22 +370,25 @@ public class ToaVegOp extends PixelOperator {
             VegProcessorConfiguration _config = parser.getConfiguration();
 
 
-            ToaVegInputStatisticsLoader _inStatAux = new ToaVegInputStatisticsLoader();
-            _inStatAux.load(_config.getInputStatisticsAuxFile());
+            ToaVegInputStatisticsLoader _inStatAux = acquireAuxData(auxDataHandles, ToaVegInputStatisticsLoader.class,
+                                                                    new ToaVegInputStatisticsLoader(),
+                                                                    _config.getInputStatisticsAuxFile());
             algorithm.setInputStatisticsAccess(_inStatAux);
 
-            ToaVegOutputStatisticsLoader _outStatAux = new ToaVegOutputStatisticsLoader();
-            _outStatAux.load(_config.getOutputStatisticsAuxFile());
+            ToaVegOutputStatisticsLoader _outStatAux = acquireAuxData(auxDataHandles, ToaVegOutputStatisticsLoader.class,
+                                                                      new ToaVegOutputStatisticsLoader(),
+                                                                      _config.getOutputStatisticsAuxFile());
             algorithm.setOutputStatisticsAccess(_outStatAux);
 
-            ToaVegUncertaintyModelLoader _uncertaintyAux = new ToaVegUncertaintyModelLoader();
-            _uncertaintyAux.load(_config.getUncertaintyAuxFile());
+            ToaVegUncertaintyModelLoader _uncertaintyAux = acquireAuxData(auxDataHandles, ToaVegUncertaintyModelLoader.class,
+                                                                          new ToaVegUncertaintyModelLoader(),
+                                                                          _config.getUncertaintyAuxFile());
             algorithm.setUncertaintyModelAccess(_uncertaintyAux);
             algorithm.InitAlgo();
-            algorithm.setNn_LaiAuxPath(_config.getNN_LaiAuxFile());
-            algorithm.setNn_fCoverAuxPath(_config.getNN_fCoverAuxFile());
-            algorithm.setNn_fAPARAuxPath(_config.getNN_fAPARAuxFile());
-            algorithm.setNn_LAIxCabAuxPath(_config.getNN_LAIxCabAuxFile());
+            algorithm.setNn_Lai(acquireNnaNet(auxDataHandles, _config.getNN_LaiAuxFile()));
+            algorithm.setNn_fCover(acquireNnaNet(auxDataHandles, _config.getNN_fCoverAuxFile()));
+            algorithm.setNn_fAPAR(acquireNnaNet(auxDataHandles, _config.getNN_fAPARAuxFile()));
+            algorithm.setNn_LAIxCab(acquireNnaNet(auxDataHandles, _config.getNN_LAIxCabAuxFile()));
 
         } catch (MalformedURLException e) {
             throw new OperatorException("Failed to create configuration URL for " + configFile.getPath(), e);
@@ -284,13 +396,88 @@ public class ToaVegOp extends PixelOperator {
             throw new OperatorException("Failed to parse configuration " + configFile.getPath() + " with aux data " + auxdataPath.getPath(), e);
         } catch (IOException e) {
             throw new OperatorException("Failed to load auxiliary from " + auxdataPath.getPath(), e);
-        } catch (JnnException e) {
-            throw new OperatorException("Failed to load auxiliary from " + auxdataPath.getPath(), e);
         }
     }
 
+    /**
+     * Retrieves the names of the target bands to be written: the selected vegetation bands and the flag band.
+     *
+     * @param outputBands the names of the selected vegetation bands
+     */
+    static List<String> getTargetBandNames(String[] outputBands) {
+        if (outputBands == null || outputBands.length == 0) {
+            throw new OperatorException("At least one output band must be selected.");
+        }
+        final List<String> bandNames = new ArrayList<String>(Arrays.asList(outputBands));
+        bandNames.add(ToaVegConstants.VEG_FLAGS_BAND_NAME);
+        return bandNames;
+    }
+
+    /**
+     * Lets the algorithm compute only the variables needed for the selected bands, a variable being needed
+     * for its own band and for its uncertainty band.
+     *
+     * @param algorithm   the algorithm
+     * @param outputBands the names of the selected vegetation bands
+     */
+    static void setComputedVariables(ToaVegAlgorithm algorithm, String[] outputBands) {
+        final List<String> bandNames = getTargetBandNames(outputBands);
+        algorithm.setComputedVariables(
+                bandNames.contains(ToaVegConstants.LAI_BAND_NAME) ||
+                bandNames.contains(ToaVegConstants.SIGMA_LAI_BAND_NAME),
+                bandNames.contains(ToaVegConstants.FCOVER_BAND_NAME) ||
+                bandNames.contains(ToaVegConstants.SIGMA_FCOVER_BAND_NAME),
+                bandNames.contains(ToaVegConstants.LAIXCAB_BAND_NAME) ||
+                bandNames.contains(ToaVegConstants.SIGMA_LAIXCAB_BAND_NAME),
+                bandNames.contains(ToaVegConstants.FAPAR_BAND_NAME) ||
+                bandNames.contains(ToaVegConstants.SIGMA_FAPAR_BAND_NAME));
+    }
+
+    /**
+     * Acquires auxiliary data shared with other operator and processor instances. If the file is not
+     * registered yet, the given loader is loaded and registered. The data are held until the operator is
+     * disposed.
+     */
+    private static <T extends VegAuxFilePropsLoader> T acquireAuxData(List<AuxDataRegistry.Handle<?>> auxDataHandles,
+                                                                      Class<T> type, final T loader,
+                                                                      String auxPath) throws IOException {
+        final AuxDataRegistry.Handle<T> handle = AuxDataRegistry.getInstance().acquire(type, auxPath,
+                                                                                        new AuxDataRegistry.Loader<T>() {
+            public T load(File file) throws IOException {
+                loader.load(file.getPath());
+                return loader;
+            }
+        });
+        auxDataHandles.add(handle);
+        return handle.get();
+    }
+
+    /**
+     * Acquires a neural net shared with other operator and processor instances. The net is held until the
+     * operator is disposed.
+     */
+    private static NnaNet acquireNnaNet(List<AuxDataRegistry.Handle<?>> auxDataHandles,
+                                        String auxPath) throws IOException {
+        final AuxDataRegistry.Handle<NnaNet> handle = AuxDataRegistry.getInstance().acquireNnaNet(auxPath);
+        auxDataHandles.add(handle);
+        return handle.get();
+    }
+
+    @Override
+    public void dispose() {
+        for (AuxDataRegistry.Handle<?> handle : auxDataHandles) {
+            handle.release();
+        }
+        auxDataHandles.clear();
+        super.dispose();
+    }
+
     public String getSymbolicName() {
-        return StringUtils.createValidName(OperatorSpi.getOperatorAlias(getClass()).toLowerCase(), new char[]{'-', '.'}, '-');
+        return getSymbolicName(getClass());
+    }
+
+    static String getSymbolicName(Class<? extends Operator> operatorClass) {
+        return StringUtils.createValidName(OperatorSpi.getOperatorAlias(operatorClass).toLowerCase(), new char[]{'-', '.'}, '-');
     }
 
     public static class Spi extends OperatorSpi {
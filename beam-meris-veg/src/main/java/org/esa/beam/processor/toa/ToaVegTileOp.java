@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.processor.toa;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.dataio.envisat.EnvisatConstants;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Mask;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.TiePointGrid;
+import org.esa.beam.framework.gpf.Operator;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.OperatorSpi;
+import org.esa.beam.framework.gpf.Tile;
+import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
+import org.esa.beam.framework.gpf.annotations.Parameter;
+import org.esa.beam.framework.gpf.annotations.SourceProduct;
+import org.esa.beam.framework.gpf.annotations.TargetProduct;
+import org.esa.beam.processor.common.auxdata.AuxDataRegistry;
+import org.esa.beam.processor.common.utils.VegFlagsManager;
+import org.esa.beam.processor.toa.algorithm.ToaVegAlgorithm;
+import org.esa.beam.processor.toa.algorithm.ToaVegBatch;
+import org.esa.beam.processor.toa.algorithm.ToaVegContext;
+import org.esa.beam.util.ProductUtils;
+import org.esa.beam.util.SystemUtils;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tile based version of the {@link ToaVegOp}. The source bands of a tile are read as primitive arrays, the
+ * network inputs of all valid pixels of the tile are normalised into one {@link ToaVegBatch}, the four
+ * networks are run over the batch and the results are written into the raw sample buffers of the target
+ * tiles. The target product and the computed values are the same as those of the {@link ToaVegOp}.
+ */
+@OperatorMetadata(alias = "ToaVegTile", authors = "Martin Boettcher, Ralf Quast", copyright = "Brockmann Consult GmbH",
+                  version = "1.1.2",
+                  description = "Computes LAI from MERIS products, tile by tile.")
+public class ToaVegTileOp extends Operator {
+
+    private static final String VALID_MASK_NAME = "_toa_veg_valid_";
+
+    @Parameter(defaultValue = "false", label = "If set to true, Lai will be multiplied by 10000 and written as int")
+    private boolean outputLaiAsInt = false;
+
+    @Parameter(valueSet = {
+            ToaVegConstants.LAI_BAND_NAME,
+            ToaVegConstants.FCOVER_BAND_NAME,
+            ToaVegConstants.LAIXCAB_BAND_NAME,
+            ToaVegConstants.FAPAR_BAND_NAME,
+            ToaVegConstants.SIGMA_LAI_BAND_NAME,
+            ToaVegConstants.SIGMA_FCOVER_BAND_NAME,
+            ToaVegConstants.SIGMA_FAPAR_BAND_NAME,
+            ToaVegConstants.SIGMA_LAIXCAB_BAND_NAME
+    }, defaultValue = ToaVegOp.ALL_OUTPUT_BANDS, label = "Output bands",
+               description = "The vegetation bands written to the target product, the flag band is always written. " +
+                             "Only the variables of these bands are computed.")
+    private String[] outputBands;
+
+    @SourceProduct(alias = "source",
+                   description = "The path of the MERIS source product",
+                   label = "MERIS source product",
+                   bands = {
+                           "radiance_1",
+                           "radiance_2",
+                           "radiance_3",
+                           "radiance_4",
+                           "radiance_5",
+                           "radiance_6",
+                           "radiance_7",
+                           "radiance_8",
+                           "radiance_9",
+                           "radiance_10",
+                           "radiance_12",
+                           "radiance_13",
+                           "radiance_14"
+                   })
+    private Product sourceProduct;
+
+    @TargetProduct
+    private Product targetProduct;
+
+    private transient Band[] radianceBands;
+    private transient TiePointGrid szaGrid;
+    private transient TiePointGrid saaGrid;
+    private transient TiePointGrid vzaGrid;
+    private transient TiePointGrid vaaGrid;
+    private transient Mask validMask;
+    private transient float[] solarSpecFlux;
+
+    private transient Band laiBand;
+    private transient Band fCoverBand;
+    private transient Band laixCabBand;
+    private transient Band faparBand;
+    private transient Band sigmaLaiBand;
+    private transient Band sigmaFCoverBand;
+    private transient Band sigmaFaparBand;
+    private transient Band sigmaLaixCabBand;
+    private transient Band vegFlagsBand;
+
+    private transient ToaVegAlgorithm algorithm;
+    private transient ThreadLocal<ToaVegContext> threadLocalContext;
+    private transient List<AuxDataRegistry.Handle<?>> auxDataHandles;
+
+    @Override
+    public void initialize() throws OperatorException {
+        loadSourceNodes();
+        createTargetProduct();
+
+        algorithm = new ToaVegAlgorithm();
+        auxDataHandles = new ArrayList<AuxDataRegistry.Handle<?>>();
+        // the auxiliary data are installed in the directory of the pixel operator
+        final File auxdataPath = new File(SystemUtils.getApplicationDataDir(),
+                                          ToaVegOp.getSymbolicName(ToaVegOp.class) + "/auxdata");
+        ToaVegOp.loadAuxiliaryData(algorithm, auxdataPath, auxDataHandles);
+        ToaVegOp.setComputedVariables(algorithm, outputBands);
+        threadLocalContext = new ThreadLocal<ToaVegContext>() {
+            @Override
+            protected ToaVegContext initialValue() {
+                return algorithm.createContext();
+            }
+        };
+    }
+
+    @Override
+    public void computeTileStack(Map<Band, Tile> targetTiles, Rectangle targetRectangle, ProgressMonitor pm) throws
+                                                                                                            OperatorException {
+        pm.beginTask(ToaVegConstants.LOG_MSG_GENERATE_PIXEL, 3);
+        try {
+            final int numPixels = targetRectangle.width * targetRectangle.height;
+
+            // read the source data of the tile
+            // --------------------------------
+            final int[] valid = getSourceTile(validMask, targetRectangle).getSamplesInt();
+            final float[] sza = getSourceTile(szaGrid, targetRectangle).getSamplesFloat();
+            final float[] saa = getSourceTile(saaGrid, targetRectangle).getSamplesFloat();
+            final float[] vza = getSourceTile(vzaGrid, targetRectangle).getSamplesFloat();
+            final float[] vaa = getSourceTile(vaaGrid, targetRectangle).getSamplesFloat();
+            final float[][] radiance = new float[ToaVegConstants.NUM_BANDS][];
+            for (int n = 0; n < ToaVegConstants.NUM_BANDS; n++) {
+                radiance[n] = getSourceTile(radianceBands[n], targetRectangle).getSamplesFloat();
+            }
+            checkForCancellation();
+            pm.worked(1);
+
+            // normalise the inputs of the valid pixels and run the networks
+            // -------------------------------------------------------------
+            final ToaVegBatch batch = new ToaVegBatch(numPixels);
+            final int[] batchPixels = new int[numPixels];
+            final float[] pixelRadiance = new float[ToaVegConstants.NUM_BANDS];
+            for (int i = 0; i < numPixels; i++) {
+                if (valid[i] != 0) {
+                    for (int n = 0; n < ToaVegConstants.NUM_BANDS; n++) {
+                        pixelRadiance[n] = radiance[n][i];
+                    }
+                    batchPixels[batch.getCount()] = i;
+                    algorithm.normaliseInput(sza[i], saa[i], vza[i], vaa[i], pixelRadiance, solarSpecFlux,
+                                             batch.addPixel());
+                }
+            }
+            algorithm.processBatch(batch, threadLocalContext.get());
+            checkForCancellation();
+            pm.worked(1);
+
+            // write the results
+            // -----------------
+            writeResults(targetTiles, batch, batchPixels, numPixels);
+            pm.worked(1);
+        } finally {
+            pm.done();
+        }
+    }
+
+    @Override
+    public void dispose() {
+        if (auxDataHandles != null) {
+            for (AuxDataRegistry.Handle<?> handle : auxDataHandles) {
+                handle.release();
+            }
+            auxDataHandles.clear();
+        }
+        super.dispose();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private void loadSourceNodes() {
+        radianceBands = new Band[ToaVegConstants.NUM_BANDS];
+        solarSpecFlux = new float[ToaVegConstants.NUM_BANDS];
+        for (int n = 0; n < ToaVegConstants.NUM_BANDS; n++) {
+            radianceBands[n] = sourceProduct.getBand(ToaVegConstants.REFLEC_BAND_NAMES[n]);
+            solarSpecFlux[n] = radianceBands[n].getSolarFlux();
+        }
+        szaGrid = getTiePointGrid(ToaVegConstants.SZA_TIEPOINT_NAME);
+        saaGrid = getTiePointGrid(ToaVegConstants.SAA_TIEPOINT_NAME);
+        vzaGrid = getTiePointGrid(ToaVegConstants.VZA_TIEPOINT_NAME);
+        vaaGrid = getTiePointGrid(ToaVegConstants.VAA_TIEPOINT_NAME);
+
+        final String expression = ToaVegConstants.BITMASK_PARAM_DEFAULT;
+        if (!sourceProduct.isCompatibleBandArithmeticExpression(expression)) {
+            throw new OperatorException("The expression '" + expression + "' is not compatible with the source product.");
+        }
+        validMask = Mask.BandMathsType.create(VALID_MASK_NAME, "", sourceProduct.getSceneRasterWidth(),
+                                              sourceProduct.getSceneRasterHeight(), expression, Color.RED, 1.0);
+        sourceProduct.getMaskGroup().add(validMask);
+    }
+
+    private TiePointGrid getTiePointGrid(String name) {
+        final TiePointGrid grid = sourceProduct.getTiePointGrid(name);
+        if (grid == null) {
+            throw new OperatorException("Source product does not contain the tie point grid '" + name + "'.");
+        }
+        return grid;
+    }
+
+    private void createTargetProduct() {
+        targetProduct = new Product(sourceProduct.getName() + ToaVegConstants.PRODUCT_TYPE_APPENDIX,
+                                    sourceProduct.getProductType() + ToaVegConstants.PRODUCT_TYPE_APPENDIX,
+                                    sourceProduct.getSceneRasterWidth(), sourceProduct.getSceneRasterHeight());
+
+        ProductUtils.copyTiePointGrids(sourceProduct, targetProduct);
+        ProductUtils.copyFlagBands(sourceProduct, targetProduct, true);
+        final String[] amorgosBandNames = {
+                EnvisatConstants.MERIS_AMORGOS_L1B_CORR_LATITUDE_BAND_NAME,
+                EnvisatConstants.MERIS_AMORGOS_L1B_CORR_LONGITUDE_BAND_NAME,
+                EnvisatConstants.MERIS_AMORGOS_L1B_ALTIUDE_BAND_NAME
+        };
+        for (String bandName : amorgosBandNames) {
+            if (sourceProduct.containsBand(bandName)) {
+                ProductUtils.copyBand(bandName, sourceProduct, targetProduct, true);
+            }
+        }
+        ProductUtils.copyGeoCoding(sourceProduct, targetProduct);
+        targetProduct.setStartTime(sourceProduct.getStartTime());
+        targetProduct.setEndTime(sourceProduct.getEndTime());
+
+        ToaVegOp.addTargetBands(targetProduct, outputLaiAsInt, outputBands);
+        laiBand = targetProduct.getBand(ToaVegConstants.LAI_BAND_NAME);
+        fCoverBand = targetProduct.getBand(ToaVegConstants.FCOVER_BAND_NAME);
+        laixCabBand = targetProduct.getBand(ToaVegConstants.LAIXCAB_BAND_NAME);
+        faparBand = targetProduct.getBand(ToaVegConstants.FAPAR_BAND_NAME);
+        sigmaLaiBand = targetProduct.getBand(ToaVegConstants.SIGMA_LAI_BAND_NAME);
+        sigmaFCoverBand = targetProduct.getBand(ToaVegConstants.SIGMA_FCOVER_BAND_NAME);
+        sigmaFaparBand = targetProduct.getBand(ToaVegConstants.SIGMA_FAPAR_BAND_NAME);
+        sigmaLaixCabBand = targetProduct.getBand(ToaVegConstants.SIGMA_LAIXCAB_BAND_NAME);
+        vegFlagsBand = targetProduct.getBand(ToaVegConstants.VEG_FLAGS_BAND_NAME);
+
+        ProductUtils.copyMetadata(sourceProduct, targetProduct);
+    }
+
+    /**
+     * Scatters the batch results into the raw sample buffers of the target tiles. Pixels which are not in
+     * the batch get the values of an invalid input pixel. Bands which are not selected are skipped.
+     */
+    private void writeResults(Map<Band, Tile> targetTiles, ToaVegBatch batch, int[] batchPixels, int numPixels) {
+        final int count = batch.getCount();
+
+        final Tile laiTile = getTargetTile(targetTiles, laiBand);
+        if (laiTile != null) {
+            final ProductData lai = laiTile.getRawSamples();
+            for (int i = 0; i < numPixels; i++) {
+                lai.setElemIntAt(i, 0);
+            }
+            for (int k = 0; k < count; k++) {
+                if (outputLaiAsInt) {
+                    lai.setElemIntAt(batchPixels[k], (int) (batch.getLAI()[k] * 10000.0f));
+                } else {
+                    lai.setElemFloatAt(batchPixels[k], batch.getLAI()[k]);
+                }
+            }
+            laiTile.setRawSamples(lai);
+        }
+        writeFloatResults(getTargetTile(targetTiles, fCoverBand), batch.getFCover(), batchPixels, count, numPixels);
+        writeFloatResults(getTargetTile(targetTiles, laixCabBand), batch.getLAIxCab(), batchPixels, count, numPixels);
+        writeFloatResults(getTargetTile(targetTiles, faparBand), batch.getFAPAR(), batchPixels, count, numPixels);
+        writeFloatResults(getTargetTile(targetTiles, sigmaLaiBand), batch.getSigmaLAI(), batchPixels, count,
+                          numPixels);
+        writeFloatResults(getTargetTile(targetTiles, sigmaFCoverBand), batch.getSigmaFCover(), batchPixels, count,
+                          numPixels);
+        writeFloatResults(getTargetTile(targetTiles, sigmaFaparBand), batch.getSigmaFAPAR(), batchPixels, count,
+                          numPixels);
+        writeFloatResults(getTargetTile(targetTiles, sigmaLaixCabBand), batch.getSigmaLAIxCab(), batchPixels, count,
+                          numPixels);
+
+        final Tile flagsTile = targetTiles.get(vegFlagsBand);
+        final ProductData flags = flagsTile.getRawSamples();
+        final int invalidFlags = VegFlagsManager.setInvalidInputFlag(0);
+        for (int i = 0; i < numPixels; i++) {
+            flags.setElemIntAt(i, invalidFlags);
+        }
+        for (int k = 0; k < count; k++) {
+            flags.setElemIntAt(batchPixels[k], batch.getFlags()[k]);
+        }
+        flagsTile.setRawSamples(flags);
+    }
+
+    private static Tile getTargetTile(Map<Band, Tile> targetTiles, Band band) {
+        return band != null ? targetTiles.get(band) : null;
+    }
+
+    private static void writeFloatResults(Tile tile, float[] results, int[] batchPixels, int count, int numPixels) {
+        if (tile != null) {
+            final float[] samples = new float[numPixels];
+            for (int k = 0; k < count; k++) {
+                samples[batchPixels[k]] = results[k];
+            }
+            tile.setRawSamples(ProductData.createInstance(samples));
+        }
+    }
+
+    public static class Spi extends OperatorSpi {
+
+        public Spi() {
+            super(ToaVegTileOp.class);
+        }
+    }
+}
@@ -21,45 +21,59 @@ import org.esa.beam.util.Guardian;
 import org.esa.beam.util.math.RsMathUtils;
 import org.esa.beam.processor.toa.ToaVegConstants;
 import org.esa.beam.processor.toa.auxdata.ToaVegInputStatisticsAccess;
+import org.esa.beam.processor.common.auxdata.NnaNet;
 import org.esa.beam.processor.common.auxdata.VegUncertaintyModelAccess;
 import org.esa.beam.processor.common.auxdata.VegOutputStatisticsAccess;
+import org.esa.beam.processor.common.utils.CompiledNeuralNet;
+import org.esa.beam.processor.common.utils.CompiledNeuralNets;
+import org.esa.beam.processor.common.utils.FusedNeuralNet;
+import org.esa.beam.processor.common.utils.VegFlagsManager;
 import org.esa.beam.processor.common.utils.VegGenericPixel;
 import org.esa.beam.processor.toa.utils.ToaVegMerisPixel;
 
 import java.io.File;
 import java.io.IOException;
-
-import com.bc.jnn.JnnNet;
-import com.bc.jnn.Jnn;
-import com.bc.jnn.JnnException;
+import java.util.ArrayList;
+import java.util.List;
 
 
+/**
+ * The TOA_VEG algorithm. The auxiliary data and the neural nets are set once and not modified while
+ * pixels are processed, so a single instance can be shared by several threads if every thread uses
+ * its own {@link ToaVegContext}.
+ * <p/>
+ * The nets are evaluated by a {@link FusedNeuralNet}, or by their compiled versions if these are switched
+ * on (see {@link CompiledNeuralNets}).
+ */
 public class ToaVegAlgorithm {
 
+    // indices of the output variables
+    private static final int VAR_LAI = 0;
+    private static final int VAR_FCOVER = 1;
+    private static final int VAR_LAIXCAB = 2;
+    private static final int VAR_FAPAR = 3;
+
     private ToaVegInputStatisticsAccess _inputStatAccess;
     private VegOutputStatisticsAccess _outputStatAccess;
     private VegUncertaintyModelAccess _uncertaintyAccess;
-    private boolean _flagLaiOutOfRange;
-    private boolean _flagfCoverOutOfRange;
-    private boolean _flagLaixCabOutOfRange;
-    private boolean _flagFAparOutOfRange;
-    JnnNet _netLAI;
-    JnnNet _netFCover;
-    JnnNet _netLaixCab;
-    JnnNet _netFApar;
-    float[] _lai;
-    float[] _fCover;
-    float[] _fApar;
-    float[] _laixCab;
-    double[] _inputNN;
+    NnaNet _netLAI;
+    NnaNet _netFCover;
+    NnaNet _netLaixCab;
+    NnaNet _netFApar;
+    // the nets of the computed variables evaluated in one pass
+    FusedNeuralNet _fusedNet;
+    // the compiled nets of the computed variables, null if the fused net is used
+    CompiledNeuralNet[] _compiledNets;
+    // the variable of each output of the fused net
+    int[] _netVariables;
+    // whether a variable is computed, indexed by the VAR_* indices
+    private final boolean[] _computed = {true, true, true, true};
     double[] _LAICoeff;
     double[] _fCoverCoeff;
     double[] _laixCabCoeff;
     double[] _fAparCoeff;
-    float _sigma_lai;
-    float _sigma_fapar;
-    float _sigma_fcover;
-    float _sigma_laixcab;
+    // the context used by processPixel(ToaVegMerisPixel, VegGenericPixel)
+    private ToaVegContext _context;
 
     /**
      * creates several variables
@@ -70,15 +84,6 @@ public class ToaVegAlgorithm {
         _fCoverCoeff = new double[3];
         _fAparCoeff = new double[3];
         _laixCabCoeff = new double[3];
-
-        // result tables of neural network
-        _lai = new float[1];
-        _fApar = new float[1];
-        _fCover = new float[1];
-        _laixCab = new float[1];
-
-        // input table of neural network
-        _inputNN = new double[16];
     }
 
     /**
@@ -263,163 +268,291 @@ public class ToaVegAlgorithm {
 
 
     /**
-     * Sets the path to the LAI neural network auxiliary file.
+     * Sets the path to the LAI neural network auxiliary file. The net is read into a private instance, use
+     * {@link #setNn_Lai(NnaNet)} to share it with other users.
      *
      * @param auxPath
      */
-    public void setNn_LaiAuxPath(String auxPath) throws IOException, JnnException {
-         _netLAI = Jnn.readNna(new File(auxPath));
-     }
+    public void setNn_LaiAuxPath(String auxPath) throws IOException {
+        setNn_Lai(NnaNet.read(new File(auxPath)));
+    }
 
     /**
-     * Sets the path to the fCover neural network auxiliary file.
+     * Sets the LAI neural network. The net is not modified, it may be shared with other algorithm instances.
+     *
+     * @param net the net
+     */
+    public void setNn_Lai(NnaNet net) {
+        _netLAI = net;
+        updateFusedNet();
+    }
+
+    /**
+     * Sets the path to the fCover neural network auxiliary file. The net is read into a private instance, use
+     * {@link #setNn_fCover(NnaNet)} to share it with other users.
      *
      * @param auxPath
      */
-    public void setNn_fCoverAuxPath(String auxPath) throws IOException, JnnException {
-        _netFCover = Jnn.readNna(new File(auxPath));
+    public void setNn_fCoverAuxPath(String auxPath) throws IOException {
+        setNn_fCover(NnaNet.read(new File(auxPath)));
+    }
+
+    /**
+     * Sets the fCover neural network. The net is not modified, it may be shared with other algorithm instances.
+     *
+     * @param net the net
+     */
+    public void setNn_fCover(NnaNet net) {
+        _netFCover = net;
+        updateFusedNet();
     }
 
     /**
-     * Sets the path to the fAPAR neural network auxiliary file.
+     * Sets the path to the fAPAR neural network auxiliary file. The net is read into a private instance, use
+     * {@link #setNn_fAPAR(NnaNet)} to share it with other users.
      *
      * @param auxPath
      */
-    public void setNn_fAPARAuxPath(String auxPath) throws IOException, JnnException {
-         _netFApar = Jnn.readNna(new File(auxPath));
+    public void setNn_fAPARAuxPath(String auxPath) throws IOException {
+        setNn_fAPAR(NnaNet.read(new File(auxPath)));
     }
 
     /**
-     * Sets the path to the LAIxCab neural network auxiliary file.
+     * Sets the fAPAR neural network. The net is not modified, it may be shared with other algorithm instances.
+     *
+     * @param net the net
+     */
+    public void setNn_fAPAR(NnaNet net) {
+        _netFApar = net;
+        updateFusedNet();
+    }
+
+    /**
+     * Sets the path to the LAIxCab neural network auxiliary file. The net is read into a private instance, use
+     * {@link #setNn_LAIxCab(NnaNet)} to share it with other users.
      *
      * @param auxPath
      */
-    public void setNn_LAIxCabAuxPath(String auxPath) throws IOException, JnnException {
-        _netLaixCab = Jnn.readNna(new File(auxPath));
+    public void setNn_LAIxCabAuxPath(String auxPath) throws IOException {
+        setNn_LAIxCab(NnaNet.read(new File(auxPath)));
+    }
+
+    /**
+     * Sets the LAIxCab neural network. The net is not modified, it may be shared with other algorithm instances.
+     *
+     * @param net the net
+     */
+    public void setNn_LAIxCab(NnaNet net) {
+        _netLaixCab = net;
+        updateFusedNet();
     }
 
 
 
     /**
-     * Processes the veg algorithm for the input pixel.
+     * Selects the output variables to be computed, by default all are computed. The neural nets and the
+     * uncertainties of the other variables are not evaluated, their values and uncertainties are set to
+     * zero and their out of range flags are never raised.
+     *
+     * @param lai     whether LAI is computed
+     * @param fCover  whether fCover is computed
+     * @param laixCab whether LAIxCab is computed
+     * @param fApar   whether fAPAR is computed
+     */
+    public void setComputedVariables(boolean lai, boolean fCover, boolean laixCab, boolean fApar) {
+        if (!(lai || fCover || laixCab || fApar)) {
+            throw new IllegalArgumentException("at least one variable must be computed");
+        }
+        _computed[VAR_LAI] = lai;
+        _computed[VAR_FCOVER] = fCover;
+        _computed[VAR_LAIXCAB] = laixCab;
+        _computed[VAR_FAPAR] = fApar;
+        updateFusedNet();
+    }
+
+    /**
+     * Creates a working context for {@link #processPixel(ToaVegMerisPixel, VegGenericPixel, ToaVegContext)}.
+     * The neural nets must have been set before.
+     *
+     * @return a new context
+     */
+    public ToaVegContext createContext() {
+        Guardian.assertNotNull("LAI neural net", _netLAI);
+        Guardian.assertNotNull("fCover neural net", _netFCover);
+        Guardian.assertNotNull("LAIxCab neural net", _netLaixCab);
+        Guardian.assertNotNull("fAPAR neural net", _netFApar);
+        return new ToaVegContext(_fusedNet);
+    }
+
+    /**
+     * Processes the veg algorithm for the input pixel, using a context owned by this algorithm instance.
+     * Not thread safe - use {@link #processPixel(ToaVegMerisPixel, VegGenericPixel, ToaVegContext)} for
+     * concurrent processing.
      *
      * @param input  a TOA_VEG pixel
      * @param output the vegetation algorithm result
      */
     public void processPixel(ToaVegMerisPixel input, VegGenericPixel output) {
+        if (_context == null) {
+            _context = createContext();
+        }
+        processPixel(input, output, _context);
+    }
+
+    /**
+     * Processes the veg algorithm for the input pixel.
+     *
+     * @param input   a TOA_VEG pixel
+     * @param output  the vegetation algorithm result
+     * @param context the working context of the calling thread
+     */
+    public void processPixel(ToaVegMerisPixel input, VegGenericPixel output, ToaVegContext context) {
+        final double[] inputNN = context._inputNN;
+        final double[] outputNN = context._netOutput;
+
+        for (int b = 0; b < ToaVegConstants.NUM_BANDS; b++) {
+            context._radiance[b] = input.getBand(b);
+            context._solarSpecFlux[b] = input.getBand_SolarSpecFlux(b);
+        }
+        normaliseInput(input.getBand_Sza(), input.getBand_Saa(), input.getBand_Vza(), input.getBand_Vaa(),
+                       context._radiance, context._solarSpecFlux, inputNN);
+
+        //run of the neural networks for the output variables
+        if (_compiledNets != null) {
+            for (int k = 0; k < _compiledNets.length; k++) {
+                _compiledNets[k].process(inputNN, outputNN, k);
+            }
+        } else {
+            _fusedNet.process(inputNN, outputNN, context._netBuffer);
+        }
+        final double[] varNorm = context._varNorm;
+        for (int k = 0; k < _netVariables.length; k++) {
+            varNorm[_netVariables[k]] = outputNN[k];
+        }
+
+        //denormalisation of the outputs
+        loadOutputConstants(context);
+        final int flags = denormalise(varNorm[VAR_LAI], varNorm[VAR_FCOVER], varNorm[VAR_LAIXCAB],
+                                      varNorm[VAR_FAPAR], context);
+
+        // create output
+        output.setBand_fCover(context._fCover[0]);
+        output.setBand_LAI(context._lai[0]);
+        output.setBand_CabxLAI(context._laixCab[0]);
+        output.setBand_fAPAR(context._fApar[0]);
+        output.setBand_sigma_LAI(context._sigma_lai);
+        output.setBand_sigma_LAIxCab(context._sigma_laixcab);
+        output.setBand_sigma_fApar(context._sigma_fapar);
+        output.setBand_sigma_fCover(context._sigma_fcover);
+
+        if ((flags & VegFlagsManager.LAI_OUT_OF_RANGE_FLAG_MASK) != 0) {
+            output.setLAIOutOfRangeFlag();
+        }
+        if ((flags & VegFlagsManager.FCOVER_OUT_OF_RANGE_FLAG_MASK) != 0) {
+            output.setFCoverOutOfRangeFlag();
+        }
+        if ((flags & VegFlagsManager.LAIXCAB_OUT_OF_RANGE_FLAG_MASK) != 0) {
+            output.setLAIxCabOutOfRangeFlag();
+        }
+        if ((flags & VegFlagsManager.FAPAR_OUT_OF_RANGE_FLAG_MASK) != 0) {
+            output.setFaparOutOfRangeFlag();
+        }
+
+    }
+
+    /**
+     * Processes the veg algorithm for all pixels of a batch. The networks are run over the whole batch
+     * before the outputs are denormalised, the results are the same as those of
+     * {@link #processPixel(ToaVegMerisPixel, VegGenericPixel, ToaVegContext)}.
+     *
+     * @param batch   the batch holding the normalised inputs, receives the results
+     * @param context the working context of the calling thread
+     */
+    public void processBatch(ToaVegBatch batch, ToaVegContext context) {
+        final int count = batch.getCount();
+
+        //run of the neural networks for the output variables
+        final double[][] outputNN = new double[_netVariables.length][];
+        for (int k = 0; k < outputNN.length; k++) {
+            outputNN[k] = batch._outputNN[_netVariables[k]];
+        }
+        if (_compiledNets != null) {
+            for (int i = 0; i < count; i++) {
+                for (int k = 0; k < _compiledNets.length; k++) {
+                    _compiledNets[k].process(batch._inputNN[i], outputNN[k], i);
+                }
+            }
+        } else {
+            _fusedNet.process(batch._inputNN, count, outputNN, context._netBuffer);
+        }
+
+        //denormalisation of the outputs
+        loadOutputConstants(context);
+        for (int i = 0; i < count; i++) {
+            batch._flags[i] = denormalise(batch._laiNorm[i], batch._fCoverNorm[i], batch._laixCabNorm[i],
+                                          batch._fAparNorm[i], context);
+            batch._lai[i] = context._lai[0];
+            batch._fCover[i] = context._fCover[0];
+            batch._laixCab[i] = context._laixCab[0];
+            batch._fApar[i] = context._fApar[0];
+            batch._sigmaLai[i] = context._sigma_lai;
+            batch._sigmaFCover[i] = context._sigma_fcover;
+            batch._sigmaLaixCab[i] = context._sigma_laixcab;
+            batch._sigmaFApar[i] = context._sigma_fapar;
+        }
+    }
+
+    /**
+     * Normalises the geometry and the TOA reflectances of a pixel into the input vector of the neural
+     * networks.
+     *
+     * @param sza           the sun zenith angle
+     * @param saa           the sun azimuth angle
+     * @param vza           the view zenith angle
+     * @param vaa           the view azimuth angle
+     * @param radiance      the TOA radiances of the {@link ToaVegConstants#NUM_BANDS} bands
+     * @param solarSpecFlux the solar spectral fluxes of the bands
+     * @param inputNN       the input vector, receives the normalised values
+     */
+    public void normaliseInput(float sza, float saa, float vza, float vaa, float[] radiance, float[] solarSpecFlux,
+                               double[] inputNN) {
         double cosPhi;
-        double laiNorm;
-        double fAparNorm;
-        double fCoverNorm;
-        double laixCabNorm;
-        double laiStat[] = new double[2];
-        double fcoverStat[] = new double[2];
-        double faparStat[] = new double[2];
-        double laixcabStat[] = new double[2];
         int numInputNN;
         float reflec;
-        float solarSpecFlux;
         numInputNN = 0;
 
         //Calculation of the relative azimuth angle image
-        cosPhi = Math.cos(Math.toRadians(input.getBand_Saa() - input.getBand_Vaa()));
+        cosPhi = Math.cos(Math.toRadians(saa - vaa));
 
         //normalisation of the inputs
          //View Zenith
-        _inputNN[numInputNN] = inputNormalisation(Math.toRadians(input.getBand_Vza()),
-                                                  getTheta_V_Min(),
-                                                  getTheta_V_Max());
+        inputNN[numInputNN] = inputNormalisation(Math.toRadians(vza),
+                                                 getTheta_V_Min(),
+                                                 getTheta_V_Max());
         numInputNN++;
 
         //Sun Zenith
-        _inputNN[numInputNN] = inputNormalisation(Math.toRadians(input.getBand_Sza()),
-                                                    getTheta_S_Min(),
-                                                    getTheta_S_Max());
+        inputNN[numInputNN] = inputNormalisation(Math.toRadians(sza),
+                                                 getTheta_S_Min(),
+                                                 getTheta_S_Max());
           numInputNN++;
 
         //CosPhi
-        _inputNN[numInputNN] = inputNormalisation(cosPhi,
-                                                  getCos_Phi_Min(),
-                                                  getCos_Phi_Max());
+        inputNN[numInputNN] = inputNormalisation(cosPhi,
+                                                 getCos_Phi_Min(),
+                                                 getCos_Phi_Max());
          numInputNN++;
 
 
 
          for (int b = 0; b < ToaVegConstants.NUM_BANDS; b++) {
-            solarSpecFlux = input.getBand_SolarSpecFlux(b);
-            reflec = RsMathUtils.radianceToReflectance(input.getBand(b), input.getBand_Sza(), solarSpecFlux);
-            _inputNN[numInputNN] = inputNormalisation(reflec,
-                                                      getR_Min(b),
-                                                      getR_Max(b));
+            reflec = RsMathUtils.radianceToReflectance(radiance[b], sza, solarSpecFlux[b]);
+            inputNN[numInputNN] = inputNormalisation(reflec,
+                                                     getR_Min(b),
+                                                     getR_Max(b));
             numInputNN++;
 
         }
-
-
-
-        //run of the neural network for the output variables
-        laiNorm = neuralNetwork(_inputNN, _netLAI);
-        fCoverNorm = neuralNetwork(_inputNN, _netFCover);
-        laixCabNorm = neuralNetwork(_inputNN, _netLaixCab);
-        fAparNorm = neuralNetwork(_inputNN, _netFApar);
-
-        //denormalisation of the outputs
-        getLAIConstants(laiStat);
-        getfCoverConstants(fcoverStat);
-        getfAPARConstants(faparStat);
-        getLAIxCabConstants(laixcabStat);
-
-
-        // using denormalisation version 2 for LAI, FCOVER, FAPAR
-        // using denormalisation version 1 for LAIxCab
-        _flagLaiOutOfRange = outputDenormalisation(laiNorm,
-                                                    laiStat[0],
-                                                    laiStat[1],
-                                                    _lai);
-        _flagFAparOutOfRange = outputDenormalisation(fAparNorm,
-                                                    faparStat[0],
-                                                    faparStat[1],
-                                                    _fApar);
-        _flagfCoverOutOfRange =outputDenormalisation(fCoverNorm,
-                                                    fcoverStat[0],
-                                                    fcoverStat[1],
-                                                    _fCover);
-        _flagLaixCabOutOfRange = outputDenormalisation(laixCabNorm,
-                                                        laixcabStat[0],
-                                                        laixcabStat[1],
-                                                        _laixCab);
-
-
-        //uncertainties
-        _sigma_lai = uncertainty_estimation(_lai[0], _flagLaiOutOfRange, _LAICoeff);
-        _sigma_fapar = uncertainty_estimation(_fApar[0],_flagFAparOutOfRange,_fAparCoeff);
-        _sigma_fcover = uncertainty_estimation(_fCover[0], _flagfCoverOutOfRange, _fCoverCoeff);
-        _sigma_laixcab = uncertainty_estimation(_laixCab[0], _flagLaixCabOutOfRange, _laixCabCoeff);
-
-        // create output
-        output.setBand_fCover(_fCover[0]);
-        output.setBand_LAI(_lai[0]);
-        output.setBand_CabxLAI(_laixCab[0]);
-        output.setBand_fAPAR(_fApar[0]);
-        output.setBand_sigma_LAI(_sigma_lai);
-        output.setBand_sigma_LAIxCab(_sigma_laixcab);
-        output.setBand_sigma_fApar(_sigma_fapar);
-        output.setBand_sigma_fCover(_sigma_fcover);
-
-
-        if (_flagLaiOutOfRange) {
-            output.setLAIOutOfRangeFlag();
-        }
-        if (_flagfCoverOutOfRange) {
-            output.setFCoverOutOfRangeFlag();
-        }
-        if (_flagLaixCabOutOfRange) {
-            output.setLAIxCabOutOfRangeFlag();
-        }
-        if (_flagFAparOutOfRange) {
-            output.setFaparOutOfRangeFlag();
-        }
-
     }
 
     ////////////////////////////////////////////////////////////////////////////
@@ -444,17 +577,124 @@ public class ToaVegAlgorithm {
 
 
     /**
-     * runs the neural network using nn-library
-     *
-     * @param netInput input values table
-     * @param net      neural network to be applied to input values
+     * Fuses the neural nets of the computed variables once all nets are set.
+     */
+    private void updateFusedNet() {
+        _context = null;
+        _fusedNet = null;
+        _compiledNets = null;
+        _netVariables = null;
+        if (_netLAI != null && _netFCover != null && _netLaixCab != null && _netFApar != null) {
+            final NnaNet[] nets = {_netLAI, _netFCover, _netLaixCab, _netFApar};
+            final List<NnaNet> heads = new ArrayList<NnaNet>();
+            final List<Integer> variables = new ArrayList<Integer>();
+            for (int v = 0; v < nets.length; v++) {
+                if (_computed[v]) {
+                    heads.add(nets[v]);
+                    variables.add(v);
+                }
+            }
+            _fusedNet = new FusedNeuralNet(heads.toArray(new NnaNet[heads.size()]));
+            _netVariables = new int[variables.size()];
+            for (int k = 0; k < _netVariables.length; k++) {
+                _netVariables[k] = variables.get(k);
+            }
+            _compiledNets = findCompiledNets(heads);
+        }
+    }
+
+    /**
+     * Retrieves the compiled versions of the nets if they are switched on and all nets have been compiled,
+     * otherwise <code>null</code>.
+     */
+    private static CompiledNeuralNet[] findCompiledNets(List<NnaNet> nets) {
+        if (!CompiledNeuralNets.isEnabled()) {
+            return null;
+        }
+        final CompiledNeuralNet[] compiledNets = new CompiledNeuralNet[nets.size()];
+        for (int k = 0; k < compiledNets.length; k++) {
+            compiledNets[k] = CompiledNeuralNets.find(nets.get(k));
+            if (compiledNets[k] == null) {
+                return null;
+            }
+        }
+        return compiledNets;
+    }
+
+    /**
+     * Copies the denormalisation constants of the output statistics into the context.
+     */
+    private void loadOutputConstants(ToaVegContext context) {
+        getLAIConstants(context._laiStat);
+        getfCoverConstants(context._fCoverStat);
+        getfAPARConstants(context._fAparStat);
+        getLAIxCabConstants(context._laixCabStat);
+    }
+
+    /**
+     * Denormalises the network outputs and estimates their uncertainties. The values are left in the
+     * context.
      *
-     * @return result of the neural network
+     * @return the out of range flags
      */
-    private static double neuralNetwork(double[] netInput, JnnNet net) {
-        double[] netOutput = new double[1];
-        net.process(netInput, netOutput);
-        return netOutput[0];
+    private int denormalise(double laiNorm, double fCoverNorm, double laixCabNorm, double fAparNorm,
+                            ToaVegContext context) {
+        final double laiStat[] = context._laiStat;
+        final double fcoverStat[] = context._fCoverStat;
+        final double faparStat[] = context._fAparStat;
+        final double laixcabStat[] = context._laixCabStat;
+
+        // using denormalisation version 2 for LAI, FCOVER, FAPAR
+        // using denormalisation version 1 for LAIxCab
+        boolean flagLaiOutOfRange = false;
+        if (_computed[VAR_LAI]) {
+            flagLaiOutOfRange = outputDenormalisation(laiNorm, laiStat[0], laiStat[1], context._lai);
+            context._sigma_lai = uncertainty_estimation(context._lai[0], flagLaiOutOfRange, _LAICoeff);
+        } else {
+            context._lai[0] = 0.0f;
+            context._sigma_lai = 0.0f;
+        }
+        boolean flagFAparOutOfRange = false;
+        if (_computed[VAR_FAPAR]) {
+            flagFAparOutOfRange = outputDenormalisation(fAparNorm, faparStat[0], faparStat[1], context._fApar);
+            context._sigma_fapar = uncertainty_estimation(context._fApar[0], flagFAparOutOfRange, _fAparCoeff);
+        } else {
+            context._fApar[0] = 0.0f;
+            context._sigma_fapar = 0.0f;
+        }
+        boolean flagfCoverOutOfRange = false;
+        if (_computed[VAR_FCOVER]) {
+            flagfCoverOutOfRange = outputDenormalisation(fCoverNorm, fcoverStat[0], fcoverStat[1], context._fCover);
+            context._sigma_fcover = uncertainty_estimation(context._fCover[0], flagfCoverOutOfRange, _fCoverCoeff);
+        } else {
+            context._fCover[0] = 0.0f;
+            context._sigma_fcover = 0.0f;
+        }
+        boolean flagLaixCabOutOfRange = false;
+        if (_computed[VAR_LAIXCAB]) {
+            flagLaixCabOutOfRange = outputDenormalisation(laixCabNorm, laixcabStat[0], laixcabStat[1],
+                                                          context._laixCab);
+            context._sigma_laixcab = uncertainty_estimation(context._laixCab[0], flagLaixCabOutOfRange,
+                                                            _laixCabCoeff);
+        } else {
+            context._laixCab[0] = 0.0f;
+            context._sigma_laixcab = 0.0f;
+        }
+
+        int flags = 0;
+        if (flagLaiOutOfRange) {
+            flags = VegFlagsManager.setLaiOutOfRangeFlag(flags);
+        }
+        if (flagfCoverOutOfRange) {
+            flags = VegFlagsManager.setFCoverOutOfRangeFlag(flags);
+        }
+        if (flagLaixCabOutOfRange) {
+            flags = VegFlagsManager.setLaixCabOutOfRangeFlag(flags);
+        }
+        if (flagFAparOutOfRange) {
+            flags = VegFlagsManager.setFaparOutOfRangeFlag(flags);
+        }
+        return flags;
     }
 
     /**
@@ -494,7 +734,7 @@ public class ToaVegAlgorithm {
         if (!flag){
             sigmaV  = (float) (coeff[0]
                         + coeff[1] * val
-                        + coeff[2] * Math.pow(val,2));
+                        + coeff[2] * ((double) val * val));
         }
         return sigmaV;
     }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.toa.algorithm;
+
+/**
+ * The normalised network inputs and the results of a batch of pixels processed by
+ * {@link ToaVegAlgorithm#processBatch(ToaVegBatch, ToaVegContext)}. The pixels are added one by one with
+ * {@link #addPixel()}, the result arrays are indexed in the same order. A batch must not be shared between
+ * threads.
+ */
+public final class ToaVegBatch {
+
+    private int _count;
+
+    double[][] _inputNN;
+    double[] _laiNorm;
+    double[] _fCoverNorm;
+    double[] _laixCabNorm;
+    double[] _fAparNorm;
+    // the four arrays above, in the output order of the fused neural net
+    double[][] _outputNN;
+
+    float[] _lai;
+    float[] _fCover;
+    float[] _laixCab;
+    float[] _fApar;
+    float[] _sigmaLai;
+    float[] _sigmaFCover;
+    float[] _sigmaLaixCab;
+    float[] _sigmaFApar;
+    int[] _flags;
+
+    /**
+     * Constructs a batch.
+     *
+     * @param capacity the initial number of pixels
+     */
+    public ToaVegBatch(int capacity) {
+        allocate(Math.max(1, capacity));
+    }
+
+    /**
+     * Removes all pixels, the buffers are kept.
+     */
+    public void clear() {
+        _count = 0;
+    }
+
+    /**
+     * Adds a pixel to the batch.
+     *
+     * @return the network input vector of the pixel, to be filled by
+     *         {@link ToaVegAlgorithm#normaliseInput(float, float, float, float, float[], float[], double[])}
+     */
+    public double[] addPixel() {
+        if (_count == _inputNN.length) {
+            allocate(2 * _count);
+        }
+        return _inputNN[_count++];
+    }
+
+    /**
+     * Retrieves the number of pixels of the batch.
+     */
+    public int getCount() {
+        return _count;
+    }
+
+    public float[] getLAI() {
+        return _lai;
+    }
+
+    public float[] getFCover() {
+        return _fCover;
+    }
+
+    public float[] getLAIxCab() {
+        return _laixCab;
+    }
+
+    public float[] getFAPAR() {
+        return _fApar;
+    }
+
+    public float[] getSigmaLAI() {
+        return _sigmaLai;
+    }
+
+    public float[] getSigmaFCover() {
+        return _sigmaFCover;
+    }
+
+    public float[] getSigmaLAIxCab() {
+        return _sigmaLaixCab;
+    }
+
+    public float[] getSigmaFAPAR() {
+        return _sigmaFApar;
+    }
+
+    /**
+     * Retrieves the out of range flags of the pixels.
+     */
+    public int[] getFlags() {
+        return _flags;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private void allocate(int capacity) {
+        final double[][] inputNN = new double[capacity][];
+        int i = 0;
+        if (_inputNN != null) {
+            // keep the input vectors already filled
+            System.arraycopy(_inputNN, 0, inputNN, 0, _inputNN.length);
+            i = _inputNN.length;
+        }
+        for (; i < capacity; i++) {
+            inputNN[i] = new double[16];
+        }
+        _inputNN = inputNN;
+
+        _laiNorm = new double[capacity];
+        _fCoverNorm = new double[capacity];
+        _laixCabNorm = new double[capacity];
+        _fAparNorm = new double[capacity];
+        _outputNN = new double[][]{_laiNorm, _fCoverNorm, _laixCabNorm, _fAparNorm};
+
+        _lai = new float[capacity];
+        _fCover = new float[capacity];
+        _laixCab = new float[capacity];
+        _fApar = new float[capacity];
+        _sigmaLai = new float[capacity];
+        _sigmaFCover = new float[capacity];
+        _sigmaLaixCab = new float[capacity];
+        _sigmaFApar = new float[capacity];
+        _flags = new int[capacity];
+    }
+}
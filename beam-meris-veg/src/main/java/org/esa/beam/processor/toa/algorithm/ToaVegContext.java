@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.toa.algorithm;
+
+import org.esa.beam.processor.common.utils.FusedNeuralNet;
+import org.esa.beam.processor.toa.ToaVegConstants;
+
+/**
+ * The mutable working state of the TOA_VEG algorithm for one pixel. A context must not be shared
+ * between threads - every thread calling {@link ToaVegAlgorithm#processPixel(org.esa.beam.processor.toa.utils.ToaVegMerisPixel,
+ * org.esa.beam.processor.common.utils.VegGenericPixel, ToaVegContext)} needs its own instance, created by
+ * {@link ToaVegAlgorithm#createContext()}.
+ */
+public final class ToaVegContext {
+
+    // inputs of a pixel
+    final float[] _radiance;
+    final float[] _solarSpecFlux;
+
+    // input and output tables of the neural networks
+    final double[] _inputNN;
+    final double[] _netOutput;
+    final double[] _netBuffer;
+    // the net outputs by variable
+    final double[] _varNorm;
+
+    // output statistics
+    final double[] _laiStat;
+    final double[] _fCoverStat;
+    final double[] _fAparStat;
+    final double[] _laixCabStat;
+
+    // denormalised results
+    final float[] _lai;
+    final float[] _fCover;
+    final float[] _fApar;
+    final float[] _laixCab;
+
+    // uncertainties
+    float _sigma_lai;
+    float _sigma_fapar;
+    float _sigma_fcover;
+    float _sigma_laixcab;
+
+    ToaVegContext(FusedNeuralNet net) {
+        _radiance = new float[ToaVegConstants.NUM_BANDS];
+        _solarSpecFlux = new float[ToaVegConstants.NUM_BANDS];
+
+        _inputNN = new double[16];
+        _netOutput = new double[net.getOutputCount()];
+        _netBuffer = net.createBuffer();
+        _varNorm = new double[4];
+
+        _laiStat = new double[2];
+        _fCoverStat = new double[2];
+        _fAparStat = new double[2];
+        _laixCabStat = new double[2];
+
+        _lai = new float[1];
+        _fCover = new float[1];
+        _fApar = new float[1];
+        _laixCab = new float[1];
+    }
+}
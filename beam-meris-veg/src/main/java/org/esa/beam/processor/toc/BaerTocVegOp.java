@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.toc;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.framework.gpf.Operator;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.OperatorSpi;
+import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
+import org.esa.beam.framework.gpf.annotations.Parameter;
+import org.esa.beam.framework.gpf.annotations.SourceProduct;
+import org.esa.beam.framework.gpf.annotations.TargetProduct;
+import org.esa.beam.processor.baer.BaerConstants;
+import org.esa.beam.processor.baer.BaerOp;
+import org.esa.beam.util.ProductUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The vegetation chain BAER - TOC_VEG as a single operator. The surface reflectances of the {@link BaerOp}
+ * are passed to the {@link TocVegOp} tile by tile in memory, the intermediate BAER product is never written.
+ * <p/>
+ * By default the target product holds only the TOC_VEG bands and the flag bands. The BAER bands can be
+ * added with <code>outputBaerBands</code>, they are then computed together with the vegetation bands.
+ */
+@OperatorMetadata(alias = "BaerTocVeg", authors = "NOVELTIS, Brockmann Consult",
+                  copyright = TocVegConstants.PROC_COPYRIGHT,
+                  version = TocVegConstants.PROC_VERSION,
+                  description = "Computes LAI, fCover, LAIxCab and fAPAR from MERIS L2 products, with the BAER atmospheric correction done in memory.")
+public class BaerTocVegOp extends Operator {
+
+    @SourceProduct(alias = "source",
+                   description = "The path of the MERIS L2 source product",
+                   label = "MERIS L2 source product")
+    private Product sourceProduct;
+
+    @TargetProduct
+    private Product targetProduct;
+
+    @Parameter(defaultValue = BaerConstants.BITMASK_PARAM_DEFAULT, label = "BAER bitmask",
+               description = BaerConstants.BITMASK_PARAM_DESCRIPTION)
+    private String baerBitmask;
+
+    @Parameter(defaultValue = BaerConstants.AER_PHASE_PARAM_DEFAULT, label = BaerConstants.AER_PHASE_PARAM_LABEL,
+               description = BaerConstants.AER_PHASE_PARAM_DESCRIPTION)
+    private String aerPhaseLut;
+
+    @Parameter(defaultValue = "true", label = BaerConstants.USE_CLOUD_PARAM_LABEL,
+               description = BaerConstants.USE_CLOUD_PARAM_DESCRIPTION)
+    private boolean cloudProcess;
+
+    @Parameter(valueSet = {"SMAC", "UBAC"}, defaultValue = BaerConstants.SMAC_PARAM_DEFAULT,
+               label = BaerConstants.SMAC_PARAM_LABEL, description = BaerConstants.SMAC_PARAM_DESCRIPTION)
+    private String atmCorrMethod;
+
+    @Parameter(defaultValue = "true", label = "Legacy SMAC numerics",
+               description = "Reproduces the SMAC geometry of former versions, which converts the zenith angles to radians twice.")
+    private boolean smacLegacyNumerics;
+
+    @Parameter(defaultValue = "1", interval = "[1,64]", label = "AOT block size",
+               description = "Retrieves the aerosol on blocks of N x N pixels and interpolates it to full resolution. 1 retrieves it for every pixel.")
+    private int aotBlockSize;
+
+    @Parameter(defaultValue = "false", label = "Warm start",
+               description = "Starts the aerosol retrieval of a pixel from the result of its left or upper neighbour. Faster, but results depend slightly on the tiling.")
+    private boolean warmStart;
+
+    @Parameter(defaultValue = TocVegConstants.BITMASK_PARAM_DEFAULT, label = "TOC_VEG bitmask",
+               description = TocVegConstants.BITMASK_PARAM_DESCRIPTION)
+    private String tocVegBitmask;
+
+    @Parameter(defaultValue = "false", label = "Output BAER bands",
+               description = "Also writes the bands of the BAER product. Otherwise only the vegetation bands and the flag bands are written.")
+    private boolean outputBaerBands;
+
+    private transient Product baerProduct;
+    private transient Product tocVegProduct;
+
+    @Override
+    public void initialize() throws OperatorException {
+        final Map<String, Object> baerParameters = new HashMap<String, Object>();
+        baerParameters.put("bitmask", baerBitmask);
+        baerParameters.put("aerPhaseLut", aerPhaseLut);
+        baerParameters.put("cloudProcess", cloudProcess);
+        // TOC_VEG needs the surface reflectances
+        baerParameters.put("baerProcess", Boolean.TRUE);
+        baerParameters.put("atmCorProcess", Boolean.TRUE);
+        baerParameters.put("atmCorrMethod", atmCorrMethod);
+        baerParameters.put("smacLegacyNumerics", smacLegacyNumerics);
+        baerParameters.put("aotBlockSize", aotBlockSize);
+        baerParameters.put("warmStart", warmStart);
+        baerProduct = GPF.createProduct(OperatorSpi.getOperatorAlias(BaerOp.class), baerParameters, sourceProduct);
+
+        final Map<String, Object> tocVegParameters = new HashMap<String, Object>();
+        tocVegParameters.put("bitmask", tocVegBitmask);
+        tocVegProduct = GPF.createProduct(OperatorSpi.getOperatorAlias(TocVegOp.class), tocVegParameters,
+                                          baerProduct);
+
+        createTargetProduct();
+    }
+
+    @Override
+    public void dispose() {
+        if (tocVegProduct != null) {
+            tocVegProduct.dispose();
+            tocVegProduct = null;
+        }
+        if (baerProduct != null) {
+            baerProduct.dispose();
+            baerProduct = null;
+        }
+        super.dispose();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates the target product from the bands of the TOC_VEG product and, if requested, of the BAER
+     * product. The bands keep the images of the inner operators, so no tile is copied.
+     */
+    private void createTargetProduct() {
+        targetProduct = new Product(tocVegProduct.getName(), tocVegProduct.getProductType(),
+                                    tocVegProduct.getSceneRasterWidth(), tocVegProduct.getSceneRasterHeight());
+        ProductUtils.copyTiePointGrids(tocVegProduct, targetProduct);
+        ProductUtils.copyGeoCoding(tocVegProduct, targetProduct);
+        targetProduct.setStartTime(tocVegProduct.getStartTime());
+        targetProduct.setEndTime(tocVegProduct.getEndTime());
+
+        // the flag bands of the source, of BAER and of TOC_VEG
+        ProductUtils.copyFlagBands(tocVegProduct, targetProduct, true);
+        for (Band band : tocVegProduct.getBands()) {
+            if (!targetProduct.containsBand(band.getName())) {
+                ProductUtils.copyBand(band.getName(), tocVegProduct, targetProduct, true);
+            }
+        }
+        if (outputBaerBands) {
+            for (Band band : baerProduct.getBands()) {
+                if (!targetProduct.containsBand(band.getName())) {
+                    ProductUtils.copyBand(band.getName(), baerProduct, targetProduct, true);
+                }
+            }
+        }
+        ProductUtils.copyMasks(tocVegProduct, targetProduct);
+        ProductUtils.copyMetadata(tocVegProduct, targetProduct);
+    }
+
+    public static class Spi extends OperatorSpi {
+
+        public Spi() {
+            super(BaerTocVegOp.class);
+        }
+    }
+}
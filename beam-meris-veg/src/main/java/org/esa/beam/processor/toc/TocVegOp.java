@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.toc;
+
+import com.bc.ceres.core.ProgressMonitor;
+import com.bc.jnn.JnnException;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.Mask;
+import org.esa.beam.framework.datamodel.MetadataAttribute;
+import org.esa.beam.framework.datamodel.MetadataElement;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.TiePointGrid;
+import org.esa.beam.framework.gpf.Operator;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.OperatorSpi;
+import org.esa.beam.framework.gpf.Tile;
+import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
+import org.esa.beam.framework.gpf.annotations.Parameter;
+import org.esa.beam.framework.gpf.annotations.SourceProduct;
+import org.esa.beam.framework.gpf.annotations.TargetProduct;
+import org.esa.beam.framework.processor.ProcessorException;
+import org.esa.beam.processor.common.auxdata.AuxDataRegistry;
+import org.esa.beam.processor.common.auxdata.VegNormFactorLoader;
+import org.esa.beam.processor.common.utils.VegFlagsManager;
+import org.esa.beam.processor.toc.algorithm.TocVegAlgorithm;
+import org.esa.beam.processor.toc.algorithm.TocVegContext;
+import org.esa.beam.processor.toc.auxdata.TocVegInputStatisticsLoader;
+import org.esa.beam.processor.toc.auxdata.TocVegOutputStatisticsLoader;
+import org.esa.beam.processor.toc.utils.TocVegBaerPixel;
+import org.esa.beam.processor.toc.utils.TocVegPixel;
+import org.esa.beam.processor.toc.utils.TocVegProcessorConfiguration;
+import org.esa.beam.processor.toc.utils.TocVegProcessorConfigurationParser;
+import org.esa.beam.util.ProductUtils;
+import org.esa.beam.util.ResourceInstaller;
+import org.esa.beam.util.StringUtils;
+import org.esa.beam.util.SystemUtils;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * GPF operator version of the {@link TocVegProcessor}.
+ * <p/>
+ * The per-pixel logic is the one of the legacy processor, but the scene is computed tile by tile so that
+ * the GPF tile scheduler can spread the work over all available processors. The source is a BAER product,
+ * so the operator can be chained directly after the {@link org.esa.beam.processor.baer.BaerOp} in a graph.
+ * The auxiliary data and the neural net are loaded only once into a single {@link TocVegAlgorithm} which is
+ * shared by all computing threads; every thread works on its own {@link TocVegContext}.
+ */
+@OperatorMetadata(alias = "TocVeg", authors = "NOVELTIS, Brockmann Consult",
+                  copyright = TocVegConstants.PROC_COPYRIGHT,
+                  version = TocVegConstants.PROC_VERSION,
+                  description = "Computes LAI, fCover, LAIxCab and fAPAR from atmospherically corrected MERIS reflectances.")
+public class TocVegOp extends Operator {
+
+    private static final String VALID_MASK_NAME = "_toc_veg_bitmask_";
+
+    @SourceProduct(alias = "source",
+                   description = "The path of the BAER source product",
+                   label = "BAER source product")
+    private Product sourceProduct;
+
+    @TargetProduct
+    private Product targetProduct;
+
+    @Parameter(defaultValue = TocVegConstants.BITMASK_PARAM_DEFAULT, label = TocVegConstants.BITMASK_PARAM_LABEL,
+               description = TocVegConstants.BITMASK_PARAM_DESCRIPTION)
+    private String bitmask;
+
+    private transient Band[] reflecBands;
+    private transient Band toaVegBand;
+    private transient TiePointGrid gridSza;
+    private transient TiePointGrid gridSaa;
+    private transient TiePointGrid gridVza;
+    private transient TiePointGrid gridVaa;
+    private transient Mask bitmaskMask;
+
+    private transient Band laiBand;
+    private transient Band fCoverBand;
+    private transient Band cabxLaiBand;
+    private transient Band faparBand;
+    private transient Band deltaFaparBand;
+    private transient Band vegFlagsBand;
+
+    private transient TocVegProcessorConfiguration config;
+    private transient VegNormFactorLoader normFactorAux;
+    private transient TocVegInputStatisticsLoader inStatAux;
+    private transient TocVegOutputStatisticsLoader outStatAux;
+    private transient List<AuxDataRegistry.Handle<?>> auxDataHandles;
+
+    private transient TocVegAlgorithm algorithm;
+    private transient ThreadLocal<TocVegContext> threadLocalContext;
+
+    @Override
+    public void initialize() throws OperatorException {
+        loadSourceNodes();
+        createMask();
+        algorithm = new TocVegAlgorithm();
+        loadAuxiliaryData();
+        createTargetProduct();
+
+        threadLocalContext = new ThreadLocal<TocVegContext>() {
+            @Override
+            protected TocVegContext initialValue() {
+                return algorithm.createContext();
+            }
+        };
+    }
+
+    @Override
+    public void dispose() {
+        if (auxDataHandles != null) {
+            for (AuxDataRegistry.Handle<?> handle : auxDataHandles) {
+                handle.release();
+            }
+            auxDataHandles = null;
+        }
+        super.dispose();
+    }
+
+    @Override
+    public void computeTileStack(Map<Band, Tile> targetTiles, Rectangle targetRectangle, ProgressMonitor pm) throws
+                                                                                                            OperatorException {
+        pm.beginTask(TocVegConstants.LOG_MSG_GENERATE_PIXEL, targetRectangle.height);
+        try {
+            final int width = targetRectangle.width;
+            final int numPixels = width * targetRectangle.height;
+
+            // read the source data of the tile
+            // --------------------------------
+            final float[][] reflec = new float[TocVegConstants.NUM_BANDS][];
+            for (int n = 0; n < TocVegConstants.NUM_BANDS; n++) {
+                reflec[n] = getSourceTile(reflecBands[n], targetRectangle).getSamplesFloat();
+            }
+            final float[] toaVeg = getSourceTile(toaVegBand, targetRectangle).getSamplesFloat();
+            final float[] sza = getSourceTile(gridSza, targetRectangle).getSamplesFloat();
+            final float[] saa = getSourceTile(gridSaa, targetRectangle).getSamplesFloat();
+            final float[] vza = getSourceTile(gridVza, targetRectangle).getSamplesFloat();
+            final float[] vaa = getSourceTile(gridVaa, targetRectangle).getSamplesFloat();
+            // no bitmask - all pixels are processed, as by the legacy processor
+            final int[] valid = bitmaskMask != null ? getSourceTile(bitmaskMask, targetRectangle).getSamplesInt() : null;
+
+            final float[] lai = new float[numPixels];
+            final float[] fCover = new float[numPixels];
+            final float[] cabxLai = new float[numPixels];
+            final float[] fApar = new float[numPixels];
+            final float[] deltaFApar = new float[numPixels];
+            final int[] flags = new int[numPixels];
+
+            final TocVegContext context = threadLocalContext.get();
+            final TocVegBaerPixel inPixel = new TocVegBaerPixel();
+            inPixel.initPixel(TocVegConstants.NUM_BANDS);
+            final TocVegPixel outPixel = new TocVegPixel();
+
+            for (int i = 0; i < numPixels; i++) {
+                // reset to be sure - risk of pending flags ...
+                outPixel.resetPixel();
+
+                if (valid != null && valid[i] == 0) {
+                    outPixel.setInvalidInputFlag();
+                } else {
+                    for (int n = 0; n < TocVegConstants.NUM_BANDS; n++) {
+                        inPixel.setBand(reflec[n][i], n);
+                    }
+                    inPixel.setBand_TOAVEG(toaVeg[i]);
+                    inPixel.setBand_Sza(sza[i]);
+                    inPixel.setBand_Vza(vza[i]);
+                    inPixel.setBand_Saa(saa[i]);
+                    inPixel.setBand_Vaa(vaa[i]);
+
+                    algorithm.processPixel(inPixel, outPixel, context);
+                }
+
+                lai[i] = outPixel.getBand_LAI();
+                fCover[i] = outPixel.getBand_fCover();
+                cabxLai[i] = outPixel.getBand_CabxLAI();
+                fApar[i] = outPixel.getBand_fAPAR();
+                deltaFApar[i] = outPixel.getBand_delta_fAPAR();
+                flags[i] = outPixel.getFlagMask();
+
+                if ((i + 1) % width == 0) {
+                    checkForCancellation();
+                    pm.worked(1);
+                }
+            }
+
+            targetTiles.get(laiBand).setSamples(lai);
+            targetTiles.get(fCoverBand).setSamples(fCover);
+            targetTiles.get(cabxLaiBand).setSamples(cabxLai);
+            targetTiles.get(faparBand).setSamples(fApar);
+            targetTiles.get(deltaFaparBand).setSamples(deltaFApar);
+            targetTiles.get(vegFlagsBand).setSamples(flags);
+        } finally {
+            pm.done();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private void loadSourceNodes() {
+        reflecBands = new Band[TocVegConstants.NUM_BANDS];
+        for (int n = 0; n < TocVegConstants.NUM_BANDS; n++) {
+            reflecBands[n] = getSourceBand(TocVegConstants.REFLEC_BAND_NAMES[n]);
+        }
+        toaVegBand = getSourceBand(TocVegConstants.TOA_VEG_BAND_NAME);
+
+        gridSza = getSourceTiePointGrid(TocVegConstants.SZA_TIEPOINT_NAME);
+        gridSaa = getSourceTiePointGrid(TocVegConstants.SAA_TIEPOINT_NAME);
+        gridVza = getSourceTiePointGrid(TocVegConstants.VZA_TIEPOINT_NAME);
+        gridVaa = getSourceTiePointGrid(TocVegConstants.VAA_TIEPOINT_NAME);
+    }
+
+    private Band getSourceBand(String bandName) {
+        final Band band = sourceProduct.getBand(bandName);
+        if (band == null) {
+            throw new OperatorException("The requested band \"" + bandName + "\" was not found in product!");
+        }
+        return band;
+    }
+
+    private TiePointGrid getSourceTiePointGrid(String name) {
+        final TiePointGrid grid = sourceProduct.getTiePointGrid(name);
+        if (grid == null) {
+            throw new OperatorException("The requested tie point grid \"" + name + "\" is not found in product!");
+        }
+        return grid;
+    }
+
+    private void createMask() {
+        if (StringUtils.isNullOrEmpty(bitmask)) {
+            bitmaskMask = null;
+            return;
+        }
+        if (!sourceProduct.isCompatibleBandArithmeticExpression(bitmask)) {
+            throw new OperatorException("The expression '" + bitmask + "' is not compatible with the source product.");
+        }
+        bitmaskMask = Mask.BandMathsType.create(VALID_MASK_NAME, "", sourceProduct.getSceneRasterWidth(),
+                                                sourceProduct.getSceneRasterHeight(), bitmask, Color.BLACK, 0.0);
+        sourceProduct.getMaskGroup().add(bitmaskMask);
+    }
+
+    private void createTargetProduct() {
+        targetProduct = new Product(sourceProduct.getName() + TocVegConstants.PRODUCT_TYPE_APPENDIX,
+                                    sourceProduct.getProductType() + TocVegConstants.PRODUCT_TYPE_APPENDIX,
+                                    sourceProduct.getSceneRasterWidth(), sourceProduct.getSceneRasterHeight());
+
+        ProductUtils.copyTiePointGrids(sourceProduct, targetProduct);
+        ProductUtils.copyFlagBands(sourceProduct, targetProduct, true);
+        ProductUtils.copyGeoCoding(sourceProduct, targetProduct);
+        targetProduct.setStartTime(sourceProduct.getStartTime());
+        targetProduct.setEndTime(sourceProduct.getEndTime());
+
+        laiBand = addTargetBand(TocVegConstants.LAI_BAND_NAME, TocVegConstants.LAI_BAND_DESCRIPTION);
+        laiBand.setUnit(TocVegConstants.LAI_BAND_UNIT);
+        fCoverBand = addTargetBand(TocVegConstants.FCOVER_BAND_NAME, TocVegConstants.FCOVER_BAND_DESCRIPTION);
+        cabxLaiBand = addTargetBand(TocVegConstants.LAIXCAB_BAND_NAME, TocVegConstants.LAIXCAB_BAND_DESCRIPTION);
+        cabxLaiBand.setUnit(TocVegConstants.LAIXCAB_BAND_UNIT);
+        faparBand = addTargetBand(TocVegConstants.FAPAR_BAND_NAME, TocVegConstants.FAPAR_BAND_DESCRIPTION);
+        deltaFaparBand = addTargetBand(TocVegConstants.DELTA_FAPAR_BAND_NAME,
+                                       TocVegConstants.DELTA_FAPAR_BAND_DESCRIPTION);
+
+        final FlagCoding flagCoding = VegFlagsManager.getCoding(TocVegConstants.VEG_FLAGS_BAND_NAME);
+        vegFlagsBand = targetProduct.addBand(TocVegConstants.VEG_FLAGS_BAND_NAME, ProductData.TYPE_UINT16);
+        vegFlagsBand.setDescription(TocVegConstants.VEG_FLAGS_BAND_DESCRIPTION);
+        vegFlagsBand.setSampleCoding(flagCoding);
+        targetProduct.getFlagCodingGroup().add(flagCoding);
+        VegFlagsManager.addBitmaskDefsToProduct(targetProduct, TocVegConstants.VEG_FLAGS_BAND_NAME);
+
+        addMetadataToTarget();
+    }
+
+    private Band addTargetBand(String name, String description) {
+        final Band band = targetProduct.addBand(name, ProductData.TYPE_FLOAT32);
+        band.setDescription(description);
+        return band;
+    }
+
+    /**
+     * Adds the source MPH, the processor information and the auxiliary data to the target metadata - as the
+     * legacy processor does.
+     */
+    private void addMetadataToTarget() {
+        final MetadataElement srcRoot = sourceProduct.getMetadataRoot();
+        final MetadataElement destRoot = targetProduct.getMetadataRoot();
+
+        final MetadataElement srcFolder = new MetadataElement(TocVegConstants.SRC_METADATA_NAME);
+        final MetadataElement srcMph = srcRoot.getElement("MPH");
+        if (srcMph != null) {
+            srcFolder.addElement(srcMph.createDeepClone());
+        }
+        destRoot.addElement(srcFolder);
+
+        final MetadataElement mph = new MetadataElement(TocVegConstants.MPH_METADATA_NAME);
+        mph.addAttribute(new MetadataAttribute(TocVegConstants.PRODUCT_METADATA_NAME,
+                                               ProductData.createInstance(targetProduct.getName()), true));
+        mph.addAttribute(new MetadataAttribute(TocVegConstants.SRC_PRODUCT_METADATA_NAME,
+                                               ProductData.createInstance(sourceProduct.getName()), true));
+        mph.addAttribute(new MetadataAttribute(TocVegConstants.PROCESSOR_METADATA_NAME,
+                                               ProductData.createInstance(TocVegConstants.PROC_NAME), true));
+        mph.addAttribute(new MetadataAttribute(TocVegConstants.PROCESSOR_VERSION_METADATA_NAME,
+                                               ProductData.createInstance(TocVegConstants.PROC_VERSION), true));
+        mph.addAttribute(new MetadataAttribute(TocVegConstants.PROCESSING_TIME_METADATA_NAME,
+                                               ProductData.createInstance(Calendar.getInstance().getTime().toString()),
+                                               true));
+        TocVegProcessor.addAuxFilesToMetadata(mph, config, normFactorAux, inStatAux, outStatAux);
+        destRoot.addElement(mph);
+    }
+
+    /**
+     * Installs and loads all auxiliary data. The loaders are read-only after loading and shared with
+     * other operator and processor instances.
+     */
+    private void loadAuxiliaryData() {
+        File auxdataPath = new File(SystemUtils.getApplicationDataDir(), getSymbolicName() + "/auxdata");
+        File configFile = new File(auxdataPath, TocVegConstants.CONFIG_FILE);
+        try {
+            final ResourceInstaller resourceInstaller = new ResourceInstaller(ResourceInstaller.getSourceUrl(getClass()),
+                                                                              "auxdata/" + TocVegConstants.AUXDATA_DIR,
+                                                                              auxdataPath);
+            resourceInstaller.install(".*", ProgressMonitor.NULL);
+
+            final URL configPath = configFile.toURI().toURL();
+            final TocVegProcessorConfigurationParser parser = new TocVegProcessorConfigurationParser();
+            parser.parseConfigurationFile(configPath, auxdataPath);
+            config = parser.getConfiguration();
+            auxDataHandles = new ArrayList<AuxDataRegistry.Handle<?>>();
+
+            final AuxDataRegistry registry = AuxDataRegistry.getInstance();
+            normFactorAux = hold(registry.acquire(VegNormFactorLoader.class, config.getNormalisationFactorAuxFile(),
+                                                  new AuxDataRegistry.Loader<VegNormFactorLoader>() {
+                public VegNormFactorLoader load(File file) throws IOException {
+                    final VegNormFactorLoader loader = new VegNormFactorLoader(
+                            TocVegConstants.NORMALISATION_FACTOR_DEFAULT, TocVegConstants.LOGGER_NAME);
+                    loader.load(file.getPath(), TocVegConstants.AUX_VERSION_KEY);
+                    return loader;
+                }
+            }));
+            algorithm.setNormFactorAccess(normFactorAux);
+
+            inStatAux = hold(registry.acquire(TocVegInputStatisticsLoader.class, config.getInputStatisticsAuxFile(),
+                                              new AuxDataRegistry.Loader<TocVegInputStatisticsLoader>() {
+                public TocVegInputStatisticsLoader load(File file) throws IOException {
+                    final TocVegInputStatisticsLoader loader = new TocVegInputStatisticsLoader();
+                    loader.load(file.getPath());
+                    return loader;
+                }
+            }));
+            algorithm.setInputStatisticsAccess(inStatAux);
+
+            outStatAux = hold(registry.acquire(TocVegOutputStatisticsLoader.class, config.getOutputStatisticsAuxFile(),
+                                               new AuxDataRegistry.Loader<TocVegOutputStatisticsLoader>() {
+                public TocVegOutputStatisticsLoader load(File file) throws IOException {
+                    final TocVegOutputStatisticsLoader loader = new TocVegOutputStatisticsLoader();
+                    loader.load(file.getPath());
+                    return loader;
+                }
+            }));
+            algorithm.setOutputStatisticsAccess(outStatAux);
+
+            algorithm.InitAlgo();
+            algorithm.setNnAuxPath(config.getNN_AuxFile());
+        } catch (MalformedURLException e) {
+            throw new OperatorException("Failed to create configuration URL for " + configFile.getPath(), e);
+        } catch (ProcessorException e) {
+            throw new OperatorException("Failed to parse configuration " + configFile.getPath() + " with aux data " + auxdataPath.getPath(), e);
+        } catch (IOException e) {
+            throw new OperatorException("Failed to load auxiliary from " + auxdataPath.getPath(), e);
+        } catch (JnnException e) {
+            throw new OperatorException("Failed to load auxiliary from " + auxdataPath.getPath(), e);
+        }
+    }
+
+    /**
+     * Keeps a handle to shared auxiliary data until the operator is disposed.
+     */
+    private <T> T hold(AuxDataRegistry.Handle<T> handle) {
+        auxDataHandles.add(handle);
+        return handle.get();
+    }
+
+    public String getSymbolicName() {
+        return StringUtils.createValidName(OperatorSpi.getOperatorAlias(getClass()).toLowerCase(), new char[]{'-', '.'}, '-');
+    }
+
+    public static class Spi extends OperatorSpi {
+
+        public Spi() {
+            super(TocVegOp.class);
+        }
+    }
+}
@@ -38,9 +38,11 @@ import org.esa.beam.framework.processor.Request;
 import org.esa.beam.framework.processor.RequestElementFactory;
 import org.esa.beam.framework.processor.ui.ProcessorUI;
 import org.esa.beam.processor.common.VegRequestElementFactory;
+import org.esa.beam.processor.common.auxdata.AuxDataRegistry;
 import org.esa.beam.processor.common.auxdata.VegAuxFileLoader;
 import org.esa.beam.processor.common.auxdata.VegAuxFilePropsLoader;
 import org.esa.beam.processor.common.auxdata.VegNormFactorLoader;
+import org.esa.beam.processor.common.utils.StripPipeline;
 import org.esa.beam.processor.common.utils.VegFlagsManager;
 import org.esa.beam.processor.toc.algorithm.TocVegAlgorithm;
 import org.esa.beam.processor.toc.auxdata.TocVegInputStatisticsLoader;
@@ -55,12 +57,15 @@ import org.esa.beam.util.ResourceInstaller;
 import org.esa.beam.util.io.FileUtils;
 
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.logging.Logger;
 
 public class TocVegProcessor extends Processor {
@@ -77,6 +82,7 @@ public class TocVegProcessor extends Processor {
     private VegNormFactorLoader _normFactorAux;
     private TocVegInputStatisticsLoader _inStatAux;
     private TocVegOutputStatisticsLoader _outStatAux;
+    private List<AuxDataRegistry.Handle<?>> _auxDataHandles;
 
     private Band[] _reflec_bands;
     private Band _toa_veg_band;
@@ -111,6 +117,7 @@ public class TocVegProcessor extends Processor {
 
         _algo = new TocVegAlgorithm();
         _auxFilesLoaded = false;
+        _auxDataHandles = new ArrayList<AuxDataRegistry.Handle<?>>();
         _reflec_bands = new Band[TocVegConstants.NUM_BANDS];
 
         installAuxdata();
@@ -150,6 +157,8 @@ public class TocVegProcessor extends Processor {
             throw new ProcessorException(e.getMessage(), e);
         } catch (JnnException e) {
             throw new ProcessorException(e.getMessage(), e);
+        } finally {
+            releaseAuxiliaryData();
         }
 
         _logger.info(ProcessorConstants.LOG_MSG_FINISHED_REQUEST);
@@ -250,17 +259,36 @@ public class TocVegProcessor extends Processor {
         if (_auxFilesLoaded) {
             return;
         }
-        _normFactorAux = new VegNormFactorLoader(TocVegConstants.NORMALISATION_FACTOR_DEFAULT,
-                                                 TocVegConstants.LOGGER_NAME);
-        _normFactorAux.load(_config.getNormalisationFactorAuxFile(), TocVegConstants.AUX_VERSION_KEY);
+        final AuxDataRegistry registry = AuxDataRegistry.getInstance();
+        _normFactorAux = hold(registry.acquire(VegNormFactorLoader.class, _config.getNormalisationFactorAuxFile(),
+                                               new AuxDataRegistry.Loader<VegNormFactorLoader>() {
+            public VegNormFactorLoader load(File file) throws IOException {
+                final VegNormFactorLoader loader = new VegNormFactorLoader(TocVegConstants.NORMALISATION_FACTOR_DEFAULT,
+                                                                           TocVegConstants.LOGGER_NAME);
+                loader.load(file.getPath(), TocVegConstants.AUX_VERSION_KEY);
+                return loader;
+            }
+        }));
         _algo.setNormFactorAccess(_normFactorAux);
 
-        _inStatAux = new TocVegInputStatisticsLoader();
-        _inStatAux.load(_config.getInputStatisticsAuxFile());
+        _inStatAux = hold(registry.acquire(TocVegInputStatisticsLoader.class, _config.getInputStatisticsAuxFile(),
+                                           new AuxDataRegistry.Loader<TocVegInputStatisticsLoader>() {
+            public TocVegInputStatisticsLoader load(File file) throws IOException {
+                final TocVegInputStatisticsLoader loader = new TocVegInputStatisticsLoader();
+                loader.load(file.getPath());
+                return loader;
+            }
+        }));
         _algo.setInputStatisticsAccess(_inStatAux);
 
-        _outStatAux = new TocVegOutputStatisticsLoader();
-        _outStatAux.load(_config.getOutputStatisticsAuxFile());
+        _outStatAux = hold(registry.acquire(TocVegOutputStatisticsLoader.class, _config.getOutputStatisticsAuxFile(),
+                                            new AuxDataRegistry.Loader<TocVegOutputStatisticsLoader>() {
+            public TocVegOutputStatisticsLoader load(File file) throws IOException {
+                final TocVegOutputStatisticsLoader loader = new TocVegOutputStatisticsLoader();
+                loader.load(file.getPath());
+                return loader;
+            }
+        }));
         _algo.setOutputStatisticsAccess(_outStatAux);
 
         _algo.InitAlgo();
@@ -270,6 +298,25 @@ public class TocVegProcessor extends Processor {
         _auxFilesLoaded = true;
     }
 
+    /**
+     * Keeps a handle to shared auxiliary data until the data are released.
+     */
+    private <T> T hold(AuxDataRegistry.Handle<T> handle) {
+        _auxDataHandles.add(handle);
+        return handle.get();
+    }
+
+    /**
+     * Releases the shared auxiliary data, they are acquired again for the next request.
+     */
+    private void releaseAuxiliaryData() {
+        for (AuxDataRegistry.Handle<?> handle : _auxDataHandles) {
+            handle.release();
+        }
+        _auxDataHandles.clear();
+        _auxFilesLoaded = false;
+    }
+
     /**
      * Loads all necessary parameters from the request except in- and out products. Checks the request type for
      * correctness.
@@ -563,129 +610,26 @@ public class TocVegProcessor extends Processor {
     }
 
     /**
-     * Processes the input product line by line
+     * Processes the input product in strips of lines. The input of the next strip is read and the output of
+     * the previous strip is written while the current strip is computed.
      */
     private void processVegAlgorithm(ProgressMonitor pm) throws ProcessorException, IOException {
         int width = _inputProduct.getSceneRasterWidth();
         int height = _inputProduct.getSceneRasterHeight();
 
-        TocVegBaerPixel inPixel = new TocVegBaerPixel();
-        inPixel.initPixel(TocVegConstants.NUM_BANDS);
-        TocVegPixel outPixel = new TocVegPixel();
-
-        // input arrays
-        float[][] reflecBands = new float[TocVegConstants.NUM_BANDS][width];
-        float[] toa_veg = new float[width];
-        float[] lat = new float[width];
-        float[] lon = new float[width];
-        float[] sza = new float[width];
-        float[] saa = new float[width];
-        float[] vza = new float[width];
-        float[] vaa = new float[width];
-
-        boolean process[] = new boolean[width];
-        for (int n = 0; n < width; n++) {
-            process[n] = true;
-        }
-
-        // output arrays
-        float[] lai = new float[width];
-        float[] fCover = new float[width];
-        float[] cabxLai = new float[width];
-        float[] fAPAR = new float[width];
-        float[] delta_fAPAR = new float[width];
-        int[] out_flags = new int[width];
-
-        // progress bar init
-        // -----------------
-        pm.beginTask(TocVegConstants.LOG_MSG_GENERATE_PIXEL, height * (TocVegConstants.NUM_BANDS + 13) + 1); /*I18N*/
+        // progress bar init, one work unit per line
+        // -----------------------------------------
+        pm.beginTask(TocVegConstants.LOG_MSG_GENERATE_PIXEL, height + 1); /*I18N*/
 
         copyDuplicatedBands(SubProgressMonitor.create(pm, 1));
 
         Mask bitmask = Mask.BandMathsType.create("bitmask", "description", width, height, _bitmaskExpression, Color.BLACK, 0.0);
         _inputProduct.getMaskGroup().add(bitmask);
 
-        for (int line = 0; line < height; line++) {
-
-            // read input data
-            // ---------------
-            for (int n = 0; n < TocVegConstants.NUM_BANDS; n++) {
-                _reflec_bands[n].readPixels(0, line, width, 1, reflecBands[n], SubProgressMonitor.create(pm, 1));
-            }
-
-            _toa_veg_band.readPixels(0, line, width, 1, toa_veg, SubProgressMonitor.create(pm, 1));
-            _gridLat.readPixels(0, line, width, 1, lat, SubProgressMonitor.create(pm, 1));
-            _gridLon.readPixels(0, line, width, 1, lon, SubProgressMonitor.create(pm, 1));
-            _gridSza.readPixels(0, line, width, 1, sza, SubProgressMonitor.create(pm, 1));
-            _gridSaa.readPixels(0, line, width, 1, saa, SubProgressMonitor.create(pm, 1));
-            _gridVza.readPixels(0, line, width, 1, vza, SubProgressMonitor.create(pm, 1));
-            _gridVaa.readPixels(0, line, width, 1, vaa, SubProgressMonitor.create(pm, 1));
-
-            // evaluate bitmask
-            // ----------------
-            if (_bitMaskTerm != null) {
-                int[] temp = new int[width];
-                bitmask.getSourceImage().getData().getSamples(0, line, width, 1, 0, temp);
-                for (int i = 0; i < temp.length; i++) {
-                    process[i] = temp[i] == 255;
-                }
-            }
-
-            for (int x = 0; x < width; x++) {
-
-                // reset to be sure - risk of pending flags ...
-                outPixel.resetPixel();
-
-                if (!process[x]) {
-                    outPixel.setInvalidInputFlag();
-                } else {
-
-                    for (int n = 0; n < TocVegConstants.NUM_BANDS; n++) {
-                        inPixel.setBand(reflecBands[n][x], n);
-                    }
-
-                    inPixel.setBand_TOAVEG(toa_veg[x]);
-                    inPixel.setBand_Sza(sza[x]);
-                    inPixel.setBand_Vza(vza[x]);
-                    inPixel.setBand_Saa(saa[x]);
-                    inPixel.setBand_Vaa(vaa[x]);
-                    inPixel.setBand_Lat(lat[x]);
-                    inPixel.setBand_Lon(lon[x]);
-
-                    _algo.processPixel(inPixel, outPixel);
-                }
-
-                lai[x] = outPixel.getBand_LAI();
-                fCover[x] = outPixel.getBand_fCover();
-                cabxLai[x] = outPixel.getBand_CabxLAI();
-                fAPAR[x] = outPixel.getBand_fAPAR();
-                delta_fAPAR[x] = outPixel.getBand_delta_fAPAR();
-                out_flags[x] = outPixel.getFlagMask();
-            }
-
-            _lai_band.writePixels(0, line, width, 1, lai, SubProgressMonitor.create(pm, 1));
-            _fCover_band.writePixels(0, line, width, 1, fCover, SubProgressMonitor.create(pm, 1));
-            _cabxLai_band.writePixels(0, line, width, 1, cabxLai, SubProgressMonitor.create(pm, 1));
-            _fapar_band.writePixels(0, line, width, 1, fAPAR, SubProgressMonitor.create(pm, 1));
-            _delta_fapar_band.writePixels(0, line, width, 1, delta_fAPAR, SubProgressMonitor.create(pm, 1));
-            _veg_flags_band.writePixels(0, line, width, 1, out_flags, SubProgressMonitor.create(pm, 1));
-
-            // update progressbar
-            // ------------------
-            pm.worked(1);
-            if (pm.isCanceled()) {
-                _logger.warning(ProcessorConstants.LOG_MSG_PROC_CANCELED);
-                setCurrentStatus(ProcessorConstants.STATUS_ABORTED);
-                return;
-            }
-
-            // check aborted
-            // -------------
-            if (isAborted()) {
-                _logger.warning(ProcessorConstants.LOG_MSG_PROC_ABORTED);
-                pm.done();
-                return;
-            }
+        final VegStage stage = new VegStage(width, bitmask, pm);
+        if (!new StripPipeline<VegStrip>(stage, height).run()) {
+            // canceled or aborted, already handled by the stage
+            return;
         }
         _inputProduct.getMaskGroup().remove(bitmask);
 
@@ -736,7 +680,7 @@ public class TocVegProcessor extends Processor {
                                                ProductData.createInstance(date.toString()),
                                                true));
 
-        addAuxFilesToMetadata(mph);
+        addAuxFilesToMetadata(mph, _config, _normFactorAux, _inStatAux, _outStatAux);
 
         destRoot.addElement(mph);
     }
@@ -754,19 +698,22 @@ public class TocVegProcessor extends Processor {
     }
 
     /**
-     * Adds the metadata felds of the auxiliary files to the output product
+     * Adds the metadata felds of the auxiliary files to the output product. Also used by the
+     * {@link TocVegOp}.
      *
      * @param mph
      */
-    private void addAuxFilesToMetadata(MetadataElement mph) {
+    static void addAuxFilesToMetadata(MetadataElement mph, TocVegProcessorConfiguration config,
+                                      VegNormFactorLoader normFactorAux, TocVegInputStatisticsLoader inStatAux,
+                                      TocVegOutputStatisticsLoader outStatAux) {
 
         addStubbedMetadataElement(mph, TocVegConstants.NORMALISATION_AUX_METADATA_NAME,
-                                  _config.getNormalisationFactorAuxFile(),
-                                  _normFactorAux,
+                                  config.getNormalisationFactorAuxFile(),
+                                  normFactorAux,
                                   TocVegConstants.NORMALISATION_AUX_METADATA_NAME);
 
-        writeInputStatisticsMetadata(mph);
-        writeOutputStatisticsMetadata(mph);
+        writeInputStatisticsMetadata(mph, config, inStatAux);
+        writeOutputStatisticsMetadata(mph, config, outStatAux);
     }
 
     /**
@@ -774,50 +721,51 @@ public class TocVegProcessor extends Processor {
      *
      * @param mph
      */
-    private void writeInputStatisticsMetadata(MetadataElement mph) {
+    private static void writeInputStatisticsMetadata(MetadataElement mph, TocVegProcessorConfiguration config,
+                                                     TocVegInputStatisticsLoader inStatAux) {
         MetadataElement auxMeta = new MetadataElement(TocVegConstants.INPUT_STATISTICS_AUX_METADATA_NAME);
 
         auxMeta.addAttribute(new MetadataAttribute(TocVegConstants.AUX_FILE_NAME_METADATA_NAME,
-                                                   ProductData.createInstance(_config.getInputStatisticsAuxFile()),
+                                                   ProductData.createInstance(config.getInputStatisticsAuxFile()),
                                                    true));
-        addAuxFileDescAndVersionToMetadata(_inStatAux, auxMeta);
+        addAuxFileDescAndVersionToMetadata(inStatAux, auxMeta);
 
         auxMeta.addAttribute(new MetadataAttribute(TocVegConstants.THETA_S_MEAN_AUX_KEY,
                                                    ProductData.createInstance(
-                                                           new double[]{_inStatAux.getTheta_S_Mean()}),
+                                                           new double[]{inStatAux.getTheta_S_Mean()}),
                                                    true));
 
         auxMeta.addAttribute(new MetadataAttribute(TocVegConstants.THETA_S_STD_AUX_KEY,
                                                    ProductData.createInstance(
-                                                           new double[]{_inStatAux.getTheta_S_StdDev()}),
+                                                           new double[]{inStatAux.getTheta_S_StdDev()}),
                                                    true));
 
         auxMeta.addAttribute(new MetadataAttribute(TocVegConstants.THETA_V_MEAN_AUX_KEY,
                                                    ProductData.createInstance(
-                                                           new double[]{_inStatAux.getTheta_V_Mean()}),
+                                                           new double[]{inStatAux.getTheta_V_Mean()}),
                                                    true));
 
         auxMeta.addAttribute(new MetadataAttribute(TocVegConstants.THETA_V_STD_AUX_KEY,
                                                    ProductData.createInstance(
-                                                           new double[]{_inStatAux.getTheta_V_StdDev()}),
+                                                           new double[]{inStatAux.getTheta_V_StdDev()}),
                                                    true));
 
         auxMeta.addAttribute(new MetadataAttribute(TocVegConstants.COS_PHI_MEAN_AUX_KEY,
                                                    ProductData.createInstance(
-                                                           new double[]{_inStatAux.getCos_Phi_Mean()}),
+                                                           new double[]{inStatAux.getCos_Phi_Mean()}),
                                                    true));
 
         auxMeta.addAttribute(new MetadataAttribute(TocVegConstants.COS_PHI_STD_AUX_KEY,
                                                    ProductData.createInstance(
-                                                           new double[]{_inStatAux.getCos_Phi_StdDev()}),
+                                                           new double[]{inStatAux.getCos_Phi_StdDev()}),
                                                    true));
 
         auxMeta.addAttribute(new MetadataAttribute(TocVegConstants.R_MEAN_AUX_KEY,
-                                                   ProductData.createInstance(new double[]{_inStatAux.getR_Mean()}),
+                                                   ProductData.createInstance(new double[]{inStatAux.getR_Mean()}),
                                                    true));
 
         auxMeta.addAttribute(new MetadataAttribute(TocVegConstants.R_STD_AUX_KEY,
-                                                   ProductData.createInstance(new double[]{_inStatAux.getR_StdDev()}),
+                                                   ProductData.createInstance(new double[]{inStatAux.getR_StdDev()}),
                                                    true));
         mph.addElement(auxMeta);
     }
@@ -827,15 +775,16 @@ public class TocVegProcessor extends Processor {
      *
      * @param mph
      */
-    private void writeOutputStatisticsMetadata(MetadataElement mph) {
+    private static void writeOutputStatisticsMetadata(MetadataElement mph, TocVegProcessorConfiguration config,
+                                                      TocVegOutputStatisticsLoader outStatAux) {
         MetadataElement auxMeta = new MetadataElement(TocVegConstants.OUTPUT_STATISTICS_AUX_METADATA_NAME);
 
         auxMeta.addAttribute(new MetadataAttribute(TocVegConstants.AUX_FILE_NAME_METADATA_NAME,
-                                                   ProductData.createInstance(_config.getOutputStatisticsAuxFile()),
+                                                   ProductData.createInstance(config.getOutputStatisticsAuxFile()),
                                                    true));
-        addAuxFileDescAndVersionToMetadata(_outStatAux, auxMeta);
+        addAuxFileDescAndVersionToMetadata(outStatAux, auxMeta);
 
-        double[] vec = _outStatAux.getFAPARConstants(null);
+        double[] vec = outStatAux.getFAPARConstants(null);
         auxMeta.addAttribute(new MetadataAttribute(TocVegConstants.FAPAR_MEAN_KEY,
                                                    ProductData.createInstance(new double[]{vec[0]}),
                                                    true));
@@ -849,7 +798,7 @@ public class TocVegProcessor extends Processor {
                                                    ProductData.createInstance(new double[]{vec[3]}),
                                                    true));
 
-        vec = _outStatAux.getFCoverConstants(vec);
+        vec = outStatAux.getFCoverConstants(vec);
         auxMeta.addAttribute(new MetadataAttribute(TocVegConstants.FCOVER_MEAN_KEY,
                                                    ProductData.createInstance(new double[]{vec[0]}),
                                                    true));
@@ -863,7 +812,7 @@ public class TocVegProcessor extends Processor {
                                                    ProductData.createInstance(new double[]{vec[3]}),
                                                    true));
 
-        vec = _outStatAux.getLAIConstants(vec);
+        vec = outStatAux.getLAIConstants(vec);
         auxMeta.addAttribute(new MetadataAttribute(TocVegConstants.LAI_MEAN_KEY,
                                                    ProductData.createInstance(new double[]{vec[0]}),
                                                    true));
@@ -877,7 +826,7 @@ public class TocVegProcessor extends Processor {
                                                    ProductData.createInstance(new double[]{vec[3]}),
                                                    true));
 
-        vec = _outStatAux.getLAIxCabConstants(vec);
+        vec = outStatAux.getLAIxCabConstants(vec);
         auxMeta.addAttribute(new MetadataAttribute(TocVegConstants.LAIXCAB_MEAN_KEY,
                                                    ProductData.createInstance(new double[]{vec[0]}),
                                                    true));
@@ -898,7 +847,7 @@ public class TocVegProcessor extends Processor {
      *
      * @param mph
      */
-    private void addStubbedMetadataElement(MetadataElement mph, String elemName, String auxFilePath,
+    private static void addStubbedMetadataElement(MetadataElement mph, String elemName, String auxFilePath,
                                            VegAuxFilePropsLoader loader, String stub) {
         MetadataElement auxMeta = new MetadataElement(elemName);
 
@@ -932,7 +881,7 @@ public class TocVegProcessor extends Processor {
      * @param loader
      * @param auxElem
      */
-    private void addAuxFileDescAndVersionToMetadata(VegAuxFileLoader loader, MetadataElement auxElem) {
+    private static void addAuxFileDescAndVersionToMetadata(VegAuxFileLoader loader, MetadataElement auxElem) {
         String temp;
 
         temp = loader.getVersionString(TocVegConstants.AUX_VERSION_KEY);
@@ -963,4 +912,183 @@ public class TocVegProcessor extends Processor {
         }
 
     }
+
+    ///////////////////////////////////////////////////////////////////////////
+    ////// CLASS //////////////////////////////////////////////////////////////
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The input and output buffers of a strip.
+     */
+    private static final class VegStrip {
+
+        private int _numPixels;
+        // input arrays
+        private float[][] reflecBands;
+        private float[] toa_veg;
+        private float[] lat;
+        private float[] lon;
+        private float[] sza;
+        private float[] saa;
+        private float[] vza;
+        private float[] vaa;
+        private boolean[] process;
+        private int[] temp;
+
+        // output arrays
+        private float[] lai;
+        private float[] fCover;
+        private float[] cabxLai;
+        private float[] fAPAR;
+        private float[] delta_fAPAR;
+        private int[] out_flags;
+
+        /**
+         * Allocates the buffers for the given number of pixels. The band readers and writers process
+         * the whole buffer, so the shorter last strip of the scene gets buffers of its own.
+         */
+        private void setSize(int numPixels) {
+            if (numPixels == _numPixels) {
+                return;
+            }
+            _numPixels = numPixels;
+            reflecBands = new float[TocVegConstants.NUM_BANDS][numPixels];
+            toa_veg = new float[numPixels];
+            lat = new float[numPixels];
+            lon = new float[numPixels];
+            sza = new float[numPixels];
+            saa = new float[numPixels];
+            vza = new float[numPixels];
+            vaa = new float[numPixels];
+            process = new boolean[numPixels];
+            for (int n = 0; n < numPixels; n++) {
+                process[n] = true;
+            }
+            temp = new int[numPixels];
+
+            lai = new float[numPixels];
+            fCover = new float[numPixels];
+            cabxLai = new float[numPixels];
+            fAPAR = new float[numPixels];
+            delta_fAPAR = new float[numPixels];
+            out_flags = new int[numPixels];
+        }
+    }
+
+    /**
+     * Reads, processes and writes the strips of the input product.
+     */
+    private final class VegStage implements StripPipeline.Stage<VegStrip> {
+
+        private final int width;
+        private final Mask bitmask;
+        private final ProgressMonitor pm;
+        private final TocVegBaerPixel inPixel;
+        private final TocVegPixel outPixel;
+
+        private VegStage(int width, Mask bitmask, ProgressMonitor pm) {
+            this.width = width;
+            this.bitmask = bitmask;
+            this.pm = pm;
+            inPixel = new TocVegBaerPixel();
+            inPixel.initPixel(TocVegConstants.NUM_BANDS);
+            outPixel = new TocVegPixel();
+        }
+
+        public VegStrip createStrip(int stripHeight) {
+            final VegStrip strip = new VegStrip();
+            strip.setSize(width * stripHeight);
+            return strip;
+        }
+
+        public void read(VegStrip strip, int line, int lines) throws IOException {
+            strip.setSize(width * lines);
+
+            // read input data
+            // ---------------
+            for (int n = 0; n < TocVegConstants.NUM_BANDS; n++) {
+                _reflec_bands[n].readPixels(0, line, width, lines, strip.reflecBands[n], ProgressMonitor.NULL);
+            }
+
+            _toa_veg_band.readPixels(0, line, width, lines, strip.toa_veg, ProgressMonitor.NULL);
+            _gridLat.readPixels(0, line, width, lines, strip.lat, ProgressMonitor.NULL);
+            _gridLon.readPixels(0, line, width, lines, strip.lon, ProgressMonitor.NULL);
+            _gridSza.readPixels(0, line, width, lines, strip.sza, ProgressMonitor.NULL);
+            _gridSaa.readPixels(0, line, width, lines, strip.saa, ProgressMonitor.NULL);
+            _gridVza.readPixels(0, line, width, lines, strip.vza, ProgressMonitor.NULL);
+            _gridVaa.readPixels(0, line, width, lines, strip.vaa, ProgressMonitor.NULL);
+
+            // evaluate bitmask
+            // ----------------
+            if (_bitMaskTerm != null) {
+                final int[] temp = strip.temp;
+                bitmask.getSourceImage().getData(new Rectangle(0, line, width, lines)).getSamples(0, line, width, lines, 0, temp);
+                for (int i = 0; i < temp.length; i++) {
+                    strip.process[i] = temp[i] == 255;
+                }
+            }
+        }
+
+        public boolean compute(VegStrip strip, int line, int lines) {
+            final int numPixels = width * lines;
+            for (int x = 0; x < numPixels; x++) {
+
+                // reset to be sure - risk of pending flags ...
+                outPixel.resetPixel();
+
+                if (!strip.process[x]) {
+                    outPixel.setInvalidInputFlag();
+                } else {
+
+                    for (int n = 0; n < TocVegConstants.NUM_BANDS; n++) {
+                        inPixel.setBand(strip.reflecBands[n][x], n);
+                    }
+
+                    inPixel.setBand_TOAVEG(strip.toa_veg[x]);
+                    inPixel.setBand_Sza(strip.sza[x]);
+                    inPixel.setBand_Vza(strip.vza[x]);
+                    inPixel.setBand_Saa(strip.saa[x]);
+                    inPixel.setBand_Vaa(strip.vaa[x]);
+                    inPixel.setBand_Lat(strip.lat[x]);
+                    inPixel.setBand_Lon(strip.lon[x]);
+
+                    _algo.processPixel(inPixel, outPixel);
+                }
+
+                strip.lai[x] = outPixel.getBand_LAI();
+                strip.fCover[x] = outPixel.getBand_fCover();
+                strip.cabxLai[x] = outPixel.getBand_CabxLAI();
+                strip.fAPAR[x] = outPixel.getBand_fAPAR();
+                strip.delta_fAPAR[x] = outPixel.getBand_delta_fAPAR();
+                strip.out_flags[x] = outPixel.getFlagMask();
+            }
+
+            // update progressbar
+            // ------------------
+            pm.worked(lines);
+            if (pm.isCanceled()) {
+                _logger.warning(ProcessorConstants.LOG_MSG_PROC_CANCELED);
+                setCurrentStatus(ProcessorConstants.STATUS_ABORTED);
+                return false;
+            }
+
+            // check aborted
+            // -------------
+            if (isAborted()) {
+                _logger.warning(ProcessorConstants.LOG_MSG_PROC_ABORTED);
+                pm.done();
+                return false;
+            }
+            return true;
+        }
+
+        public void write(VegStrip strip, int line, int lines) throws IOException {
+            _lai_band.writePixels(0, line, width, lines, strip.lai, ProgressMonitor.NULL);
+            _fCover_band.writePixels(0, line, width, lines, strip.fCover, ProgressMonitor.NULL);
+            _cabxLai_band.writePixels(0, line, width, lines, strip.cabxLai, ProgressMonitor.NULL);
+            _fapar_band.writePixels(0, line, width, lines, strip.fAPAR, ProgressMonitor.NULL);
+            _delta_fapar_band.writePixels(0, line, width, lines, strip.delta_fAPAR, ProgressMonitor.NULL);
+            _veg_flags_band.writePixels(0, line, width, lines, strip.out_flags, ProgressMonitor.NULL);
+        }
+    }
 }
@@ -17,47 +17,41 @@
 package org.esa.beam.processor.toc.algorithm;
 
 import com.bc.jnn.JnnNet;
-import com.bc.jnn.Jnn;
 import com.bc.jnn.JnnException;
 import org.esa.beam.util.Guardian;
 import org.esa.beam.processor.common.auxdata.*;
+import org.esa.beam.processor.common.utils.CompiledNeuralNet;
+import org.esa.beam.processor.common.utils.CompiledNeuralNets;
 import org.esa.beam.processor.toc.utils.TocVegBaerPixel;
 import org.esa.beam.processor.toc.utils.TocVegPixel;
 
-import java.io.File;
 import java.io.IOException;
 
 
+/**
+ * The TOC_VEG algorithm. The auxiliary data and the neural net are set once and not modified while
+ * pixels are processed, so a single instance can be shared by several threads if every thread uses
+ * its own {@link TocVegContext}.
+ * <p/>
+ * The net is evaluated by the JNN interpreter, or by its compiled version if this is switched on (see
+ * {@link CompiledNeuralNets}).
+ */
 public class TocVegAlgorithm {
 
-    private TocVegBaerPixel _inputBAER;
     private VegNormFactorAccess _normFactorAccess;
     private VegInputStatisticsAccess _inputStatAccess;
     private VegOutputStatisticsAccess _outputStatAccess;
-   private boolean _flagLaiOutOfRange;
-    private boolean _flagfCoverOutOfRange;
-    private boolean _flagLaixCabOutOfRange;
-    private boolean _flagFAparOutOfRange;
-    float[] _lai;
-    float[] _fCover;
-    float[] _fApar;
-    float[] _laixCab;
     JnnNet _net;
-    double[] _inputNN;
+    // the compiled version of the net, null if the interpreter is used
+    CompiledNeuralNet _compiledNet;
+    // the context used by processPixel(TocVegBaerPixel, TocVegPixel)
+    private TocVegContext _context;
 
 
     /**
      * creates several variables
      */
     public TocVegAlgorithm() {
-        // result tables of neural network
-        _lai = new float[1];
-        _fApar = new float[1];
-        _fCover = new float[1];
-        _laixCab = new float[1];
-
-        // input table of neural network
-        _inputNN = new double[14];
     }
 
     /**
@@ -207,28 +201,61 @@ public class TocVegAlgorithm {
      * @param auxPath
      */
     public void setNnAuxPath(String auxPath) throws IOException, JnnException {
-         _net = Jnn.readNna(new File(auxPath));
+         _net = AuxDataRegistry.getInstance().createNeuralNet(auxPath);
+        _compiledNet = null;
+        if (CompiledNeuralNets.isEnabled()) {
+            // the compiled net keeps no reference to the shared net
+            final AuxDataRegistry.Handle<NnaNet> handle = AuxDataRegistry.getInstance().acquireNnaNet(auxPath);
+            try {
+                _compiledNet = CompiledNeuralNets.find(handle.get());
+            } finally {
+                handle.release();
+            }
+        }
+        _context = null;
      }
 
 
 
     /**
-     * Processes the veg algorithm for the input pixel.
+     * Creates a working context for {@link #processPixel(TocVegBaerPixel, TocVegPixel, TocVegContext)}.
+     * The neural net must have been set before.
+     *
+     * @return a new context holding a copy of the neural net
+     */
+    public TocVegContext createContext() {
+        Guardian.assertNotNull("neural net", _net);
+        return new TocVegContext(_net.clone());
+    }
+
+    /**
+     * Processes the veg algorithm for the input pixel, using a context owned by this algorithm instance.
+     * Not thread safe - use {@link #processPixel(TocVegBaerPixel, TocVegPixel, TocVegContext)} for
+     * concurrent processing.
      *
      * @param input  a BAER pixel
      * @param output the vegetation algorithm result
      */
     public void processPixel(TocVegBaerPixel input, TocVegPixel output) {
+        if (_context == null) {
+            _context = createContext();
+        }
+        processPixel(input, output, _context);
+    }
+
+    /**
+     * Processes the veg algorithm for the input pixel.
+     *
+     * @param input   a BAER pixel
+     * @param output  the vegetation algorithm result
+     * @param context the working context of the calling thread
+     */
+    public void processPixel(TocVegBaerPixel input, TocVegPixel output, TocVegContext context) {
         double cosPhi;
-        double outNorm[] = new double[4];
-       double laiStat[] = new double[4];
-        double fcoverStat[] = new double[4];
-        double faparStat[] = new double[4];
-        double laixcabStat[] = new double[4];
-         float dFApar=0;
+        final double[] inputNN = context._inputNN;
+        float dFApar=0;
         int numInputNN;
 
-        _inputBAER = input;
         numInputNN = 0;
 
         //Calculation of the relative azimuth angle image
@@ -236,85 +263,93 @@ public class TocVegAlgorithm {
 
         //normalisation of the inputs
         //Sun Zenith
-        _inputNN[numInputNN] = inputNormalisation(_inputBAER.getBand_Sza(),
-                                                  getTheta_S_Mean(),
-                                                  getTheta_S_Std());
+        inputNN[numInputNN] = inputNormalisation(input.getBand_Sza(),
+                                                 getTheta_S_Mean(),
+                                                 getTheta_S_Std());
         numInputNN++;
         //View Zenith
-        _inputNN[numInputNN] = inputNormalisation(_inputBAER.getBand_Vza(),
-                                                  getTheta_V_Mean(),
-                                                  getTheta_V_Std());
+        inputNN[numInputNN] = inputNormalisation(input.getBand_Vza(),
+                                                 getTheta_V_Mean(),
+                                                 getTheta_V_Std());
         numInputNN++;
 
         //CosPhi
-        _inputNN[numInputNN] = inputNormalisation(cosPhi,
-                                                  getCos_Phi_Mean(),
-                                                  getCos_Phi_Std());
+        inputNN[numInputNN] = inputNormalisation(cosPhi,
+                                                 getCos_Phi_Mean(),
+                                                 getCos_Phi_Std());
         numInputNN++;
 
         for (int b = 0; b < 11; b++) {
-            _inputNN[numInputNN] = inputNormalisation(getBand(b),
-                                                      getR_Mean(),
-                                                      getR_Std());
+            inputNN[numInputNN] = inputNormalisation(input.getBand(b),
+                                                     getR_Mean(),
+                                                     getR_Std());
             numInputNN++;
         }
 
         //run of the neural network for the output variables
-        outNorm = neuralNetwork(_inputNN, _net);
+        final double[] outNorm = context._netOutput;
+        if (_compiledNet != null) {
+            _compiledNet.process(inputNN, outNorm, 0);
+        } else {
+            context._net.process(inputNN, outNorm);
+        }
 
         //denormalisation of the outputs
+        final double[] laiStat = context._laiStat;
+        final double[] fcoverStat = context._fCoverStat;
+        final double[] faparStat = context._fAparStat;
+        final double[] laixcabStat = context._laixCabStat;
         getLAIConstants(laiStat);
         getfCoverConstants(fcoverStat);
         getfAPARConstants(faparStat);
         getLAIxCabConstants(laixcabStat);
-        _flagFAparOutOfRange = outputDenormalisation(outNorm[0],
-                                                       faparStat[1],
-                                                       faparStat[0],
-                                                       faparStat[2],
-                                                       faparStat[3],
-                                                       _fApar);
-        _flagfCoverOutOfRange = outputDenormalisation(outNorm[1],
-                                                      fcoverStat[1],
-                                                      fcoverStat[0],
-                                                      fcoverStat[2],
-                                                      fcoverStat[3],
-                                                      _fCover);
-        _flagLaiOutOfRange = outputDenormalisation(outNorm[2],
-                                                     laiStat[1],
-                                                     laiStat[0],
-                                                     laiStat[2],
-                                                     laiStat[3],
-                                                     _lai);
-
-        _flagLaixCabOutOfRange = outputDenormalisation(outNorm[3],
-                                                       laixcabStat[1],
-                                                       laixcabStat[0],
-                                                       laixcabStat[2],
-                                                       laixcabStat[3],
-                                                       _laixCab);
-
-
-         //fAPAR mismatch
-         //fAPAR mismatch
-        dFApar = fAparMismatch(_inputBAER.getBand_TOAVEG(), _fApar[0]);
+        final boolean flagFAparOutOfRange = outputDenormalisation(outNorm[0],
+                                                                  faparStat[1],
+                                                                  faparStat[0],
+                                                                  faparStat[2],
+                                                                  faparStat[3],
+                                                                  context._fApar);
+        final boolean flagfCoverOutOfRange = outputDenormalisation(outNorm[1],
+                                                                   fcoverStat[1],
+                                                                   fcoverStat[0],
+                                                                   fcoverStat[2],
+                                                                   fcoverStat[3],
+                                                                   context._fCover);
+        final boolean flagLaiOutOfRange = outputDenormalisation(outNorm[2],
+                                                                laiStat[1],
+                                                                laiStat[0],
+                                                                laiStat[2],
+                                                                laiStat[3],
+                                                                context._lai);
+
+        final boolean flagLaixCabOutOfRange = outputDenormalisation(outNorm[3],
+                                                                    laixcabStat[1],
+                                                                    laixcabStat[0],
+                                                                    laixcabStat[2],
+                                                                    laixcabStat[3],
+                                                                    context._laixCab);
+
+
+        //fAPAR mismatch
+        dFApar = fAparMismatch(input.getBand_TOAVEG(), context._fApar[0]);
 
 
         // create output
-        output.setBand_fCover(_fCover[0]);
-        output.setBand_LAI(_lai[0]);
-        output.setBand_CabxLAI(_laixCab[0]);
-        output.setBand_fAPAR(_fApar[0]);
+        output.setBand_fCover(context._fCover[0]);
+        output.setBand_LAI(context._lai[0]);
+        output.setBand_CabxLAI(context._laixCab[0]);
+        output.setBand_fAPAR(context._fApar[0]);
         output.setBand_delta_fAPAR(dFApar);
-        if (_flagLaiOutOfRange) {
+        if (flagLaiOutOfRange) {
             output.setLAIOutOfRangeFlag();
         }
-        if (_flagfCoverOutOfRange) {
+        if (flagfCoverOutOfRange) {
             output.setFCoverOutOfRangeFlag();
         }
-        if (_flagLaixCabOutOfRange) {
+        if (flagLaixCabOutOfRange) {
             output.setLAIxCabOutOfRangeFlag();
         }
-        if (_flagFAparOutOfRange) {
+        if (flagFAparOutOfRange) {
             output.setFaparOutOfRangeFlag();
         }
 
@@ -325,17 +360,6 @@ public class TocVegAlgorithm {
     ////////////////////////////////////////////////////////////////////////////
 
 
-    /**
-     * get value a of BAER band
-     *
-     * @param index : index of the band
-     *
-     * @return value of band
-     */
-    private double getBand(int index){
-        return _inputBAER.getBand(index);
-    }
-
     /**
      * Scales the input values of the neural network.
      *
@@ -353,20 +377,6 @@ public class TocVegAlgorithm {
         return valNorm;
     }
 
-    /**
-     * runs the neural network using nn-library
-     *
-     * @param netInput input values table
-     * @param net      neural network to be applied to input values
-     *
-     * @return result of the neural network
-     */
-    private double[] neuralNetwork(double[] netInput, JnnNet net) {
-        double[] netOutput = new double[4];
-        net.process(netInput, netOutput);
-        return netOutput;
-    }
-
     /**
      * Transfers the output NN value in actual range
      *
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.toc.algorithm;
+
+import com.bc.jnn.JnnNet;
+
+/**
+ * The mutable working state of the TOC_VEG algorithm for one pixel. A context must not be shared
+ * between threads - every thread calling {@link TocVegAlgorithm#processPixel(org.esa.beam.processor.toc.utils.TocVegBaerPixel,
+ * org.esa.beam.processor.toc.utils.TocVegPixel, TocVegContext)} needs its own instance, created by
+ * {@link TocVegAlgorithm#createContext()}.
+ */
+public final class TocVegContext {
+
+    // private copy of the neural net, it keeps the layer values between calls
+    final JnnNet _net;
+
+    // input and output tables of the neural network
+    final double[] _inputNN;
+    final double[] _netOutput;
+
+    // output statistics
+    final double[] _laiStat;
+    final double[] _fCoverStat;
+    final double[] _fAparStat;
+    final double[] _laixCabStat;
+
+    // denormalised results
+    final float[] _lai;
+    final float[] _fCover;
+    final float[] _fApar;
+    final float[] _laixCab;
+
+    TocVegContext(JnnNet net) {
+        _net = net;
+
+        _inputNN = new double[14];
+        _netOutput = new double[4];
+
+        _laiStat = new double[4];
+        _fCoverStat = new double[4];
+        _fAparStat = new double[4];
+        _laixCabStat = new double[4];
+
+        _lai = new float[1];
+        _fCover = new float[1];
+        _fApar = new float[1];
+        _laixCab = new float[1];
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.common.utils;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The SIMD implementation of {@link NeuralNetKernel}, using the preferred vector size of the platform, e.g. 8
+ * doubles with AVX-512. Every lane is computed by the same operations as {@link ScalarNeuralNetKernel}, so the
+ * results are identical.
+ * <p/>
+ * This class belongs to the Java 16 layer of the multi-release JAR and is loaded by {@link NeuralNetKernels}.
+ */
+final class VectorNeuralNetKernel implements NeuralNetKernel {
+
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+    /**
+     * Retrieves whether the platform has vectors of at least 2 doubles. The kernel must not be used otherwise.
+     */
+    public static boolean isSupported() {
+        return DOUBLES.length() >= 2;
+    }
+
+    public String getName() {
+        return "SIMD (" + DOUBLES.length() + " doubles)";
+    }
+
+    public void axpy(double a, double[] x, int xOffset, double[] y, int yOffset, int n) {
+        final int bound = DOUBLES.loopBound(n);
+        int p = 0;
+        for (; p < bound; p += DOUBLES.length()) {
+            final DoubleVector xv = DoubleVector.fromArray(DOUBLES, x, xOffset + p);
+            final DoubleVector yv = DoubleVector.fromArray(DOUBLES, y, yOffset + p);
+            yv.add(xv.mul(a)).intoArray(y, yOffset + p);
+        }
+        for (; p < n; p++) {
+            y[yOffset + p] += a * x[xOffset + p];
+        }
+    }
+}
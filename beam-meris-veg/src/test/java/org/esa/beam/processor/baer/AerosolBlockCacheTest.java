@@ -0,0 +1,43 @@
+package org.esa.beam.processor.baer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AerosolBlockCacheTest {
+
+    @Test
+    public void testUnknownBlocksAreNotCopied() {
+        final AerosolBlockCache cache = new AerosolBlockCache(3, 2);
+        final AerosolBlockGrid grid = new AerosolBlockGrid(4, 12, 8, 0, 0, 3, 2);
+
+        assertFalse(cache.copyTo(1, 1, grid));
+        assertFalse(grid.interpolate(5, 5, new double[2]));
+    }
+
+    @Test
+    public void testValidBlocksAreCopied() {
+        final AerosolBlockCache cache = new AerosolBlockCache(3, 2);
+        cache.setBlock(2, 1, 0.3, 1.2);
+
+        // the grid of a tile may start at another block than the scene
+        final AerosolBlockGrid grid = new AerosolBlockGrid(4, 12, 8, 1, 1, 2, 1);
+        assertTrue(cache.copyTo(2, 1, grid));
+        final double[] aotAlpha = new double[2];
+        assertTrue(grid.interpolate(9, 5, aotAlpha));
+        assertEquals(0.3, aotAlpha[0], 1.0e-12);
+        assertEquals(1.2, aotAlpha[1], 1.0e-12);
+    }
+
+    @Test
+    public void testInvalidBlocksAreKnownButNotCopied() {
+        final AerosolBlockCache cache = new AerosolBlockCache(3, 2);
+        cache.setInvalid(0, 0);
+
+        final AerosolBlockGrid grid = new AerosolBlockGrid(4, 12, 8, 0, 0, 3, 2);
+        assertTrue(cache.copyTo(0, 0, grid));
+        assertFalse(grid.interpolate(1, 1, new double[2]));
+    }
+}
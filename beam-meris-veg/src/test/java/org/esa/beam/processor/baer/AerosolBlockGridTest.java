@@ -0,0 +1,96 @@
+package org.esa.beam.processor.baer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AerosolBlockGridTest {
+
+    @Test
+    public void testValueAtBlockCentre() {
+        final AerosolBlockGrid grid = new AerosolBlockGrid(5, 10, 10, 0, 0, 2, 2);
+        grid.setBlock(0, 0, 0.1, 1.0);
+        grid.setBlock(1, 0, 0.2, 1.5);
+        grid.setBlock(0, 1, 0.3, 0.5);
+        grid.setBlock(1, 1, 0.4, 2.0);
+
+        final double[] aotAlpha = new double[2];
+        assertTrue(grid.interpolate(2, 2, aotAlpha));
+        assertEquals(0.1, aotAlpha[0], 1.0e-12);
+        assertEquals(1.0, aotAlpha[1], 1.0e-12);
+        assertTrue(grid.interpolate(7, 7, aotAlpha));
+        assertEquals(0.4, aotAlpha[0], 1.0e-12);
+        assertEquals(2.0, aotAlpha[1], 1.0e-12);
+    }
+
+    @Test
+    public void testBilinearInterpolation() {
+        final AerosolBlockGrid grid = new AerosolBlockGrid(4, 8, 8, 0, 0, 2, 2);
+        grid.setBlock(0, 0, 0.1, 1.0);
+        grid.setBlock(1, 0, 0.2, 1.0);
+        grid.setBlock(0, 1, 0.3, 1.0);
+        grid.setBlock(1, 1, 0.4, 1.0);
+
+        // block centres are at 1.5 and 5.5, pixel 3 is 3/8 of the way
+        final double[] aotAlpha = new double[2];
+        assertTrue(grid.interpolate(3, 1, aotAlpha));
+        assertEquals(0.1 + 0.1 * 0.375 + 0.2 * 0.0, aotAlpha[0], 1.0e-12);
+        assertTrue(grid.interpolate(3, 3, aotAlpha));
+        assertEquals(0.1 + 0.1 * 0.375 + 0.2 * 0.375, aotAlpha[0], 1.0e-12);
+        assertEquals(1.0, aotAlpha[1], 1.0e-12);
+    }
+
+    @Test
+    public void testEdgesAreExtrapolatedConstant() {
+        final AerosolBlockGrid grid = new AerosolBlockGrid(4, 8, 4, 0, 0, 2, 1);
+        grid.setBlock(0, 0, 0.1, 1.0);
+        grid.setBlock(1, 0, 0.2, 1.0);
+
+        final double[] aotAlpha = new double[2];
+        assertTrue(grid.interpolate(0, 0, aotAlpha));
+        assertEquals(0.1, aotAlpha[0], 1.0e-12);
+        assertTrue(grid.interpolate(7, 3, aotAlpha));
+        assertEquals(0.2, aotAlpha[0], 1.0e-12);
+    }
+
+    @Test
+    public void testPartialEdgeBlockIsLocatedAtItsClippedCentre() {
+        // the last block covers the pixels 8 and 9 only, the block centres are at 1.5, 5.5 and 8.5
+        final AerosolBlockGrid grid = new AerosolBlockGrid(4, 10, 4, 0, 0, 3, 1);
+        grid.setBlock(0, 0, 0.1, 1.0);
+        grid.setBlock(1, 0, 0.2, 1.0);
+        grid.setBlock(2, 0, 0.4, 1.0);
+
+        final double[] aotAlpha = new double[2];
+        assertTrue(grid.interpolate(7, 1, aotAlpha));
+        assertEquals(0.2 + 0.2 * 0.5, aotAlpha[0], 1.0e-12);
+        assertTrue(grid.interpolate(8, 1, aotAlpha));
+        assertEquals(0.2 + 0.2 * 2.5 / 3.0, aotAlpha[0], 1.0e-12);
+        assertTrue(grid.interpolate(9, 1, aotAlpha));
+        assertEquals(0.4, aotAlpha[0], 1.0e-12);
+        // between full blocks nothing changes
+        assertTrue(grid.interpolate(3, 1, aotAlpha));
+        assertEquals(0.1 + 0.1 * 0.375, aotAlpha[0], 1.0e-12);
+    }
+
+    @Test
+    public void testInvalidBlocksAreLeftOut() {
+        final AerosolBlockGrid grid = new AerosolBlockGrid(4, 48, 88, 10, 20, 2, 2);
+        grid.setBlock(11, 20, 0.2, 1.5);
+
+        final double[] aotAlpha = new double[2];
+        assertTrue(grid.interpolate(43, 82, aotAlpha));
+        assertEquals(0.2, aotAlpha[0], 1.0e-12);
+        assertEquals(1.5, aotAlpha[1], 1.0e-12);
+        // left of the first block centre, only the invalid blocks of the first column contribute
+        assertFalse(grid.interpolate(40, 88, aotAlpha));
+    }
+
+    @Test
+    public void testNoValidBlock() {
+        final AerosolBlockGrid grid = new AerosolBlockGrid(4, 12, 12, 0, 0, 3, 3);
+        assertFalse(grid.interpolate(5, 5, new double[2]));
+    }
+}
@@ -0,0 +1,242 @@
+package org.esa.beam.processor.baer;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.dataio.dimap.DimapProductConstants;
+import org.esa.beam.dataio.envisat.EnvisatConstants;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.MetadataElement;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.TiePointGrid;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.framework.processor.Request;
+import org.esa.beam.util.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Compares the output of the BAER operator with the output of the legacy {@link BaerProcessor}
+ * for the same synthetic MERIS L2 input.
+ */
+public class BaerOpTest {
+
+    private static final int WIDTH = 24;
+    private static final int HEIGHT = 18;
+    private static final int LAND_FLAG = 0x01;
+    private static final int CLOUD_FLAG = 0x02;
+
+    private File testDir;
+
+    @Before
+    public void setUp() {
+        testDir = new File(System.getProperty("java.io.tmpdir"), "BaerOpTest_" + System.currentTimeMillis());
+        testDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteTree(testDir);
+    }
+
+    @Test
+    public void testOperatorIsEquivalentToLegacyProcessor() throws Exception {
+        assertOperatorIsEquivalentToLegacyProcessor("UBAC");
+    }
+
+    @Test
+    public void testOperatorIsEquivalentToLegacyProcessorWithSmac() throws Exception {
+        assertOperatorIsEquivalentToLegacyProcessor("SMAC");
+    }
+
+    @Test
+    public void testTargetProductContainsOnlyComputedBands() throws Exception {
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("baerProcess", Boolean.FALSE);
+        final Product targetProduct = GPF.createProduct("Baer", parameters, createMerisL2Product());
+
+        assertNotNull(targetProduct.getBand(BaerConstants.CLOUD_BAND_NAME));
+        assertNull(targetProduct.getBand(BaerConstants.AOT_550_BAND_NAME));
+        assertNull(targetProduct.getBand(BaerConstants.OUT_FLAGS_BAND_NAME));
+        assertNull(targetProduct.getBand(EnvisatConstants.MERIS_L2_BAND_NAMES[0]));
+        assertEquals(EnvisatConstants.MERIS_RR_L2_PRODUCT_TYPE_NAME + BaerConstants.PRODUCT_TYPE_APPENDIX,
+                     targetProduct.getProductType());
+    }
+
+    @Test
+    public void testAotBlockSizeIsRecordedInMetadata() throws Exception {
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("aotBlockSize", 4);
+        final Product targetProduct = GPF.createProduct("Baer", parameters, createMerisL2Product());
+
+        final MetadataElement mph = targetProduct.getMetadataRoot().getElement(BaerConstants.MPH_METADATA_NAME);
+        assertNotNull(mph);
+        assertEquals(4, mph.getAttributeInt(BaerConstants.AOT_BLOCK_SIZE_METADATA_NAME, 0));
+
+        final float[] aot = new float[WIDTH * HEIGHT];
+        targetProduct.getBand(BaerConstants.AOT_412_BAND_NAME).getSourceImage().getData().getSamples(0, 0, WIDTH,
+                                                                                                       HEIGHT, 0, aot);
+        for (int i = 0; i < aot.length; i++) {
+            assertFalse("pixel " + i, Float.isNaN(aot[i]));
+        }
+    }
+
+    private void assertOperatorIsEquivalentToLegacyProcessor(String atmCorrMethod) throws Exception {
+        final File inputFile = new File(testDir, "input.dim");
+        final File legacyFile = new File(testDir, "legacy.dim");
+        ProductIO.writeProduct(createMerisL2Product(), inputFile, DimapProductConstants.DIMAP_FORMAT_NAME,
+                               false, ProgressMonitor.NULL);
+
+        final BaerRequestElementFactory factory = BaerRequestElementFactory.getInstance();
+        final Request request = new Request();
+        request.setType(BaerConstants.REQUEST_TYPE);
+        request.addInputProduct(factory.createInputProductRef(inputFile, DimapProductConstants.DIMAP_FORMAT_NAME, null));
+        request.addOutputProduct(factory.createOutputProductRef(legacyFile, DimapProductConstants.DIMAP_FORMAT_NAME, null));
+        request.addParameter(factory.createParameter(BaerConstants.BITMASK_PARAM_NAME, BaerConstants.BITMASK_PARAM_DEFAULT));
+        request.addParameter(factory.createParameter(BaerConstants.AER_PHASE_PARAM_NAME, BaerConstants.AER_PHASE_PARAM_DEFAULT));
+        request.addParameter(factory.createParameter(BaerConstants.USE_CLOUD_PARAM_NAME, "true"));
+        request.addParameter(factory.createParameter(BaerConstants.USE_BAER_PARAM_NAME, "true"));
+        request.addParameter(factory.createParameter(BaerConstants.USE_ATM_COR_PARAM_NAME, "true"));
+        request.addParameter(factory.createParameter(BaerConstants.SMAC_PARAM_NAME, atmCorrMethod));
+
+        final BaerProcessor processor = new BaerProcessor();
+        processor.initProcessor();
+        processor.setRequest(request);
+        processor.process(ProgressMonitor.NULL);
+
+        final Product legacyProduct = ProductIO.readProduct(legacyFile);
+        final Product sourceProduct = ProductIO.readProduct(inputFile);
+        try {
+            final Map<String, Object> parameters = new HashMap<String, Object>();
+            parameters.put("atmCorrMethod", atmCorrMethod);
+            final Product targetProduct = GPF.createProduct("Baer", parameters, sourceProduct);
+
+            for (int n = 0; n < BaerConstants.NUM_OUT_REFLEC_BANDS; n++) {
+                assertBandsEqual(legacyProduct, targetProduct, EnvisatConstants.MERIS_L2_BAND_NAMES[n]);
+            }
+            assertBandsEqual(legacyProduct, targetProduct, BaerConstants.AOT_412_BAND_NAME);
+            assertBandsEqual(legacyProduct, targetProduct, BaerConstants.AOT_440_BAND_NAME);
+            assertBandsEqual(legacyProduct, targetProduct, BaerConstants.AOT_550_BAND_NAME);
+            assertBandsEqual(legacyProduct, targetProduct, BaerConstants.ALPHA_BAND_NAME);
+            assertBandsEqual(legacyProduct, targetProduct, BaerConstants.TOA_VEG_BAND_NAME);
+            assertBandsEqual(legacyProduct, targetProduct, BaerConstants.CLOUD_BAND_NAME);
+            assertBandsEqual(legacyProduct, targetProduct, BaerConstants.OUT_FLAGS_BAND_NAME);
+        } finally {
+            legacyProduct.dispose();
+            sourceProduct.dispose();
+        }
+    }
+
+    private static void assertBandsEqual(Product expectedProduct, Product actualProduct, String bandName) throws
+                                                                                                        Exception {
+        final Band expectedBand = expectedProduct.getBand(bandName);
+        final Band actualBand = actualProduct.getBand(bandName);
+        assertNotNull(bandName, expectedBand);
+        assertNotNull(bandName, actualBand);
+
+        final float[] expected = expectedBand.readPixels(0, 0, WIDTH, HEIGHT, (float[]) null, ProgressMonitor.NULL);
+        final float[] actual = new float[WIDTH * HEIGHT];
+        actualBand.getSourceImage().getData().getSamples(0, 0, WIDTH, HEIGHT, 0, actual);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(bandName + " at pixel " + i, expected[i], actual[i], 1.0e-6f);
+        }
+    }
+
+    /**
+     * Creates a small MERIS RR L2 product covering land, water, cloudy, invalid and desert-like pixels.
+     * The angle grids are constant so that tie-point interpolation cannot introduce differences.
+     */
+    private static Product createMerisL2Product() {
+        final Product product = new Product("MER_RR__2P_TEST", EnvisatConstants.MERIS_RR_L2_PRODUCT_TYPE_NAME,
+                                            WIDTH, HEIGHT);
+        final Random random = new Random(4711);
+
+        final float[][] reflec = new float[BaerConstants.NUM_IN_REFLEC_BANDS][WIDTH * HEIGHT];
+        final int[] flags = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            final int pixelClass = i % 6;
+            for (int n = 0; n < BaerConstants.NUM_IN_REFLEC_BANDS; n++) {
+                // vegetation-like spectrum with a red edge at band 9
+                float value = n < 8 ? 0.03f + 0.01f * n : 0.25f + 0.01f * n;
+                value += 0.01f * random.nextFloat();
+                if (pixelClass == 2) {
+                    // bright, cloud-like
+                    value = 0.45f + 0.05f * random.nextFloat();
+                } else if (pixelClass == 3) {
+                    // bright soil, desert-like
+                    value = 0.25f + 0.005f * n;
+                }
+                reflec[n][i] = value;
+            }
+            if (pixelClass == 4) {
+                // wrong L2 data
+                reflec[0][i] = 0.005f;
+                reflec[1][i] = 0.005f;
+            }
+            if (pixelClass == 5 && random.nextBoolean()) {
+                reflec[7][i] = -0.01f;
+            }
+            flags[i] = LAND_FLAG;
+            if (i % 11 == 0) {
+                flags[i] = 0;
+            }
+            if (i % 13 == 0) {
+                flags[i] |= CLOUD_FLAG;
+            }
+        }
+
+        for (int n = 0; n < BaerConstants.NUM_IN_REFLEC_BANDS; n++) {
+            final Band band = product.addBand(EnvisatConstants.MERIS_L2_BAND_NAMES[n], ProductData.TYPE_FLOAT32);
+            band.setSpectralBandIndex(n);
+            band.setSpectralWavelength(EnvisatConstants.MERIS_WAVELENGTHS[n]);
+            band.setRasterData(ProductData.createInstance(reflec[n]));
+        }
+        addConstantBand(product, "aero_opt_thick", 0.1f);
+        addConstantBand(product, EnvisatConstants.MERIS_L2_BAND_NAMES[15], 0.3f);
+        addConstantBand(product, EnvisatConstants.MERIS_L2_BAND_NAMES[21], 1013.25f);
+
+        final FlagCoding flagCoding = new FlagCoding("l2_flags");
+        flagCoding.addFlag("LAND", LAND_FLAG, null);
+        flagCoding.addFlag("CLOUD", CLOUD_FLAG, null);
+        product.getFlagCodingGroup().add(flagCoding);
+        final Band flagsBand = product.addBand("l2_flags", ProductData.TYPE_INT32);
+        flagsBand.setSampleCoding(flagCoding);
+        flagsBand.setRasterData(ProductData.createInstance(flags));
+
+        addConstantGrid(product, EnvisatConstants.LAT_DS_NAME, 45.0f);
+        addConstantGrid(product, EnvisatConstants.LON_DS_NAME, 10.0f);
+        addConstantGrid(product, EnvisatConstants.MERIS_SUN_ZENITH_DS_NAME, 35.0f);
+        addConstantGrid(product, EnvisatConstants.MERIS_SUN_AZIMUTH_DS_NAME, 140.0f);
+        addConstantGrid(product, EnvisatConstants.MERIS_VIEW_ZENITH_DS_NAME, 12.0f);
+        addConstantGrid(product, EnvisatConstants.MERIS_VIEW_AZIMUTH_DS_NAME, 100.0f);
+        return product;
+    }
+
+    private static void addConstantBand(Product product, String name, float value) {
+        final float[] data = new float[WIDTH * HEIGHT];
+        Arrays.fill(data, value);
+        final Band band = product.addBand(name, ProductData.TYPE_FLOAT32);
+        band.setRasterData(ProductData.createInstance(data));
+    }
+
+    private static void addConstantGrid(Product product, String name, float value) {
+        final int gridWidth = WIDTH / 8 + 1;
+        final int gridHeight = HEIGHT / 8 + 2;
+        final float[] tiePoints = new float[gridWidth * gridHeight];
+        Arrays.fill(tiePoints, value);
+        product.addTiePointGrid(new TiePointGrid(name, gridWidth, gridHeight, 0.5f, 0.5f, 8, 8, tiePoints));
+    }
+}
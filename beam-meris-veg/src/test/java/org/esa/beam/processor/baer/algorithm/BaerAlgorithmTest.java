@@ -19,7 +19,15 @@ package org.esa.beam.processor.baer.algorithm;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import org.esa.beam.processor.MerisVegTestConfig;
 import org.esa.beam.processor.baer.auxdata.*;
+import org.esa.beam.processor.baer.utils.AerPixel;
+import org.esa.beam.processor.baer.utils.MerisPixel;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
 
 public class BaerAlgorithmTest extends TestCase {
 
@@ -202,4 +210,419 @@ public class BaerAlgorithmTest extends TestCase {
         }
     }
 
+
+    /**
+     * Tests that the read-only model is created on initialisation.
+     */
+    public void testModelIsCreatedByInitAlgo() throws Exception {
+        assertNull(_algo.getModel());
+
+        initAlgorithm(_algo);
+
+        final BaerModel model = _algo.getModel();
+        assertNotNull(model);
+        assertEquals("UBAC", model.getAtmCorrMethod());
+        assertTrue(model.isAtmCorProcess());
+    }
+
+    /**
+     * Tests that concurrent threads sharing one initialised algorithm, each with its own context,
+     * produce exactly the results of a serial run.
+     */
+    public void testSharedModelWithOwnContexts() throws Exception {
+        initAlgorithm(_algo);
+
+        final int numPixels = 500;
+        final float[][] expected = new float[numPixels][];
+        final BaerContext serialContext = new BaerContext();
+        for (int i = 0; i < numPixels; i++) {
+            expected[i] = processTestPixel(_algo, serialContext, i);
+        }
+
+        final float[][][] actual = new float[4][numPixels][];
+        final Thread[] threads = new Thread[actual.length];
+        for (int t = 0; t < threads.length; t++) {
+            final float[][] results = actual[t];
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    final BaerContext context = new BaerContext();
+                    for (int i = 0; i < numPixels; i++) {
+                        results[i] = processTestPixel(_algo, context, i);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (float[][] results : actual) {
+            for (int i = 0; i < numPixels; i++) {
+                assertNotNull(results[i]);
+                for (int n = 0; n < expected[i].length; n++) {
+                    assertEquals("pixel " + i + ", value " + n, expected[i][n], results[i][n], 0.0f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that processing pixels does not allocate memory once the algorithm and the context are set up.
+     */
+    public void testProcessPixelDoesNotAllocate() throws Exception {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return; // allocation counting not supported by this VM
+        }
+        final com.sun.management.ThreadMXBean allocBean = (com.sun.management.ThreadMXBean) threadBean;
+        if (!allocBean.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        allocBean.setThreadAllocatedMemoryEnabled(true);
+        initAlgorithm(_algo);
+
+        final int numInputs = 64;
+        final MerisPixel[] inputs = new MerisPixel[numInputs];
+        final float[] reflec = new float[13];
+        for (int i = 0; i < numInputs; i++) {
+            inputs[i] = createTestPixel(new Random(i), reflec);
+        }
+        final BaerContext context = new BaerContext();
+        final AerPixel output = new AerPixel();
+
+        // warm up
+        processPixels(inputs, output, context, 20000);
+
+        final long threadId = Thread.currentThread().getId();
+        final int numPixels = 50000;
+        final long before = allocBean.getThreadAllocatedBytes(threadId);
+        processPixels(inputs, output, context, numPixels);
+        final long allocated = allocBean.getThreadAllocatedBytes(threadId) - before;
+
+        // a single allocation per pixel would already sum up to more than 16 bytes per pixel
+        assertTrue("allocated " + allocated + " bytes for " + numPixels + " pixels", allocated < numPixels);
+    }
+
+    /**
+     * Tests that the batched SMAC correction of a row gives bitwise the same results as processing
+     * the pixels one by one.
+     */
+    public void testProcessRowIsIdenticalToProcessPixel() throws Exception {
+        initAlgorithm(_algo, "SMAC", true);
+
+        final int numPixels = 300;
+        final MerisPixel[] inputs = new MerisPixel[numPixels];
+        final AerPixel[] outputs = new AerPixel[numPixels];
+        final int[] soilSpectra = new int[numPixels];
+        for (int i = 0; i < numPixels; i++) {
+            inputs[i] = createTestPixel(new Random(i), new float[13]);
+            outputs[i] = new AerPixel();
+            for (int n = 0; n < 13; n++) {
+                outputs[i].setBand(inputs[i].getBand(n), n);
+            }
+            soilSpectra[i] = i % 4 == 0 ? 3 : 1;
+        }
+        _algo.processRow(inputs, outputs, soilSpectra, numPixels, new BaerContext());
+
+        final BaerContext context = new BaerContext();
+        for (int i = 0; i < numPixels; i++) {
+            final float[] expected = processTestPixel(_algo, context, i);
+            final float[] actual = toArray(outputs[i]);
+            for (int n = 0; n < expected.length; n++) {
+                assertEquals("pixel " + i + ", value " + n, expected[n], actual[n], 0.0f);
+            }
+        }
+    }
+
+    /**
+     * Tests that the SMAC correction differs from the legacy one only when the legacy numerics are switched off.
+     */
+    public void testSmacLegacyNumerics() throws Exception {
+        initAlgorithm(_algo, "SMAC", true);
+        assertTrue(_algo.getModel().isSmacLegacyNumerics());
+        final BaerAlgorithm corrected = new BaerAlgorithm();
+        initAlgorithm(corrected, "SMAC", false);
+        assertFalse(corrected.getModel().isSmacLegacyNumerics());
+
+        int numDifferent = 0;
+        for (int i = 0; i < 100; i++) {
+            final float[] legacy = processTestPixel(_algo, new BaerContext(), i);
+            final float[] actual = processTestPixel(corrected, new BaerContext(), i);
+            for (int n = 0; n < 13; n++) {
+                if (legacy[n] != actual[n]) {
+                    numDifferent++;
+                    break;
+                }
+            }
+        }
+        assertTrue(numDifferent > 0);
+    }
+
+    /**
+     * Tests that a pixel corrected with its own retrieved aerosol gives the result of the full processing.
+     */
+    public void testProcessRowWithGivenAerosol() throws Exception {
+        initAlgorithm(_algo);
+
+        final BaerContext context = new BaerContext();
+        int numCompared = 0;
+        for (int i = 0; i < 100; i++) {
+            final MerisPixel input = createTestPixel(new Random(i), new float[13]);
+            context.setSoilSpectraNumber(i % 4 == 0 ? 3 : 1);
+            if (!_algo.retrieveAerosol(input, context)) {
+                continue;
+            }
+            final double[] aot412 = {context.getRetrievedAot412()};
+            final double[] alpha = {context.getRetrievedAlpha()};
+            final AerPixel output = new AerPixel();
+            for (int n = 0; n < 13; n++) {
+                output.setBand(input.getBand(n), n);
+            }
+            _algo.processRow(new MerisPixel[]{input}, new AerPixel[]{output}, new int[]{0}, aot412, alpha, 1,
+                             context);
+
+            final float[] expected = processTestPixel(_algo, context, i);
+            final float[] actual = toArray(output);
+            if (expected[17] != 0 || actual[17] != 0) {
+                continue; // out of range
+            }
+            assertEquals((float) aot412[0], actual[13], 0.0f);
+            assertEquals((float) alpha[0], actual[16], 0.0f);
+            for (int n = 0; n < 16; n++) {
+                assertEquals("pixel " + i + ", value " + n, expected[n], actual[n], 1.0e-6f);
+            }
+            numCompared++;
+        }
+        assertTrue(numCompared > 10);
+    }
+
+    public void testWarmStart() throws Exception {
+        initAlgorithm(_algo);
+
+        final int width = 40;
+        final int height = 4;
+        final AerPixel[][] cold = processSmoothScene(new BaerContext(), width, height);
+        final BaerContext warmContext = new BaerContext();
+        warmContext.setWarmStart(true);
+        final AerPixel[][] warm = processSmoothScene(warmContext, width, height);
+
+        int coldIterations = 0;
+        int warmIterations = 0;
+        int numCompared = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final AerPixel coldPixel = cold[y][x];
+                final AerPixel warmPixel = warm[y][x];
+                coldIterations += coldPixel.getIterations();
+                warmIterations += warmPixel.getIterations();
+                if (coldPixel.getFlagMask() != 0) {
+                    continue;
+                }
+                // the guard falls back to the cold start, so the warm start never invalidates a pixel
+                assertEquals("pixel " + x + "," + y, 0, warmPixel.getFlagMask());
+                assertEquals(coldPixel.getAot_412(), warmPixel.getAot_412(), 0.005f);
+                assertEquals(coldPixel.getAlpha(), warmPixel.getAlpha(), 0.05f);
+                numCompared++;
+            }
+        }
+        assertTrue(numCompared > width);
+        assertTrue(warmIterations < coldIterations);
+    }
+
+    /**
+     * Tests that the diagnostics count the retrieved pixels and their iterations and are cleared when flushed.
+     */
+    public void testDiagnostics() throws Exception {
+        initAlgorithm(_algo);
+
+        final int width = 40;
+        final int height = 4;
+        final BaerContext context = new BaerContext();
+        final BaerDiagnostics diagnostics = new BaerDiagnostics();
+        context.setDiagnostics(diagnostics);
+        final AerPixel[][] result = processSmoothScene(context, width, height);
+
+        long iterations = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                iterations += result[y][x].getIterations();
+            }
+        }
+        assertEquals(width * height, diagnostics.getPixelCount());
+        assertEquals(iterations, diagnostics.getTotalIterations());
+        assertTrue(diagnostics.getInitLoops() >= width * height);
+        long histogramTotal = 0;
+        for (long count : diagnostics.getIterationHistogram()) {
+            histogramTotal += count;
+        }
+        assertEquals(width * height, histogramTotal);
+
+        final BaerDiagnostics total = new BaerDiagnostics();
+        diagnostics.flushTo(total);
+        assertEquals(0, diagnostics.getPixelCount());
+        assertEquals(width * height, total.getPixelCount());
+        assertEquals(iterations, total.getTotalIterations());
+        assertEquals((double) iterations / (width * height), total.getMeanIterations(), 1.0e-12);
+    }
+
+    public void testDiagnosticsOfRecomputedPartAreReplaced() {
+        final BaerDiagnostics total = new BaerDiagnostics();
+        final BaerDiagnostics diagnostics = new BaerDiagnostics();
+        diagnostics.addPixel(3, 0.001, true, true);
+        diagnostics.addPixel(5, 0.002, true, true);
+        diagnostics.flushTo(total, "tile 0");
+        diagnostics.addPixel(4, 0.001, false, true);
+        diagnostics.flushTo(total, "tile 1");
+        assertEquals(3, total.getPixelCount());
+        assertEquals(12, total.getTotalIterations());
+
+        // tile 0 computed again, e.g. after it was evicted from the tile cache
+        diagnostics.addPixel(3, 0.001, true, true);
+        diagnostics.addPixel(5, 0.002, true, true);
+        diagnostics.flushTo(total, "tile 0");
+        assertEquals(0, diagnostics.getPixelCount());
+        assertEquals(3, total.getPixelCount());
+        assertEquals(12, total.getTotalIterations());
+        assertEquals(5, total.getMaxIterations());
+        assertEquals(1, total.getNotConvergedCount());
+        assertEquals(1, total.getIterationHistogram()[3]);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static void initAlgorithm(BaerAlgorithm algo) throws Exception {
+        initAlgorithm(algo, "UBAC", true);
+    }
+
+    private static void initAlgorithm(BaerAlgorithm algo, String method, boolean smacLegacyNumerics) throws
+                                                                                                     Exception {
+        final String auxPath = MerisVegTestConfig.testFileBaseDirPath.replace("src/test/resources/org/esa/beam/processor/",
+                                                                              "src/main/resources/auxdata/baer/");
+        final RelAerPhaseLoader relAer = new RelAerPhaseLoader();
+        relAer.load(auxPath + "rel_aerosol_phase_aux.par");
+        algo.setRelAerPhaseAccess(relAer);
+
+        final AerPhaseLoader aerPhase = new AerPhaseLoader();
+        aerPhase.load(auxPath + "aer_phase_function.xml");
+        assertTrue(aerPhase.selectLut("LACE-98"));
+        algo.setAerPhaseAccess(aerPhase);
+
+        final NdviLoader ndvi = new NdviLoader();
+        ndvi.load(auxPath + "ndvi_aux.par");
+        algo.setNdviAccess(ndvi);
+
+        final GroundReflectanceLoader groundReflec = new GroundReflectanceLoader();
+        groundReflec.load(auxPath + "ground_reflectances.xml");
+        algo.setGroundReflectanceAccess(groundReflec);
+
+        final SoilFractionLoader soilFraction = new SoilFractionLoader();
+        soilFraction.load(auxPath + "soil_fraction_aux.par");
+        algo.setSoilFractionAccess(soilFraction);
+
+        final F_TuningLoader fTuning = new F_TuningLoader();
+        fTuning.load(auxPath + "f_tuning_aux.par");
+        algo.setF_TuningAccess(fTuning);
+
+        final AerDiffTransmLoader aerDiffTransm = new AerDiffTransmLoader();
+        aerDiffTransm.load(auxPath + "aerosol_diff_transm.par");
+        algo.setAerDiffTransmAccess(aerDiffTransm);
+
+        final HemisphReflecLoader hemisphReflec = new HemisphReflecLoader();
+        hemisphReflec.load(auxPath + "hemispherical_reflectance.par");
+        algo.setHemisphReflecAccess(hemisphReflec);
+
+        algo.setSmacCoeffManager(new SmacCoefficientsManager(new File(MerisVegTestConfig.testFileBaseDirPath,
+                                                                      "baer/testData/smac")));
+        algo.setAerosolType("DES");
+        algo.setSmacLegacyNumerics(smacLegacyNumerics);
+        algo.setAtmCorProcessFormat(true);
+        algo.setProcessFormat(method);
+        algo.initAlgo();
+    }
+
+    private void processPixels(MerisPixel[] inputs, AerPixel output, BaerContext context, int numPixels) {
+        final float[] reflec = new float[13];
+        for (int i = 0; i < numPixels; i++) {
+            final MerisPixel input = inputs[i % inputs.length];
+            input.getBands(reflec);
+            output.reset();
+            output.setBands(reflec);
+            context.setSoilSpectraNumber(i % 4 == 0 ? 3 : 1);
+            _algo.processPixel(input, output, context);
+        }
+    }
+
+    private AerPixel[][] processSmoothScene(BaerContext context, int width, int height) {
+        final MerisPixel[] inputs = new MerisPixel[width];
+        final int[] soilSpectra = new int[width];
+        final AerPixel[][] outputs = new AerPixel[height][width];
+        final float[] reflec = new float[13];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // a slowly varying scene with constant aerosol and a gradient in the surface reflectance
+                final float ramp = 0.001f * (x + y);
+                for (int n = 0; n < 13; n++) {
+                    reflec[n] = n < 8 ? 0.06f + 0.004f * n + ramp : 0.25f + 0.002f * n + 2.0f * ramp;
+                }
+                final MerisPixel input = new MerisPixel();
+                input.setBands(reflec);
+                input.setBand_Sza(40.f + 0.05f * y);
+                input.setBand_Saa(120.f);
+                input.setBand_Vza(10.f + 0.1f * x);
+                input.setBand_Vaa(280.f);
+                input.setPressure(1010.f);
+                inputs[x] = input;
+                soilSpectra[x] = 1;
+                outputs[y][x] = new AerPixel();
+                outputs[y][x].setBands(reflec);
+            }
+            _algo.processRow(inputs, outputs[y], soilSpectra, width, context);
+        }
+        return outputs;
+    }
+
+    private static MerisPixel createTestPixel(Random random, float[] reflec) {
+        final MerisPixel input = new MerisPixel();
+        final float base = 0.02f + 0.08f * random.nextFloat();
+        final float veg = 0.1f + 0.3f * random.nextFloat();
+        for (int n = 0; n < 13; n++) {
+            reflec[n] = n < 8 ? base + 0.01f * n * random.nextFloat() : veg + 0.02f * random.nextFloat();
+        }
+        input.setBands(reflec);
+        input.setBand_Sza(20.f + 50.f * random.nextFloat());
+        input.setBand_Saa(360.f * random.nextFloat());
+        input.setBand_Vza(40.f * random.nextFloat());
+        input.setBand_Vaa(360.f * random.nextFloat());
+        input.setPressure(950.f + 70.f * random.nextFloat());
+        return input;
+    }
+
+    private static float[] processTestPixel(BaerAlgorithm algo, BaerContext context, int index) {
+        final MerisPixel input = createTestPixel(new Random(index), new float[13]);
+
+        AerPixel output = new AerPixel();
+        for (int n = 0; n < 13; n++) {
+            output.setBand(input.getBand(n), n);
+        }
+        context.setSoilSpectraNumber(index % 4 == 0 ? 3 : 1);
+        output = algo.processPixel(input, output, context);
+        return toArray(output);
+    }
+
+    private static float[] toArray(AerPixel output) {
+        final float[] result = new float[18];
+        for (int n = 0; n < 13; n++) {
+            result[n] = output.getBand(n);
+        }
+        result[13] = output.getAot_412();
+        result[14] = output.getAot_440();
+        result[15] = output.getAot_550();
+        result[16] = output.getAlpha();
+        result[17] = output.getFlagMask();
+        return result;
+    }
 }
@@ -243,4 +243,20 @@ public class AerLutTest extends TestCase {
         _lut.setName(expName_2);
         assertEquals(expName_2, _lut.getName());
     }
+
+    /**
+     * Tests the access through the AerPhaseAccess interface
+     */
+    public void testAerPhaseAccess() throws ProcessorException {
+        _lut.setNumBands(3);
+        AerBandParam param = new AerBandParam();
+        param.setA0(1.0);
+        param.validate(true);
+        _lut.addBand(2, param);
+
+        AerPhaseAccess access = _lut;
+        assertSame(param, access.getAerPhase(2));
+        assertEquals(false, access.getAerPhase(1).isValid());
+        assertNull(access.getAerPhase(4));
+    }
 }
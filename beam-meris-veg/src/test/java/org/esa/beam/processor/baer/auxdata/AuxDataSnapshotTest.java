@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2012 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.processor.baer.auxdata;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.esa.beam.processor.MerisVegTestConfig;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class AuxDataSnapshotTest extends TestCase {
+
+    private static final String TEST_DATA_DIR = MerisVegTestConfig.testFileBaseDirPath + "baer/testData/";
+
+    private File _dir;
+    private File _snapshotFile;
+
+    public AuxDataSnapshotTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AuxDataSnapshotTest.class);
+    }
+
+    /**
+     * Copies the test data to a temporary directory, the snapshot modifies it.
+     */
+    protected void setUp() throws IOException {
+        _dir = File.createTempFile("baer_snapshot", "");
+        assertTrue(_dir.delete());
+        assertTrue(_dir.mkdir());
+        copy(new File(TEST_DATA_DIR, "ndvi_aux.par"), new File(_dir, "ndvi_aux.par"));
+        copy(new File(TEST_DATA_DIR, "aer_phase_function.xml"), new File(_dir, "aer_phase_function.xml"));
+        copy(new File(TEST_DATA_DIR, "gnd_refl_correct.xml"), new File(_dir, "gnd_refl_correct.xml"));
+        final File[] smacFiles = new File(TEST_DATA_DIR, "smac").listFiles();
+        for (File file : smacFiles) {
+            copy(file, new File(_dir, file.getName()));
+        }
+        _snapshotFile = new File(_dir, AuxDataSnapshot.FILE_NAME);
+    }
+
+    protected void tearDown() {
+        final File[] files = _dir.listFiles();
+        for (File file : files) {
+            file.delete();
+        }
+        _dir.delete();
+    }
+
+    /**
+     * Tests that data written to a snapshot are restored without reading the source files.
+     */
+    public void testRestoreFromSnapshot() throws IOException {
+        AuxDataSnapshot snapshot = AuxDataSnapshot.open(_snapshotFile);
+        final NdviLoader ndvi = new NdviLoader();
+        final AerPhaseLoader aerPhase = new AerPhaseLoader();
+        final GroundReflectanceLoader groundReflec = new GroundReflectanceLoader();
+        snapshot.load(ndvi, getPath("ndvi_aux.par"));
+        snapshot.load(aerPhase, getPath("aer_phase_function.xml"));
+        snapshot.load(groundReflec, getPath("gnd_refl_correct.xml"));
+        final SmacCoefficientsManager coeffMgr = new SmacCoefficientsManager(_dir, snapshot);
+        assertTrue(snapshot.isModified());
+        snapshot.update();
+        assertFalse(snapshot.isModified());
+        assertTrue(_snapshotFile.isFile());
+
+        // same size and time stamp, but unreadable: only the snapshot can provide the data
+        scramble(new File(getPath("ndvi_aux.par")));
+        scramble(new File(getPath("aer_phase_function.xml")));
+        scramble(new File(getPath("gnd_refl_correct.xml")));
+        scramble(new File(_dir, "SensorMap.txt"));
+        scramble(new File(_dir, "coef_MERIS1_DES.dat"));
+
+        snapshot = AuxDataSnapshot.open(_snapshotFile);
+        assertTrue(snapshot.contains(new File(getPath("ndvi_aux.par"))));
+        final NdviLoader ndviRestored = new NdviLoader();
+        final AerPhaseLoader aerPhaseRestored = new AerPhaseLoader();
+        final GroundReflectanceLoader groundReflecRestored = new GroundReflectanceLoader();
+        snapshot.load(ndviRestored, getPath("ndvi_aux.par"));
+        snapshot.load(aerPhaseRestored, getPath("aer_phase_function.xml"));
+        snapshot.load(groundReflecRestored, getPath("gnd_refl_correct.xml"));
+        final SmacCoefficientsManager coeffMgrRestored = new SmacCoefficientsManager(_dir, snapshot);
+        assertFalse(snapshot.isModified());
+
+        assertEquals(ndvi.getNdviTuningFactor(), ndviRestored.getNdviTuningFactor(), 0.0);
+        assertEquals(ndvi.getVersionString(), ndviRestored.getVersionString());
+
+        assertEquals(aerPhase.getVersionString(), aerPhaseRestored.getVersionString());
+        assertEquals(aerPhase.getDescription(), aerPhaseRestored.getDescription());
+        assertTrue(Arrays.equals(aerPhase.getLUTNames(), aerPhaseRestored.getLUTNames()));
+        final String lutName = aerPhase.getLUTNames()[0];
+        assertTrue(aerPhase.selectLut(lutName));
+        assertTrue(aerPhaseRestored.selectLut(lutName));
+        for (int idx = 1; idx <= aerPhase.getLUT(lutName).getNumBands(); idx++) {
+            assertEquals(aerPhase.getAerPhase(idx).isValid(), aerPhaseRestored.getAerPhase(idx).isValid());
+            assertTrue(Arrays.equals(aerPhase.getAerPhase(idx).getA(), aerPhaseRestored.getAerPhase(idx).getA()));
+        }
+
+        assertEquals(groundReflec.getNumSpectra(), groundReflecRestored.getNumSpectra());
+        assertEquals(groundReflec.getVersionString(), groundReflecRestored.getVersionString());
+
+        final SmacCoefficientsAccess coeffs = coeffMgr.getCoefficients("MERIS", "radiance_1", "DES");
+        final SmacCoefficientsAccess coeffsRestored = coeffMgrRestored.getCoefficients("MERIS", "radiance_1", "DES");
+        assertNotNull(coeffsRestored);
+        assertEquals(coeffs.getAh2o(), coeffsRestored.getAh2o(), 0.0);
+        assertEquals(coeffs.getResa4(), coeffsRestored.getResa4(), 0.0);
+        assertEquals(coeffs.getA0taup(), coeffsRestored.getA0taup(), 0.0);
+    }
+
+    /**
+     * Tests that a changed source file is parsed again.
+     */
+    public void testChangedSourceIsReloaded() throws IOException {
+        final File source = new File(getPath("ndvi_aux.par"));
+        AuxDataSnapshot snapshot = AuxDataSnapshot.open(_snapshotFile);
+        snapshot.load(new NdviLoader(), source.getPath());
+        snapshot.update();
+
+        final FileOutputStream out = new FileOutputStream(source);
+        out.write("version=2.0\nndvi=0.25\n".getBytes("ISO-8859-1"));
+        out.close();
+
+        snapshot = AuxDataSnapshot.open(_snapshotFile);
+        assertFalse(snapshot.contains(source));
+        final NdviLoader loader = new NdviLoader();
+        snapshot.load(loader, source.getPath());
+        assertEquals(0.25, loader.getNdviTuningFactor(), 0.0);
+        assertTrue(snapshot.isModified());
+    }
+
+    /**
+     * Tests that a corrupt snapshot file is ignored.
+     */
+    public void testCorruptSnapshotIsIgnored() throws IOException {
+        final File source = new File(getPath("ndvi_aux.par"));
+        AuxDataSnapshot snapshot = AuxDataSnapshot.open(_snapshotFile);
+        final NdviLoader expected = new NdviLoader();
+        snapshot.load(expected, source.getPath());
+        snapshot.update();
+
+        final RandomAccessFile raf = new RandomAccessFile(_snapshotFile, "rw");
+        raf.seek(raf.length() - 1);
+        final int last = raf.read();
+        raf.seek(raf.length() - 1);
+        raf.write(last ^ 0xff);
+        raf.close();
+
+        snapshot = AuxDataSnapshot.open(_snapshotFile);
+        assertFalse(snapshot.contains(source));
+        final NdviLoader loader = new NdviLoader();
+        snapshot.load(loader, source.getPath());
+        assertEquals(expected.getNdviTuningFactor(), loader.getNdviTuningFactor(), 0.0);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private String getPath(String name) {
+        return new File(_dir, name).getPath();
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        final InputStream in = new FileInputStream(from);
+        try {
+            final OutputStream out = new FileOutputStream(to);
+            try {
+                final byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Overwrites a file with garbage of the same size, keeping its time stamp.
+     */
+    private static void scramble(File file) throws IOException {
+        final long lastModified = file.lastModified();
+        final byte[] garbage = new byte[(int) file.length()];
+        Arrays.fill(garbage, (byte) '#');
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(garbage);
+        out.close();
+        assertTrue(file.setLastModified(lastModified));
+    }
+}
@@ -36,6 +36,7 @@ public class BaerAllTests extends TestCase {
         suite.addTest(SpectrumTest.suite());
         suite.addTest(AerDiffTransmLoaderTest.suite());
         suite.addTest(HemisphReflecLoaderTest.suite());
+        suite.addTest(AuxDataSnapshotTest.suite());
 
         return suite;
     }
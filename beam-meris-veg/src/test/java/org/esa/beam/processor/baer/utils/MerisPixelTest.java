@@ -94,6 +94,32 @@ public class MerisPixelTest extends TestCase {
         assertEquals(fVal, _pixel.getPressure(), 1e-6);
     }
 
+    /**
+     * Tests the bulk reflectance accessors.
+     */
+    public void testBandsAccessors() {
+        final float[] values = new float[13];
+        for (int n = 0; n < 13; n++) {
+            values[n] = 0.5f + n;
+        }
+        _pixel.setBands(values);
+        for (int n = 0; n < 13; n++) {
+            assertEquals(values[n], _pixel.getBand(n), 1e-6);
+        }
+
+        final float[] copy = new float[13];
+        _pixel.getBands(copy);
+        for (int n = 0; n < 13; n++) {
+            assertEquals(values[n], copy[n], 1e-6);
+        }
+
+        try {
+            _pixel.setBands(new float[12]);
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+        }
+    }
+
     /**
      * Tests that the reflectance accessors behae correctly when invoked with an out-of-range index
      */
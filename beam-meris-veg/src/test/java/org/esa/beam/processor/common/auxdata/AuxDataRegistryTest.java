@@ -0,0 +1,201 @@
+package org.esa.beam.processor.common.auxdata;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class AuxDataRegistryTest {
+
+    private File dir;
+    private AuxDataRegistry registry;
+    private CountingLoader loader;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("auxdata_registry", "");
+        dir.delete();
+        dir.mkdir();
+        registry = new AuxDataRegistry(1000);
+        loader = new CountingLoader();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        for (File file : files) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testSameFileIsLoadedOnce() throws IOException {
+        final String path = write("a.txt", "alpha");
+        final AuxDataRegistry.Handle<String> h1 = registry.acquire(String.class, path, loader);
+        final AuxDataRegistry.Handle<String> h2 = registry.acquire(String.class, path, loader);
+        assertEquals("alpha", h1.get());
+        assertSame(h1.get(), h2.get());
+        assertEquals(1, loader.count);
+        assertEquals(1, registry.getEntryCount());
+
+        h1.release();
+        h2.release();
+        assertSame(h1.get(), registry.acquire(String.class, path, loader).get());
+        assertEquals(1, loader.count);
+    }
+
+    @Test
+    public void testChangedFileIsLoadedAgain() throws IOException {
+        final String path = write("a.txt", "alpha");
+        final AuxDataRegistry.Handle<String> h1 = registry.acquire(String.class, path, loader);
+        write("a.txt", "alpha-2");
+        final AuxDataRegistry.Handle<String> h2 = registry.acquire(String.class, path, loader);
+        assertEquals("alpha", h1.get());
+        assertEquals("alpha-2", h2.get());
+        assertEquals(2, loader.count);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws IOException {
+        registry.setMemoryBudget(25);
+        final String pathA = write("a.txt", "0123456789");
+        final String pathB = write("b.txt", "0123456789");
+        final String pathC = write("c.txt", "0123456789");
+
+        registry.acquire(String.class, pathA, loader).release();
+        registry.acquire(String.class, pathB, loader).release();
+        registry.acquire(String.class, pathA, loader).release();
+        assertEquals(2, loader.count);
+
+        // b is the least recently used entry
+        registry.acquire(String.class, pathC, loader).release();
+        assertEquals(2, registry.getEntryCount());
+        assertEquals(20, registry.getMemoryUsage());
+
+        registry.acquire(String.class, pathA, loader).release();
+        assertEquals(3, loader.count);
+        registry.acquire(String.class, pathB, loader).release();
+        assertEquals(4, loader.count);
+    }
+
+    @Test
+    public void testReferencedEntryIsNotEvicted() throws IOException {
+        registry.setMemoryBudget(5);
+        final String path = write("a.txt", "0123456789");
+        final AuxDataRegistry.Handle<String> h1 = registry.acquire(String.class, path, loader);
+        assertEquals(1, registry.getEntryCount());
+
+        final AuxDataRegistry.Handle<String> h2 = registry.acquire(String.class, path, loader);
+        assertSame(h1.get(), h2.get());
+        h1.release();
+        h1.release();
+        assertEquals(1, registry.getEntryCount());
+
+        h2.release();
+        assertEquals(0, registry.getEntryCount());
+        assertEquals(0, registry.getMemoryUsage());
+    }
+
+    @Test
+    public void testNnaNetIsHeldUntilReleased() throws IOException {
+        registry.setMemoryBudget(5);
+        File source = new File("src/main/resources/auxdata/toa/toa_veg_nn_LAI.nna");
+        if (!source.exists()) {
+            source = new File("beam-meris-veg/src/main/resources/auxdata/toa/toa_veg_nn_LAI.nna");
+        }
+        final String path = copy(source, "toa_veg_nn_LAI.nna");
+        final AuxDataRegistry.Handle<NnaNet> h1 = registry.acquireNnaNet(path);
+        final AuxDataRegistry.Handle<NnaNet> h2 = registry.acquireNnaNet(path);
+        assertSame(h1.get(), h2.get());
+        assertEquals(1, registry.getEntryCount());
+
+        h1.release();
+        assertEquals(1, registry.getEntryCount());
+        h2.release();
+        assertEquals(0, registry.getEntryCount());
+    }
+
+    @Test
+    public void testFailedLoadIsNotRegistered() throws IOException {
+        final String path = write("a.txt", "alpha");
+        try {
+            registry.acquire(String.class, path, new AuxDataRegistry.Loader<String>() {
+                public String load(File file) throws IOException {
+                    throw new IOException("corrupt");
+                }
+            });
+            fail("IOException expected");
+        } catch (IOException expected) {
+            assertEquals("corrupt", expected.getMessage());
+        }
+        assertEquals(0, registry.getEntryCount());
+        assertEquals("alpha", registry.acquire(String.class, path, loader).get());
+    }
+
+    @Test
+    public void testTypesAreRegisteredSeparately() throws IOException {
+        final String path = write("a.txt", "alpha");
+        final AuxDataRegistry.Handle<String> h1 = registry.acquire(String.class, path, loader);
+        final AuxDataRegistry.Handle<CharSequence> h2 = registry.acquire(CharSequence.class, path, loader);
+        assertNotSame(h1.get(), h2.get());
+        assertEquals(2, registry.getEntryCount());
+    }
+
+    private String write(String name, String content) throws IOException {
+        final File file = new File(dir, name);
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        return file.getPath();
+    }
+
+    private String copy(File source, String name) throws IOException {
+        final File file = new File(dir, name);
+        final FileInputStream in = new FileInputStream(source);
+        try {
+            final FileOutputStream out = new FileOutputStream(file);
+            try {
+                final byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return file.getPath();
+    }
+
+    private static class CountingLoader implements AuxDataRegistry.Loader<String> {
+
+        private int count;
+
+        public String load(File file) throws IOException {
+            count++;
+            final byte[] bytes = new byte[(int) file.length()];
+            final FileInputStream in = new FileInputStream(file);
+            try {
+                in.read(bytes);
+            } finally {
+                in.close();
+            }
+            return new String(bytes, "US-ASCII");
+        }
+    }
+}
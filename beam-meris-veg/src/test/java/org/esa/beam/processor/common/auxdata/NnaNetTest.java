@@ -0,0 +1,107 @@
+package org.esa.beam.processor.common.auxdata;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NnaNetTest {
+
+    // 2 inputs, 2 tanh hidden units, 1 identity output
+    private static final String NET =
+            "; Definition of the neural net\n" +
+            "[ Net ]\n" +
+            "NumLayers = 3 \n" +
+            "InpLayer = 1\n" +
+            "OutLayer = 3\n" +
+            "Precision = Double\n" +
+            "[ Layer(1) ]\n" +
+            "NumUnits = 2\n" +
+            "InpFunc = Zero ; ID = 40\n" +
+            "ActFunc = Identity\n" +
+            "OutFunc = Identity\n" +
+            "ActThres = 0.0\n" +
+            "ActSlope = 1.0\n" +
+            "[ Layer(2) ]\n" +
+            "NumUnits = 2\n" +
+            "InpFunc = Sum_1\n" +
+            "ActFunc = TangSigmoid\n" +
+            "OutFunc = Identity\n" +
+            "[ Layer(3) ]\n" +
+            "NumUnits = 1\n" +
+            "InpFunc = Sum_1\n" +
+            "ActFunc = Identity\n" +
+            "OutFunc = Identity\n" +
+            "[ Unit(1,1) ]\n" +
+            "NumConns = 0.0\n" +
+            "InpBias = 0\n" +
+            "[ Unit(1,2) ]\n" +
+            "NumConns = 0.0\n" +
+            "InpBias = 0\n" +
+            "[ Unit(2,1) ]\n" +
+            "NumConns = 2\n" +
+            "InpScale = 1.0\n" +
+            "InpBias = 0.5\n" +
+            "C(1) = 1,1, 1.0\n" +
+            "C(2) = 1,2, -2.0\n" +
+            "[ Unit(2,2) ]\n" +
+            "NumConns = 1\n" +
+            "InpBias = -0.25\n" +
+            "C(1) = 1,2, 0.75\n" +
+            "[ Unit(3,1) ]\n" +
+            "NumConns = 2\n" +
+            "InpBias = 0.1\n" +
+            "C(1) = 2,1, 2.0\n" +
+            "C(2) = 2,2, 3.0\n";
+
+    @Test
+    public void testRead() throws IOException {
+        final NnaNet net = NnaNet.read(new StringReader(NET), "test");
+
+        assertEquals(3, net.getLayerCount());
+        assertEquals(2, net.getInputCount());
+        assertEquals(2, net.getUnitCount(1));
+        assertEquals(1, net.getOutputCount());
+        assertEquals(NnaNet.ACTIVATION_TANH, net.getActivation(1));
+        assertEquals(NnaNet.ACTIVATION_IDENTITY, net.getActivation(2));
+
+        final double[] weights = net.getWeights(1);
+        assertEquals(1.0, weights[0], 0.0);
+        assertEquals(-2.0, weights[1], 0.0);
+        // missing connection
+        assertEquals(0.0, weights[2], 0.0);
+        assertEquals(0.75, weights[3], 0.0);
+        assertEquals(-0.25, net.getBiases(1)[1], 0.0);
+    }
+
+    @Test
+    public void testProcess() throws IOException {
+        final NnaNet net = NnaNet.read(new StringReader(NET), "test");
+        final double[] output = new double[1];
+        net.process(new double[]{0.3, -0.6}, output);
+
+        final double h1 = Math.tanh(0.5 + 0.3 - 2.0 * -0.6);
+        final double h2 = Math.tanh(-0.25 + 0.75 * -0.6);
+        assertEquals(0.1 + 2.0 * h1 + 3.0 * h2, output[0], 1.0e-15);
+    }
+
+    @Test
+    public void testUnsupportedNetIsRejected() {
+        try {
+            NnaNet.read(new StringReader(NET.replace("TangSigmoid", "Gaussian")), "test");
+            fail("IOException expected");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("Gaussian"));
+        }
+        try {
+            NnaNet.read(new StringReader(NET.replace("C(1) = 2,1", "C(1) = 1,1")), "test");
+            fail("IOException expected");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("preceding layer"));
+        }
+    }
+}
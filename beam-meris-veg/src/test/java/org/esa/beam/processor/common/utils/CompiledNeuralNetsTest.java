@@ -0,0 +1,200 @@
+package org.esa.beam.processor.common.utils;
+
+import org.esa.beam.processor.common.auxdata.NnaNet;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the nets compiled by the {@link NnaNetCompiler} with the interpreted and the fused nets. The nets
+ * are generated and compiled into a temporary directory, independent of the build profile compiled-nets.
+ */
+public class CompiledNeuralNetsTest {
+
+    private static final String[] NET_NAMES = {
+            "toc/toc_veg_nn.nna",
+            "toa/toa_veg_nn_LAI.nna",
+            "toa/toa_veg_nn_fCover.nna",
+            "toa/toa_veg_nn_LAIxCab.nna",
+            "toa/toa_veg_nn_fAPAR.nna"
+    };
+
+    private static CompiledNeuralNet[] generatedNets;
+
+    private File auxdataDir;
+
+    @Before
+    public void setUp() {
+        auxdataDir = new File("src/main/resources/auxdata");
+        if (!auxdataDir.exists()) {
+            auxdataDir = new File("beam-meris-veg/src/main/resources/auxdata");
+        }
+    }
+
+    @Test
+    public void testCompiledNetsEqualInterpretedNets() throws Exception {
+        final Random random = new Random(31);
+        for (String name : NET_NAMES) {
+            final NnaNet net = NnaNet.read(new File(auxdataDir, name));
+            final CompiledNeuralNet compiledNet = CompiledNeuralNets.find(net, getGeneratedNets(auxdataDir));
+            assertNotNull(name, compiledNet);
+            assertEquals(name, net.getInputCount(), compiledNet.getInputCount());
+            assertEquals(name, net.getOutputCount(), compiledNet.getOutputCount());
+
+            final double[] input = new double[net.getInputCount()];
+            final double[] expected = new double[net.getOutputCount()];
+            final double[] actual = new double[net.getOutputCount() + 1];
+            for (int n = 0; n < 1000; n++) {
+                for (int i = 0; i < input.length; i++) {
+                    input[i] = 2.0 * random.nextDouble() - 1.0;
+                }
+                net.process(input, expected);
+                compiledNet.process(input, actual, 1);
+                for (int k = 0; k < expected.length; k++) {
+                    assertEquals(name, expected[k], actual[k + 1], 0.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCompiledNetsEqualFusedNets() throws Exception {
+        final Random random = new Random(37);
+        final NnaNet[] nets = new NnaNet[NET_NAMES.length];
+        final CompiledNeuralNet[] compiledNets = new CompiledNeuralNet[NET_NAMES.length];
+        for (int k = 0; k < NET_NAMES.length; k++) {
+            nets[k] = NnaNet.read(new File(auxdataDir, NET_NAMES[k]));
+            compiledNets[k] = CompiledNeuralNets.find(nets[k], getGeneratedNets(auxdataDir));
+            assertNotNull(NET_NAMES[k], compiledNets[k]);
+        }
+
+        // the TOC net alone and the four TOA nets fused as in ToaVegAlgorithm
+        assertCompiledNetsEqualFusedNet(new NnaNet[]{nets[0]}, new CompiledNeuralNet[]{compiledNets[0]}, random);
+        assertCompiledNetsEqualFusedNet(new NnaNet[]{nets[1], nets[2], nets[3], nets[4]},
+                                        new CompiledNeuralNet[]{compiledNets[1], compiledNets[2],
+                                                compiledNets[3], compiledNets[4]},
+                                        random);
+    }
+
+    @Test
+    public void testWriteNet() throws Exception {
+        final NnaNet net = NnaNet.read(new File(auxdataDir, NET_NAMES[1]));
+        final StringWriter writer = new StringWriter();
+        NnaNetCompiler.writeNet(net, "toa_veg_nn_LAI.nna", "ToaVegNnLAI", writer);
+
+        final String code = writer.toString();
+        assertTrue(code.contains("package " + NnaNetCompiler.PACKAGE_NAME + ";"));
+        assertTrue(code.contains("public final class ToaVegNnLAI implements CompiledNeuralNet"));
+        assertTrue(code.contains("0x" + Long.toHexString(net.getFingerprint()) + "L"));
+        assertTrue(code.contains("final double v2_4 = Math.tanh(b2[4]"));
+        assertTrue(code.contains("output[outputOffset + 0] = b3[0]"));
+    }
+
+    @Test
+    public void testGetClassName() {
+        assertEquals("TocVegNn", NnaNetCompiler.getClassName("toc_veg_nn.nna"));
+        assertEquals("ToaVegNnLAIxCab", NnaNetCompiler.getClassName("toa_veg_nn_LAIxCab.nna"));
+        assertEquals("Net2Layers", NnaNetCompiler.getClassName("2-layers.nna"));
+    }
+
+    private static void assertCompiledNetsEqualFusedNet(NnaNet[] heads, CompiledNeuralNet[] compiledNets,
+                                                        Random random) {
+        final FusedNeuralNet fusedNet = new FusedNeuralNet(heads);
+        final double[] buffer = fusedNet.createBuffer();
+        final int count = 3 * FusedNeuralNet.BLOCK_SIZE + 5;
+        final double[][] inputs = new double[count][fusedNet.getInputCount()];
+        for (double[] input : inputs) {
+            for (int i = 0; i < input.length; i++) {
+                input[i] = 2.0 * random.nextDouble() - 1.0;
+            }
+        }
+        final double[][] batchOutputs = new double[fusedNet.getOutputCount()][count];
+        fusedNet.process(inputs, count, batchOutputs, buffer);
+
+        final double[] fusedOutput = new double[fusedNet.getOutputCount()];
+        final double[] compiledOutput = new double[fusedNet.getOutputCount()];
+        for (int n = 0; n < count; n++) {
+            fusedNet.process(inputs[n], fusedOutput, buffer);
+            int offset = 0;
+            for (CompiledNeuralNet compiledNet : compiledNets) {
+                compiledNet.process(inputs[n], compiledOutput, offset);
+                offset += compiledNet.getOutputCount();
+            }
+            for (int k = 0; k < compiledOutput.length; k++) {
+                assertEquals(compiledOutput[k], fusedOutput[k], 0.0);
+                assertEquals(compiledOutput[k], batchOutputs[k][n], 0.0);
+            }
+        }
+    }
+
+    /**
+     * Runs the {@link NnaNetCompiler} as the build profile compiled-nets does, compiles the generated sources
+     * and loads the nets.
+     */
+    private static synchronized CompiledNeuralNet[] getGeneratedNets(File auxdataDir) throws Exception {
+        if (generatedNets == null) {
+            final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            assertNotNull("A Java compiler is needed to compile the generated nets", compiler);
+
+            final File tempDir = File.createTempFile("CompiledNeuralNetsTest", "");
+            assertTrue(tempDir.delete() && tempDir.mkdir());
+            try {
+                final File sourceDir = new File(tempDir, "src");
+                final File classDir = new File(tempDir, "classes");
+                assertTrue(classDir.mkdir());
+                final String[] args = new String[NET_NAMES.length + 1];
+                args[0] = sourceDir.getPath();
+                for (int k = 0; k < NET_NAMES.length; k++) {
+                    args[k + 1] = new File(auxdataDir, NET_NAMES[k]).getPath();
+                }
+                NnaNetCompiler.main(args);
+
+                final File packageDir = new File(sourceDir,
+                                                 NnaNetCompiler.PACKAGE_NAME.replace('.', File.separatorChar));
+                final List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"),
+                                                           "-d", classDir.getPath());
+                final StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+                final Iterable<? extends JavaFileObject> sources =
+                        fileManager.getJavaFileObjects(packageDir.listFiles());
+                final StringWriter output = new StringWriter();
+                final boolean success = compiler.getTask(output, fileManager, null, options, null, sources).call();
+                fileManager.close();
+                assertTrue(output.toString(), success);
+
+                final ClassLoader classLoader = new URLClassLoader(new URL[]{classDir.toURI().toURL()},
+                                                                   CompiledNeuralNetsTest.class.getClassLoader());
+                final Class<?> indexClass = Class.forName(NnaNetCompiler.INDEX_CLASS_NAME, true, classLoader);
+                // creates an instance of every net, all classes are loaded before the directory is deleted
+                generatedNets = (CompiledNeuralNet[]) indexClass.getMethod("createNets").invoke(null);
+            } finally {
+                delete(tempDir);
+            }
+        }
+        return generatedNets;
+    }
+
+    private static void delete(File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,82 @@
+package org.esa.beam.processor.common.utils;
+
+import org.esa.beam.processor.common.auxdata.NnaNet;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Measures the batch evaluation of the fused TOA_VEG nets with the scalar and, if available, the SIMD
+ * {@link NeuralNetKernel}. Not a unit test, it is excluded from the surefire runs (see pom.xml) and run with
+ * <pre>
+ *     FusedNeuralNetBenchmark [auxdataDir [numVectors]]
+ * </pre>
+ * The auxdata directory defaults to the TOA_VEG auxiliary data of this module. The SIMD kernel requires
+ * Java 16 or later and <code>--add-modules jdk.incubator.vector</code>. That both kernels give identical
+ * results is checked by {@link FusedNeuralNetTest}.
+ */
+public class FusedNeuralNetBenchmark {
+
+    private static final String[] TOA_NET_NAMES = {
+            "toa_veg_nn_LAI.nna",
+            "toa_veg_nn_fCover.nna",
+            "toa_veg_nn_LAIxCab.nna",
+            "toa_veg_nn_fAPAR.nna"
+    };
+    private static final int BATCH_SIZE = 1024;
+    private static final int NUM_RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        final File auxdataDir = new File(args.length > 0 ? args[0] : getDefaultAuxdataDir());
+        final int numVectors = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+
+        final NnaNet[] nets = new NnaNet[TOA_NET_NAMES.length];
+        for (int i = 0; i < nets.length; i++) {
+            nets[i] = NnaNet.read(new File(auxdataDir, TOA_NET_NAMES[i]));
+        }
+        final FusedNeuralNet net = new FusedNeuralNet(nets);
+
+        final Random random = new Random(42);
+        final double[][] inputs = new double[BATCH_SIZE][net.getInputCount()];
+        for (double[] input : inputs) {
+            for (int i = 0; i < input.length; i++) {
+                input[i] = 2.0 * random.nextDouble() - 1.0;
+            }
+        }
+
+        final NeuralNetKernel scalarKernel = NeuralNetKernels.getScalar();
+        final NeuralNetKernel vectorKernel = NeuralNetKernels.getVector();
+        final double scalarRate = measure(net, inputs, numVectors, scalarKernel);
+        System.out.printf("%-20s %10.0f vectors/s%n", scalarKernel.getName(), scalarRate);
+        if (vectorKernel != null) {
+            final double vectorRate = measure(net, inputs, numVectors, vectorKernel);
+            System.out.printf("%-20s %10.0f vectors/s, speedup %.2f%n", vectorKernel.getName(), vectorRate,
+                              vectorRate / scalarRate);
+        } else {
+            System.out.println("SIMD kernel not available");
+        }
+    }
+
+    private static double measure(FusedNeuralNet net, double[][] inputs, int numVectors, NeuralNetKernel kernel) {
+        final double[][] outputs = new double[net.getOutputCount()][BATCH_SIZE];
+        final double[] buffer = net.createBuffer();
+        double rate = 0.0;
+        for (int run = 0; run < NUM_RUNS; run++) {
+            final long t0 = System.nanoTime();
+            for (int done = 0; done < numVectors; done += BATCH_SIZE) {
+                net.process(inputs, BATCH_SIZE, outputs, buffer, kernel);
+            }
+            final long t1 = System.nanoTime();
+            rate = Math.max(rate, numVectors / ((t1 - t0) * 1.0e-9));
+        }
+        return rate;
+    }
+
+    private static String getDefaultAuxdataDir() {
+        final String path = "src/main/resources/auxdata/toa";
+        if (new File(path).exists()) {
+            return path;
+        }
+        return "beam-meris-veg/" + path;
+    }
+}
@@ -0,0 +1,145 @@
+package org.esa.beam.processor.common.utils;
+
+import com.bc.jnn.Jnn;
+import com.bc.jnn.JnnNet;
+import org.esa.beam.processor.common.auxdata.NnaNet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeNotNull;
+
+public class FusedNeuralNetTest {
+
+    private static final String[] TOA_NET_NAMES = {
+            "toa_veg_nn_LAI.nna",
+            "toa_veg_nn_fCover.nna",
+            "toa_veg_nn_LAIxCab.nna",
+            "toa_veg_nn_fAPAR.nna"
+    };
+
+    private File auxdataDir;
+    private NnaNet[] nets;
+    private FusedNeuralNet fusedNet;
+
+    @Before
+    public void setUp() throws Exception {
+        auxdataDir = new File("src/main/resources/auxdata/toa");
+        if (!auxdataDir.exists()) {
+            auxdataDir = new File("beam-meris-veg/src/main/resources/auxdata/toa");
+        }
+        nets = new NnaNet[TOA_NET_NAMES.length];
+        for (int i = 0; i < nets.length; i++) {
+            nets[i] = NnaNet.read(new File(auxdataDir, TOA_NET_NAMES[i]));
+        }
+        fusedNet = new FusedNeuralNet(nets);
+    }
+
+    @Test
+    public void testFusedNetEqualsJnnNets() throws Exception {
+        final JnnNet[] jnnNets = new JnnNet[TOA_NET_NAMES.length];
+        for (int i = 0; i < jnnNets.length; i++) {
+            jnnNets[i] = Jnn.readNna(new File(auxdataDir, TOA_NET_NAMES[i]));
+        }
+
+        final double[] output = new double[fusedNet.getOutputCount()];
+        final double[] buffer = fusedNet.createBuffer();
+        final double[] jnnOutput = new double[1];
+        final Random random = new Random(12);
+        for (int n = 0; n < 1000; n++) {
+            final double[] input = createInput(random);
+            fusedNet.process(input, output, buffer);
+            for (int i = 0; i < jnnNets.length; i++) {
+                jnnNets[i].process(input, jnnOutput);
+                assertEquals(TOA_NET_NAMES[i], jnnOutput[0], output[i], 1.0e-10);
+            }
+        }
+    }
+
+    @Test
+    public void testFusedNetEqualsSeparateNets() {
+        assertEquals(16, fusedNet.getInputCount());
+        assertEquals(4, fusedNet.getOutputCount());
+
+        final double[] output = new double[fusedNet.getOutputCount()];
+        final double[] buffer = fusedNet.createBuffer();
+        final double[] netOutput = new double[1];
+        final Random random = new Random(27);
+        for (int n = 0; n < 1000; n++) {
+            final double[] input = createInput(random);
+            fusedNet.process(input, output, buffer);
+            for (int i = 0; i < nets.length; i++) {
+                nets[i].process(input, netOutput);
+                assertEquals(TOA_NET_NAMES[i], netOutput[0], output[i], 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testBatchEqualsSingleInputs() {
+        final int count = 50;
+        final double[][] inputs = new double[count + 3][];
+        final Random random = new Random(5);
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = createInput(random);
+        }
+        final double[][] outputs = new double[fusedNet.getOutputCount()][count + 3];
+        final double[] buffer = fusedNet.createBuffer();
+        fusedNet.process(inputs, count, outputs, buffer);
+
+        final double[] output = new double[fusedNet.getOutputCount()];
+        for (int i = 0; i < count; i++) {
+            fusedNet.process(inputs[i], output, buffer);
+            for (int k = 0; k < output.length; k++) {
+                assertEquals(output[k], outputs[k][i], 0.0);
+            }
+        }
+        // rows beyond count are not touched
+        assertEquals(0.0, outputs[0][count], 0.0);
+    }
+
+    @Test
+    public void testBatchKernelsGiveIdenticalResults() {
+        // several blocks and a partial one
+        final int count = 3 * FusedNeuralNet.BLOCK_SIZE + 17;
+        final double[][] inputs = new double[count][];
+        final Random random = new Random(31);
+        for (int i = 0; i < count; i++) {
+            inputs[i] = createInput(random);
+        }
+        final double[] buffer = fusedNet.createBuffer();
+        final double[][] scalarOutputs = new double[fusedNet.getOutputCount()][count];
+        fusedNet.process(inputs, count, scalarOutputs, buffer, NeuralNetKernels.getScalar());
+
+        final double[] output = new double[fusedNet.getOutputCount()];
+        for (int i = 0; i < count; i++) {
+            fusedNet.process(inputs[i], output, buffer);
+            for (int k = 0; k < output.length; k++) {
+                assertEquals(output[k], scalarOutputs[k][i], 0.0);
+            }
+        }
+
+        // the SIMD kernel is only available on Java 16 or later with the incubator vector module
+        final NeuralNetKernel vectorKernel = NeuralNetKernels.getVector();
+        assumeNotNull(vectorKernel);
+        final double[][] vectorOutputs = new double[fusedNet.getOutputCount()][count];
+        fusedNet.process(inputs, count, vectorOutputs, buffer, vectorKernel);
+        for (int k = 0; k < scalarOutputs.length; k++) {
+            for (int i = 0; i < count; i++) {
+                assertEquals(Double.doubleToLongBits(scalarOutputs[k][i]),
+                             Double.doubleToLongBits(vectorOutputs[k][i]));
+            }
+        }
+    }
+
+    private static double[] createInput(Random random) {
+        final double[] input = new double[16];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = 2.0 * random.nextDouble() - 1.0;
+        }
+        return input;
+    }
+}
@@ -0,0 +1,118 @@
+package org.esa.beam.processor.common.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StripPipelineTest {
+
+    @Test
+    public void testAllLinesAreProcessedInOrder() throws IOException {
+        final LineStage stage = new LineStage(-1, -1);
+        assertTrue(new StripPipeline<int[]>(stage, 37, 5).run());
+
+        assertEquals(37, stage.written.size());
+        for (int y = 0; y < 37; y++) {
+            assertEquals(Integer.valueOf(2 * y), stage.written.get(y));
+        }
+        assertEquals(8, stage.numComputed);
+    }
+
+    @Test
+    public void testStripHeightIsLimitedToScene() throws IOException {
+        final LineStage stage = new LineStage(-1, -1);
+        assertTrue(new StripPipeline<int[]>(stage, 3, 100).run());
+        assertEquals(3, stage.written.size());
+        assertEquals(1, stage.numComputed);
+    }
+
+    @Test
+    public void testComputedStripsAreWrittenWhenStopped() throws IOException {
+        // stop after the strip starting at line 10
+        final LineStage stage = new LineStage(10, -1);
+        assertFalse(new StripPipeline<int[]>(stage, 100, 5).run());
+
+        assertEquals(15, stage.written.size());
+        assertEquals(3, stage.numComputed);
+    }
+
+    @Test
+    public void testReadErrorIsThrown() {
+        final LineStage stage = new LineStage(-1, 20);
+        try {
+            new StripPipeline<int[]>(stage, 100, 5).run();
+            fail("IOException expected");
+        } catch (IOException expected) {
+            assertEquals("read error at 20", expected.getMessage());
+        }
+        assertTrue(stage.written.size() <= 20);
+    }
+
+    @Test
+    public void testWriteErrorIsThrown() {
+        final LineStage stage = new LineStage(-1, -1) {
+            @Override
+            public void write(int[] strip, int y, int height) throws IOException {
+                if (y == 10) {
+                    throw new IOException("write error");
+                }
+                super.write(strip, y, height);
+            }
+        };
+        try {
+            new StripPipeline<int[]>(stage, 100, 5).run();
+            fail("IOException expected");
+        } catch (IOException expected) {
+            assertEquals("write error", expected.getMessage());
+        }
+        assertEquals(10, stage.written.size());
+    }
+
+    private static class LineStage implements StripPipeline.Stage<int[]> {
+
+        private final int stopAt;
+        private final int failAt;
+        private final List<Integer> written = Collections.synchronizedList(new ArrayList<Integer>());
+        private int numComputed;
+
+        private LineStage(int stopAt, int failAt) {
+            this.stopAt = stopAt;
+            this.failAt = failAt;
+        }
+
+        public int[] createStrip(int stripHeight) {
+            return new int[stripHeight];
+        }
+
+        public void read(int[] strip, int y, int height) throws IOException {
+            if (y == failAt) {
+                throw new IOException("read error at " + y);
+            }
+            for (int i = 0; i < height; i++) {
+                strip[i] = y + i;
+            }
+        }
+
+        public boolean compute(int[] strip, int y, int height) {
+            for (int i = 0; i < height; i++) {
+                strip[i] *= 2;
+            }
+            numComputed++;
+            return y != stopAt;
+        }
+
+        public void write(int[] strip, int y, int height) throws IOException {
+            for (int i = 0; i < height; i++) {
+                written.add(strip[i]);
+            }
+        }
+    }
+}
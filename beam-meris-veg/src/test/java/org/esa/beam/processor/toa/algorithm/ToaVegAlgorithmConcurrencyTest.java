@@ -0,0 +1,133 @@
+package org.esa.beam.processor.toa.algorithm;
+
+import org.esa.beam.processor.common.utils.VegGenericPixel;
+import org.esa.beam.processor.toa.ToaVegConstants;
+import org.esa.beam.processor.toa.auxdata.ToaVegInputStatisticsLoader;
+import org.esa.beam.processor.toa.auxdata.ToaVegOutputStatisticsLoader;
+import org.esa.beam.processor.toa.auxdata.ToaVegUncertaintyModelLoader;
+import org.esa.beam.processor.toa.utils.ToaVegMerisPixel;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a single {@link ToaVegAlgorithm} shared by several threads, each thread using its own
+ * {@link ToaVegContext}, gives the same results as one thread.
+ */
+public class ToaVegAlgorithmConcurrencyTest {
+
+    private static final int NUM_THREADS = 4;
+    private static final int NUM_PIXELS = 2000;
+
+    private ToaVegAlgorithm algorithm;
+
+    @Before
+    public void setUp() throws Exception {
+        final File auxdataDir = getAuxdataDir();
+        final ToaVegInputStatisticsLoader inStatAux = new ToaVegInputStatisticsLoader();
+        inStatAux.load(new File(auxdataDir, "toa_veg_input_statistics.par").getPath());
+        final ToaVegOutputStatisticsLoader outStatAux = new ToaVegOutputStatisticsLoader();
+        outStatAux.load(new File(auxdataDir, "toa_veg_output_statistics.par").getPath());
+        final ToaVegUncertaintyModelLoader uncertaintyAux = new ToaVegUncertaintyModelLoader();
+        uncertaintyAux.load(new File(auxdataDir, "toa_veg_uncertainty.par").getPath());
+
+        algorithm = new ToaVegAlgorithm();
+        algorithm.setInputStatisticsAccess(inStatAux);
+        algorithm.setOutputStatisticsAccess(outStatAux);
+        algorithm.setUncertaintyModelAccess(uncertaintyAux);
+        algorithm.InitAlgo();
+        algorithm.setNn_LaiAuxPath(new File(auxdataDir, "toa_veg_nn_LAI.nna").getPath());
+        algorithm.setNn_fCoverAuxPath(new File(auxdataDir, "toa_veg_nn_fCover.nna").getPath());
+        algorithm.setNn_fAPARAuxPath(new File(auxdataDir, "toa_veg_nn_fAPAR.nna").getPath());
+        algorithm.setNn_LAIxCabAuxPath(new File(auxdataDir, "toa_veg_nn_LAIxCab.nna").getPath());
+    }
+
+    @Test
+    public void testSharedAlgorithmGivesSameResultsOnSeveralThreads() throws Exception {
+        final ToaVegMerisPixel[] pixels = createPixels(NUM_PIXELS);
+        final VegGenericPixel[] expected = process(pixels, 0, 1);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+        try {
+            final List<Callable<VegGenericPixel[]>> tasks = new ArrayList<Callable<VegGenericPixel[]>>();
+            for (int t = 0; t < NUM_THREADS; t++) {
+                final int first = t;
+                tasks.add(new Callable<VegGenericPixel[]>() {
+                    public VegGenericPixel[] call() {
+                        // the threads take turns pixel by pixel so that they run the nets at the same time
+                        return process(pixels, first, NUM_THREADS);
+                    }
+                });
+            }
+            final List<Future<VegGenericPixel[]>> futures = executor.invokeAll(tasks);
+            for (int t = 0; t < NUM_THREADS; t++) {
+                final VegGenericPixel[] actual = futures.get(t).get();
+                for (int i = t; i < pixels.length; i += NUM_THREADS) {
+                    assertPixelsEqual("pixel " + i, expected[i], actual[i]);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private VegGenericPixel[] process(ToaVegMerisPixel[] pixels, int first, int step) {
+        final ToaVegContext context = algorithm.createContext();
+        final VegGenericPixel[] results = new VegGenericPixel[pixels.length];
+        for (int i = first; i < pixels.length; i += step) {
+            results[i] = new VegGenericPixel();
+            results[i].reset();
+            algorithm.processPixel(pixels[i], results[i], context);
+        }
+        return results;
+    }
+
+    private static void assertPixelsEqual(String message, VegGenericPixel expected, VegGenericPixel actual) {
+        assertEquals(message, expected.getBand_LAI(), actual.getBand_LAI(), 0.0f);
+        assertEquals(message, expected.getBand_fCover(), actual.getBand_fCover(), 0.0f);
+        assertEquals(message, expected.getBand_CabxLAI(), actual.getBand_CabxLAI(), 0.0f);
+        assertEquals(message, expected.getBand_fAPAR(), actual.getBand_fAPAR(), 0.0f);
+        assertEquals(message, expected.getBand_sigma_LAI(), actual.getBand_sigma_LAI(), 0.0f);
+        assertEquals(message, expected.getBand_sigma_fCover(), actual.getBand_sigma_fCover(), 0.0f);
+        assertEquals(message, expected.getBand_sigma_LAIxCab(), actual.getBand_sigma_LAIxCab(), 0.0f);
+        assertEquals(message, expected.getBand_sigma_fApar(), actual.getBand_sigma_fApar(), 0.0f);
+        assertEquals(message, expected.getFlagMask(), actual.getFlagMask());
+    }
+
+    private static ToaVegMerisPixel[] createPixels(int count) {
+        final Random random = new Random(5);
+        final ToaVegMerisPixel[] pixels = new ToaVegMerisPixel[count];
+        for (int i = 0; i < count; i++) {
+            final ToaVegMerisPixel pixel = new ToaVegMerisPixel();
+            pixel.setBand_Sza(20.0f + 40.0f * random.nextFloat());
+            pixel.setBand_Vza(40.0f * random.nextFloat());
+            pixel.setBand_Saa(360.0f * random.nextFloat());
+            pixel.setBand_Vaa(360.0f * random.nextFloat());
+            pixel.setBand_Pressure(1013.0f);
+            for (int b = 0; b < ToaVegConstants.NUM_BANDS; b++) {
+                pixel.setBand(30.0f + 100.0f * random.nextFloat(), b);
+                pixel.setBand_SolarSpecFlux(1500.0f, b);
+            }
+            pixels[i] = pixel;
+        }
+        return pixels;
+    }
+
+    private static File getAuxdataDir() {
+        final String path = "src/main/resources/auxdata/" + ToaVegConstants.AUXDATA_DIR;
+        if (new File(path).exists()) {
+            return new File(path);
+        }
+        return new File("beam-meris-veg/" + path);
+    }
+}
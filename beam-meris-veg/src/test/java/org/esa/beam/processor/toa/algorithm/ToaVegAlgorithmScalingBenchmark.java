@@ -0,0 +1,133 @@
+package org.esa.beam.processor.toa.algorithm;
+
+import org.esa.beam.processor.common.utils.VegGenericPixel;
+import org.esa.beam.processor.toa.ToaVegConstants;
+import org.esa.beam.processor.toa.auxdata.ToaVegInputStatisticsLoader;
+import org.esa.beam.processor.toa.auxdata.ToaVegOutputStatisticsLoader;
+import org.esa.beam.processor.toa.auxdata.ToaVegUncertaintyModelLoader;
+import org.esa.beam.processor.toa.utils.ToaVegMerisPixel;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the throughput of a single {@link ToaVegAlgorithm} shared by 1, 2, 4 and 8 threads, each thread
+ * using its own {@link ToaVegContext}. Not a unit test, it is excluded from the surefire runs (see pom.xml)
+ * and run with
+ * <pre>
+ *     ToaVegAlgorithmScalingBenchmark [auxdataDir [pixelsPerThread [maxThreads]]]
+ * </pre>
+ * The auxdata directory defaults to the TOA_VEG auxiliary data of this module. The correctness of the
+ * shared algorithm is checked by {@link ToaVegAlgorithmConcurrencyTest}.
+ */
+public class ToaVegAlgorithmScalingBenchmark {
+
+    private static final int NUM_RUNS = 3;
+    private static final int DEFAULT_MAX_THREADS = 8;
+
+    public static void main(String[] args) throws Exception {
+        final File auxdataDir = new File(args.length > 0 ? args[0] : getDefaultAuxdataDir());
+        final int pixelsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        final int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_MAX_THREADS;
+
+        final ToaVegAlgorithm algorithm = createAlgorithm(auxdataDir);
+        final ToaVegMerisPixel[] pixels = createPixels(4096);
+
+        System.out.println("threads  pixels/s    speedup");
+        double singleThreadRate = 0.0;
+        for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+            double rate = 0.0;
+            for (int run = 0; run < NUM_RUNS; run++) {
+                rate = Math.max(rate, measure(algorithm, pixels, numThreads, pixelsPerThread));
+            }
+            if (numThreads == 1) {
+                singleThreadRate = rate;
+            }
+            System.out.printf("%7d  %10.0f  %7.2f%n", numThreads, rate, rate / singleThreadRate);
+        }
+    }
+
+    private static double measure(final ToaVegAlgorithm algorithm, final ToaVegMerisPixel[] pixels,
+                                  int numThreads, final int pixelsPerThread) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            final List<Callable<Float>> tasks = new ArrayList<Callable<Float>>();
+            for (int i = 0; i < numThreads; i++) {
+                tasks.add(new Callable<Float>() {
+                    public Float call() {
+                        final ToaVegContext context = algorithm.createContext();
+                        final VegGenericPixel outPixel = new VegGenericPixel();
+                        float sum = 0.0f;
+                        for (int n = 0; n < pixelsPerThread; n++) {
+                            outPixel.reset();
+                            algorithm.processPixel(pixels[n % pixels.length], outPixel, context);
+                            sum += outPixel.getBand_LAI();
+                        }
+                        return sum;
+                    }
+                });
+            }
+            final long t0 = System.nanoTime();
+            for (Future<Float> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+            final long t1 = System.nanoTime();
+            return (double) numThreads * pixelsPerThread / ((t1 - t0) * 1.0e-9);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static ToaVegAlgorithm createAlgorithm(File auxdataDir) throws Exception {
+        final ToaVegInputStatisticsLoader inStatAux = new ToaVegInputStatisticsLoader();
+        inStatAux.load(new File(auxdataDir, "toa_veg_input_statistics.par").getPath());
+        final ToaVegOutputStatisticsLoader outStatAux = new ToaVegOutputStatisticsLoader();
+        outStatAux.load(new File(auxdataDir, "toa_veg_output_statistics.par").getPath());
+        final ToaVegUncertaintyModelLoader uncertaintyAux = new ToaVegUncertaintyModelLoader();
+        uncertaintyAux.load(new File(auxdataDir, "toa_veg_uncertainty.par").getPath());
+
+        final ToaVegAlgorithm algorithm = new ToaVegAlgorithm();
+        algorithm.setInputStatisticsAccess(inStatAux);
+        algorithm.setOutputStatisticsAccess(outStatAux);
+        algorithm.setUncertaintyModelAccess(uncertaintyAux);
+        algorithm.InitAlgo();
+        algorithm.setNn_LaiAuxPath(new File(auxdataDir, "toa_veg_nn_LAI.nna").getPath());
+        algorithm.setNn_fCoverAuxPath(new File(auxdataDir, "toa_veg_nn_fCover.nna").getPath());
+        algorithm.setNn_fAPARAuxPath(new File(auxdataDir, "toa_veg_nn_fAPAR.nna").getPath());
+        algorithm.setNn_LAIxCabAuxPath(new File(auxdataDir, "toa_veg_nn_LAIxCab.nna").getPath());
+        return algorithm;
+    }
+
+    private static ToaVegMerisPixel[] createPixels(int count) {
+        final Random random = new Random(5);
+        final ToaVegMerisPixel[] pixels = new ToaVegMerisPixel[count];
+        for (int i = 0; i < count; i++) {
+            final ToaVegMerisPixel pixel = new ToaVegMerisPixel();
+            pixel.setBand_Sza(20.0f + 40.0f * random.nextFloat());
+            pixel.setBand_Vza(40.0f * random.nextFloat());
+            pixel.setBand_Saa(360.0f * random.nextFloat());
+            pixel.setBand_Vaa(360.0f * random.nextFloat());
+            pixel.setBand_Pressure(1013.0f);
+            for (int b = 0; b < ToaVegConstants.NUM_BANDS; b++) {
+                pixel.setBand(30.0f + 100.0f * random.nextFloat(), b);
+                pixel.setBand_SolarSpecFlux(1500.0f, b);
+            }
+            pixels[i] = pixel;
+        }
+        return pixels;
+    }
+
+    private static String getDefaultAuxdataDir() {
+        final String path = "src/main/resources/auxdata/" + ToaVegConstants.AUXDATA_DIR;
+        if (new File(path).exists()) {
+            return path;
+        }
+        return "beam-meris-veg/" + path;
+    }
+}
@@ -0,0 +1,162 @@
+package org.esa.beam.processor.toa.algorithm;
+
+import org.esa.beam.processor.common.utils.VegFlagsManager;
+import org.esa.beam.processor.common.utils.VegGenericPixel;
+import org.esa.beam.processor.toa.ToaVegConstants;
+import org.esa.beam.processor.toa.auxdata.ToaVegInputStatisticsLoader;
+import org.esa.beam.processor.toa.auxdata.ToaVegOutputStatisticsLoader;
+import org.esa.beam.processor.toa.auxdata.ToaVegUncertaintyModelLoader;
+import org.esa.beam.processor.toa.utils.ToaVegMerisPixel;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ToaVegBatchTest {
+
+    private ToaVegAlgorithm algorithm;
+
+    @Before
+    public void setUp() throws Exception {
+        final File auxdataDir = getAuxdataDir();
+        final ToaVegInputStatisticsLoader inStatAux = new ToaVegInputStatisticsLoader();
+        inStatAux.load(new File(auxdataDir, "toa_veg_input_statistics.par").getPath());
+        final ToaVegOutputStatisticsLoader outStatAux = new ToaVegOutputStatisticsLoader();
+        outStatAux.load(new File(auxdataDir, "toa_veg_output_statistics.par").getPath());
+        final ToaVegUncertaintyModelLoader uncertaintyAux = new ToaVegUncertaintyModelLoader();
+        uncertaintyAux.load(new File(auxdataDir, "toa_veg_uncertainty.par").getPath());
+
+        algorithm = new ToaVegAlgorithm();
+        algorithm.setInputStatisticsAccess(inStatAux);
+        algorithm.setOutputStatisticsAccess(outStatAux);
+        algorithm.setUncertaintyModelAccess(uncertaintyAux);
+        algorithm.InitAlgo();
+        algorithm.setNn_LaiAuxPath(new File(auxdataDir, "toa_veg_nn_LAI.nna").getPath());
+        algorithm.setNn_fCoverAuxPath(new File(auxdataDir, "toa_veg_nn_fCover.nna").getPath());
+        algorithm.setNn_fAPARAuxPath(new File(auxdataDir, "toa_veg_nn_fAPAR.nna").getPath());
+        algorithm.setNn_LAIxCabAuxPath(new File(auxdataDir, "toa_veg_nn_LAIxCab.nna").getPath());
+    }
+
+    @Test
+    public void testBatchResultsEqualPixelResults() {
+        final ToaVegMerisPixel[] pixels = createPixels(100);
+        final ToaVegContext context = algorithm.createContext();
+
+        // a small capacity makes the batch grow while pixels are added
+        final ToaVegBatch batch = new ToaVegBatch(7);
+        final float[] radiance = new float[ToaVegConstants.NUM_BANDS];
+        final float[] solarSpecFlux = new float[ToaVegConstants.NUM_BANDS];
+        for (ToaVegMerisPixel pixel : pixels) {
+            for (int b = 0; b < ToaVegConstants.NUM_BANDS; b++) {
+                radiance[b] = pixel.getBand(b);
+                solarSpecFlux[b] = pixel.getBand_SolarSpecFlux(b);
+            }
+            algorithm.normaliseInput(pixel.getBand_Sza(), pixel.getBand_Saa(), pixel.getBand_Vza(),
+                                     pixel.getBand_Vaa(), radiance, solarSpecFlux, batch.addPixel());
+        }
+        assertEquals(pixels.length, batch.getCount());
+        algorithm.processBatch(batch, context);
+
+        final VegGenericPixel outPixel = new VegGenericPixel();
+        for (int i = 0; i < pixels.length; i++) {
+            outPixel.reset();
+            algorithm.processPixel(pixels[i], outPixel, context);
+            assertEquals(outPixel.getBand_LAI(), batch.getLAI()[i], 0.0f);
+            assertEquals(outPixel.getBand_fCover(), batch.getFCover()[i], 0.0f);
+            assertEquals(outPixel.getBand_CabxLAI(), batch.getLAIxCab()[i], 0.0f);
+            assertEquals(outPixel.getBand_fAPAR(), batch.getFAPAR()[i], 0.0f);
+            assertEquals(outPixel.getBand_sigma_LAI(), batch.getSigmaLAI()[i], 0.0f);
+            assertEquals(outPixel.getBand_sigma_fCover(), batch.getSigmaFCover()[i], 0.0f);
+            assertEquals(outPixel.getBand_sigma_LAIxCab(), batch.getSigmaLAIxCab()[i], 0.0f);
+            assertEquals(outPixel.getBand_sigma_fApar(), batch.getSigmaFAPAR()[i], 0.0f);
+            assertEquals(outPixel.getFlagMask(), batch.getFlags()[i]);
+        }
+    }
+
+    @Test
+    public void testOnlySelectedVariablesAreComputed() {
+        final ToaVegMerisPixel[] pixels = createPixels(100);
+        final VegGenericPixel[] expected = new VegGenericPixel[pixels.length];
+        final ToaVegContext allContext = algorithm.createContext();
+        for (int i = 0; i < pixels.length; i++) {
+            expected[i] = new VegGenericPixel();
+            expected[i].reset();
+            algorithm.processPixel(pixels[i], expected[i], allContext);
+        }
+
+        algorithm.setComputedVariables(false, false, false, true);
+        final ToaVegContext context = algorithm.createContext();
+        final ToaVegBatch batch = new ToaVegBatch(pixels.length);
+        final float[] radiance = new float[ToaVegConstants.NUM_BANDS];
+        final float[] solarSpecFlux = new float[ToaVegConstants.NUM_BANDS];
+        for (ToaVegMerisPixel pixel : pixels) {
+            for (int b = 0; b < ToaVegConstants.NUM_BANDS; b++) {
+                radiance[b] = pixel.getBand(b);
+                solarSpecFlux[b] = pixel.getBand_SolarSpecFlux(b);
+            }
+            algorithm.normaliseInput(pixel.getBand_Sza(), pixel.getBand_Saa(), pixel.getBand_Vza(),
+                                     pixel.getBand_Vaa(), radiance, solarSpecFlux, batch.addPixel());
+        }
+        algorithm.processBatch(batch, context);
+
+        final VegGenericPixel outPixel = new VegGenericPixel();
+        for (int i = 0; i < pixels.length; i++) {
+            outPixel.reset();
+            algorithm.processPixel(pixels[i], outPixel, context);
+            assertEquals(expected[i].getBand_fAPAR(), outPixel.getBand_fAPAR(), 0.0f);
+            assertEquals(expected[i].getBand_sigma_fApar(), outPixel.getBand_sigma_fApar(), 0.0f);
+            assertEquals(expected[i].getFlagMask() & VegFlagsManager.FAPAR_OUT_OF_RANGE_FLAG_MASK,
+                         outPixel.getFlagMask());
+            assertEquals(0.0f, outPixel.getBand_LAI(), 0.0f);
+            assertEquals(0.0f, outPixel.getBand_sigma_fCover(), 0.0f);
+
+            assertEquals(expected[i].getBand_fAPAR(), batch.getFAPAR()[i], 0.0f);
+            assertEquals(expected[i].getBand_sigma_fApar(), batch.getSigmaFAPAR()[i], 0.0f);
+            assertEquals(outPixel.getFlagMask(), batch.getFlags()[i]);
+            assertEquals(0.0f, batch.getLAIxCab()[i], 0.0f);
+        }
+    }
+
+    @Test
+    public void testClearKeepsInputVectors() {
+        final ToaVegBatch batch = new ToaVegBatch(2);
+        final double[] first = batch.addPixel();
+        batch.addPixel();
+        batch.addPixel();
+        assertEquals(3, batch.getCount());
+
+        batch.clear();
+        assertEquals(0, batch.getCount());
+        assertSame(first, batch.addPixel());
+    }
+
+    private static ToaVegMerisPixel[] createPixels(int count) {
+        final Random random = new Random(5);
+        final ToaVegMerisPixel[] pixels = new ToaVegMerisPixel[count];
+        for (int i = 0; i < count; i++) {
+            final ToaVegMerisPixel pixel = new ToaVegMerisPixel();
+            pixel.setBand_Sza(20.0f + 40.0f * random.nextFloat());
+            pixel.setBand_Vza(40.0f * random.nextFloat());
+            pixel.setBand_Saa(360.0f * random.nextFloat());
+            pixel.setBand_Vaa(360.0f * random.nextFloat());
+            for (int b = 0; b < ToaVegConstants.NUM_BANDS; b++) {
+                pixel.setBand(30.0f + 100.0f * random.nextFloat(), b);
+                pixel.setBand_SolarSpecFlux(1500.0f, b);
+            }
+            pixels[i] = pixel;
+        }
+        return pixels;
+    }
+
+    private static File getAuxdataDir() {
+        final String path = "src/main/resources/auxdata/" + ToaVegConstants.AUXDATA_DIR;
+        if (new File(path).exists()) {
+            return new File(path);
+        }
+        return new File("beam-meris-veg/" + path);
+    }
+}
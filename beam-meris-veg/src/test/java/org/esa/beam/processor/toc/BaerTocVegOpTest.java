@@ -0,0 +1,165 @@
+package org.esa.beam.processor.toc;
+
+import org.esa.beam.dataio.envisat.EnvisatConstants;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.TiePointGrid;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.processor.baer.BaerConstants;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Compares the output of the combined BAER - TOC_VEG operator with the output of the two operators
+ * run one after the other.
+ */
+public class BaerTocVegOpTest {
+
+    private static final int WIDTH = 24;
+    private static final int HEIGHT = 18;
+    private static final int LAND_FLAG = 0x01;
+    private static final int CLOUD_FLAG = 0x02;
+
+    @Test
+    public void testChainIsEquivalentToSeparateOperators() throws Exception {
+        final Product sourceProduct = createMerisL2Product();
+        final Product baerProduct = GPF.createProduct("Baer", new HashMap<String, Object>(), sourceProduct);
+        final Product expectedProduct = GPF.createProduct("TocVeg", new HashMap<String, Object>(), baerProduct);
+        final Product actualProduct = GPF.createProduct("BaerTocVeg", new HashMap<String, Object>(), sourceProduct);
+
+        assertBandsEqual(expectedProduct, actualProduct, TocVegConstants.LAI_BAND_NAME);
+        assertBandsEqual(expectedProduct, actualProduct, TocVegConstants.FCOVER_BAND_NAME);
+        assertBandsEqual(expectedProduct, actualProduct, TocVegConstants.LAIXCAB_BAND_NAME);
+        assertBandsEqual(expectedProduct, actualProduct, TocVegConstants.FAPAR_BAND_NAME);
+        assertBandsEqual(expectedProduct, actualProduct, TocVegConstants.DELTA_FAPAR_BAND_NAME);
+        assertBandsEqual(expectedProduct, actualProduct, TocVegConstants.VEG_FLAGS_BAND_NAME);
+        assertEquals(expectedProduct.getProductType(), actualProduct.getProductType());
+    }
+
+    @Test
+    public void testBaerBandsAreOnlyWrittenOnRequest() throws Exception {
+        final Product vegProduct = GPF.createProduct("BaerTocVeg", new HashMap<String, Object>(),
+                                                     createMerisL2Product());
+        assertNotNull(vegProduct.getBand(TocVegConstants.FAPAR_BAND_NAME));
+        assertNotNull(vegProduct.getBand(BaerConstants.OUT_FLAGS_BAND_NAME));
+        assertNull(vegProduct.getBand(TocVegConstants.REFLEC_BAND_NAMES[0]));
+        assertNull(vegProduct.getBand(BaerConstants.AOT_550_BAND_NAME));
+
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("outputBaerBands", Boolean.TRUE);
+        final Product fullProduct = GPF.createProduct("BaerTocVeg", parameters, createMerisL2Product());
+        assertNotNull(fullProduct.getBand(TocVegConstants.FAPAR_BAND_NAME));
+        assertNotNull(fullProduct.getBand(TocVegConstants.REFLEC_BAND_NAMES[0]));
+        assertNotNull(fullProduct.getBand(BaerConstants.AOT_550_BAND_NAME));
+    }
+
+    private static void assertBandsEqual(Product expectedProduct, Product actualProduct, String bandName) {
+        final Band expectedBand = expectedProduct.getBand(bandName);
+        final Band actualBand = actualProduct.getBand(bandName);
+        assertNotNull(bandName, expectedBand);
+        assertNotNull(bandName, actualBand);
+
+        final float[] expected = new float[WIDTH * HEIGHT];
+        final float[] actual = new float[WIDTH * HEIGHT];
+        expectedBand.getSourceImage().getData().getSamples(0, 0, WIDTH, HEIGHT, 0, expected);
+        actualBand.getSourceImage().getData().getSamples(0, 0, WIDTH, HEIGHT, 0, actual);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(bandName + " at pixel " + i, expected[i], actual[i], 0.0f);
+        }
+    }
+
+    /**
+     * Creates a small MERIS RR L2 product covering land, water, cloudy, invalid and desert-like pixels.
+     * The angle grids are constant so that tie-point interpolation cannot introduce differences.
+     */
+    private static Product createMerisL2Product() {
+        final Product product = new Product("MER_RR__2P_TEST", EnvisatConstants.MERIS_RR_L2_PRODUCT_TYPE_NAME,
+                                            WIDTH, HEIGHT);
+        final Random random = new Random(4711);
+
+        final float[][] reflec = new float[BaerConstants.NUM_IN_REFLEC_BANDS][WIDTH * HEIGHT];
+        final int[] flags = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            final int pixelClass = i % 6;
+            for (int n = 0; n < BaerConstants.NUM_IN_REFLEC_BANDS; n++) {
+                // vegetation-like spectrum with a red edge at band 9
+                float value = n < 8 ? 0.03f + 0.01f * n : 0.25f + 0.01f * n;
+                value += 0.01f * random.nextFloat();
+                if (pixelClass == 2) {
+                    // bright, cloud-like
+                    value = 0.45f + 0.05f * random.nextFloat();
+                } else if (pixelClass == 3) {
+                    // bright soil, desert-like
+                    value = 0.25f + 0.005f * n;
+                }
+                reflec[n][i] = value;
+            }
+            if (pixelClass == 4) {
+                // wrong L2 data
+                reflec[0][i] = 0.005f;
+                reflec[1][i] = 0.005f;
+            }
+            if (pixelClass == 5 && random.nextBoolean()) {
+                reflec[7][i] = -0.01f;
+            }
+            flags[i] = LAND_FLAG;
+            if (i % 11 == 0) {
+                flags[i] = 0;
+            }
+            if (i % 13 == 0) {
+                flags[i] |= CLOUD_FLAG;
+            }
+        }
+
+        for (int n = 0; n < BaerConstants.NUM_IN_REFLEC_BANDS; n++) {
+            final Band band = product.addBand(EnvisatConstants.MERIS_L2_BAND_NAMES[n], ProductData.TYPE_FLOAT32);
+            band.setSpectralBandIndex(n);
+            band.setSpectralWavelength(EnvisatConstants.MERIS_WAVELENGTHS[n]);
+            band.setRasterData(ProductData.createInstance(reflec[n]));
+        }
+        addConstantBand(product, "aero_opt_thick", 0.1f);
+        addConstantBand(product, EnvisatConstants.MERIS_L2_BAND_NAMES[15], 0.3f);
+        addConstantBand(product, EnvisatConstants.MERIS_L2_BAND_NAMES[21], 1013.25f);
+
+        final FlagCoding flagCoding = new FlagCoding("l2_flags");
+        flagCoding.addFlag("LAND", LAND_FLAG, null);
+        flagCoding.addFlag("CLOUD", CLOUD_FLAG, null);
+        product.getFlagCodingGroup().add(flagCoding);
+        final Band flagsBand = product.addBand("l2_flags", ProductData.TYPE_INT32);
+        flagsBand.setSampleCoding(flagCoding);
+        flagsBand.setRasterData(ProductData.createInstance(flags));
+
+        addConstantGrid(product, EnvisatConstants.LAT_DS_NAME, 45.0f);
+        addConstantGrid(product, EnvisatConstants.LON_DS_NAME, 10.0f);
+        addConstantGrid(product, EnvisatConstants.MERIS_SUN_ZENITH_DS_NAME, 35.0f);
+        addConstantGrid(product, EnvisatConstants.MERIS_SUN_AZIMUTH_DS_NAME, 140.0f);
+        addConstantGrid(product, EnvisatConstants.MERIS_VIEW_ZENITH_DS_NAME, 12.0f);
+        addConstantGrid(product, EnvisatConstants.MERIS_VIEW_AZIMUTH_DS_NAME, 100.0f);
+        return product;
+    }
+
+    private static void addConstantBand(Product product, String name, float value) {
+        final float[] data = new float[WIDTH * HEIGHT];
+        Arrays.fill(data, value);
+        final Band band = product.addBand(name, ProductData.TYPE_FLOAT32);
+        band.setRasterData(ProductData.createInstance(data));
+    }
+
+    private static void addConstantGrid(Product product, String name, float value) {
+        final int gridWidth = WIDTH / 8 + 1;
+        final int gridHeight = HEIGHT / 8 + 2;
+        final float[] tiePoints = new float[gridWidth * gridHeight];
+        Arrays.fill(tiePoints, value);
+        product.addTiePointGrid(new TiePointGrid(name, gridWidth, gridHeight, 0.5f, 0.5f, 8, 8, tiePoints));
+    }
+}
@@ -0,0 +1,152 @@
+package org.esa.beam.processor.toc;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.dataio.dimap.DimapProductConstants;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.TiePointGrid;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.framework.processor.Request;
+import org.esa.beam.processor.common.VegRequestElementFactory;
+import org.esa.beam.util.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Compares the output of the TOC_VEG operator with the output of the legacy {@link TocVegProcessor}
+ * for the same synthetic BAER input.
+ */
+public class TocVegOpTest {
+
+    private static final int WIDTH = 24;
+    private static final int HEIGHT = 18;
+    private static final int LAND_FLAG = 0x01;
+
+    private File testDir;
+
+    @Before
+    public void setUp() {
+        testDir = new File(System.getProperty("java.io.tmpdir"), "TocVegOpTest_" + System.currentTimeMillis());
+        testDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteTree(testDir);
+    }
+
+    @Test
+    public void testOperatorIsEquivalentToLegacyProcessor() throws Exception {
+        final File inputFile = new File(testDir, "input.dim");
+        final File legacyFile = new File(testDir, "legacy.dim");
+        ProductIO.writeProduct(createBaerProduct(), inputFile, DimapProductConstants.DIMAP_FORMAT_NAME,
+                               false, ProgressMonitor.NULL);
+
+        final VegRequestElementFactory factory = VegRequestElementFactory.getTocVegInstance();
+        final Request request = new Request();
+        request.setType(TocVegConstants.REQUEST_TYPE);
+        request.addInputProduct(factory.createInputProductRef(inputFile, DimapProductConstants.DIMAP_FORMAT_NAME, null));
+        request.addOutputProduct(factory.createOutputProductRef(legacyFile, DimapProductConstants.DIMAP_FORMAT_NAME, null));
+        request.addParameter(factory.createParameter(TocVegConstants.BITMASK_PARAM_NAME,
+                                                     TocVegConstants.BITMASK_PARAM_DEFAULT));
+
+        final TocVegProcessor processor = new TocVegProcessor();
+        processor.initProcessor();
+        processor.setRequest(request);
+        processor.process(ProgressMonitor.NULL);
+
+        final Product legacyProduct = ProductIO.readProduct(legacyFile);
+        final Product sourceProduct = ProductIO.readProduct(inputFile);
+        try {
+            final Product targetProduct = GPF.createProduct("TocVeg", new HashMap<String, Object>(), sourceProduct);
+
+            assertBandsEqual(legacyProduct, targetProduct, TocVegConstants.LAI_BAND_NAME);
+            assertBandsEqual(legacyProduct, targetProduct, TocVegConstants.FCOVER_BAND_NAME);
+            assertBandsEqual(legacyProduct, targetProduct, TocVegConstants.LAIXCAB_BAND_NAME);
+            assertBandsEqual(legacyProduct, targetProduct, TocVegConstants.FAPAR_BAND_NAME);
+            assertBandsEqual(legacyProduct, targetProduct, TocVegConstants.DELTA_FAPAR_BAND_NAME);
+            assertBandsEqual(legacyProduct, targetProduct, TocVegConstants.VEG_FLAGS_BAND_NAME);
+        } finally {
+            legacyProduct.dispose();
+            sourceProduct.dispose();
+        }
+    }
+
+    private static void assertBandsEqual(Product expectedProduct, Product actualProduct, String bandName) throws
+                                                                                                        Exception {
+        final Band expectedBand = expectedProduct.getBand(bandName);
+        final Band actualBand = actualProduct.getBand(bandName);
+        assertNotNull(bandName, expectedBand);
+        assertNotNull(bandName, actualBand);
+
+        final float[] expected = expectedBand.readPixels(0, 0, WIDTH, HEIGHT, (float[]) null, ProgressMonitor.NULL);
+        final float[] actual = new float[WIDTH * HEIGHT];
+        actualBand.getSourceImage().getData().getSamples(0, 0, WIDTH, HEIGHT, 0, actual);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(bandName + " at pixel " + i, expected[i], actual[i], 1.0e-6f);
+        }
+    }
+
+    /**
+     * Creates a small BAER product with land and water pixels. The angle grids are constant so that
+     * tie-point interpolation cannot introduce differences.
+     */
+    private static Product createBaerProduct() {
+        final Product product = new Product("MER_RR__2P_TEST_BAER", "MER_RR__2P_BAER", WIDTH, HEIGHT);
+        final Random random = new Random(4711);
+
+        for (int n = 0; n < TocVegConstants.NUM_BANDS; n++) {
+            final float[] reflec = new float[WIDTH * HEIGHT];
+            for (int i = 0; i < reflec.length; i++) {
+                // vegetation-like spectrum with a red edge at band 9
+                reflec[i] = (n < 6 ? 0.03f + 0.01f * n : 0.25f + 0.01f * n) + 0.02f * random.nextFloat();
+            }
+            final Band band = product.addBand(TocVegConstants.REFLEC_BAND_NAMES[n], ProductData.TYPE_FLOAT32);
+            band.setRasterData(ProductData.createInstance(reflec));
+        }
+
+        final float[] toaVeg = new float[WIDTH * HEIGHT];
+        final int[] flags = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < toaVeg.length; i++) {
+            toaVeg[i] = 0.5f * random.nextFloat();
+            flags[i] = i % 7 == 0 ? 0 : LAND_FLAG;
+        }
+        final Band toaVegBand = product.addBand(TocVegConstants.TOA_VEG_BAND_NAME, ProductData.TYPE_FLOAT32);
+        toaVegBand.setRasterData(ProductData.createInstance(toaVeg));
+
+        final FlagCoding flagCoding = new FlagCoding(TocVegConstants.L2_FLAGS_BAND_NAME);
+        flagCoding.addFlag("LAND", LAND_FLAG, null);
+        product.getFlagCodingGroup().add(flagCoding);
+        final Band flagsBand = product.addBand(TocVegConstants.L2_FLAGS_BAND_NAME, ProductData.TYPE_INT32);
+        flagsBand.setSampleCoding(flagCoding);
+        flagsBand.setRasterData(ProductData.createInstance(flags));
+
+        addConstantGrid(product, TocVegConstants.LAT_TIEPOINT_NAME, 45.0f);
+        addConstantGrid(product, TocVegConstants.LON_TIEPOINT_NAME, 10.0f);
+        addConstantGrid(product, TocVegConstants.SZA_TIEPOINT_NAME, 35.0f);
+        addConstantGrid(product, TocVegConstants.SAA_TIEPOINT_NAME, 140.0f);
+        addConstantGrid(product, TocVegConstants.VZA_TIEPOINT_NAME, 12.0f);
+        addConstantGrid(product, TocVegConstants.VAA_TIEPOINT_NAME, 100.0f);
+        return product;
+    }
+
+    private static void addConstantGrid(Product product, String name, float value) {
+        final int gridWidth = WIDTH / 8 + 1;
+        final int gridHeight = HEIGHT / 8 + 2;
+        final float[] tiePoints = new float[gridWidth * gridHeight];
+        Arrays.fill(tiePoints, value);
+        product.addTiePointGrid(new TiePointGrid(name, gridWidth, gridHeight, 0.5f, 0.5f, 8, 8, tiePoints));
+    }
+}
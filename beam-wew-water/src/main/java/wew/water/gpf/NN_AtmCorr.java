@@ -1,5 +1,8 @@
 package wew.water.gpf;
 
+import java.io.File;
+import java.io.IOException;
+
 public class NN_AtmCorr {
 
     // Input limits (min/max) from training data set for run19_C2_080_nn
@@ -979,6 +982,76 @@ public class NN_AtmCorr {
                 {+2.530000e-02, +9.420000e-01,}
     };
 
+    // The network for batches of pixels, see computeBatch. It holds transposed copies of the weights
+    // and is only built on first use. The operator does not use it, it reads the weight file written
+    // from these arrays at build time, see NN_WeightFileConverter.
+    private static final class BatchNetHolder {
+        private final static NN_BatchNet batch_net_run19 = new NN_BatchNet(
+                nodes_input_scale_limits_run19,
+                nodes_input_scale_run19,
+                nodes_input_pca_evec_run19,
+                nodes_hidden_weights_run19,
+                nodes_output_weights_run19,
+                nodes_output_scale_run19,
+                nodes_output_scale_off_run19,
+                nodes_output_scale_flag_run19,
+                nodes_output_scale_limits_run19);
+    }
+
+    /**
+     * Retrieves the built-in network for batches of pixels.
+     */
+    public static NN_BatchNet getBatchNet() {
+        return BatchNetHolder.batch_net_run19;
+    }
+
+    /*
+     * Writes the built-in network to a weight file, see NN_WeightFileConverter.
+     */
+    static void writeWeightFile(File file) throws IOException {
+        NN_WeightFile.write(file,
+                            nodes_input_scale_limits_run19,
+                            nodes_input_scale_run19,
+                            nodes_input_pca_evec_run19,
+                            nodes_hidden_weights_run19,
+                            nodes_output_weights_run19,
+                            nodes_output_scale_run19,
+                            nodes_output_scale_off_run19,
+                            nodes_output_scale_flag_run19,
+                            nodes_output_scale_limits_run19);
+    }
+
+    /**
+     * Same as {@link #compute}, but evaluates the network for blocks of pixels by matrix products.
+     * The results are identical.
+     */
+    public static int computeBatch(final float[][] in,
+                                   final int getNumNodesInput,
+                                   final float[][] out,
+                                   final int getNumNodesOutput,
+                                   final int width,
+                                   final int[] mask,
+                                   final int errmask,
+                                   final float[] a) {
+        return getBatchNet().compute(in, getNumNodesInput, out, getNumNodesOutput, width, mask, errmask, a);
+    }
+
+    /**
+     * Same as {@link #computeBatch(float[][], int, float[][], int, int, int[], int, float[])}, optionally
+     * with the approximated sigmoid of {@link NN_FastMath}.
+     */
+    public static int computeBatch(final float[][] in,
+                                   final int getNumNodesInput,
+                                   final float[][] out,
+                                   final int getNumNodesOutput,
+                                   final int width,
+                                   final int[] mask,
+                                   final int errmask,
+                                   final float[] a,
+                                   final boolean fastMath) {
+        return getBatchNet().compute(in, getNumNodesInput, out, getNumNodesOutput, width, mask, errmask, a, fastMath);
+    }
+
     public static int compute(final float[][] in,
                               final int getNumNodesInput,
                               final float[][] out,
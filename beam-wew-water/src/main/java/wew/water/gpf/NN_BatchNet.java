@@ -0,0 +1,467 @@
+package wew.water.gpf;
+
+import java.util.Arrays;
+
+/**
+ * Evaluates one of the WeW networks for a batch of pixels at once.
+ * <p/>
+ * The unmasked pixels of a scan line are collected into blocks of up to {@link #BLOCK_SIZE}
+ * pixels, and the PCA, hidden and output layers are computed as matrix products of the
+ * block with the weights, the pixel being the innermost loop. The weights are held in
+ * flattened arrays, transposed to [unit][source] so that every unit reads its weights
+ * contiguously.
+ * <p/>
+ * Every pixel still sums its terms in the same order and with the same float/double
+ * conversions as the <code>compute</code> methods of the <code>NN_*</code> classes,
+ * so the outputs, the range check results in <code>a</code> and the error flags are
+ * identical. Instances hold no mutable state and may be shared by several threads.
+ * <p/>
+ * In the optional fast-math mode, the sigmoids of the hidden and output layers use the
+ * approximation of {@link NN_FastMath}, all other operations are unchanged.
+ * <p/>
+ * The layer products are computed by the {@link NN_Kernel} selected by {@link NN_Kernels},
+ * the SIMD implementation if available. All implementations give identical results.
+ */
+public final class NN_BatchNet {
+
+    /**
+     * The maximum number of pixels processed in one block.
+     */
+    public static final int BLOCK_SIZE = 64;
+
+    private static final NN_Kernel defaultKernel = NN_Kernels.getDefault();
+
+    private final int nodes_input;
+    private final int nodes_hidden;
+    private final int nodes_output;
+    private final double t_input;
+    private final double t_hidden;
+
+    private final double[] input_scale_limits_min;
+    private final double[] input_scale_limits_max;
+    private final double[] input_scale_slope;
+    private final double[] input_scale_intercept;
+    // Indices of the inputs which are projected by the PCA layer
+    private final int[] pca_inputs;
+    // PCA eigenvectors, [pca_input][pca_input]
+    private final double[] pca_evec;
+    // Hidden weights including the bias weight, [hidden][input + 1]
+    private final double[] hidden_weights;
+    // Output weights including the bias weight, [output][hidden + 1]
+    private final double[] output_weights;
+    private final double[] output_scale_intercept;
+    private final double[] output_scale_slope;
+    private final double[] output_scale_off;
+    private final int[] output_scale_flag;
+    private final double[] output_scale_limits_min;
+    private final double[] output_scale_limits_max;
+
+    /**
+     * Creates a batch network from the arrays of a <code>NN_*</code> class.
+     *
+     * @param input_scale_limits  the input limits, [input][min, max]
+     * @param input_scale         the input intercept and slope, [input][intercept, slope]
+     * @param input_pca_evec      the PCA eigenvectors (columnwise), [input][input], only the inputs
+     *                            with the scale flag 1 are used
+     * @param hidden_weights      the input connection weights, [input + bias][hidden]
+     * @param output_weights      the output connection weights, [hidden + bias][output]
+     * @param output_scale        the output intercept and slope, [output][intercept, slope]
+     * @param output_scale_off    the output offset factors, [output]
+     * @param output_scale_flag   the output transformation flags, [output]
+     * @param output_scale_limits the output limits, [output][min, max]
+     */
+    public NN_BatchNet(double[][] input_scale_limits,
+                       double[][] input_scale,
+                       double[][] input_pca_evec,
+                       double[][] hidden_weights,
+                       double[][] output_weights,
+                       double[][] output_scale,
+                       double[] output_scale_off,
+                       int[] output_scale_flag,
+                       double[][] output_scale_limits) {
+        nodes_input = input_scale.length;
+        nodes_hidden = hidden_weights[0].length;
+        nodes_output = output_weights[0].length;
+        if (input_scale_limits.length != nodes_input
+            || hidden_weights.length != nodes_input + 1
+            || output_weights.length != nodes_hidden + 1
+            || output_scale.length != nodes_output
+            || output_scale_off.length != nodes_output
+            || output_scale_flag.length != nodes_output
+            || output_scale_limits.length != nodes_output
+            || NN_General.NODES_INPUT_SCALE_FLAG.length != nodes_input) {
+            throw new IllegalArgumentException("Inconsistent network dimensions");
+        }
+        // The temperature of all WeW networks is 1.0
+        t_input = 1.0 / (double) nodes_input;
+        t_hidden = 1.0 / (double) nodes_hidden;
+
+        input_scale_limits_min = new double[nodes_input];
+        input_scale_limits_max = new double[nodes_input];
+        input_scale_intercept = new double[nodes_input];
+        input_scale_slope = new double[nodes_input];
+        int numPcaInputs = 0;
+        for (int i = 0; i < nodes_input; i++) {
+            input_scale_limits_min[i] = input_scale_limits[i][0];
+            input_scale_limits_max[i] = input_scale_limits[i][1];
+            input_scale_intercept[i] = input_scale[i][0];
+            input_scale_slope[i] = input_scale[i][1];
+            if (NN_General.NODES_INPUT_SCALE_FLAG[i] == 1) {
+                numPcaInputs++;
+            }
+        }
+        pca_inputs = new int[numPcaInputs];
+        for (int i = 0, k = 0; i < nodes_input; i++) {
+            if (NN_General.NODES_INPUT_SCALE_FLAG[i] == 1) {
+                pca_inputs[k++] = i;
+            }
+        }
+        pca_evec = new double[numPcaInputs * numPcaInputs];
+        for (int i = 0; i < numPcaInputs; i++) {
+            if (pca_inputs[i] >= input_pca_evec.length || pca_inputs[i] >= input_pca_evec[pca_inputs[i]].length) {
+                throw new IllegalArgumentException("Inconsistent network dimensions");
+            }
+            for (int j = 0; j < numPcaInputs; j++) {
+                pca_evec[i * numPcaInputs + j] = input_pca_evec[pca_inputs[j]][pca_inputs[i]];
+            }
+        }
+
+        this.hidden_weights = transpose(hidden_weights, nodes_input + 1, nodes_hidden);
+        this.output_weights = transpose(output_weights, nodes_hidden + 1, nodes_output);
+
+        output_scale_intercept = new double[nodes_output];
+        output_scale_slope = new double[nodes_output];
+        output_scale_limits_min = new double[nodes_output];
+        output_scale_limits_max = new double[nodes_output];
+        for (int i = 0; i < nodes_output; i++) {
+            output_scale_intercept[i] = output_scale[i][0];
+            output_scale_slope[i] = output_scale[i][1];
+            output_scale_limits_min[i] = output_scale_limits[i][0];
+            output_scale_limits_max[i] = output_scale_limits[i][1];
+        }
+        this.output_scale_off = output_scale_off.clone();
+        this.output_scale_flag = output_scale_flag.clone();
+    }
+
+    public int getNumNodesInput() {
+        return nodes_input;
+    }
+
+    public int getNumNodesOutput() {
+        return nodes_output;
+    }
+
+    /**
+     * Computes the network for a scan line. The arguments and the return value are the same as
+     * for the <code>compute</code> methods of the <code>NN_*</code> classes: masked pixels are
+     * left untouched, the inputs of the other pixels are replaced by their transformed values,
+     * and if a range check is requested by a negative <code>a[x]</code>, an input out of range
+     * subtracts 3 and an output out of range subtracts 20 from <code>a[x]</code>.
+     */
+    public int compute(final float[][] in,
+                       final int getNumNodesInput,
+                       final float[][] out,
+                       final int getNumNodesOutput,
+                       final int width,
+                       final int[] mask,
+                       final int errmask,
+                       final float[] a) {
+        return compute(in, getNumNodesInput, out, getNumNodesOutput, width, mask, errmask, a, false);
+    }
+
+    /**
+     * Same as {@link #compute(float[][], int, float[][], int, int, int[], int, float[])}, optionally
+     * in the fast-math mode.
+     */
+    public int compute(final float[][] in,
+                       final int getNumNodesInput,
+                       final float[][] out,
+                       final int getNumNodesOutput,
+                       final int width,
+                       final int[] mask,
+                       final int errmask,
+                       final float[] a,
+                       final boolean fastMath) {
+        return compute(in, getNumNodesInput, out, getNumNodesOutput, width, mask, errmask, a, fastMath,
+                       defaultKernel);
+    }
+
+    /**
+     * Same as {@link #compute(float[][], int, float[][], int, int, int[], int, float[], boolean)},
+     * using the given kernel for the layer products.
+     */
+    int compute(final float[][] in,
+                final int getNumNodesInput,
+                final float[][] out,
+                final int getNumNodesOutput,
+                final int width,
+                final int[] mask,
+                final int errmask,
+                final float[] a,
+                final boolean fastMath,
+                final NN_Kernel kernel) {
+        // Return dimensions on request
+        if (getNumNodesInput <= 0) {
+            return (nodes_input);
+        }
+        if (getNumNodesOutput <= 0) {
+            return (nodes_output);
+        }
+
+        // Crude compatibility checks
+        if (getNumNodesInput != nodes_input) {
+            return (-1);
+        }
+        if (getNumNodesOutput != nodes_output) {
+            return (-2);
+        }
+
+        final int blockSize = Math.min(width, BLOCK_SIZE);
+        final int[] pixels = new int[blockSize];
+        final boolean[] rcheck = new boolean[blockSize];
+        final float[] input = new float[nodes_input * blockSize];
+        final double[] pca = new double[pca_inputs.length * blockSize];
+        final double[] hidden = new double[(nodes_hidden + 1) * blockSize];
+        final float[] output = new float[nodes_output * blockSize];
+
+        int x = 0;
+        while (x < width) {
+            // Collect the next block of unmasked pixels
+            int n = 0;
+            for (; x < width && n < blockSize; x++) {
+                if (mask[x] == 0) {
+                    rcheck[n] = a[x] < 0.0f;
+                    a[x] = 1.0f;
+                    pixels[n++] = x;
+                } else {
+                    a[x] = 1.0f;
+                }
+            }
+            if (n > 0) {
+                loadInputs(in, n, blockSize, pixels, rcheck, mask, errmask, a, input);
+                computeBlock(n, blockSize, input, pca, hidden, output, fastMath, kernel);
+                storeOutputs(in, out, n, blockSize, pixels, rcheck, mask, errmask, a, input, output);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Two networks are equal if they have the same parameters.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof NN_BatchNet)) {
+            return false;
+        }
+        final NN_BatchNet other = (NN_BatchNet) obj;
+        return nodes_input == other.nodes_input
+               && nodes_hidden == other.nodes_hidden
+               && nodes_output == other.nodes_output
+               && Arrays.equals(input_scale_limits_min, other.input_scale_limits_min)
+               && Arrays.equals(input_scale_limits_max, other.input_scale_limits_max)
+               && Arrays.equals(input_scale_slope, other.input_scale_slope)
+               && Arrays.equals(input_scale_intercept, other.input_scale_intercept)
+               && Arrays.equals(pca_inputs, other.pca_inputs)
+               && Arrays.equals(pca_evec, other.pca_evec)
+               && Arrays.equals(hidden_weights, other.hidden_weights)
+               && Arrays.equals(output_weights, other.output_weights)
+               && Arrays.equals(output_scale_intercept, other.output_scale_intercept)
+               && Arrays.equals(output_scale_slope, other.output_scale_slope)
+               && Arrays.equals(output_scale_off, other.output_scale_off)
+               && Arrays.equals(output_scale_flag, other.output_scale_flag)
+               && Arrays.equals(output_scale_limits_min, other.output_scale_limits_min)
+               && Arrays.equals(output_scale_limits_max, other.output_scale_limits_max);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(hidden_weights) + Arrays.hashCode(output_weights);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static double[] transpose(double[][] weights, int numSources, int numUnits) {
+        final double[] transposed = new double[numUnits * numSources];
+        for (int j = 0; j < numSources; j++) {
+            if (weights[j].length != numUnits) {
+                throw new IllegalArgumentException("Inconsistent network dimensions");
+            }
+            for (int i = 0; i < numUnits; i++) {
+                transposed[i * numSources + j] = weights[j][i];
+            }
+        }
+        return transposed;
+    }
+
+    /*
+     * Checks the input range and applies the input transformation and scale layer,
+     * the inputs of the block are stored as [input][pixel].
+     */
+    private void loadInputs(float[][] in, int n, int blockSize, int[] pixels, boolean[] rcheck,
+                            int[] mask, int errmask, float[] a, float[] input) {
+        for (int p = 0; p < n; p++) {
+            final int x = pixels[p];
+            if (rcheck[p]) {
+                for (int i = 0; i < nodes_input && a[x] > 0.0f; i++) {
+                    if ((in[i][x] < (float) input_scale_limits_min[i]) || (in[i][x] > (float) input_scale_limits_max[i])) {
+                        a[x] -= 3.0f;
+                    }
+                }
+                if (a[x] < 0.0f) {
+                    mask[x] |= errmask;
+                }
+            }
+        }
+        for (int i = 0; i < nodes_input; i++) {
+            final float[] in_i = in[i];
+            final int flag = NN_General.NODES_INPUT_SCALE_FLAG[i];
+            final float off = (float) NN_General.NODES_INPUT_SCALE_OFF[i];
+            final float intercept = (float) input_scale_intercept[i];
+            final float slope = (float) input_scale_slope[i];
+            final int offset = i * blockSize;
+            for (int p = 0; p < n; p++) {
+                float v = in_i[pixels[p]];
+                if (flag == -1) {
+                    v = (float) Math.log((double) v);
+                }
+                if (flag == -2) {
+                    v = (float) Math.exp((double) v);
+                }
+                input[offset + p] = off + (v - intercept) / slope;
+            }
+        }
+    }
+
+    /*
+     * Pumps a block through the PCA, hidden and output layers.
+     */
+    private void computeBlock(int n, int blockSize, float[] input, double[] pca, double[] hidden, float[] output,
+                              boolean fastMath, NN_Kernel kernel) {
+        final int numPcaInputs = pca_inputs.length;
+
+        // Apply input PCA layer parameters
+        for (int i = 0; i < numPcaInputs; i++) {
+            final int offset = i * blockSize;
+            for (int p = 0; p < n; p++) {
+                pca[offset + p] = 0.0;
+            }
+            for (int j = 0; j < numPcaInputs; j++) {
+                final double w = pca_evec[i * numPcaInputs + j];
+                kernel.axpy(w, input, pca_inputs[j] * blockSize, pca, offset, n);
+            }
+        }
+        for (int i = 0; i < numPcaInputs; i++) {
+            final int offset = i * blockSize;
+            final int inputOffset = pca_inputs[i] * blockSize;
+            for (int p = 0; p < n; p++) {
+                input[inputOffset + p] = (float) pca[offset + p];
+            }
+        }
+
+        // Pump through the first layer and the sigmoid
+        final int numSources = nodes_input + 1;
+        for (int i = 0; i < nodes_hidden; i++) {
+            final int offset = i * blockSize;
+            for (int p = 0; p < n; p++) {
+                hidden[offset + p] = 0.0;
+            }
+            for (int j = 0; j < nodes_input; j++) {
+                final double w = hidden_weights[i * numSources + j];
+                kernel.axpy(w, input, j * blockSize, hidden, offset, n);
+            }
+            final double bias = hidden_weights[i * numSources + nodes_input];
+            for (int p = 0; p < n; p++) {
+                hidden[offset + p] += 1.0 * bias;
+            }
+            if (fastMath) {
+                for (int p = 0; p < n; p++) {
+                    hidden[offset + p] = NN_FastMath.sigmoid(t_input * hidden[offset + p]);
+                }
+            } else {
+                for (int p = 0; p < n; p++) {
+                    hidden[offset + p] = 1.0 / (1.0 + Math.exp(-t_input * hidden[offset + p]));
+                }
+            }
+        }
+        final int biasOffset = nodes_hidden * blockSize;
+        for (int p = 0; p < n; p++) {
+            hidden[biasOffset + p] = 1.0f;
+        }
+
+        // Pump through the second layer and the sigmoid
+        final int numHiddenSources = nodes_hidden + 1;
+        for (int i = 0; i < nodes_output; i++) {
+            final int offset = i * blockSize;
+            for (int p = 0; p < n; p++) {
+                output[offset + p] = 0.0f;
+            }
+            for (int j = 0; j < numHiddenSources; j++) {
+                final double w = output_weights[i * numHiddenSources + j];
+                kernel.axpy(w, hidden, j * blockSize, output, offset, n);
+            }
+            if (fastMath) {
+                for (int p = 0; p < n; p++) {
+                    output[offset + p] = (float) NN_FastMath.sigmoid(t_hidden * output[offset + p]);
+                }
+            } else {
+                for (int p = 0; p < n; p++) {
+                    output[offset + p] = (float) (1.0 / (1.0 + Math.exp(-t_hidden * output[offset + p])));
+                }
+            }
+        }
+    }
+
+    /*
+     * Applies the output scale layer and transformation, checks the output range and
+     * writes the transformed inputs and the outputs of the block back to the scan line.
+     */
+    private void storeOutputs(float[][] in, float[][] out, int n, int blockSize, int[] pixels, boolean[] rcheck,
+                              int[] mask, int errmask, float[] a, float[] input, float[] output) {
+        for (int i = 0; i < nodes_input; i++) {
+            final float[] in_i = in[i];
+            final int offset = i * blockSize;
+            for (int p = 0; p < n; p++) {
+                in_i[pixels[p]] = input[offset + p];
+            }
+        }
+        for (int i = 0; i < nodes_output; i++) {
+            final float[] out_i = out[i];
+            final float intercept = (float) output_scale_intercept[i];
+            final float off = (float) output_scale_off[i];
+            final float slope = (float) output_scale_slope[i];
+            final int flag = output_scale_flag[i];
+            final int offset = i * blockSize;
+            for (int p = 0; p < n; p++) {
+                float v = intercept + (output[offset + p] - off) * slope;
+                if (flag == -1) {
+                    v = (float) Math.log((double) v);
+                }
+                if (flag == -2) {
+                    v = (float) Math.exp((double) v);
+                }
+                out_i[pixels[p]] = v;
+            }
+        }
+
+        // Check output range
+        for (int p = 0; p < n; p++) {
+            if (rcheck[p]) {
+                final int x = pixels[p];
+                for (int i = 0; i < nodes_output && a[x] >= -2.0f; i++) {
+                    if ((out[i][x] < (float) output_scale_limits_min[i]) || (out[i][x] > (float) output_scale_limits_max[i])) {
+                        a[x] -= 20.0f;
+                    }
+                }
+                if (a[x] < 0.0f) {
+                    mask[x] |= errmask;
+                }
+            }
+        }
+    }
+}
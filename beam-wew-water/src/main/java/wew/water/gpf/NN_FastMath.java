@@ -0,0 +1,61 @@
+package wew.water.gpf;
+
+/**
+ * Table-driven approximations of the exponential and sigmoid functions for the fast-math
+ * mode of {@link NN_BatchNet}.
+ * <p/>
+ * The exponential is computed as <code>exp(x) = 2^k * 2^(j/64) * exp(r)</code> with
+ * <code>|r| &lt;= ln(2)/128</code>, the 64 values of <code>2^(j/64)</code> being tabulated and
+ * <code>exp(r)</code> being evaluated by its Taylor polynomial of degree 3. The relative error is
+ * below 4.0e-11 for <code>-708 &lt;= x &lt;= 709</code>, smaller arguments give 0, larger ones give
+ * infinity. The absolute error of the sigmoid is therefore below 1.0e-11.
+ */
+public final class NN_FastMath {
+
+    private static final int TABLE_BITS = 6;
+    private static final int TABLE_SIZE = 1 << TABLE_BITS;
+    private static final double[] TABLE = new double[TABLE_SIZE];
+
+    // Adding 1.5 * 2^52 rounds to an integer which ends up in the low bits of the mantissa
+    private static final double ROUND = 6755399441055744.0;
+    private static final double SCALE = TABLE_SIZE / Math.log(2.0);
+    // ln(2) / 64 split into a high part with trailing zero bits and the remainder, k * LN2_HI is exact
+    private static final double LN2_HI = 6.93147180369123816490e-01 / TABLE_SIZE;
+    private static final double LN2_LO = 1.90821492927058770002e-10 / TABLE_SIZE;
+
+    static {
+        for (int j = 0; j < TABLE_SIZE; j++) {
+            TABLE[j] = Math.pow(2.0, j / (double) TABLE_SIZE);
+        }
+    }
+
+    private NN_FastMath() {
+    }
+
+    /**
+     * Approximates <code>Math.exp(x)</code> with a relative error below 4.0e-11.
+     */
+    public static double exp(double x) {
+        if (x < -708.0) {
+            return 0.0;
+        }
+        if (x > 709.0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        final double t = x * SCALE + ROUND;
+        final int n = (int) Double.doubleToRawLongBits(t);
+        final double k = t - ROUND;
+        final double r = (x - k * LN2_HI) - k * LN2_LO;
+        final double p = TABLE[n & (TABLE_SIZE - 1)] * (1.0 + r * (1.0 + r * (0.5 + r * (1.0 / 6.0))));
+        // p is in [2^(-1/128), 2), i.e. slightly below 1 for j = 0 and r < 0. Adding n >> TABLE_BITS to
+        // its exponent scales it exactly, the result is a normalised number for the accepted arguments
+        return Double.longBitsToDouble(Double.doubleToRawLongBits(p) + ((long) (n >> TABLE_BITS) << 52));
+    }
+
+    /**
+     * Approximates <code>1.0 / (1.0 + Math.exp(-x))</code> with an absolute error below 1.0e-11.
+     */
+    public static double sigmoid(double x) {
+        return 1.0 / (1.0 + exp(-x));
+    }
+}
@@ -0,0 +1,24 @@
+package wew.water.gpf;
+
+/**
+ * The vector operations of {@link NN_BatchNet}, which take most of the time of the layer products.
+ * Every element is computed by the same operations as in scalar code, without fused multiply-add,
+ * so all implementations give identical results. Use {@link NN_Kernels} to get an implementation.
+ */
+public interface NN_Kernel {
+
+    /**
+     * Retrieves a short name of the implementation, e.g. for log messages.
+     */
+    String getName();
+
+    /**
+     * Computes <code>y[yOffset + p] += (double) x[xOffset + p] * a</code> for <code>0 &lt;= p &lt; n</code>.
+     */
+    void axpy(double a, float[] x, int xOffset, double[] y, int yOffset, int n);
+
+    /**
+     * Computes <code>y[yOffset + p] += (float) (x[xOffset + p] * a)</code> for <code>0 &lt;= p &lt; n</code>.
+     */
+    void axpy(double a, double[] x, int xOffset, float[] y, int yOffset, int n);
+}
@@ -0,0 +1,77 @@
+package wew.water.gpf;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selects the implementation of {@link NN_Kernel}.
+ * <p/>
+ * The SIMD implementation uses the vector API of the module <code>jdk.incubator.vector</code>. It is
+ * compiled into the Java 16 layer of the multi-release module JAR, see the profile <code>simd</code> of
+ * the <code>pom.xml</code>, and it is only available on Java 16 or later with the module added, i.e. with
+ * <code>--add-modules jdk.incubator.vector</code>. It is used if available, unless the system property
+ * {@link #SIMD_PROPERTY} is set to <code>false</code>; else the scalar implementation is used.
+ */
+public final class NN_Kernels {
+
+    /**
+     * The name of the system property switching the SIMD implementation off.
+     */
+    public static final String SIMD_PROPERTY = "wew.water.simd";
+
+    private static final String VECTOR_KERNEL_CLASS_NAME = "wew.water.gpf.NN_VectorKernel";
+
+    private static final NN_Kernel scalarKernel = new NN_ScalarKernel();
+    private static final NN_Kernel vectorKernel = createVectorKernel();
+
+    private NN_Kernels() {
+    }
+
+    /**
+     * Retrieves the implementation to be used.
+     */
+    public static NN_Kernel getDefault() {
+        if (vectorKernel != null && !"false".equalsIgnoreCase(System.getProperty(SIMD_PROPERTY))) {
+            return vectorKernel;
+        }
+        return scalarKernel;
+    }
+
+    /**
+     * Retrieves the scalar implementation.
+     */
+    public static NN_Kernel getScalar() {
+        return scalarKernel;
+    }
+
+    /**
+     * Retrieves the SIMD implementation.
+     *
+     * @return the SIMD implementation, or <code>null</code> if not available
+     */
+    public static NN_Kernel getVector() {
+        return vectorKernel;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static NN_Kernel createVectorKernel() {
+        try {
+            final Class<?> kernelClass = Class.forName(VECTOR_KERNEL_CLASS_NAME);
+            if (!(Boolean) kernelClass.getMethod("isSupported").invoke(null)) {
+                Logger.getLogger(NN_Kernels.class.getName()).fine("SIMD kernel not supported by the platform");
+                return null;
+            }
+            return (NN_Kernel) kernelClass.getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            // Java before 16, or not built with the SIMD layer
+            return null;
+        } catch (Throwable t) {
+            // LinkageError if the module jdk.incubator.vector has not been added
+            Logger.getLogger(NN_Kernels.class.getName()).log(Level.FINE, "SIMD kernel not available", t);
+            return null;
+        }
+    }
+}
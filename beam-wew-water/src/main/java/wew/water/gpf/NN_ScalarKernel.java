@@ -0,0 +1,23 @@
+package wew.water.gpf;
+
+/**
+ * The plain Java implementation of {@link NN_Kernel}, used if no SIMD implementation is available.
+ */
+final class NN_ScalarKernel implements NN_Kernel {
+
+    public String getName() {
+        return "scalar";
+    }
+
+    public void axpy(double a, float[] x, int xOffset, double[] y, int yOffset, int n) {
+        for (int p = 0; p < n; p++) {
+            y[yOffset + p] += (double) x[xOffset + p] * a;
+        }
+    }
+
+    public void axpy(double a, double[] x, int xOffset, float[] y, int yOffset, int n) {
+        for (int p = 0; p < n; p++) {
+            y[yOffset + p] += (float) (x[xOffset + p] * a);
+        }
+    }
+}
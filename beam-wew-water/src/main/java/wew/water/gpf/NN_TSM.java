@@ -1,5 +1,8 @@
 package wew.water.gpf;
 
+import java.io.File;
+import java.io.IOException;
+
 public class NN_TSM {
 
     // Intercept and slope for input layer for run39_C2_080_nn
@@ -608,6 +611,76 @@ public class NN_TSM {
                 {-1.300000e+00, +1.700000e+00,}
     };
 
+    // The network for batches of pixels, see computeBatch. It holds transposed copies of the weights
+    // and is only built on first use. The operator does not use it, it reads the weight file written
+    // from these arrays at build time, see NN_WeightFileConverter.
+    private static final class BatchNetHolder {
+        private final static NN_BatchNet batch_net_run39 = new NN_BatchNet(
+                NN_General.NODES_INPUT_SCALE_LIMITS,
+                nodes_input_scale_run39,
+                nodes_input_pca_evec_run39,
+                nodes_hidden_weights_run39,
+                nodes_output_weights_run39,
+                nodes_output_scale_run39,
+                nodes_output_scale_off_run39,
+                nodes_output_scale_flag_run39,
+                nodes_output_scale_limits_run39);
+    }
+
+    /**
+     * Retrieves the built-in network for batches of pixels.
+     */
+    public static NN_BatchNet getBatchNet() {
+        return BatchNetHolder.batch_net_run39;
+    }
+
+    /*
+     * Writes the built-in network to a weight file, see NN_WeightFileConverter.
+     */
+    static void writeWeightFile(File file) throws IOException {
+        NN_WeightFile.write(file,
+                            NN_General.NODES_INPUT_SCALE_LIMITS,
+                            nodes_input_scale_run39,
+                            nodes_input_pca_evec_run39,
+                            nodes_hidden_weights_run39,
+                            nodes_output_weights_run39,
+                            nodes_output_scale_run39,
+                            nodes_output_scale_off_run39,
+                            nodes_output_scale_flag_run39,
+                            nodes_output_scale_limits_run39);
+    }
+
+    /**
+     * Same as {@link #compute}, but evaluates the network for blocks of pixels by matrix products.
+     * The results are identical.
+     */
+    public static int computeBatch(final float[][] in,
+                                   final int getNumNodesInput,
+                                   final float[][] out,
+                                   final int getNumNodesOutput,
+                                   final int width,
+                                   final int[] mask,
+                                   final int errmask,
+                                   final float[] a) {
+        return getBatchNet().compute(in, getNumNodesInput, out, getNumNodesOutput, width, mask, errmask, a);
+    }
+
+    /**
+     * Same as {@link #computeBatch(float[][], int, float[][], int, int, int[], int, float[])}, optionally
+     * with the approximated sigmoid of {@link NN_FastMath}.
+     */
+    public static int computeBatch(final float[][] in,
+                                   final int getNumNodesInput,
+                                   final float[][] out,
+                                   final int getNumNodesOutput,
+                                   final int width,
+                                   final int[] mask,
+                                   final int errmask,
+                                   final float[] a,
+                                   final boolean fastMath) {
+        return getBatchNet().compute(in, getNumNodesInput, out, getNumNodesOutput, width, mask, errmask, a, fastMath);
+    }
+
     public static int compute(final float[][] in,
                               final int getNumNodesInput,
                               final float[][] out,
@@ -0,0 +1,254 @@
+package wew.water.gpf;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes the weight files of the WeW networks.
+ * <p/>
+ * A weight file holds the parameters of one network, big-endian: the magic number
+ * {@link #MAGIC}, the format version {@link #VERSION}, and then the arrays in the order of the
+ * arguments of {@link NN_BatchNet#NN_BatchNet}. A two-dimensional array is written as its number
+ * of rows and columns followed by the values row by row, a one-dimensional array as its length
+ * followed by the values. The input scale flags and offsets are common to all WeW networks and
+ * taken from {@link NN_General}.
+ * <p/>
+ * Weight files are mapped read-only into memory. The networks are cached by file, a cached network is
+ * used as long as the length and the modification time of its file are unchanged.
+ * The weight files of the built-in networks are written by {@link NN_WeightFileConverter} at build time
+ * and shipped as resources of this package, see {@link #readResource(String)}.
+ */
+public final class NN_WeightFile {
+
+    /**
+     * The default extension of weight files.
+     */
+    public static final String FILE_EXTENSION = ".nnw";
+    /**
+     * The magic number of weight files, "WeWN".
+     */
+    public static final int MAGIC = 0x5765574E;
+    /**
+     * The current version of the format.
+     */
+    public static final int VERSION = 1;
+
+    private static final Map<File, CachedNet> nets = new HashMap<File, CachedNet>();
+    private static final Map<String, NN_BatchNet> resourceNets = new HashMap<String, NN_BatchNet>();
+
+    private NN_WeightFile() {
+    }
+
+    /**
+     * Reads a network from a weight file. A file is read again only if it has been changed since it
+     * was last read.
+     *
+     * @param file the weight file
+     * @return the network
+     * @throws IOException if the file cannot be read or is not a valid weight file
+     */
+    public static NN_BatchNet read(File file) throws IOException {
+        final File key = file.getAbsoluteFile();
+        final long length = key.length();
+        final long lastModified = key.lastModified();
+        synchronized (nets) {
+            CachedNet cachedNet = nets.get(key);
+            if (cachedNet == null || cachedNet.length != length || cachedNet.lastModified != lastModified) {
+                cachedNet = new CachedNet(readFile(key), length, lastModified);
+                nets.put(key, cachedNet);
+            }
+            return cachedNet.net;
+        }
+    }
+
+    /**
+     * Reads a network from a weight file shipped as a resource of this package, e.g. the built-in
+     * networks written by {@link NN_WeightFileConverter}. A resource is read only once.
+     *
+     * @param name the name of the resource, relative to this package
+     * @return the network
+     * @throws IOException if the resource does not exist or is not a valid weight file
+     */
+    public static NN_BatchNet readResource(String name) throws IOException {
+        synchronized (resourceNets) {
+            NN_BatchNet net = resourceNets.get(name);
+            if (net == null) {
+                net = readResourceData(name);
+                resourceNets.put(name, net);
+            }
+            return net;
+        }
+    }
+
+    /**
+     * Writes a weight file, the arguments are the same as for {@link NN_BatchNet#NN_BatchNet}.
+     */
+    public static void write(File file,
+                             double[][] input_scale_limits,
+                             double[][] input_scale,
+                             double[][] input_pca_evec,
+                             double[][] hidden_weights,
+                             double[][] output_weights,
+                             double[][] output_scale,
+                             double[] output_scale_off,
+                             int[] output_scale_flag,
+                             double[][] output_scale_limits) throws IOException {
+        // Check the dimensions before anything is written
+        new NN_BatchNet(input_scale_limits, input_scale, input_pca_evec, hidden_weights, output_weights,
+                        output_scale, output_scale_off, output_scale_flag, output_scale_limits);
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeArray(out, input_scale_limits);
+            writeArray(out, input_scale);
+            writeArray(out, input_pca_evec);
+            writeArray(out, hidden_weights);
+            writeArray(out, output_weights);
+            writeArray(out, output_scale);
+            out.writeInt(output_scale_off.length);
+            for (double value : output_scale_off) {
+                out.writeDouble(value);
+            }
+            out.writeInt(output_scale_flag.length);
+            for (int value : output_scale_flag) {
+                out.writeInt(value);
+            }
+            writeArray(out, output_scale_limits);
+        } finally {
+            out.close();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static NN_BatchNet readFile(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file.getPath());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static NN_BatchNet readResourceData(String name) throws IOException {
+        final InputStream in = NN_WeightFile.class.getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("Network weight file resource '" + name + "' not found");
+        }
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try {
+            final byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                data.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return parse(ByteBuffer.wrap(data.toByteArray()), "resource " + name);
+    }
+
+    private static NN_BatchNet parse(ByteBuffer buffer, String source) throws IOException {
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a network weight file: " + source);
+            }
+            final int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version + " of network weight file " + source);
+            }
+            final double[][] input_scale_limits = readArray(buffer);
+            final double[][] input_scale = readArray(buffer);
+            final double[][] input_pca_evec = readArray(buffer);
+            final double[][] hidden_weights = readArray(buffer);
+            final double[][] output_weights = readArray(buffer);
+            final double[][] output_scale = readArray(buffer);
+            final double[] output_scale_off = new double[readLength(buffer, 8)];
+            for (int i = 0; i < output_scale_off.length; i++) {
+                output_scale_off[i] = buffer.getDouble();
+            }
+            final int[] output_scale_flag = new int[readLength(buffer, 4)];
+            for (int i = 0; i < output_scale_flag.length; i++) {
+                output_scale_flag[i] = buffer.getInt();
+            }
+            final double[][] output_scale_limits = readArray(buffer);
+            if (buffer.hasRemaining()) {
+                throw new IOException("Unexpected data at the end of network weight file " + source);
+            }
+            return new NN_BatchNet(input_scale_limits, input_scale, input_pca_evec, hidden_weights,
+                                   output_weights, output_scale, output_scale_off, output_scale_flag,
+                                   output_scale_limits);
+        } catch (RuntimeException e) {
+            // BufferUnderflowException if truncated, IllegalArgumentException if inconsistent
+            final IOException ioe = new IOException("Invalid network weight file " + source);
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    private static int readLength(ByteBuffer buffer, int elementSize) throws IOException {
+        final int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining() / elementSize) {
+            throw new IOException("Invalid array length " + length);
+        }
+        return length;
+    }
+
+    private static double[][] readArray(ByteBuffer buffer) throws IOException {
+        final int rows = readLength(buffer, 1);
+        final int cols = buffer.getInt();
+        if (cols < 0 || (long) rows * cols > buffer.remaining() / 8) {
+            throw new IOException("Invalid array size " + rows + " x " + cols);
+        }
+        final double[][] array = new double[rows][cols];
+        for (double[] row : array) {
+            buffer.asDoubleBuffer().get(row);
+            buffer.position(buffer.position() + 8 * cols);
+        }
+        return array;
+    }
+
+    private static final class CachedNet {
+
+        private final NN_BatchNet net;
+        private final long length;
+        private final long lastModified;
+
+        private CachedNet(NN_BatchNet net, long length, long lastModified) {
+            this.net = net;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static void writeArray(DataOutputStream out, double[][] array) throws IOException {
+        final int cols = array.length > 0 ? array[0].length : 0;
+        out.writeInt(array.length);
+        out.writeInt(cols);
+        for (double[] row : array) {
+            if (row.length != cols) {
+                throw new IOException("Array rows must have the same length");
+            }
+            for (double value : row) {
+                out.writeDouble(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package wew.water.gpf;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes the built-in WeW networks to weight files, see {@link NN_WeightFile}. The files are named
+ * after the parameters of {@link WaterProcessorOp} selecting them, e.g. <code>chl.nnw</code> for
+ * <code>chlNetFile</code>, and can be used as a template for retrained networks.
+ * <p/>
+ * The build runs the converter after compiling and ships the files as resources of this package, the
+ * operator reads them from there unless other weight files are given. The weight arrays of
+ * {@link NN_CHL}, {@link NN_YellowSubstance}, {@link NN_TSM} and {@link NN_AtmCorr} are therefore
+ * only loaded by the converter and the per-pixel methods of these classes.
+ * <p/>
+ * Usage: <code>NN_WeightFileConverter &lt;outputDir&gt;</code>
+ */
+public final class NN_WeightFileConverter {
+
+    /**
+     * The names of the weight files of the chlorophyll, yellow substance, total suspended matter
+     * and atmospheric correction networks.
+     */
+    public static final String CHL_FILE_NAME = "chl" + NN_WeightFile.FILE_EXTENSION;
+    public static final String YS_FILE_NAME = "ys" + NN_WeightFile.FILE_EXTENSION;
+    public static final String TSM_FILE_NAME = "tsm" + NN_WeightFile.FILE_EXTENSION;
+    public static final String ATM_CORR_FILE_NAME = "atmcorr" + NN_WeightFile.FILE_EXTENSION;
+
+    private NN_WeightFileConverter() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: NN_WeightFileConverter <outputDir>");
+            System.exit(1);
+        }
+        final File outputDir = new File(args[0]);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create directory '" + outputDir + "'");
+        }
+        NN_CHL.writeWeightFile(new File(outputDir, CHL_FILE_NAME));
+        NN_YellowSubstance.writeWeightFile(new File(outputDir, YS_FILE_NAME));
+        NN_TSM.writeWeightFile(new File(outputDir, TSM_FILE_NAME));
+        NN_AtmCorr.writeWeightFile(new File(outputDir, ATM_CORR_FILE_NAME));
+
+        // Read the files back to make sure they hold the same networks
+        verify(new File(outputDir, CHL_FILE_NAME), NN_CHL.getBatchNet());
+        verify(new File(outputDir, YS_FILE_NAME), NN_YellowSubstance.getBatchNet());
+        verify(new File(outputDir, TSM_FILE_NAME), NN_TSM.getBatchNet());
+        verify(new File(outputDir, ATM_CORR_FILE_NAME), NN_AtmCorr.getBatchNet());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    /////// END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static void verify(File file, NN_BatchNet expected) throws IOException {
+        if (!NN_WeightFile.read(file).equals(expected)) {
+            throw new IOException("Network read from '" + file + "' differs from the built-in network");
+        }
+        System.out.println("Written " + file);
+    }
+}
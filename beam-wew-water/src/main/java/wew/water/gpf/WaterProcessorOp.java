@@ -1,5 +1,6 @@
 package wew.water.gpf;
 
+import com.bc.ceres.core.ProgressMonitor;
 import org.esa.beam.dataio.envisat.EnvisatConstants;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.FlagCoding;
@@ -9,32 +10,33 @@ import org.esa.beam.framework.datamodel.MetadataElement;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.datamodel.ProductData;
 import org.esa.beam.framework.datamodel.ProductNodeGroup;
+import org.esa.beam.framework.datamodel.RasterDataNode;
+import org.esa.beam.framework.gpf.Operator;
 import org.esa.beam.framework.gpf.OperatorException;
 import org.esa.beam.framework.gpf.OperatorSpi;
+import org.esa.beam.framework.gpf.Tile;
 import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
 import org.esa.beam.framework.gpf.annotations.Parameter;
 import org.esa.beam.framework.gpf.annotations.SourceProduct;
-import org.esa.beam.framework.gpf.pointop.PixelOperator;
-import org.esa.beam.framework.gpf.pointop.ProductConfigurer;
-import org.esa.beam.framework.gpf.pointop.Sample;
-import org.esa.beam.framework.gpf.pointop.SampleConfigurer;
-import org.esa.beam.framework.gpf.pointop.WritableSample;
+import org.esa.beam.framework.gpf.annotations.TargetProduct;
 import org.esa.beam.jai.ResolutionLevel;
 import org.esa.beam.jai.VirtualBandOpImage;
 import org.esa.beam.util.ProductUtils;
 import org.esa.beam.util.StringUtils;
 
 import javax.media.jai.PlanarImage;
-import javax.media.jai.operator.ConstantDescriptor;
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.awt.image.Raster;
+import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 
 @OperatorMetadata(alias = "FUB.Water", authors = "Thomas Schroeder, Michael Schaale",
                   copyright = "Institute for Space Sciences (WeW), Freie Universitaet Berlin",
                   version = "2.2",
                   description = "FUB/WeW WATER Processor to retrieve case II water properties and atmospheric properties")
-public class WaterProcessorOp extends PixelOperator {
+public class WaterProcessorOp extends Operator {
 
     public static final String[] OUTPUT_CONCENTRATION_BAND_NAMES = {
             "algal_2",
@@ -176,50 +178,66 @@ public class WaterProcessorOp extends PixelOperator {
             0.5f
     };
 
-    private static final String[] source_raster_names = new String[]{
-            EnvisatConstants.MERIS_L1B_RADIANCE_1_BAND_NAME,  // source sample index  0   radiance_1
-            EnvisatConstants.MERIS_L1B_RADIANCE_2_BAND_NAME,  // source sample index  1   radiance_2
-            EnvisatConstants.MERIS_L1B_RADIANCE_3_BAND_NAME,  // source sample index  2   radiance_3
-            EnvisatConstants.MERIS_L1B_RADIANCE_4_BAND_NAME,  // source sample index  3   radiance_4
-            EnvisatConstants.MERIS_L1B_RADIANCE_5_BAND_NAME,  // source sample index  4   radiance_5
-            EnvisatConstants.MERIS_L1B_RADIANCE_6_BAND_NAME,  // source sample index  5   radiance_6
-            EnvisatConstants.MERIS_L1B_RADIANCE_7_BAND_NAME,  // source sample index  6   radiance_7
-            EnvisatConstants.MERIS_L1B_RADIANCE_8_BAND_NAME,  // source sample index  7   radiance_8
-            EnvisatConstants.MERIS_L1B_RADIANCE_9_BAND_NAME,  // source sample index  8   radiance_9
-            EnvisatConstants.MERIS_L1B_RADIANCE_10_BAND_NAME, // source sample index  9   radiance_10
-            EnvisatConstants.MERIS_L1B_RADIANCE_11_BAND_NAME, // source sample index 10   radiance_11
-            EnvisatConstants.MERIS_L1B_RADIANCE_12_BAND_NAME, // source sample index 11   radiance_12
-            EnvisatConstants.MERIS_L1B_RADIANCE_13_BAND_NAME, // source sample index 12   radiance_13
-            EnvisatConstants.MERIS_L1B_RADIANCE_14_BAND_NAME, // source sample index 13   radiance_14
-            EnvisatConstants.MERIS_L1B_RADIANCE_15_BAND_NAME, // source sample index 14   radiance_15
-            EnvisatConstants.MERIS_L1B_FLAGS_DS_NAME,         // source sample index 15   l1_flags
-            EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[6],   // source sample index 16   sun_zenith
-            EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[7],   // source sample index 17   sun_azimuth
-            EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[8],   // source sample index 18   view_zenith
-            EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[9],   // source sample index 19   view_azimuth
-            EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[10],  // source sample index 20   zonal_wind
-            EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[11],  // source sample index 21   merid_wind
-            EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[12],  // source sample index 22   atm_press
-            EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[13]   // source sample index 23   ozone
+    private static final String[] aux_raster_names = new String[]{
+            EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[6],   // aux raster index 0   sun_zenith
+            EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[7],   // aux raster index 1   sun_azimuth
+            EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[8],   // aux raster index 2   view_zenith
+            EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[9],   // aux raster index 3   view_azimuth
+            EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[10],  // aux raster index 4   zonal_wind
+            EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[11],  // aux raster index 5   merid_wind
+            EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[12],  // aux raster index 6   atm_press
+            EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[13]   // aux raster index 7   ozone
     };
-    private static final int source_sample_index_sun_zenith = 16;
-    private static final int source_sample_index_sun_azimuth = 17;
-    private static final int source_sample_index_view_zenith = 18;
-    private static final int source_sample_index_view_azimuth = 19;
-    private static final int source_sample_index_zonal_wind = 20;
-    private static final int source_sample_index_merid_wind = 21;
-    private static final int source_sample_index_atm_press = 22;
-    private static final int source_sample_index_ozone = 23;
+    private static final int aux_index_sun_zenith = 0;
+    private static final int aux_index_sun_azimuth = 1;
+    private static final int aux_index_view_zenith = 2;
+    private static final int aux_index_view_azimuth = 3;
+    private static final int aux_index_zonal_wind = 4;
+    private static final int aux_index_merid_wind = 5;
+    private static final int aux_index_atm_press = 6;
+    private static final int aux_index_ozone = 7;
+
+    // The MERIS bands whose TOA reflectances are input to the networks
+    private static final int[] toa_band_indices = {
+            0, 1, 2, 3, 4, 5, 6, 8, 9, 11, 12, 13
+    };
+
+    // If set to -1.0f : NN input and output ranges are checked
+    // If set to +1.0f : NN input and output ranges are NOT checked
+    private static final float aset = -1.0f;
+
+    // The maximum number of valid pixels given to the networks at once
+    private static final int BATCH_SIZE = 1024;
 
-    private float[] solarFlux;
+    private static final double d2r = Math.acos(-1.0) / 180.0;
+
+    // The values which are constant for the scene
+    private WaterSceneConstants scene;
+    // Whether the ozone correction factors are interpolated from the tie points
+    private boolean useOzoneFactorCache;
 
     private Band[] inputBands = new Band[EnvisatConstants.MERIS_L1B_NUM_SPECTRAL_BANDS];
-    private Raster validMaskData;
+    private RasterDataNode[] auxRasters = new RasterDataNode[aux_raster_names.length];
+    // The valid pixels, not attached to any product; null if all pixels are valid
+    private PlanarImage validMaskImage;
+
+    // The networks
+    private NN_BatchNet chlNet;
+    private NN_BatchNet ysNet;
+    private NN_BatchNet tsmNet;
+    private NN_BatchNet atmCorrNet;
+
+    // The computed bands in the order of the result planes
+    private Band[] outputBands;
+    private Band resultFlagsBand;
 
     @SourceProduct(label = "Source product",
                    description = "The MERIS L1b or L1P source product used for the processing.")
     private Product sourceProduct;
 
+    @TargetProduct
+    private Product targetProduct;
+
     @Parameter(description = "Whether chlorophyll-a concentration band shall be computed", defaultValue = "true",
                label = "Compute chlorophyll-a concentration band")
     private boolean computeCHL;
@@ -247,149 +265,181 @@ public class WaterProcessorOp extends PixelOperator {
                label = "Use valid pixel expression")
     private String expression;
 
-    @Override
-    protected void computePixel(final int xpos, final int ypos, Sample[] sourceSamples, WritableSample[] targetSamples) {
-
-        // If set to -1.0f : NN input and output ranges are checked
-        // If set to +1.0f : NN input and output ranges are NOT checked
-        float aset = -1.0f;
-
-        int width = 1;
-        int nbands = inputBands.length;
+    @Parameter(description = "Expert parameter. The number of scan lines, evenly spread over the scene, which are " +
+                             "sampled to check whether '" + SUSPECT_FLAG_NAME + "' is valid.",
+               defaultValue = "1", interval = "[1,*]", label = "Number of lines checked for '" + SUSPECT_FLAG_NAME + "'")
+    private int suspectCheckLineCount;
 
-        // allocate memory for a multispectral scan line
-        float[] toa = new float[nbands];
+    @Parameter(description = "Expert parameter. Whether the networks use a fast approximation of the sigmoid " +
+                             "function. The deviation of the results is negligible, see NN_FastMath.",
+               defaultValue = "false", label = "Use fast approximation of the sigmoid function")
+    private boolean fastMath;
 
-        // allocate memory for the flags
-        int[] resultFlags = new int[width];
+    @Parameter(description = "Expert parameter. Weight file of the chlorophyll network, the built-in network is used if not given.",
+               label = "Chlorophyll network weight file")
+    private File chlNetFile;
 
-        // Ozone data
-        double[] wavelength = new double[nbands];
-        double[] exO3 = new double[nbands];
+    @Parameter(description = "Expert parameter. Weight file of the yellow substance network, the built-in network is used if not given.",
+               label = "Yellow substance network weight file")
+    private File ysNetFile;
 
-        // local variables
-        double d2r;
-        float dazi;
-        int k;
-        int l;
-        int ls = 0;
-        int n;
-        float[] a = new float[width];
+    @Parameter(description = "Expert parameter. Weight file of the total suspended matter network, the built-in network is used if not given.",
+               label = "Total suspended matter network weight file")
+    private File tsmNetFile;
 
-        int inodes;
-        int onodes;
-        int onodes_1;
-        int onodes_2;
-        int stage;
+    @Parameter(description = "Expert parameter. Weight file of the atmospheric correction network, the built-in network is used if not given.",
+               label = "Atmospheric correction network weight file")
+    private File atmCorrNetFile;
 
-        float[][] ipixel = new float[2][1];
-        float[][] ipixels = new float[2][1];
-        float[][] opixel = new float[2][1];
+    @Parameter(description = "Expert parameter. Whether the ozone correction factors are computed at the tie points and " +
+                             "interpolated, instead of being computed for every pixel. This is faster, but the results " +
+                             "deviate slightly.",
+               defaultValue = "false", label = "Interpolate ozone correction from tie points")
+    private boolean interpolateOzoneCorrection;
 
-        // Load the wavelengths and ozone spectral extinction coefficients
-        //
-        for (int i = 0; i < nbands; i++) {
-            wavelength[i] = inputBands[i].getSpectralWavelength();
-            exO3[i] = WaterProcessorOzone.O3excoeff(wavelength[i]);
-        }
-
-        d2r = Math.acos(-1.0) / 180.0;
-
-        // Get the number of I/O nodes in advance
-        inodes = NN_YellowSubstance.compute(ipixel, -1, opixel, 1, width, resultFlags, 0, a);
-        // implicit atm.corr.
-        onodes_1 = NN_YellowSubstance.compute(ipixel, 1, opixel, -1, width, resultFlags, 0, a);
-        // explicit atm.corr.
-        onodes_2 = NN_AtmCorr.compute(ipixel, 1, opixel, -1, width, resultFlags, 0, a);
+    @Override
+    public void initialize() throws OperatorException {
+        prepareInputs();
+        createTargetProduct();
+    }
 
-        int num_toa = 12;
-        int output_planes = 0;
-        if (computeCHL) {
-            output_planes++;
-        }
-        if (computeYS) {
-            output_planes++;
-        }
-        if (computeTSM) {
-            output_planes++;
-        }
-        if (computeAtmCorr) {
-            output_planes += OUTPUT_OPTICAL_DEPTH_BAND_NAMES.length + OUTPUT_REFLECTANCE_BAND_NAMES.length;
+    /*
+     * Computes all target bands of a tile. The valid pixels of the tile are gathered into
+     * dense batches which the networks process at once, the results are scattered back.
+     * Every pixel is computed independently, so the results do not depend on the tiling,
+     * and tiles without valid pixels do not run the networks at all.
+     */
+    @Override
+    public void computeTileStack(Map<Band, Tile> targetTiles, Rectangle targetRectangle, ProgressMonitor pm) throws OperatorException {
+        final int width = targetRectangle.width;
+        final int numPixels = width * targetRectangle.height;
+
+        // Gather the valid pixels of the tile, only these are processed
+        final int[] valid = validMaskImage != null ? getValidMaskSamples(targetRectangle) : null;
+        final int[] validPixels = new int[numPixels];
+        int numValid = 0;
+        for (int i = 0; i < numPixels; i++) {
+            if (valid == null || valid[i] != 0) {
+                validPixels[numValid++] = i;
+            }
         }
-        float[] top = new float[num_toa];
-        float[] tops = new float[num_toa];
-        double[] o3f = new double[num_toa];
-        float[] sof = new float[num_toa];
-        float[] aux = new float[2];
-        float[] geo = new float[4];
-        float[] result = new float[output_planes];
-
-        // First the TOA radiances
-        for (n = 0; n < inputBands.length; n++) {
-            toa[n] = sourceSamples[n].getFloat();
-        } // n
+        final int numBatches = (numValid + BATCH_SIZE - 1) / BATCH_SIZE;
 
-        // Second the auxiliary data
-        float sza = sourceSamples[source_sample_index_sun_zenith].getFloat();
-        float saa = sourceSamples[source_sample_index_sun_azimuth].getFloat();
-        float vza = sourceSamples[source_sample_index_view_zenith].getFloat();
-        float vaa = sourceSamples[source_sample_index_view_azimuth].getFloat();
-        float zw = sourceSamples[source_sample_index_zonal_wind].getFloat();
-        float mw = sourceSamples[source_sample_index_merid_wind].getFloat();
-        float press = sourceSamples[source_sample_index_atm_press].getFloat();
-        float o3 = sourceSamples[source_sample_index_ozone].getFloat();
-
-        final int x = 0;
+        pm.beginTask("Computing FUB/WeW water properties", numBatches + 1);
+        try {
+            final Tile[] outputTiles = new Tile[outputBands.length];
+            for (int n = 0; n < outputBands.length; n++) {
+                outputTiles[n] = targetTiles.get(outputBands[n]);
+            }
+            final Tile resultFlagsTile = targetTiles.get(resultFlagsBand);
+
+            // Pixels excluded by the valid mask get the mask value and the first error flag
+            if (numValid < numPixels) {
+                for (int i = 0, k = 0; i < numPixels; i++) {
+                    if (k < numValid && validPixels[k] == i) {
+                        k++;
+                        continue;
+                    }
+                    final int xpos = targetRectangle.x + i % width;
+                    final int ypos = targetRectangle.y + i / width;
+                    for (Tile outputTile : outputTiles) {
+                        outputTile.setSample(xpos, ypos, result_mask_value);
+                    }
+                    resultFlagsTile.setSample(xpos, ypos, RESULT_ERROR_VALUES[0]);
+                }
+            }
+            pm.worked(1);
+            if (numValid == 0) {
+                return;
+            }
 
-        resultFlags[x] = 0;
-        int resultFlagsNN = 0;
+            final float[][] radiance = new float[inputBands.length][];
+            for (int n = 0; n < inputBands.length; n++) {
+                radiance[n] = getSourceTile(inputBands[n], targetRectangle).getSamplesFloat();
+            }
+            final float[][] aux = new float[auxRasters.length][];
+            for (int n = 0; n < auxRasters.length; n++) {
+                aux[n] = getSourceTile(auxRasters[n], targetRectangle).getSamplesFloat();
+            }
 
-        // Exclude pixels from processing if the following l1flags mask becomes true
-        if (validMaskData.getSample(xpos, ypos, 0) == 0) {
-            resultFlags[x] = RESULT_ERROR_VALUES[0];
+            // the buffers of a batch of valid pixels
+            final int batchSize = Math.min(numValid, BATCH_SIZE);
+            final float[][] ipixel = new float[scene.inodes][batchSize];
+            final float[][] ipixels = new float[scene.inodes][batchSize];
+            final float[][] opixel = new float[scene.onodes_1][batchSize];
+            final float[][] opixelAtmCorr = new float[scene.onodes_2][batchSize];
+            final double[] ozoneFactors = useOzoneFactorCache ? new double[toa_band_indices.length] : null;
+            final float[][] result = new float[outputBands.length][batchSize];
+            final int[] resultFlags = new int[batchSize];
+            final int[] resultFlagsNN = new int[batchSize];
+            final float[] a = new float[batchSize];
+
+            for (int start = 0; start < numValid; start += batchSize) {
+                final int count = Math.min(batchSize, numValid - start);
+                for (int k = 0; k < count; k++) {
+                    resultFlags[k] = 0;
+                    resultFlagsNN[k] = 0;
+                    if (ozoneFactors != null) {
+                        scene.getOzoneFactors(targetRectangle.x + validPixels[start + k] % width,
+                                              targetRectangle.y + validPixels[start + k] / width, ozoneFactors);
+                    }
+                    loadInputPixel(radiance, aux, validPixels[start + k], ozoneFactors, ipixel, k);
+                }
+                computeLine(count, ipixel, ipixels, opixel, opixelAtmCorr, result, resultFlags, resultFlagsNN, a);
+
+                // Scatter the results to the target tiles
+                for (int k = 0; k < count; k++) {
+                    final int xpos = targetRectangle.x + validPixels[start + k] % width;
+                    final int ypos = targetRectangle.y + validPixels[start + k] / width;
+                    for (int n = 0; n < outputTiles.length; n++) {
+                        outputTiles[n].setSample(xpos, ypos, result[n][k]);
+                    }
+                    resultFlagsTile.setSample(xpos, ypos, resultFlags[k]);
+                }
+                checkForCancellation();
+                pm.worked(1);
+            }
+        } finally {
+            pm.done();
         }
+    }
 
-        // *********************
-        // * STAGE 0
-        // *********************
+    /*
+     * STAGE 0: Loads the network input vector of a pixel, i.e. the ozone corrected TOA reflectances,
+     * the wind speed, the pressure and the geometry, into column x of ipixel. The ozone correction
+     * factors are computed unless interpolated factors are given.
+     */
+    private void loadInputPixel(float[][] radiance, float[][] aux, int index, double[] ozoneFactors,
+                                float[][] ipixel, int x) {
+        float sza = aux[aux_index_sun_zenith][index];
+        float saa = aux[aux_index_sun_azimuth][index];
+        float vza = aux[aux_index_view_zenith][index];
+        float vaa = aux[aux_index_view_azimuth][index];
+        float zw = aux[aux_index_zonal_wind][index];
+        float mw = aux[aux_index_merid_wind][index];
+        float press = aux[aux_index_atm_press][index];
+        float o3 = aux[aux_index_ozone][index];
 
         // Get the toa reflectances for selected bands
         // and normalize ozone
         //
-        l = 0;
-        final double TOTAL_OZONE_DU_MOMO = 344.0;
-        for (n = 0; n <= 6; n++, l++) {
-            tops[l] = toa[n];
-            sof[l] = solarFlux[n];
-            top[l] = toa[n] / solarFlux[n];
-            o3f[l] = Math.exp(-(TOTAL_OZONE_DU_MOMO - o3) * exO3[n] / 1000.0 * (1.0 / Math.cos(
-                    (double) vza * d2r) + 1.0 / Math.cos((double) sza * d2r)));
-            top[l] *= o3f[l];
-        }
-        for (n = 8; n <= 9; n++, l++) {
-            tops[l] = toa[n];
-            sof[l] = solarFlux[n];
-            top[l] = toa[n] / solarFlux[n];
-            o3f[l] = Math.exp(-(TOTAL_OZONE_DU_MOMO - o3) * exO3[n] / 1000.0 * (1.0 / Math.cos(
-                    (double) vza * d2r) + 1.0 / Math.cos((double) sza * d2r)));
-            top[l] *= o3f[l];
-        }
-        for (n = 11; n <= 13; n++, l++) {
-            tops[l] = toa[n];
-            sof[l] = solarFlux[n];
-            top[l] = toa[n] / solarFlux[n];
-            o3f[l] = Math.exp(-(TOTAL_OZONE_DU_MOMO - o3) * exO3[n] / 1000.0 * (1.0 / Math.cos(
-                    (double) vza * d2r) + 1.0 / Math.cos((double) sza * d2r)));
-            top[l] *= o3f[l];
+        final double airMass = 1.0 / Math.cos((double) vza * d2r) + 1.0 / Math.cos((double) sza * d2r);
+        int l = 0;
+        for (int n : toa_band_indices) {
+            float top = radiance[n][index] / scene.solarFlux[n];
+            double o3f = ozoneFactors != null ? ozoneFactors[l]
+                                              : WaterSceneConstants.computeOzoneFactor(o3, scene.exO3[n], airMass);
+            top *= o3f;
+            ipixel[l++][x] = top;
         }
 
         // Get the wind speed
-        aux[0] = (float) Math.sqrt((double) (zw * zw + mw * mw));
+        ipixel[l++][x] = (float) Math.sqrt((double) (zw * zw + mw * mw));
         // Get the pressure
-        aux[1] = press;
+        ipixel[l++][x] = press;
 
         // Adjust the azimuth difference
-        dazi = vaa - saa;
+        float dazi = vaa - saa;
 
         while (dazi <= -180.0f) {
             dazi += 360.0f;
@@ -406,181 +456,111 @@ public class WaterProcessorOp extends PixelOperator {
         }
 
         // Get cos(sunzen)
-        geo[0] = (float) Math.cos((double) sza * d2r);
+        ipixel[l++][x] = (float) Math.cos((double) sza * d2r);
 
         // And now transform into cartesian coordinates
-        geo[1] = (float) (Math.sin((double) vza * d2r) * Math.cos((double) dazi * d2r)); // obs_x
-        geo[2] = (float) (Math.sin((double) vza * d2r) * Math.sin((double) dazi * d2r)); // obs_y
-        geo[3] = (float) (Math.cos((double) vza * d2r));                            // obs_z
-
-        // *********************
-        // * STAGE 1-4
-        // *********************
-
-        onodes = onodes_1; // They differ !!
-
-        ipixel = new float[inodes][width];
-        ipixels = new float[inodes][width];
-        opixel = new float[onodes][width];
-
-        // load the TOA reflectances
-        for (l = 0; l < num_toa; l++) {
-            ipixel[l][x] = top[l];
-        }
-
-        // get the wind speed and pressure
-        ipixel[l++][x] = aux[0];
-        ipixel[l++][x] = aux[1];
-
-        // get cos(sunzen), x, yPos, z
-        ipixel[l++][x] = geo[0];
-        ipixel[l++][x] = geo[1];
-        ipixel[l++][x] = geo[2];
-        ipixel[l++][x] = geo[3];
+        ipixel[l++][x] = (float) (Math.sin((double) vza * d2r) * Math.cos((double) dazi * d2r)); // obs_x
+        ipixel[l++][x] = (float) (Math.sin((double) vza * d2r) * Math.sin((double) dazi * d2r)); // obs_y
+        ipixel[l][x] = (float) (Math.cos((double) vza * d2r));                             // obs_z
+    }
 
+    /*
+     * STAGE 1-4: Runs the selected networks once on a batch of pixels and fills the result planes.
+     * Pixels with result flags set are masked out by the networks and get the mask value.
+     */
+    private void computeLine(int width, float[][] ipixel, float[][] ipixels, float[][] opixel, float[][] opixelAtmCorr,
+                             float[][] result, int[] resultFlags, int[] resultFlagsNN, float[] a) {
         // Check against range limits inside the network
         // recall if the value of a[x] is set to -1.0f.
         //
         // This results in the application of the flag
         // 'RESULT_ERROR_VALUE[]' to the 'resultFlagsNN'
-        a[x] = aset;
+        for (int x = 0; x < width; x++) {
+            a[x] = aset;
+        }
 
-        // Save input pixel
-        ls = l;
-        for (l = 0; l < ls; l++) {
-            ipixels[l][x] = ipixel[l][x];
+        // Save input pixels, the networks modify their input
+        for (int l = 0; l < scene.inodes; l++) {
+            System.arraycopy(ipixel[l], 0, ipixels[l], 0, width);
         }
 
-        int resultCounter = 0;
+        final int inodes = scene.inodes;
+        final int onodes_1 = scene.onodes_1;
+        final int onodes_2 = scene.onodes_2;
 
         if (computeCHL) {
             // Run the 1-step chlorophyll network;
-            stage = 1;
-            NN_CHL.compute(ipixel, inodes, opixel, onodes, width, resultFlags, 0, a);
-
-            // Input range failure
-            if ((a[x] > -2.1) && (a[x] < -1.9)) {
-                resultFlagsNN |= RESULT_ERROR_VALUES[2 * stage - 1];
-            }
-            // Output range failure
-            if ((a[x] > -19.1) && (a[x] < -18.9)) {
-                resultFlagsNN |= RESULT_ERROR_VALUES[2 * stage];
-            }
-            // Input AND Output range failure
-            if ((a[x] > -22.1) && (a[x] < -21.9)) {
-                resultFlagsNN |= RESULT_ERROR_VALUES[2 * stage - 1];
-                resultFlagsNN |= RESULT_ERROR_VALUES[2 * stage];
-            }
-            result[resultCounter++] = opixel[0][x];
+            chlNet.compute(ipixel, inodes, opixel, onodes_1, width, resultFlags, 0, a, fastMath);
+            collectRangeFailures(1, width, a, resultFlagsNN);
+            System.arraycopy(opixel[0], 0, result[scene.chlPlane], 0, width);
         }
         if (computeYS) {
             // Run the 1-step yellow substance network;
-            stage = 2;
-            // reload the pixel
-            for (l = 0; l < ls; l++) {
-                ipixel[l][x] = ipixels[l][x];
-            }
-            a[x] = aset;
-
-            NN_YellowSubstance.compute(ipixel, inodes, opixel, onodes, width, resultFlags, 0, a);
-
-            // Input range failure
-            if ((a[x] > -2.1) && (a[x] < -1.9)) {
-                resultFlagsNN |= RESULT_ERROR_VALUES[2 * stage - 1];
-            }
-            // Output range failure
-            if ((a[x] > -19.1) && (a[x] < -18.9)) {
-                resultFlagsNN |= RESULT_ERROR_VALUES[2 * stage];
-            }
-            // Input AND Output range failure
-            if ((a[x] > -22.1) && (a[x] < -21.9)) {
-                resultFlagsNN |= RESULT_ERROR_VALUES[2 * stage - 1];
-                resultFlagsNN |= RESULT_ERROR_VALUES[2 * stage];
-            }
-            result[resultCounter++] = opixel[0][x];
+            reloadInputPixels(width, ipixel, ipixels, a);
+            ysNet.compute(ipixel, inodes, opixel, onodes_1, width, resultFlags, 0, a, fastMath);
+            collectRangeFailures(2, width, a, resultFlagsNN);
+            System.arraycopy(opixel[0], 0, result[scene.ysPlane], 0, width);
         }
         if (computeTSM) {
             // Run the 1-step total suspended matter network;
-            stage = 3;
+            reloadInputPixels(width, ipixel, ipixels, a);
+            tsmNet.compute(ipixel, inodes, opixel, onodes_1, width, resultFlags, 0, a, fastMath);
+            collectRangeFailures(3, width, a, resultFlagsNN);
+            System.arraycopy(opixel[0], 0, result[scene.tsmPlane], 0, width);
+        }
+        if (computeAtmCorr) {
+            // Run part 1 of the 2-step atm.corr. network;
+            reloadInputPixels(width, ipixel, ipixels, a);
+            atmCorrNet.compute(ipixel, inodes, opixelAtmCorr, onodes_2, width, resultFlags, 0, a, fastMath);
+            collectRangeFailures(4, width, a, resultFlagsNN);
 
-            // reload the pixel
-            for (l = 0; l < ls; l++) {
-                ipixel[l][x] = ipixels[l][x];
+            // The reflectances and aots
+            for (int i = 0; i < onodes_2; i++) {
+                System.arraycopy(opixelAtmCorr[i], 0, result[scene.atmCorrPlanes[i]], 0, width);
             }
-            a[x] = aset;
-
-            NN_TSM.compute(ipixel, inodes, opixel, onodes, width, resultFlags, 0, a);
+        }
 
-            // Input range failure
-            if ((a[x] > -2.1) && (a[x] < -1.9)) {
-                resultFlagsNN |= RESULT_ERROR_VALUES[2 * stage - 1];
-            }
-            // Output range failure
-            if ((a[x] > -19.1) && (a[x] < -18.9)) {
-                resultFlagsNN |= RESULT_ERROR_VALUES[2 * stage];
-            }
-            // Input AND Output range failure
-            if ((a[x] > -22.1) && (a[x] < -21.9)) {
-                resultFlagsNN |= RESULT_ERROR_VALUES[2 * stage - 1];
-                resultFlagsNN |= RESULT_ERROR_VALUES[2 * stage];
+        for (int x = 0; x < width; x++) {
+            // Now check for error flags !
+            // If set, set output vector to mask value !
+            if (resultFlags[x] != 0) {
+                for (int n = 0; n < result.length; n++) {
+                    result[n][x] = result_mask_value;
+                }
             }
-            result[resultCounter++] = opixel[0][x];
+            // Combine result flags
+            resultFlags[x] |= resultFlagsNN[x];
         }
-        if (computeAtmCorr) {
-            // Run part 1 of the 2-step atm.corr. network;
-            stage = 4;
-            onodes = onodes_2;
-            opixel = new float[onodes][width];
+    }
 
-            // reload the pixel
-            for (l = 0; l < ls; l++) {
-                ipixel[l][x] = ipixels[l][x];
-            }
+    private void reloadInputPixels(int width, float[][] ipixel, float[][] ipixels, float[] a) {
+        for (int l = 0; l < scene.inodes; l++) {
+            System.arraycopy(ipixels[l], 0, ipixel[l], 0, width);
+        }
+        for (int x = 0; x < width; x++) {
             a[x] = aset;
+        }
+    }
 
-            NN_AtmCorr.compute(ipixel, inodes, opixel, onodes, width, resultFlags, 0, a);
-
+    /*
+     * Translates the range check results a[x] of a network into the error flags of its stage.
+     */
+    private static void collectRangeFailures(int stage, int width, float[] a, int[] resultFlagsNN) {
+        for (int x = 0; x < width; x++) {
             // Input range failure
             if ((a[x] > -2.1) && (a[x] < -1.9)) {
-                resultFlagsNN |= RESULT_ERROR_VALUES[2 * stage - 1];
+                resultFlagsNN[x] |= RESULT_ERROR_VALUES[2 * stage - 1];
             }
             // Output range failure
             if ((a[x] > -19.1) && (a[x] < -18.9)) {
-                resultFlagsNN |= RESULT_ERROR_VALUES[2 * stage];
+                resultFlagsNN[x] |= RESULT_ERROR_VALUES[2 * stage];
             }
             // Input AND Output range failure
             if ((a[x] > -22.1) && (a[x] < -21.9)) {
-                resultFlagsNN |= RESULT_ERROR_VALUES[2 * stage - 1];
-                resultFlagsNN |= RESULT_ERROR_VALUES[2 * stage];
-            }
-            //System.out.println(" --> " + resultFlagsNN[x]);
-
-            // The aots
-            final int num_msl = 8;
-            for (int i = num_msl; i < onodes; i++) {
-                result[resultCounter + i - num_msl] = opixel[i][x];
-            }
-            for (int i = 0; i < num_msl; i++) {
-                final int numOfSpectralAerosolOpticalDepths = 4;
-                result[resultCounter + numOfSpectralAerosolOpticalDepths + i] = opixel[i][x];
-            }
-        }
-        // Now check for error flags !
-        // If set, set output vector to mask value !
-        if (resultFlags[x] != 0) {
-            for (n = 0; n < output_planes; n++) {
-                result[n] = result_mask_value;
+                resultFlagsNN[x] |= RESULT_ERROR_VALUES[2 * stage - 1];
+                resultFlagsNN[x] |= RESULT_ERROR_VALUES[2 * stage];
             }
         }
-        // Combine result flags
-        resultFlags[x] |= resultFlagsNN;
-
-        // Set sample values in target product
-        //
-        for (n = 0; n < output_planes; n++) {
-            targetSamples[n].set(result[n]);
-        }
-        targetSamples[output_planes].set(resultFlags[0]);
     }
 
     private void checkWhetherSuspectIsValid() {
@@ -590,46 +570,40 @@ public class WaterProcessorOp extends PixelOperator {
         final int height = sourceProduct.getSceneRasterHeight();
         final int width = sourceProduct.getSceneRasterWidth();
 
-        int k;// Some Level 1b scenes mark almost all pixels as 'suspect'. This is obviously nonsense.
+        // Some Level 1b scenes mark almost all pixels as 'suspect'. This is obviously nonsense.
         // Because we would like to make use of the suspect flag in mask mask_to_be_used we do
-        // check first if it behaves fine, ie the number of suspect pixels for one line in the
-        // middle of the scene should be below 50 % . Else we do not make use of the suspect flag
-        // in the mask mask_to_be_used.
-
-        // Grab a line in the middle of the scene
-        final Band l1FlagsInputBand = sourceProduct.getBand(EnvisatConstants.MERIS_L1B_FLAGS_DS_NAME);
-        int[] l1Flags = new int[width];
-        final int halfHeight = height / 2;
-        try {
-            l1FlagsInputBand.readPixels(0, halfHeight, width, 1, l1Flags);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // check first if it behaves fine, ie the number of suspect pixels for a few lines
+        // spread over the scene (by default one line in the middle) should be below 50 % .
+        // Else we do not make use of the suspect flag in the mask mask_to_be_used.
+
         // The input type pattern for ICOL products
         final String ICOL_PATTERN = "MER_.*1N";
         boolean icolMode = sourceProduct.getProductType().matches(ICOL_PATTERN);
         if (icolMode) {
             expression = expression.replace(SUSPECT_EXPRESSION_TERM, "");
-            System.out.println("--- Input product is of type icol ---");
-            System.out.println("--- Switching to relaxed mask. ---");
+            getLogger().info("Input product is of type ICOL, switching to relaxed mask.");
         } else {
-            final PlanarImage validMaskImage = createValidMaskImage(sourceProduct, SUSPECT_FLAG_NAME);
-            final Raster validData = validMaskImage.getData();
-            k = 0;
-            // Now sum up the cases which signal a suspect behaviour
-            for (int i = 0; i < width; i++) {
-                if (validData.getSample(i, halfHeight, 0) != 0) {
-                    k++;
+            // Only the sampled lines of the suspect image are computed
+            final PlanarImage suspectImage = createValidMaskImage(sourceProduct, SUSPECT_FLAG_NAME);
+            int k = 0;
+            for (int n = 1; n <= suspectCheckLineCount; n++) {
+                final int line = (int) ((long) height * n / (suspectCheckLineCount + 1));
+                final Raster lineData = suspectImage.getData(new Rectangle(0, line, width, 1));
+                // Now sum up the cases which signal a suspect behaviour
+                for (int i = 0; i < width; i++) {
+                    if (lineData.getSample(i, line, 0) != 0) {
+                        k++;
+                    }
                 }
             }
             // more than 50 percent ?
-            if (k >= width / 2) {
+            final int numPixels = suspectCheckLineCount * width;
+            if (k >= numPixels / 2) {
                 // Do not make use of the suspect flag
                 expression = expression.replace(SUSPECT_EXPRESSION_TERM, "");
-//                maskToBeUsed = mask_to_be_used;
-                final float percent = (float) k / (float) width * 100.0f;
-                System.out.println("--- " + percent + " % of the scan line are marked as suspect ---");
-                System.out.println("--- Switching to relaxed mask. ---");
+                final float percent = (float) k / (float) numPixels * 100.0f;
+                getLogger().info(percent + " % of the checked scan line pixels are marked as suspect, " +
+                                 "switching to relaxed mask.");
             }
         }
     }
@@ -675,9 +649,7 @@ public class WaterProcessorOp extends PixelOperator {
         return null;
     }
 
-    @Override
-    protected void prepareInputs() throws OperatorException {
-        super.prepareInputs();
+    private void prepareInputs() throws OperatorException {
         for (int i = 0; i < inputBands.length; i++) {
             String radianceBandName = "radiance_" + (i + 1);
             Band radianceBand = sourceProduct.getBand(radianceBandName);
@@ -689,26 +661,86 @@ public class WaterProcessorOp extends PixelOperator {
             }
             inputBands[i] = radianceBand;
         }
-        solarFlux = getSolarFlux(sourceProduct, inputBands);
+        for (int i = 0; i < auxRasters.length; i++) {
+            auxRasters[i] = sourceProduct.getRasterDataNode(aux_raster_names[i]);
+            if (auxRasters[i] == null) {
+                throw new OperatorException(String.format("Missing input raster '%s'.", aux_raster_names[i]));
+            }
+        }
+        // Load the networks, the built-in ones from the weight files shipped with the module
+        chlNet = chlNetFile != null ? readNet(chlNetFile, 1) : readBuiltInNet(NN_WeightFileConverter.CHL_FILE_NAME);
+        ysNet = ysNetFile != null ? readNet(ysNetFile, 1) : readBuiltInNet(NN_WeightFileConverter.YS_FILE_NAME);
+        tsmNet = tsmNetFile != null ? readNet(tsmNetFile, 1) : readBuiltInNet(NN_WeightFileConverter.TSM_FILE_NAME);
+        atmCorrNet = atmCorrNetFile != null ? readNet(atmCorrNetFile, 12)
+                                            : readBuiltInNet(NN_WeightFileConverter.ATM_CORR_FILE_NAME);
+
+        // Compute the values which are constant for the scene
+        final double[] wavelengths = new double[inputBands.length];
+        for (int i = 0; i < inputBands.length; i++) {
+            wavelengths[i] = inputBands[i].getSpectralWavelength();
+        }
+        scene = new WaterSceneConstants(wavelengths, getSolarFlux(sourceProduct, inputBands), toa_band_indices,
+                                        ysNet, atmCorrNet, computeCHL, computeYS, computeTSM, computeAtmCorr);
+        if (interpolateOzoneCorrection) {
+            useOzoneFactorCache = scene.createOzoneFactorCache(auxRasters[aux_index_sun_zenith],
+                                                               auxRasters[aux_index_view_zenith],
+                                                               auxRasters[aux_index_ozone]);
+            if (!useOzoneFactorCache) {
+                getLogger().warning("Ozone correction cannot be interpolated, the geometry is not given by tie points. " +
+                                    "The ozone correction is computed for every pixel.");
+            }
+        }
+
         if (checkWhetherSuspectIsValid) {
             checkWhetherSuspectIsValid();
         }
-        final PlanarImage validMaskImage = createValidMaskImage(sourceProduct, expression);
-        validMaskData = validMaskImage.getData();
+        if (!StringUtils.isNullOrEmpty(expression)) {
+            validMaskImage = createValidMaskImage(sourceProduct, expression);
+        }
     }
 
-    @Override
-    protected void configureTargetProduct(ProductConfigurer productConfigurer) {
-        super.configureTargetProduct(productConfigurer);
-        productConfigurer.copyMetadata();
-        final Product sourceProduct = productConfigurer.getSourceProduct();
-        final Product targetProduct = productConfigurer.getTargetProduct();
+    /*
+     * Reads a built-in network from its weight file, which is written by NN_WeightFileConverter at build time.
+     */
+    private static NN_BatchNet readBuiltInNet(String name) {
+        try {
+            return NN_WeightFile.readResource(name);
+        } catch (IOException e) {
+            throw new OperatorException("Cannot read built-in network weight file '" + name + "': " + e.getMessage(), e);
+        }
+    }
 
-        targetProduct.setProductType(getOutputProductType());
+    /*
+     * Reads a network from a weight file. The networks get the 12 TOA reflectances and 6 geometry
+     * and auxiliary inputs, and the result planes are laid out for the outputs of the built-in networks.
+     */
+    private NN_BatchNet readNet(File file, int numNodesOutput) {
+        final NN_BatchNet net;
+        try {
+            net = NN_WeightFile.read(file);
+        } catch (IOException e) {
+            throw new OperatorException("Cannot read network weight file '" + file + "': " + e.getMessage(), e);
+        }
+        final int numNodesInput = toa_band_indices.length + 6;
+        if (net.getNumNodesInput() != numNodesInput || net.getNumNodesOutput() != numNodesOutput) {
+            throw new OperatorException("The network of weight file '" + file + "' has " + net.getNumNodesInput() +
+                                        " inputs and " + net.getNumNodesOutput() + " outputs, expected are " +
+                                        numNodesInput + " inputs and " + numNodesOutput + " outputs.");
+        }
+        return net;
+    }
 
+    private void createTargetProduct() {
         int sceneWidth = sourceProduct.getSceneRasterWidth();
         int sceneHeight = sourceProduct.getSceneRasterHeight();
 
+        targetProduct = new Product(sourceProduct.getName(), getOutputProductType(), sceneWidth, sceneHeight);
+        targetProduct.setStartTime(sourceProduct.getStartTime());
+        targetProduct.setEndTime(sourceProduct.getEndTime());
+        ProductUtils.copyTiePointGrids(sourceProduct, targetProduct);
+        ProductUtils.copyGeoCoding(sourceProduct, targetProduct);
+        ProductUtils.copyMetadata(sourceProduct, targetProduct);
+
         if (computeCHL) {
             addConcentrationBand(targetProduct, sceneWidth, sceneHeight, 0);
         }
@@ -725,21 +757,23 @@ public class WaterProcessorOp extends PixelOperator {
 
         ProductUtils.copyFlagBands(sourceProduct, targetProduct, true);
 
-        if (!targetProduct.containsBand(EnvisatConstants.MERIS_AMORGOS_L1B_CORR_LONGITUDE_BAND_NAME)) {
-            productConfigurer.copyBands(EnvisatConstants.MERIS_AMORGOS_L1B_CORR_LONGITUDE_BAND_NAME);
-        }
-        if (!targetProduct.containsBand(EnvisatConstants.MERIS_AMORGOS_L1B_CORR_LATITUDE_BAND_NAME)) {
-            productConfigurer.copyBands(EnvisatConstants.MERIS_AMORGOS_L1B_CORR_LATITUDE_BAND_NAME);
-        }
-        productConfigurer.copyBands(EnvisatConstants.MERIS_AMORGOS_L1B_ALTIUDE_BAND_NAME);
+        copySourceBand(EnvisatConstants.MERIS_AMORGOS_L1B_CORR_LONGITUDE_BAND_NAME);
+        copySourceBand(EnvisatConstants.MERIS_AMORGOS_L1B_CORR_LATITUDE_BAND_NAME);
+        copySourceBand(EnvisatConstants.MERIS_AMORGOS_L1B_ALTIUDE_BAND_NAME);
 
         FlagCoding resultFlagCoding = createResultFlagCoding();
         targetProduct.getFlagCodingGroup().add(resultFlagCoding);
-        final Band resultFlagsOutputBand = targetProduct.addBand(result_flags_name, ProductData.TYPE_UINT16);
-        resultFlagsOutputBand.setDescription("FUB/WeW WATER plugin specific flags");
-        resultFlagsOutputBand.setSampleCoding(resultFlagCoding);
+        resultFlagsBand = targetProduct.addBand(result_flags_name, ProductData.TYPE_UINT16);
+        resultFlagsBand.setDescription("FUB/WeW WATER plugin specific flags");
+        resultFlagsBand.setSampleCoding(resultFlagCoding);
+
+        final String[] outputBandNames = getOutputBandNames();
+        outputBands = new Band[outputBandNames.length];
+        for (int i = 0; i < outputBandNames.length; i++) {
+            outputBands[i] = targetProduct.getBand(outputBandNames[i]);
+        }
 
-        productConfigurer.copyMasks();
+        ProductUtils.copyMasks(sourceProduct, targetProduct);
 
         String flagNamePrefix = result_flags_name + ".";
         addMasksToTargetProduct(targetProduct, sceneWidth, sceneHeight, flagNamePrefix);
@@ -803,13 +837,16 @@ public class WaterProcessorOp extends PixelOperator {
         return band;
     }
 
-    @Override
-    protected void configureSourceSamples(SampleConfigurer sampleConfigurer) throws OperatorException {
-        configureSamples(sampleConfigurer, source_raster_names);
+    private void copySourceBand(String bandName) {
+        if (sourceProduct.containsBand(bandName) && !targetProduct.containsBand(bandName)) {
+            ProductUtils.copyBand(bandName, sourceProduct, targetProduct, true);
+        }
     }
 
-    @Override
-    protected void configureTargetSamples(SampleConfigurer sampleConfigurer) throws OperatorException {
+    /*
+     * Returns the names of the computed bands in the order of the result planes.
+     */
+    private String[] getOutputBandNames() {
         String[] bandNames = new String[0];
         if (computeCHL) {
             bandNames = StringUtils.addToArray(bandNames, OUTPUT_CONCENTRATION_BAND_NAMES[0]);
@@ -824,14 +861,7 @@ public class WaterProcessorOp extends PixelOperator {
             bandNames = StringUtils.addArrays(bandNames, OUTPUT_OPTICAL_DEPTH_BAND_NAMES);
             bandNames = StringUtils.addArrays(bandNames, OUTPUT_REFLECTANCE_BAND_NAMES);
         }
-        bandNames = StringUtils.addToArray(bandNames, result_flags_name);
-        configureSamples(sampleConfigurer, bandNames);
-    }
-
-    private void configureSamples(SampleConfigurer sampleConfigurer, String[] bandNames) {
-        for (int i = 0; i < bandNames.length; i++) {
-            sampleConfigurer.defineSample(i, bandNames[i]);
-        }
+        return bandNames;
     }
 
     public static FlagCoding createResultFlagCoding() {
@@ -862,22 +892,25 @@ public class WaterProcessorOp extends PixelOperator {
         }
     }
 
+    /*
+     * Reads the valid mask of a tile, the image computes only the requested tiles.
+     */
+    private int[] getValidMaskSamples(Rectangle rectangle) {
+        final Raster data = validMaskImage.getData(rectangle);
+        return data.getSamples(rectangle.x, rectangle.y, rectangle.width, rectangle.height, 0,
+                               new int[rectangle.width * rectangle.height]);
+    }
+
     private PlanarImage createValidMaskImage(Product product, String expression) {
-        if (StringUtils.isNullOrEmpty(expression)) {
-            return createEmptyMask(product);
-        }
-        if (product.isCompatibleBandArithmeticExpression(expression)) {
-            return VirtualBandOpImage.create(expression, ProductData.TYPE_UINT8, 0, product, ResolutionLevel.MAXRES);
-        } else {
+        checkExpression(product, expression);
+        return VirtualBandOpImage.create(expression, ProductData.TYPE_UINT8, 0, product, ResolutionLevel.MAXRES);
+    }
+
+    private static void checkExpression(Product product, String expression) {
+        if (!product.isCompatibleBandArithmeticExpression(expression)) {
             String msg = String.format("Parameter 'expression' is not compatible with the source product. Expression is '%s'", expression);
             throw new OperatorException(msg);
         }
     }
 
-    private PlanarImage createEmptyMask(Product product) {
-        return ConstantDescriptor.create((float) product.getSceneRasterWidth(),
-                                         (float) product.getSceneRasterHeight(),
-                                         new Byte[]{-1}, null);
-    }
-
 }
@@ -0,0 +1,168 @@
+package wew.water.gpf;
+
+import org.esa.beam.framework.datamodel.RasterDataNode;
+import org.esa.beam.framework.datamodel.TiePointGrid;
+
+/**
+ * The values of the {@link WaterProcessorOp} which are constant for a scene, computed once when the
+ * operator is initialised: the solar fluxes and ozone extinction coefficients of the input bands, the
+ * numbers of network nodes and the layout of the result planes.
+ * <p/>
+ * Optionally the ozone correction factors of the TOA reflectances are computed at the tie points and
+ * interpolated bilinearly for the pixels, which saves the exponentials of the exact per pixel correction
+ * at the price of small deviations within the tie point cells.
+ */
+final class WaterSceneConstants {
+
+    private static final double TOTAL_OZONE_DU_MOMO = 344.0;
+
+    // The atm.corr. network computes 8 water leaving reflectances followed by 4 aerosol optical
+    // thicknesses, the result planes hold the thicknesses first
+    private static final int num_msl = 8;
+    private static final int num_aot = 4;
+
+    final float[] solarFlux;
+    // Ozone spectral extinction coefficients of the input bands
+    final double[] exO3;
+
+    // Number of I/O nodes of the networks
+    final int inodes;
+    final int onodes_1;
+    final int onodes_2;
+
+    // The result planes of the networks, -1 if not computed
+    final int chlPlane;
+    final int ysPlane;
+    final int tsmPlane;
+    // The result plane of each output of the atm.corr. network, null if not computed
+    final int[] atmCorrPlanes;
+    final int numPlanes;
+
+    // The MERIS bands of the TOA reflectances
+    private final int[] toaBandIndices;
+
+    // The ozone correction factors at the tie points, [toaBand][tiePoint], null if not used
+    private float[][] ozoneFactors;
+    private int tiePointWidth;
+    private int tiePointHeight;
+    private double offsetX;
+    private double offsetY;
+    private double subSamplingX;
+    private double subSamplingY;
+
+    WaterSceneConstants(double[] wavelengths, float[] solarFlux, int[] toaBandIndices, NN_BatchNet ysNet,
+                        NN_BatchNet atmCorrNet, boolean computeCHL, boolean computeYS, boolean computeTSM,
+                        boolean computeAtmCorr) {
+        this.solarFlux = solarFlux;
+        this.toaBandIndices = toaBandIndices;
+
+        // Load the ozone spectral extinction coefficients
+        exO3 = new double[wavelengths.length];
+        for (int i = 0; i < wavelengths.length; i++) {
+            exO3[i] = WaterProcessorOzone.O3excoeff(wavelengths[i]);
+        }
+
+        inodes = ysNet.getNumNodesInput();
+        // implicit atm.corr.
+        onodes_1 = ysNet.getNumNodesOutput();
+        // explicit atm.corr.
+        onodes_2 = atmCorrNet.getNumNodesOutput();
+
+        int plane = 0;
+        chlPlane = computeCHL ? plane++ : -1;
+        ysPlane = computeYS ? plane++ : -1;
+        tsmPlane = computeTSM ? plane++ : -1;
+        if (computeAtmCorr) {
+            atmCorrPlanes = new int[onodes_2];
+            for (int i = 0; i < onodes_2; i++) {
+                atmCorrPlanes[i] = i < num_msl ? plane + num_aot + i : plane + i - num_msl;
+            }
+            plane += onodes_2;
+        } else {
+            atmCorrPlanes = null;
+        }
+        numPlanes = plane;
+    }
+
+    /**
+     * Computes the ozone correction factor of a TOA reflectance.
+     *
+     * @param o3      the total ozone in DU
+     * @param exO3    the ozone extinction coefficient of the band
+     * @param airMass the air mass, <code>1/cos(vza) + 1/cos(sza)</code>
+     */
+    static double computeOzoneFactor(float o3, double exO3, double airMass) {
+        return Math.exp(-(TOTAL_OZONE_DU_MOMO - o3) * exO3 / 1000.0 * airMass);
+    }
+
+    /**
+     * Computes the ozone correction factors at the tie points. This is only possible if the sun zenith,
+     * view zenith and ozone rasters are tie point grids of the same geometry.
+     *
+     * @return whether the factors can be interpolated by {@link #getOzoneFactors}
+     */
+    boolean createOzoneFactorCache(RasterDataNode szaRaster, RasterDataNode vzaRaster, RasterDataNode o3Raster) {
+        if (!(szaRaster instanceof TiePointGrid && vzaRaster instanceof TiePointGrid && o3Raster instanceof TiePointGrid)) {
+            return false;
+        }
+        final TiePointGrid szaGrid = (TiePointGrid) szaRaster;
+        final TiePointGrid vzaGrid = (TiePointGrid) vzaRaster;
+        final TiePointGrid o3Grid = (TiePointGrid) o3Raster;
+        if (!haveSameGeometry(szaGrid, vzaGrid) || !haveSameGeometry(szaGrid, o3Grid)) {
+            return false;
+        }
+        tiePointWidth = szaGrid.getRasterWidth();
+        tiePointHeight = szaGrid.getRasterHeight();
+        if (tiePointWidth < 2 || tiePointHeight < 2) {
+            return false;
+        }
+        offsetX = szaGrid.getOffsetX();
+        offsetY = szaGrid.getOffsetY();
+        subSamplingX = szaGrid.getSubSamplingX();
+        subSamplingY = szaGrid.getSubSamplingY();
+
+        final float[] sza = szaGrid.getTiePoints();
+        final float[] vza = vzaGrid.getTiePoints();
+        final float[] o3 = o3Grid.getTiePoints();
+        ozoneFactors = new float[toaBandIndices.length][sza.length];
+        for (int i = 0; i < sza.length; i++) {
+            final double airMass = 1.0 / Math.cos(Math.toRadians(vza[i])) + 1.0 / Math.cos(Math.toRadians(sza[i]));
+            for (int l = 0; l < toaBandIndices.length; l++) {
+                ozoneFactors[l][i] = (float) computeOzoneFactor(o3[i], exO3[toaBandIndices[l]], airMass);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Interpolates the ozone correction factors of the TOA reflectances of a pixel, in the same way as
+     * the tie point grids interpolate their values.
+     *
+     * @param x       the pixel x coordinate
+     * @param y       the pixel y coordinate
+     * @param factors receives the factors in the order of the TOA bands
+     */
+    void getOzoneFactors(int x, int y, double[] factors) {
+        final double fi = (x + 0.5 - offsetX) / subSamplingX;
+        final double fj = (y + 0.5 - offsetY) / subSamplingY;
+        final int i = Math.max(0, Math.min(tiePointWidth - 2, (int) Math.floor(fi)));
+        final int j = Math.max(0, Math.min(tiePointHeight - 2, (int) Math.floor(fj)));
+        final double wi = fi - i;
+        final double wj = fj - j;
+        final int index = j * tiePointWidth + i;
+        for (int l = 0; l < factors.length; l++) {
+            final float[] f = ozoneFactors[l];
+            factors[l] = (1.0 - wj) * ((1.0 - wi) * f[index] + wi * f[index + 1])
+                         + wj * ((1.0 - wi) * f[index + tiePointWidth] + wi * f[index + tiePointWidth + 1]);
+        }
+    }
+
+    private static boolean haveSameGeometry(TiePointGrid grid1, TiePointGrid grid2) {
+        return grid1.getRasterWidth() == grid2.getRasterWidth()
+               && grid1.getRasterHeight() == grid2.getRasterHeight()
+               && grid1.getOffsetX() == grid2.getOffsetX()
+               && grid1.getOffsetY() == grid2.getOffsetY()
+               && grid1.getSubSamplingX() == grid2.getSubSamplingX()
+               && grid1.getSubSamplingY() == grid2.getSubSamplingY();
+    }
+}
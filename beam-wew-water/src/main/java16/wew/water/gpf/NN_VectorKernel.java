@@ -0,0 +1,68 @@
+package wew.water.gpf;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The SIMD implementation of {@link NN_Kernel}, using the preferred vector size of the platform, e.g. 8
+ * doubles with AVX-512. Every lane is computed by the same operations as {@link NN_ScalarKernel}, a
+ * multiplication followed by an addition without fused multiply-add, so the results are identical.
+ * <p/>
+ * This class belongs to the Java 16 layer of the multi-release JAR and is loaded by {@link NN_Kernels}.
+ */
+final class NN_VectorKernel implements NN_Kernel {
+
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    // The floats converted to or from a vector of doubles, half the size; null if not supported
+    private static final VectorSpecies<Float> FLOATS = createFloatSpecies();
+
+    /**
+     * Retrieves whether the platform has vectors of at least 2 doubles, and vectors of as many floats.
+     * The kernel must not be used otherwise.
+     */
+    public static boolean isSupported() {
+        return FLOATS != null && FLOATS.length() == DOUBLES.length();
+    }
+
+    public String getName() {
+        return "SIMD (" + DOUBLES.length() + " doubles)";
+    }
+
+    public void axpy(double a, float[] x, int xOffset, double[] y, int yOffset, int n) {
+        final int bound = DOUBLES.loopBound(n);
+        int p = 0;
+        for (; p < bound; p += DOUBLES.length()) {
+            final DoubleVector xv = (DoubleVector) FloatVector.fromArray(FLOATS, x, xOffset + p)
+                    .convertShape(VectorOperators.F2D, DOUBLES, 0);
+            final DoubleVector yv = DoubleVector.fromArray(DOUBLES, y, yOffset + p);
+            yv.add(xv.mul(a)).intoArray(y, yOffset + p);
+        }
+        for (; p < n; p++) {
+            y[yOffset + p] += (double) x[xOffset + p] * a;
+        }
+    }
+
+    public void axpy(double a, double[] x, int xOffset, float[] y, int yOffset, int n) {
+        final int bound = DOUBLES.loopBound(n);
+        int p = 0;
+        for (; p < bound; p += DOUBLES.length()) {
+            final FloatVector xv = (FloatVector) DoubleVector.fromArray(DOUBLES, x, xOffset + p).mul(a)
+                    .convertShape(VectorOperators.D2F, FLOATS, 0);
+            final FloatVector yv = FloatVector.fromArray(FLOATS, y, yOffset + p);
+            yv.add(xv).intoArray(y, yOffset + p);
+        }
+        for (; p < n; p++) {
+            y[yOffset + p] += (float) (x[xOffset + p] * a);
+        }
+    }
+
+    private static VectorSpecies<Float> createFloatSpecies() {
+        if (DOUBLES.length() < 2) {
+            return null;
+        }
+        return VectorSpecies.of(float.class, VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+    }
+}
@@ -0,0 +1,137 @@
+package wew.water.gpf;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the batch networks give exactly the results of the original per-pixel networks, including
+ * the range check codes in <code>a[x]</code>.
+ */
+public class NN_BatchNetTest {
+
+    private static final int NUM_INPUTS = 18;
+    private static final int[] NUM_OUTPUTS = {1, 1, 1, 12};
+    private static final String[] NET_NAMES = {"CHL", "YS", "TSM", "AtmCorr"};
+    // several blocks with a remainder
+    private static final int[] WIDTHS = {1, NN_BatchNet.BLOCK_SIZE - 1, NN_BatchNet.BLOCK_SIZE,
+            NN_BatchNet.BLOCK_SIZE + 1, 3 * NN_BatchNet.BLOCK_SIZE + 17};
+
+    @Test
+    public void testBatchNetsEqualPixelNetsForInputsInRange() {
+        assertBatchNetsEqualPixelNets(new Random(5), 0.0);
+    }
+
+    @Test
+    public void testBatchNetsEqualPixelNetsForInputsOutOfRange() {
+        assertBatchNetsEqualPixelNets(new Random(7), 0.2);
+    }
+
+    @Test
+    public void testNumberOfNodes() {
+        for (int net = 0; net < NET_NAMES.length; net++) {
+            final NN_BatchNet batchNet = getBatchNet(net);
+            assertEquals(NET_NAMES[net], NUM_INPUTS, batchNet.getNumNodesInput());
+            assertEquals(NET_NAMES[net], NUM_OUTPUTS[net], batchNet.getNumNodesOutput());
+            assertEquals(NET_NAMES[net], NUM_INPUTS, batchNet.compute(null, -1, null, 1, 1, null, 0, null));
+            assertEquals(NET_NAMES[net], NUM_OUTPUTS[net], batchNet.compute(null, 1, null, -1, 1, null, 0, null));
+        }
+    }
+
+    /*
+     * The inputs are spread over the training ranges widened by the given fraction on both sides, some
+     * pixels are masked and some are not range checked.
+     */
+    private static void assertBatchNetsEqualPixelNets(Random random, double margin) {
+        int numRangeFailures = 0;
+        for (int net = 0; net < NET_NAMES.length; net++) {
+            final int numOutputs = NUM_OUTPUTS[net];
+            for (int width : WIDTHS) {
+                for (int errmask = 0; errmask <= 16; errmask += 16) {
+                    final float[][] in = new float[NUM_INPUTS][width];
+                    for (int i = 0; i < NUM_INPUTS; i++) {
+                        final double min = NN_General.NODES_INPUT_SCALE_LIMITS[i][0];
+                        final double range = NN_General.NODES_INPUT_SCALE_LIMITS[i][1] - min;
+                        for (int x = 0; x < width; x++) {
+                            in[i][x] = (float) (min - margin * range + (1.0 + 2.0 * margin) * range * random.nextDouble());
+                        }
+                    }
+                    final int[] mask = new int[width];
+                    final float[] a = new float[width];
+                    for (int x = 0; x < width; x++) {
+                        mask[x] = random.nextInt(5) == 0 ? 1 : 0;
+                        a[x] = random.nextInt(4) == 0 ? 1.0f : -1.0f;
+                    }
+                    final float[][] batchIn = copy(in);
+                    final int[] batchMask = mask.clone();
+                    final float[] batchA = a.clone();
+                    final float[][] out = new float[numOutputs][width];
+                    final float[][] batchOut = new float[numOutputs][width];
+
+                    final int expected = computePixelNet(net, in, out, width, mask, errmask, a);
+                    final int actual = getBatchNet(net).compute(batchIn, NUM_INPUTS, batchOut, numOutputs, width,
+                                                                batchMask, errmask, batchA);
+
+                    final String message = NET_NAMES[net] + ", width " + width + ", errmask " + errmask;
+                    assertEquals(message, expected, actual);
+                    for (int x = 0; x < width; x++) {
+                        final String pixelMessage = message + ", pixel " + x;
+                        assertEquals(pixelMessage, a[x], batchA[x], 0.0f);
+                        assertEquals(pixelMessage, mask[x], batchMask[x]);
+                        for (int k = 0; k < numOutputs; k++) {
+                            assertEquals(pixelMessage, out[k][x], batchOut[k][x], 0.0f);
+                        }
+                        for (int i = 0; i < NUM_INPUTS; i++) {
+                            assertEquals(pixelMessage, in[i][x], batchIn[i][x], 0.0f);
+                        }
+                        if (a[x] < -1.5f) {
+                            numRangeFailures++;
+                        }
+                    }
+                }
+            }
+        }
+        if (margin > 0.0) {
+            assertTrue(numRangeFailures > 0);
+        }
+    }
+
+    private static int computePixelNet(int net, float[][] in, float[][] out, int width, int[] mask, int errmask,
+                                       float[] a) {
+        final int numOutputs = NUM_OUTPUTS[net];
+        switch (net) {
+            case 0:
+                return NN_CHL.compute(in, NUM_INPUTS, out, numOutputs, width, mask, errmask, a);
+            case 1:
+                return NN_YellowSubstance.compute(in, NUM_INPUTS, out, numOutputs, width, mask, errmask, a);
+            case 2:
+                return NN_TSM.compute(in, NUM_INPUTS, out, numOutputs, width, mask, errmask, a);
+            default:
+                return NN_AtmCorr.compute(in, NUM_INPUTS, out, numOutputs, width, mask, errmask, a);
+        }
+    }
+
+    private static NN_BatchNet getBatchNet(int net) {
+        switch (net) {
+            case 0:
+                return NN_CHL.getBatchNet();
+            case 1:
+                return NN_YellowSubstance.getBatchNet();
+            case 2:
+                return NN_TSM.getBatchNet();
+            default:
+                return NN_AtmCorr.getBatchNet();
+        }
+    }
+
+    private static float[][] copy(float[][] data) {
+        final float[][] copy = new float[data.length][];
+        for (int i = 0; i < data.length; i++) {
+            copy[i] = data[i].clone();
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,176 @@
+package wew.water.gpf;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the error bounds of {@link NN_FastMath} and that the fast-math mode of the networks does not
+ * change any range check result, i.e. any of the {@link WaterProcessorOp#RESULT_ERROR_VALUES} flags. The
+ * maximum and RMS deviations of the network outputs are printed and checked against fixed bounds.
+ */
+public class NN_FastMathTest {
+
+    private static final int NODES_INPUT = 18;
+    private static final int LINE_WIDTH = 1000;
+
+    @Test
+    public void testExpRelativeError() {
+        final Random random = new Random(1);
+        for (int n = 0; n < 1000000; n++) {
+            assertExpRelativeError(-708.0 + 1417.0 * random.nextDouble());
+        }
+        for (int n = 0; n < 100000; n++) {
+            assertExpRelativeError(-20.0 + 40.0 * random.nextDouble());
+        }
+        // the interval boundaries of the table, where |r| is largest
+        for (int j = -64 * 4; j <= 64 * 4; j++) {
+            final double x = (j + 0.5) * Math.log(2.0) / 64.0;
+            assertExpRelativeError(Math.nextUp(x));
+            assertExpRelativeError(Math.nextAfter(x, Double.NEGATIVE_INFINITY));
+        }
+        assertExpRelativeError(-708.0);
+        assertExpRelativeError(0.0);
+        assertExpRelativeError(709.0);
+    }
+
+    @Test
+    public void testExpOutOfRange() {
+        assertEquals(0.0, NN_FastMath.exp(-708.5), 0.0);
+        assertEquals(0.0, NN_FastMath.exp(Double.NEGATIVE_INFINITY), 0.0);
+        assertEquals(Double.POSITIVE_INFINITY, NN_FastMath.exp(709.5), 0.0);
+        assertEquals(Double.POSITIVE_INFINITY, NN_FastMath.exp(Double.POSITIVE_INFINITY), 0.0);
+    }
+
+    @Test
+    public void testSigmoidAbsoluteError() {
+        final Random random = new Random(2);
+        for (int n = 0; n < 100000; n++) {
+            final double x = -50.0 + 100.0 * random.nextDouble();
+            assertEquals(1.0 / (1.0 + Math.exp(-x)), NN_FastMath.sigmoid(x), 1.0e-11);
+        }
+    }
+
+    /*
+     * The inputs are drawn from the input limits widened by 5 % on both sides, so that the range checks
+     * fail for some pixels. The maximum and RMS deviations of every output of the networks are printed,
+     * the outputs 8 to 11 of the atmospheric correction network are the aerosol optical thicknesses.
+     */
+    @Test
+    public void testFastMathChangesNoResultFlags() {
+        final Random random = new Random(1);
+        final float[][] input = new float[NODES_INPUT][LINE_WIDTH];
+        final float[][] in = new float[NODES_INPUT][LINE_WIDTH];
+        final float[][] out = new float[12][LINE_WIDTH];
+        final float[][] outFast = new float[12][LINE_WIDTH];
+        final int[] mask = new int[LINE_WIDTH];
+        final float[] a = new float[LINE_WIDTH];
+        final float[] aFast = new float[LINE_WIDTH];
+        final Deviation[][] deviations = {
+                {new Deviation("CHL")},
+                {new Deviation("YS")},
+                {new Deviation("TSM")},
+                new Deviation[12]
+        };
+        for (int k = 0; k < 12; k++) {
+            deviations[3][k] = new Deviation(k < 8 ? "AtmCorr " + k : "AOT " + (k - 8));
+        }
+
+        int numRangeFailures = 0;
+        for (int line = 0; line < 50; line++) {
+            for (int i = 0; i < NODES_INPUT; i++) {
+                final double min = NN_General.NODES_INPUT_SCALE_LIMITS[i][0];
+                final double max = NN_General.NODES_INPUT_SCALE_LIMITS[i][1];
+                final double margin = 0.05 * (max - min);
+                for (int x = 0; x < LINE_WIDTH; x++) {
+                    input[i][x] = (float) (min - margin + (max - min + 2.0 * margin) * random.nextDouble());
+                }
+            }
+            for (int net = 0; net < 4; net++) {
+                final int nodes_output = deviations[net].length;
+                compute(net, input, in, out, nodes_output, mask, a, false);
+                compute(net, input, in, outFast, nodes_output, mask, aFast, true);
+                for (int x = 0; x < LINE_WIDTH; x++) {
+                    // The range check result a[x] determines the error flags of the stage
+                    assertEquals("net " + net + ", line " + line + ", pixel " + x, a[x], aFast[x], 0.0f);
+                    for (int k = 0; k < nodes_output; k++) {
+                        deviations[net][k].add(out[k][x], outFast[k][x]);
+                    }
+                    if (a[x] < -1.5f) {
+                        numRangeFailures++;
+                    }
+                }
+            }
+        }
+        assertTrue(numRangeFailures > 0);
+
+        for (Deviation[] netDeviations : deviations) {
+            for (Deviation deviation : netDeviations) {
+                System.out.println("NN_FastMathTest: " + deviation);
+                assertTrue(deviation.toString(), deviation.max < 1.0e-6);
+                assertTrue(deviation.toString(), deviation.getRms() < 1.0e-7);
+            }
+        }
+    }
+
+    private static void assertExpRelativeError(double x) {
+        final double expected = Math.exp(x);
+        final double relativeError = Math.abs(NN_FastMath.exp(x) - expected) / expected;
+        assertTrue("x = " + x + ", relative error " + relativeError, relativeError < 4.0e-11);
+    }
+
+    private static class Deviation {
+
+        private final String name;
+        private double max;
+        private double sumSquares;
+        private long count;
+
+        private Deviation(String name) {
+            this.name = name;
+        }
+
+        private void add(float expected, float actual) {
+            final double d = Math.abs((double) actual - (double) expected);
+            max = Math.max(max, d);
+            sumSquares += d * d;
+            count++;
+        }
+
+        private double getRms() {
+            return Math.sqrt(sumSquares / Math.max(count, 1));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-9s max deviation %.3e, RMS deviation %.3e", name, max, getRms());
+        }
+    }
+
+    private static void compute(int net, float[][] input, float[][] in, float[][] out, int nodes_output,
+                                int[] mask, float[] a, boolean fastMath) {
+        for (int i = 0; i < NODES_INPUT; i++) {
+            System.arraycopy(input[i], 0, in[i], 0, LINE_WIDTH);
+        }
+        for (int x = 0; x < LINE_WIDTH; x++) {
+            mask[x] = 0;
+            a[x] = -1.0f;
+        }
+        switch (net) {
+            case 0:
+                NN_CHL.computeBatch(in, NODES_INPUT, out, nodes_output, LINE_WIDTH, mask, 0, a, fastMath);
+                break;
+            case 1:
+                NN_YellowSubstance.computeBatch(in, NODES_INPUT, out, nodes_output, LINE_WIDTH, mask, 0, a, fastMath);
+                break;
+            case 2:
+                NN_TSM.computeBatch(in, NODES_INPUT, out, nodes_output, LINE_WIDTH, mask, 0, a, fastMath);
+                break;
+            default:
+                NN_AtmCorr.computeBatch(in, NODES_INPUT, out, nodes_output, LINE_WIDTH, mask, 0, a, fastMath);
+        }
+    }
+}
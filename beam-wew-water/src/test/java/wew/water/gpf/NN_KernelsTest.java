@@ -0,0 +1,139 @@
+package wew.water.gpf;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeNotNull;
+
+/**
+ * Checks that the SIMD implementation of {@link NN_Kernel} gives exactly the results of the scalar one. The
+ * SIMD kernel requires Java 16 or later and <code>--add-modules jdk.incubator.vector</code>, see
+ * {@link NN_Kernels}, the tests are skipped otherwise.
+ */
+public class NN_KernelsTest {
+
+    private static final int NODES_INPUT = 18;
+    private static final int LINE_WIDTH = 1000;
+
+    @Test
+    public void testDefaultKernel() {
+        assertNotNull(NN_Kernels.getScalar());
+        final NN_Kernel expected = NN_Kernels.getVector() != null ? NN_Kernels.getVector() : NN_Kernels.getScalar();
+        assertEquals(expected, NN_Kernels.getDefault());
+    }
+
+    @Test
+    public void testAxpy() {
+        final NN_Kernel scalarKernel = NN_Kernels.getScalar();
+        final NN_Kernel vectorKernel = NN_Kernels.getVector();
+        assumeNotNull(vectorKernel);
+
+        final Random random = new Random(3);
+        final float[] floats = new float[100];
+        final double[] doubles = new double[100];
+        for (int i = 0; i < floats.length; i++) {
+            floats[i] = (float) random.nextGaussian();
+            doubles[i] = random.nextGaussian();
+        }
+        // lengths and offsets covering whole vectors and remainders
+        for (int n = 0; n <= 40; n++) {
+            for (int offset = 0; offset <= 5; offset++) {
+                final double a = random.nextGaussian();
+
+                final double[] scalarDoubles = doubles.clone();
+                final double[] vectorDoubles = doubles.clone();
+                scalarKernel.axpy(a, floats, offset, scalarDoubles, 5 - offset, n);
+                vectorKernel.axpy(a, floats, offset, vectorDoubles, 5 - offset, n);
+                assertIdentical("n = " + n + ", offset = " + offset, scalarDoubles, vectorDoubles);
+
+                final float[] scalarFloats = floats.clone();
+                final float[] vectorFloats = floats.clone();
+                scalarKernel.axpy(a, doubles, offset, scalarFloats, 5 - offset, n);
+                vectorKernel.axpy(a, doubles, offset, vectorFloats, 5 - offset, n);
+                assertIdentical("n = " + n + ", offset = " + offset, scalarFloats, vectorFloats);
+            }
+        }
+    }
+
+    /*
+     * The inputs are drawn from the input limits widened by 5 % on both sides, so that the range checks
+     * fail for some pixels. The outputs, the transformed inputs, the range check results and the masks
+     * must be identical.
+     */
+    @Test
+    public void testNetworksGiveIdenticalResults() {
+        final NN_Kernel scalarKernel = NN_Kernels.getScalar();
+        final NN_Kernel vectorKernel = NN_Kernels.getVector();
+        assumeNotNull(vectorKernel);
+
+        final NN_BatchNet[] nets = {
+                NN_CHL.getBatchNet(), NN_YellowSubstance.getBatchNet(), NN_TSM.getBatchNet(), NN_AtmCorr.getBatchNet()
+        };
+        final Random random = new Random(1);
+        final float[][] input = new float[NODES_INPUT][LINE_WIDTH];
+        final Result scalar = new Result();
+        final Result vector = new Result();
+        for (int line = 0; line < 20; line++) {
+            for (int i = 0; i < NODES_INPUT; i++) {
+                final double min = NN_General.NODES_INPUT_SCALE_LIMITS[i][0];
+                final double max = NN_General.NODES_INPUT_SCALE_LIMITS[i][1];
+                final double margin = 0.05 * (max - min);
+                for (int x = 0; x < LINE_WIDTH; x++) {
+                    input[i][x] = (float) (min - margin + (max - min + 2.0 * margin) * random.nextDouble());
+                }
+            }
+            for (NN_BatchNet net : nets) {
+                scalar.compute(net, input, scalarKernel);
+                vector.compute(net, input, vectorKernel);
+                scalar.assertIdenticalTo(vector, net.getNumNodesOutput());
+            }
+        }
+    }
+
+    private static class Result {
+
+        private final float[][] in = new float[NODES_INPUT][LINE_WIDTH];
+        private final float[][] out = new float[12][LINE_WIDTH];
+        private final int[] mask = new int[LINE_WIDTH];
+        private final float[] a = new float[LINE_WIDTH];
+
+        private void compute(NN_BatchNet net, float[][] input, NN_Kernel kernel) {
+            for (int i = 0; i < NODES_INPUT; i++) {
+                System.arraycopy(input[i], 0, in[i], 0, LINE_WIDTH);
+            }
+            Arrays.fill(mask, 0);
+            Arrays.fill(a, -1.0f);
+            net.compute(in, NODES_INPUT, out, net.getNumNodesOutput(), LINE_WIDTH, mask, 1, a, false, kernel);
+        }
+
+        private void assertIdenticalTo(Result other, int nodes_output) {
+            assertArrayEquals(mask, other.mask);
+            assertIdentical("a", a, other.a);
+            for (int i = 0; i < NODES_INPUT; i++) {
+                assertIdentical("input " + i, in[i], other.in[i]);
+            }
+            for (int i = 0; i < nodes_output; i++) {
+                assertIdentical("output " + i, out[i], other.out[i]);
+            }
+        }
+    }
+
+    private static void assertIdentical(String message, double[] expected, double[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(message + ", element " + i,
+                         Double.doubleToLongBits(expected[i]), Double.doubleToLongBits(actual[i]));
+        }
+    }
+
+    private static void assertIdentical(String message, float[] expected, float[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(message + ", element " + i,
+                         Float.floatToIntBits(expected[i]), Float.floatToIntBits(actual[i]));
+        }
+    }
+}
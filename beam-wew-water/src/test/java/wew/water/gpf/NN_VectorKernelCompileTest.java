@@ -0,0 +1,76 @@
+package wew.water.gpf;
+
+import org.junit.Test;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that the Java 16 layer (src/main/java16) compiles with the options of the build profile simd on the
+ * JDK running the tests, so that an automatic activation of the profile cannot break the build. Skipped
+ * before Java 16 and if no compiler is available.
+ */
+public class NN_VectorKernelCompileTest {
+
+    private static final String SOURCE_PATH = "src/main/java16/wew/water/gpf/NN_VectorKernel.java";
+
+    @Test
+    public void testJava16LayerCompiles() throws IOException {
+        final int javaVersion = getJavaVersion();
+        assumeTrue(javaVersion >= 16);
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assumeNotNull(compiler);
+
+        File source = new File(SOURCE_PATH);
+        if (!source.exists()) {
+            source = new File("beam-wew-water/" + SOURCE_PATH);
+        }
+        final File outputDir = File.createTempFile("NN_VectorKernelCompileTest", "");
+        assertTrue(outputDir.delete() && outputDir.mkdir());
+        try {
+            // the options of the execution compile-java16 in pom.xml
+            final List<String> options = Arrays.asList("--release", String.valueOf(javaVersion),
+                                                       "--add-modules", "jdk.incubator.vector",
+                                                       "-classpath", System.getProperty("java.class.path"),
+                                                       "-d", outputDir.getPath());
+            final StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+            final Iterable<? extends JavaFileObject> sources = fileManager.getJavaFileObjects(source);
+            final StringWriter output = new StringWriter();
+            final boolean success = compiler.getTask(output, fileManager, null, options, null, sources).call();
+            fileManager.close();
+            assertTrue(output.toString(), success);
+        } finally {
+            delete(outputDir);
+        }
+    }
+
+    /**
+     * @return the feature version of the running Java, e.g. 6 for "1.6" and 17 for "17"
+     */
+    private static int getJavaVersion() {
+        final String version = System.getProperty("java.specification.version");
+        final String feature = version.startsWith("1.") ? version.substring(2) : version;
+        return Integer.parseInt(feature);
+    }
+
+    private static void delete(File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
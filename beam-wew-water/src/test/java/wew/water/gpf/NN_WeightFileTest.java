@@ -0,0 +1,73 @@
+package wew.water.gpf;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NN_WeightFileTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("NN_WeightFileTest", NN_WeightFile.FILE_EXTENSION);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testReadBuiltInNetwork() throws IOException {
+        NN_AtmCorr.writeWeightFile(file);
+        assertEquals(NN_AtmCorr.getBatchNet(), NN_WeightFile.read(file));
+    }
+
+    /*
+     * The weight files are written by NN_WeightFileConverter in the build.
+     */
+    @Test
+    public void testShippedWeightFilesHoldBuiltInNetworks() throws IOException {
+        assertEquals(NN_CHL.getBatchNet(), NN_WeightFile.readResource(NN_WeightFileConverter.CHL_FILE_NAME));
+        assertEquals(NN_YellowSubstance.getBatchNet(), NN_WeightFile.readResource(NN_WeightFileConverter.YS_FILE_NAME));
+        assertEquals(NN_TSM.getBatchNet(), NN_WeightFile.readResource(NN_WeightFileConverter.TSM_FILE_NAME));
+        assertEquals(NN_AtmCorr.getBatchNet(), NN_WeightFile.readResource(NN_WeightFileConverter.ATM_CORR_FILE_NAME));
+        assertSame(NN_WeightFile.readResource(NN_WeightFileConverter.CHL_FILE_NAME),
+                   NN_WeightFile.readResource(NN_WeightFileConverter.CHL_FILE_NAME));
+    }
+
+    @Test
+    public void testMissingResource() {
+        try {
+            NN_WeightFile.readResource("missing" + NN_WeightFile.FILE_EXTENSION);
+            fail("IOException expected");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testFileIsReadAgainWhenChanged() throws IOException {
+        NN_CHL.writeWeightFile(file);
+        final NN_BatchNet net = NN_WeightFile.read(file);
+        assertEquals(NN_CHL.getBatchNet(), net);
+        assertSame(net, NN_WeightFile.read(file));
+
+        // a different network at the same path
+        final long lastModified = file.lastModified();
+        NN_TSM.writeWeightFile(file);
+        assertTrue(file.setLastModified(lastModified + 2000L));
+        final NN_BatchNet changedNet = NN_WeightFile.read(file);
+        assertNotSame(net, changedNet);
+        assertEquals(NN_TSM.getBatchNet(), changedNet);
+    }
+}
@@ -0,0 +1,412 @@
+package wew.water.gpf;
+
+import org.esa.beam.dataio.envisat.EnvisatConstants;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.RasterDataNode;
+import org.esa.beam.framework.datamodel.TiePointGrid;
+import org.esa.beam.framework.gpf.GPF;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the output of the {@link WaterProcessorOp} with a reference implementation of the original
+ * per-pixel algorithm for a synthetic MERIS L1b product containing valid, invalid and suspect pixels.
+ */
+public class WaterProcessorOpTest {
+
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 29;
+
+    private static final int GLINT_RISK_FLAG = 0x04;
+    private static final int SUSPECT_FLAG = 0x08;
+    private static final int BRIGHT_FLAG = 0x20;
+    private static final int INVALID_FLAG = 0x80;
+
+    private static final int[] TOA_BAND_INDICES = {0, 1, 2, 3, 4, 5, 6, 8, 9, 11, 12, 13};
+
+    private static final float[] SOLAR_FLUX = {
+            1670.5964f, 1824.1444f, 1874.9883f, 1877.6682f, 1754.7749f, 1606.6401f, 1490.0026f, 1431.8726f,
+            1369.2035f, 1231.7164f, 1220.0767f, 1144.9675f, 932.3497f, 904.8193f, 871.0908f
+    };
+
+    @Test
+    public void testOperatorIsEquivalentToPixelAlgorithm() {
+        final Product sourceProduct = createMerisL1bProduct(false);
+        try {
+            assertOperatorIsEquivalentToPixelAlgorithm(sourceProduct, new HashMap<String, Object>(),
+                                                       true, true, true, true, false);
+        } finally {
+            sourceProduct.dispose();
+        }
+    }
+
+    @Test
+    public void testOperatorIsEquivalentToPixelAlgorithmForSelectedBands() {
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("computeCHL", Boolean.FALSE);
+        parameters.put("computeTSM", Boolean.FALSE);
+        final Product sourceProduct = createMerisL1bProduct(false);
+        try {
+            assertOperatorIsEquivalentToPixelAlgorithm(sourceProduct, parameters, false, true, false, true, false);
+        } finally {
+            sourceProduct.dispose();
+        }
+    }
+
+    @Test
+    public void testSuspectPixelsAreProcessedIfMostPixelsAreSuspect() {
+        final Product sourceProduct = createMerisL1bProduct(true);
+        try {
+            assertOperatorIsEquivalentToPixelAlgorithm(sourceProduct, new HashMap<String, Object>(),
+                                                       true, true, true, true, true);
+        } finally {
+            sourceProduct.dispose();
+        }
+    }
+
+    @Test
+    public void testValidMaskIsNotAddedToProducts() {
+        final Product sourceProduct = createMerisL1bProduct(false);
+        try {
+            final int sourceMaskCount = sourceProduct.getMaskGroup().getNodeCount();
+            final Product firstProduct = GPF.createProduct("FUB.Water", new HashMap<String, Object>(), sourceProduct);
+            final Map<String, Object> parameters = new HashMap<String, Object>();
+            parameters.put("expression", "not l1_flags.INVALID");
+            final Product secondProduct = GPF.createProduct("FUB.Water", parameters, sourceProduct);
+
+            assertEquals(sourceMaskCount, sourceProduct.getMaskGroup().getNodeCount());
+            assertEquals(firstProduct.getMaskGroup().getNodeCount(), secondProduct.getMaskGroup().getNodeCount());
+
+            // pixel 5 is bright only, every operator must keep using its own expression
+            final int[] firstFlags = getSamplesInt(firstProduct.getBand("result_flags"));
+            final int[] secondFlags = getSamplesInt(secondProduct.getBand("result_flags"));
+            assertEquals(WaterProcessorOp.RESULT_ERROR_VALUES[0], firstFlags[5]);
+            assertEquals(0, secondFlags[5] & WaterProcessorOp.RESULT_ERROR_VALUES[0]);
+        } finally {
+            sourceProduct.dispose();
+        }
+    }
+
+    private static void assertOperatorIsEquivalentToPixelAlgorithm(Product sourceProduct,
+                                                                   Map<String, Object> parameters,
+                                                                   boolean computeCHL, boolean computeYS,
+                                                                   boolean computeTSM, boolean computeAtmCorr,
+                                                                   boolean suspectIsValid) {
+        final Product targetProduct = GPF.createProduct("FUB.Water", parameters, sourceProduct);
+
+        final String[] bandNames = getOutputBandNames(computeCHL, computeYS, computeTSM, computeAtmCorr);
+        final float[][] actual = new float[bandNames.length][];
+        for (int n = 0; n < bandNames.length; n++) {
+            actual[n] = getSamplesFloat(targetProduct.getBand(bandNames[n]));
+        }
+        final int[] actualFlags = getSamplesInt(targetProduct.getBand("result_flags"));
+
+        final float[][] radiance = new float[EnvisatConstants.MERIS_L1B_NUM_SPECTRAL_BANDS][];
+        final double[] wavelengths = new double[radiance.length];
+        for (int b = 0; b < radiance.length; b++) {
+            final Band band = sourceProduct.getBand("radiance_" + (b + 1));
+            radiance[b] = getSamplesFloat(band);
+            wavelengths[b] = band.getSpectralWavelength();
+        }
+        final float[][] aux = new float[8][];
+        for (int k = 0; k < aux.length; k++) {
+            aux[k] = getSamplesFloat(sourceProduct.getRasterDataNode(EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[6 + k]));
+        }
+        final int[] l1Flags = getSamplesInt(sourceProduct.getBand(EnvisatConstants.MERIS_L1B_FLAGS_DS_NAME));
+
+        int numInvalid = 0;
+        int numFailed = 0;
+        final float[] pixelRadiance = new float[radiance.length];
+        final float[] pixelAux = new float[aux.length];
+        final float[] expected = new float[bandNames.length + 1];
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            for (int b = 0; b < radiance.length; b++) {
+                pixelRadiance[b] = radiance[b][i];
+            }
+            for (int k = 0; k < aux.length; k++) {
+                pixelAux[k] = aux[k][i];
+            }
+            int invalidFlags = GLINT_RISK_FLAG | BRIGHT_FLAG | INVALID_FLAG;
+            if (!suspectIsValid) {
+                invalidFlags |= SUSPECT_FLAG;
+            }
+            final boolean valid = (l1Flags[i] & invalidFlags) == 0;
+            computePixel(pixelRadiance, pixelAux, valid, wavelengths, computeCHL, computeYS, computeTSM,
+                         computeAtmCorr, expected);
+
+            final String pixel = "pixel " + i;
+            for (int n = 0; n < bandNames.length; n++) {
+                assertEquals(pixel + ", " + bandNames[n], expected[n], actual[n][i], 0.0f);
+            }
+            assertEquals(pixel + ", result_flags", (int) expected[bandNames.length], actualFlags[i]);
+            if (!valid) {
+                numInvalid++;
+            } else if (actualFlags[i] != 0) {
+                numFailed++;
+            }
+        }
+        // the product must cover masked pixels, processed pixels and range failures
+        assertTrue(numInvalid > 0);
+        assertTrue(numInvalid < WIDTH * HEIGHT);
+        assertTrue(numFailed > 0);
+    }
+
+    /*
+     * The per-pixel algorithm of the original operator, running the networks one pixel at a time.
+     * The target samples receive the output planes followed by the result flags.
+     */
+    private static void computePixel(float[] toa, float[] aux, boolean valid, double[] wavelengths,
+                                     boolean computeCHL, boolean computeYS, boolean computeTSM,
+                                     boolean computeAtmCorr, float[] targetSamples) {
+        final float aset = -1.0f;
+        final int width = 1;
+        final int x = 0;
+        final double d2r = Math.acos(-1.0) / 180.0;
+        final int[] resultFlags = new int[width];
+        final float[] a = new float[width];
+
+        // Get the number of I/O nodes in advance
+        float[][] ipixel = new float[2][1];
+        float[][] opixel = new float[2][1];
+        final int inodes = NN_YellowSubstance.compute(ipixel, -1, opixel, 1, width, resultFlags, 0, a);
+        final int onodes_1 = NN_YellowSubstance.compute(ipixel, 1, opixel, -1, width, resultFlags, 0, a);
+        final int onodes_2 = NN_AtmCorr.compute(ipixel, 1, opixel, -1, width, resultFlags, 0, a);
+
+        final float sza = aux[0];
+        final float saa = aux[1];
+        final float vza = aux[2];
+        final float vaa = aux[3];
+        final float zw = aux[4];
+        final float mw = aux[5];
+        final float press = aux[6];
+        final float o3 = aux[7];
+
+        int resultFlagsNN = 0;
+        if (!valid) {
+            resultFlags[x] = WaterProcessorOp.RESULT_ERROR_VALUES[0];
+        }
+
+        // STAGE 0
+        ipixel = new float[inodes][width];
+        final float[][] ipixels = new float[inodes][width];
+        opixel = new float[onodes_1][width];
+        final double totalOzoneDuMomo = 344.0;
+        int l = 0;
+        for (int n : TOA_BAND_INDICES) {
+            final double exO3 = WaterProcessorOzone.O3excoeff(wavelengths[n]);
+            final double o3f = Math.exp(-(totalOzoneDuMomo - o3) * exO3 / 1000.0 * (1.0 / Math.cos(
+                    (double) vza * d2r) + 1.0 / Math.cos((double) sza * d2r)));
+            float top = toa[n] / SOLAR_FLUX[n];
+            top *= o3f;
+            ipixel[l++][x] = top;
+        }
+        ipixel[l++][x] = (float) Math.sqrt((double) (zw * zw + mw * mw));
+        ipixel[l++][x] = press;
+
+        float dazi = vaa - saa;
+        while (dazi <= -180.0f) {
+            dazi += 360.0f;
+        }
+        while (dazi > 180.0f) {
+            dazi -= 360.0f;
+        }
+        final float tmp = dazi;
+        if (tmp >= 0.0f) {
+            dazi = +180.0f - dazi;
+        }
+        if (tmp < 0.0f) {
+            dazi = -180.0f - dazi;
+        }
+        ipixel[l++][x] = (float) Math.cos((double) sza * d2r);
+        ipixel[l++][x] = (float) (Math.sin((double) vza * d2r) * Math.cos((double) dazi * d2r));
+        ipixel[l++][x] = (float) (Math.sin((double) vza * d2r) * Math.sin((double) dazi * d2r));
+        ipixel[l++][x] = (float) (Math.cos((double) vza * d2r));
+        final int ls = l;
+        for (l = 0; l < ls; l++) {
+            ipixels[l][x] = ipixel[l][x];
+        }
+
+        // STAGE 1-4
+        final float[] result = new float[targetSamples.length - 1];
+        int resultCounter = 0;
+        if (computeCHL) {
+            a[x] = aset;
+            NN_CHL.compute(ipixel, inodes, opixel, onodes_1, width, resultFlags, 0, a);
+            resultFlagsNN |= getRangeFailureFlags(1, a[x]);
+            result[resultCounter++] = opixel[0][x];
+        }
+        if (computeYS) {
+            reloadPixel(ipixel, ipixels, ls);
+            a[x] = aset;
+            NN_YellowSubstance.compute(ipixel, inodes, opixel, onodes_1, width, resultFlags, 0, a);
+            resultFlagsNN |= getRangeFailureFlags(2, a[x]);
+            result[resultCounter++] = opixel[0][x];
+        }
+        if (computeTSM) {
+            reloadPixel(ipixel, ipixels, ls);
+            a[x] = aset;
+            NN_TSM.compute(ipixel, inodes, opixel, onodes_1, width, resultFlags, 0, a);
+            resultFlagsNN |= getRangeFailureFlags(3, a[x]);
+            result[resultCounter++] = opixel[0][x];
+        }
+        if (computeAtmCorr) {
+            opixel = new float[onodes_2][width];
+            reloadPixel(ipixel, ipixels, ls);
+            a[x] = aset;
+            NN_AtmCorr.compute(ipixel, inodes, opixel, onodes_2, width, resultFlags, 0, a);
+            resultFlagsNN |= getRangeFailureFlags(4, a[x]);
+
+            // The aots are followed by the reflectances
+            final int numReflectances = WaterProcessorOp.OUTPUT_REFLECTANCE_BAND_NAMES.length;
+            final int numAots = WaterProcessorOp.OUTPUT_OPTICAL_DEPTH_BAND_NAMES.length;
+            for (int i = numReflectances; i < onodes_2; i++) {
+                result[resultCounter + i - numReflectances] = opixel[i][x];
+            }
+            for (int i = 0; i < numReflectances; i++) {
+                result[resultCounter + numAots + i] = opixel[i][x];
+            }
+        }
+        if (resultFlags[x] != 0) {
+            for (int n = 0; n < result.length; n++) {
+                result[n] = 5.0f;
+            }
+        }
+        resultFlags[x] |= resultFlagsNN;
+
+        System.arraycopy(result, 0, targetSamples, 0, result.length);
+        targetSamples[result.length] = resultFlags[x];
+    }
+
+    private static void reloadPixel(float[][] ipixel, float[][] ipixels, int ls) {
+        for (int l = 0; l < ls; l++) {
+            ipixel[l][0] = ipixels[l][0];
+        }
+    }
+
+    private static int getRangeFailureFlags(int stage, float a) {
+        int flags = 0;
+        // Input range failure
+        if ((a > -2.1) && (a < -1.9)) {
+            flags |= WaterProcessorOp.RESULT_ERROR_VALUES[2 * stage - 1];
+        }
+        // Output range failure
+        if ((a > -19.1) && (a < -18.9)) {
+            flags |= WaterProcessorOp.RESULT_ERROR_VALUES[2 * stage];
+        }
+        // Input AND Output range failure
+        if ((a > -22.1) && (a < -21.9)) {
+            flags |= WaterProcessorOp.RESULT_ERROR_VALUES[2 * stage - 1];
+            flags |= WaterProcessorOp.RESULT_ERROR_VALUES[2 * stage];
+        }
+        return flags;
+    }
+
+    private static String[] getOutputBandNames(boolean computeCHL, boolean computeYS, boolean computeTSM,
+                                               boolean computeAtmCorr) {
+        final String[] concentrationNames = WaterProcessorOp.OUTPUT_CONCENTRATION_BAND_NAMES;
+        final String[] aotNames = WaterProcessorOp.OUTPUT_OPTICAL_DEPTH_BAND_NAMES;
+        final String[] reflectanceNames = WaterProcessorOp.OUTPUT_REFLECTANCE_BAND_NAMES;
+        final String[] names = new String[3 + aotNames.length + reflectanceNames.length];
+        int count = 0;
+        if (computeCHL) {
+            names[count++] = concentrationNames[0];
+        }
+        if (computeYS) {
+            names[count++] = concentrationNames[1];
+        }
+        if (computeTSM) {
+            names[count++] = concentrationNames[2];
+        }
+        if (computeAtmCorr) {
+            System.arraycopy(aotNames, 0, names, count, aotNames.length);
+            count += aotNames.length;
+            System.arraycopy(reflectanceNames, 0, names, count, reflectanceNames.length);
+            count += reflectanceNames.length;
+        }
+        final String[] bandNames = new String[count];
+        System.arraycopy(names, 0, bandNames, 0, count);
+        return bandNames;
+    }
+
+    private static float[] getSamplesFloat(RasterDataNode raster) {
+        return raster.getSourceImage().getData().getSamples(0, 0, WIDTH, HEIGHT, 0, new float[WIDTH * HEIGHT]);
+    }
+
+    private static int[] getSamplesInt(RasterDataNode raster) {
+        return raster.getSourceImage().getData().getSamples(0, 0, WIDTH, HEIGHT, 0, new int[WIDTH * HEIGHT]);
+    }
+
+    /*
+     * Creates a MERIS L1b product with random radiances and geometry. Some pixels are flagged invalid, bright
+     * or suspect, if mostlySuspect is set the suspect flag is raised for most pixels.
+     */
+    private static Product createMerisL1bProduct(boolean mostlySuspect) {
+        final Product product = new Product("MER_RR__1P_TEST", EnvisatConstants.MERIS_RR_L1B_PRODUCT_TYPE_NAME,
+                                            WIDTH, HEIGHT);
+        final Random random = new Random(17);
+        for (int b = 0; b < EnvisatConstants.MERIS_L1B_NUM_SPECTRAL_BANDS; b++) {
+            final float[] radiance = new float[WIDTH * HEIGHT];
+            for (int i = 0; i < radiance.length; i++) {
+                radiance[i] = (float) ((0.002 + 0.09 * random.nextDouble() * (1.0 - b / 20.0)) * SOLAR_FLUX[b]);
+            }
+            final Band band = product.addBand("radiance_" + (b + 1), ProductData.TYPE_FLOAT32);
+            band.setSpectralBandIndex(b);
+            band.setSpectralWavelength(EnvisatConstants.MERIS_WAVELENGTHS[b]);
+            band.setSolarFlux(SOLAR_FLUX[b]);
+            band.setRasterData(ProductData.createInstance(radiance));
+        }
+
+        final byte[] flags = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < flags.length; i++) {
+            int flag = 0;
+            if (i % 7 == 3) {
+                flag |= INVALID_FLAG;
+            }
+            if (i % 13 == 5) {
+                flag |= BRIGHT_FLAG;
+            }
+            if (mostlySuspect ? i % 5 != 0 : i % 11 == 2) {
+                flag |= SUSPECT_FLAG;
+            }
+            flags[i] = (byte) flag;
+        }
+        final FlagCoding flagCoding = new FlagCoding(EnvisatConstants.MERIS_L1B_FLAGS_DS_NAME);
+        flagCoding.addFlag("GLINT_RISK", GLINT_RISK_FLAG, null);
+        flagCoding.addFlag("SUSPECT", SUSPECT_FLAG, null);
+        flagCoding.addFlag("BRIGHT", BRIGHT_FLAG, null);
+        flagCoding.addFlag("INVALID", INVALID_FLAG, null);
+        product.getFlagCodingGroup().add(flagCoding);
+        final Band flagsBand = product.addBand(EnvisatConstants.MERIS_L1B_FLAGS_DS_NAME, ProductData.TYPE_UINT8);
+        flagsBand.setSampleCoding(flagCoding);
+        flagsBand.setRasterData(ProductData.createInstance(flags));
+
+        addRandomGrid(product, EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[6], 0.0f, 70.0f, random);
+        addRandomGrid(product, EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[7], -180.0f, 180.0f, random);
+        addRandomGrid(product, EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[8], 0.0f, 40.0f, random);
+        addRandomGrid(product, EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[9], -180.0f, 180.0f, random);
+        addRandomGrid(product, EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[10], -4.0f, 4.0f, random);
+        addRandomGrid(product, EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[11], -4.0f, 4.0f, random);
+        addRandomGrid(product, EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[12], 975.0f, 1045.0f, random);
+        addRandomGrid(product, EnvisatConstants.MERIS_TIE_POINT_GRID_NAMES[13], 250.0f, 450.0f, random);
+        return product;
+    }
+
+    private static void addRandomGrid(Product product, String name, float min, float max, Random random) {
+        final int gridWidth = WIDTH / 4 + 2;
+        final int gridHeight = HEIGHT / 4 + 2;
+        final float[] tiePoints = new float[gridWidth * gridHeight];
+        for (int i = 0; i < tiePoints.length; i++) {
+            tiePoints[i] = min + (max - min) * random.nextFloat();
+        }
+        product.addTiePointGrid(new TiePointGrid(name, gridWidth, gridHeight, 0.5f, 0.5f, 4, 4, tiePoints));
+    }
+}
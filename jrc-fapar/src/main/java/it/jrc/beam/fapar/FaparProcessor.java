@@ -791,8 +791,9 @@ public class FaparProcessor extends Processor {
     }
 
     /**
-     * Performs the actual processing of the output product. Reads input bands line by line, calculates the fapar
-     * and writes the result to the output bands
+     * Performs the actual processing of the output product. Reads input bands in strips of lines, calculates the
+     * fapar and writes the result to the output bands. The next strip is read and the previous strip is written
+     * while the current strip is computed.
      */
     private void processFapar(ProgressMonitor pm) throws IOException {
 
@@ -802,20 +803,11 @@ public class FaparProcessor extends Processor {
         int height = _inputProduct.getSceneRasterHeight();
 
         // Reflectances
-        float[] blue_reflectance = new float[width];
-        float[] red_reflectance = new float[width];
-        float[] nir_reflectance = new float[width];
         float[] green_reflectance = new float[width * height];
 
-        // MC ++
-        float[] corrlatitude = new float[width];
-        float[] corrlongitude = new float[width];
-        // MC --
-
         //float green_sun_flux;
 
         // Flags
-        int[] process = new int[width];
         //int[][] flg=new int[height][width];	// flg is initialize only once (not line by line)
         int[] flg = new int[height * width];
         if (_inFlag != null)            // only if there was flags in the input product
@@ -825,22 +817,10 @@ public class FaparProcessor extends Processor {
             _inFlag.readPixels(0, 0, width, height, flg, ProgressMonitor.NULL);
         }
 
-// ANDREA: flags to be processed. 		
-
-        int[] flgPerLine = new int[width];
-
-
         // variable used to read the radiance
-        float[] radiance = new float[width];
         float[] green_radiance = new float[width * height];
         float[] green_sza = new float[width * height];
 
-        // Angles
-        float[] sza = new float[width];
-        float[] saa = new float[width];
-        float[] vza = new float[width];
-        float[] vaa = new float[width];
-
         // progress bar init
         // -----------------
 //	    fireProcessStarted("Processing FAPAR.", 0, height);
@@ -883,109 +863,214 @@ public class FaparProcessor extends Processor {
 // ANDREA: END
 
 
-        // Loop over every line
-        // --------------------
+        // Loop over every strip
+        // ---------------------
         pm.beginTask("Processing FAPAR...", height - 1);
         try {
-            for (int y = 0; y < height; y++) {
+            final FaparStage stage = new FaparStage(width, flg, Land_Ocean_flagMask, Bright_flagMask, pm);
+            if (!new StripPipeline<FaparStrip>(stage, height).run()) {
+                // Processing terminated!
+                // --> Completely remove output product
+                _outputProduct.getProductWriter().deleteOutput();
+                // Immediately terminate now
+                _logger.info(ProcessorConstants.LOG_MSG_PROC_CANCELED);
+                _logger.info("The output product is completely removed.");
+                setCurrentStatus(ProcessorConstants.STATUS_ABORTED);
+                return;
+            }
+        } finally {
+            pm.done();
+        }
+
+        _flag.writePixels(0, 0, width, height, flg, ProgressMonitor.NULL);
+        _logger.info(ProcessorConstants.LOG_MSG_PROC_SUCCESS);
+
+    }
+
+    /**
+     * The input and output buffers of a strip.
+     */
+    private static final class FaparStrip {
+
+        private int numPixels;
+        private int[] flgPerLine;
+        private float[] radiance;
+        // Angles
+        private float[] sza;
+        private float[] saa;
+        private float[] vza;
+        private float[] vaa;
+        // Reflectances
+        private float[] blue_reflectance;
+        private float[] red_reflectance;
+        private float[] nir_reflectance;
+        // MC ++
+        private float[] corrlatitude;
+        private float[] corrlongitude;
+        // MC --
+        private int[] process;
+        private int[] fapar_i;
+        private float[] redRec;
+        private float[] nirRec;
+
+        /**
+         * Allocates the buffers for the given number of pixels. The band readers and writers process
+         * the whole buffer, so the shorter last strip of the scene gets buffers of its own.
+         */
+        private void setSize(int numPixels) {
+            if (numPixels == this.numPixels) {
+                return;
+            }
+            this.numPixels = numPixels;
+            flgPerLine = new int[numPixels];
+            radiance = new float[numPixels];
+            sza = new float[numPixels];
+            saa = new float[numPixels];
+            vza = new float[numPixels];
+            vaa = new float[numPixels];
+            corrlatitude = new float[numPixels];
+            corrlongitude = new float[numPixels];
+            process = new int[numPixels];
+            fapar_i = new int[numPixels];
+        }
+    }
+
+    /**
+     * Reads, computes and writes the strips of the FAPAR product.
+     */
+    private final class FaparStage implements StripPipeline.Stage<FaparStrip> {
+
+        private final int width;
+        private final int[] flg;
+        private final int Land_Ocean_flagMask;
+        private final int Bright_flagMask;
+        private final ProgressMonitor pm;
+
+        private FaparStage(int width, int[] flg, int land_Ocean_flagMask, int bright_flagMask, ProgressMonitor pm) {
+            this.width = width;
+            this.flg = flg;
+            Land_Ocean_flagMask = land_Ocean_flagMask;
+            Bright_flagMask = bright_flagMask;
+            this.pm = pm;
+        }
+
+        public FaparStrip createStrip(int stripHeight) {
+            final FaparStrip strip = new FaparStrip();
+            strip.setSize(width * stripHeight);
+            return strip;
+        }
+
+        public void read(FaparStrip strip, int y, int lines) throws IOException {
+            strip.setSize(width * lines);
 
 // ANDREA: Read flags of the current line.
 
-                _inFlag.readPixels(0, y, width, 1, flgPerLine, ProgressMonitor.NULL);
+            _inFlag.readPixels(0, y, width, lines, strip.flgPerLine, ProgressMonitor.NULL);
 
 // ANDREA: END
 
 
-                // Read the angles values for the line
-                _szaBand.readPixels(0, y, width, 1, sza, ProgressMonitor.NULL);
-                _saaBand.readPixels(0, y, width, 1, saa, ProgressMonitor.NULL);
-                _vzaBand.readPixels(0, y, width, 1, vza, ProgressMonitor.NULL);
-                _vaaBand.readPixels(0, y, width, 1, vaa, ProgressMonitor.NULL);
-
-                // Get the blue radiance
-                // if exception is thrown, it is transfered
-                // all reflectances may contain valules <0 or >1
-                radiance = _blueInputBand.readPixels(0, y, width, 1, radiance, ProgressMonitor.NULL);
-                blue_reflectance = RsMathUtils.radianceToReflectance(radiance, sza, _blueInputBand.getSolarFlux(),
-                                                                     null);
-
-                // Get the red radiance
-                radiance = _redInputBand.readPixels(0, y, width, 1, radiance, ProgressMonitor.NULL);
-                red_reflectance = RsMathUtils.radianceToReflectance(radiance, sza, _redInputBand.getSolarFlux(), null);
-
-                // Get the nir radiance
-                radiance = _nirInputBand.readPixels(0, y, width, 1, radiance, ProgressMonitor.NULL);
-                nir_reflectance = RsMathUtils.radianceToReflectance(radiance, sza, _nirInputBand.getSolarFlux(), null);
-
-                // MC ++
-                if (_AmorgosData) {
-                    // Get the corr Latitude
-                    corrlatitude = _corrlatitudeInputBand.readPixels(0, y, width, 1, corrlatitude,
-                                                                     ProgressMonitor.NULL);
-                    // Get the corr Longitude
-                    corrlongitude = _corrlongitudeInputBand.readPixels(0, y, width, 1, corrlongitude,
-                                                                       ProgressMonitor.NULL);
+            // Read the angles values for the strip
+            _szaBand.readPixels(0, y, width, lines, strip.sza, ProgressMonitor.NULL);
+            _saaBand.readPixels(0, y, width, lines, strip.saa, ProgressMonitor.NULL);
+            _vzaBand.readPixels(0, y, width, lines, strip.vza, ProgressMonitor.NULL);
+            _vaaBand.readPixels(0, y, width, lines, strip.vaa, ProgressMonitor.NULL);
+
+            // Get the blue radiance
+            // if exception is thrown, it is transfered
+            // all reflectances may contain valules <0 or >1
+            float[] radiance = _blueInputBand.readPixels(0, y, width, lines, strip.radiance, ProgressMonitor.NULL);
+            strip.blue_reflectance = RsMathUtils.radianceToReflectance(radiance, strip.sza,
+                                                                       _blueInputBand.getSolarFlux(), null);
+
+            // Get the red radiance
+            radiance = _redInputBand.readPixels(0, y, width, lines, strip.radiance, ProgressMonitor.NULL);
+            strip.red_reflectance = RsMathUtils.radianceToReflectance(radiance, strip.sza,
+                                                                      _redInputBand.getSolarFlux(), null);
+
+            // Get the nir radiance
+            radiance = _nirInputBand.readPixels(0, y, width, lines, strip.radiance, ProgressMonitor.NULL);
+            strip.nir_reflectance = RsMathUtils.radianceToReflectance(radiance, strip.sza,
+                                                                      _nirInputBand.getSolarFlux(), null);
+
+            // MC ++
+            if (_AmorgosData) {
+                // Get the corr Latitude
+                _corrlatitudeInputBand.readPixels(0, y, width, lines, strip.corrlatitude, ProgressMonitor.NULL);
+                // Get the corr Longitude
+                _corrlongitudeInputBand.readPixels(0, y, width, lines, strip.corrlongitude, ProgressMonitor.NULL);
+            }
+            // MC --
+        }
+
+        public boolean compute(FaparStrip strip, int y, int lines) {
+            final int numPixels = width * lines;
+            final int[] process = strip.process;
+            final int[] flgPerLine = strip.flgPerLine;
+            final float[] blue_reflectance = strip.blue_reflectance;
+            final float[] red_reflectance = strip.red_reflectance;
+            final float[] nir_reflectance = strip.nir_reflectance;
+
+            // Initialize the flag values for each pixel of the line
+            // 1=Bad, 2=Cloud,snow,ice, 3=water, deep shadow, 4=bright surface
+            for (int i = 0; i < numPixels; i++) {
+                if (blue_reflectance[i] <= 0 || red_reflectance[i] <= 0 || nir_reflectance[i] <= 0) {
+                    process[i] = 1;
+                } else if (blue_reflectance[i] >= 0.3 || red_reflectance[i] >= 0.5 || nir_reflectance[i] >= 0.7) {
+                    process[i] = 2;
+                } else if (blue_reflectance[i] > nir_reflectance[i]) {
+                    process[i] = 3;
                 }
-                // MC --
-
-                // Initialize the flag values for each pixel of the line
-                // 1=Bad, 2=Cloud,snow,ice, 3=water, deep shadow, 4=bright surface
-                for (int i = 0; i < width; i++) {
-                    if (blue_reflectance[i] <= 0 || red_reflectance[i] <= 0 || nir_reflectance[i] <= 0) {
-                        process[i] = 1;
-                    } else if (blue_reflectance[i] >= 0.3 || red_reflectance[i] >= 0.5 || nir_reflectance[i] >= 0.7) {
-                        process[i] = 2;
-                    } else if (blue_reflectance[i] > nir_reflectance[i]) {
-                        process[i] = 3;
-                    }
 // ANDREA: replaced 1.25 with 1.3				    
 //			    else if (nir_reflectance[i]<=1.25*red_reflectance[i])
-                    else if (nir_reflectance[i] <= 1.3 * red_reflectance[i])
+                else if (nir_reflectance[i] <= 1.3 * red_reflectance[i])
 // ANDREA: END			    
-                    {
-                        process[i] = 4;
-                    } else {
-                        process[i] = 0;
-                    }
+                {
+                    process[i] = 4;
+                } else {
+                    process[i] = 0;
+                }
 
 // ANDREA: check cloud pixel over land which have not been detected by MGVI processing.
 
-                    if (Bright_flagMask != 0 && Land_Ocean_flagMask != 0) {
-                        int isBright = flgPerLine[i] & Bright_flagMask;
-                        int isLand_Ocean = flgPerLine[i] & Land_Ocean_flagMask;
-                        if (isLand_Ocean == 0 || isBright != 0) {
-                            process[i] = 5;
-                        }
+                if (Bright_flagMask != 0 && Land_Ocean_flagMask != 0) {
+                    int isBright = flgPerLine[i] & Bright_flagMask;
+                    int isLand_Ocean = flgPerLine[i] & Land_Ocean_flagMask;
+                    if (isLand_Ocean == 0 || isBright != 0) {
+                        process[i] = 5;
                     }
+                }
 
 // ANDREA: END			    
-                }
+            }
 
-                for (int i = 0; i < width; i++) {
-                    if (!(process[i] == 0 || process[i] == 4)) {
-                        int isLand_Ocean = flgPerLine[i] & Land_Ocean_flagMask;
-                        if (isLand_Ocean != 0) {
-                            int newFlagMask = flgPerLine[i] ^ Land_Ocean_flagMask;
-                            flgPerLine[i] = newFlagMask;
-                        }
+            for (int i = 0; i < numPixels; i++) {
+                if (!(process[i] == 0 || process[i] == 4)) {
+                    int isLand_Ocean = flgPerLine[i] & Land_Ocean_flagMask;
+                    if (isLand_Ocean != 0) {
+                        int newFlagMask = flgPerLine[i] ^ Land_Ocean_flagMask;
+                        flgPerLine[i] = newFlagMask;
                     }
                 }
+            }
 
 //		    _inFlag.setPixels(0, y, width, 1, flgPerLine);
 
-                // Compute the fapar calling the algorithm
-                // ---------------------------------------
-                float[] fapar = _algorithm.run(sza, saa, vza, vaa, blue_reflectance, red_reflectance, nir_reflectance,
-                                               process);
+            // Compute the fapar calling the algorithm
+            // ---------------------------------------
+            float[] fapar = _algorithm.run(strip.sza, strip.saa, strip.vza, strip.vaa, blue_reflectance,
+                                           red_reflectance, nir_reflectance, process);
+            strip.redRec = _algorithm.getRedRec();
+            strip.nirRec = _algorithm.getNirRec();
 
-                // Variable used to write the data in type INT
-                int[] fapar_i = new int[width];
+            // Variable used to write the data in type INT
+            final int[] fapar_i = strip.fapar_i;
 
 
-                // Check the flags and modify the wrong values of Fapar
-                // Mapp the values between 0 and 250 + 251-255 for the flags
-                // ---------------------------------------------------------
-                for (int i = 0; i < width; i++) {
+            // Check the flags and modify the wrong values of Fapar
+            // Mapp the values between 0 and 250 + 251-255 for the flags
+            // ---------------------------------------------------------
+            for (int i = 0; i < numPixels; i++) {
 // ANDREA: replaced "if ... else ..." with "switch", and updated FAPAR values.		      
 /*		      
 			    if (process[i]==0)	
@@ -1002,75 +1087,57 @@ public class FaparProcessor extends Processor {
 				    flg[i+y*width]+=Math.pow(2,process[i]-1)*256;
 			    }
 */
-                    switch (process[i]) {
-                        case 0:
-                            fapar_i[i] = Math.round(fapar[i] * 254 + 1);
-                            break;
-                        case 4:
-                            fapar_i[i] = 1;
-                            break;
-                        default:
-                            fapar_i[i] = 0;
-                    }
+                switch (process[i]) {
+                    case 0:
+                        fapar_i[i] = Math.round(fapar[i] * 254 + 1);
+                        break;
+                    case 4:
+                        fapar_i[i] = 1;
+                        break;
+                    default:
+                        fapar_i[i] = 0;
+                }
 
-                    if (process[i] != 0) {
-                        flg[i + y * width] += Math.pow(2, process[i] - 1) * 256;
-                    }
+                if (process[i] != 0) {
+                    flg[i + y * width] += Math.pow(2, process[i] - 1) * 256;
                 }
+            }
 
-                // Write data
-                // ----------
+            // Notify process listeners about processing progress and
+            // check whether or not processing shall be terminated
+            pm.worked(lines);
+            return !pm.isCanceled();
+        }
 
-                // Write the fapar values to the output fapar band
-                // The values have already been mapped between 0 and 250 so the scaling factor must be 1 for the writting
-                _faparBand.setScalingFactor(1.0);
-                _faparBand.writePixels(0, y, width, 1, fapar_i, ProgressMonitor.NULL);
-                //_faparBand.writePixels(0, y, width, 1, fapar);
+        public void write(FaparStrip strip, int y, int lines) throws IOException {
+            // Write the fapar values to the output fapar band
+            // The values have already been mapped between 0 and 250 so the scaling factor must be 1 for the writting
+            _faparBand.setScalingFactor(1.0);
+            _faparBand.writePixels(0, y, width, lines, strip.fapar_i, ProgressMonitor.NULL);
+            //_faparBand.writePixels(0, y, width, 1, fapar);
 
 // ANDREA: updated scaling factor
 //		    _faparBand.setScalingFactor(1.0/250.0);
-                _faparBand.setScalingFactor(1.0 / 254.0);
+            _faparBand.setScalingFactor(1.0 / 254.0);
 // ANDREA: added offset
-                _faparBand.setScalingOffset(-1.0 / 254.0);
+            _faparBand.setScalingOffset(-1.0 / 254.0);
 
-                // Write the rectified values to the output bands
-                _redRecBand.writePixels(0, y, width, 1, _algorithm.getRedRec(), ProgressMonitor.NULL);
-                _nirRecBand.writePixels(0, y, width, 1, _algorithm.getNirRec(), ProgressMonitor.NULL);
+            // Write the rectified values to the output bands
+            _redRecBand.writePixels(0, y, width, lines, strip.redRec, ProgressMonitor.NULL);
+            _nirRecBand.writePixels(0, y, width, lines, strip.nirRec, ProgressMonitor.NULL);
 
-                //Write all the other bands
-                _reflectanceBlueBand.writePixels(0, y, width, 1, blue_reflectance, ProgressMonitor.NULL);
-                _reflectanceRedBand.writePixels(0, y, width, 1, red_reflectance, ProgressMonitor.NULL);
-                _reflectanceNirBand.writePixels(0, y, width, 1, nir_reflectance, ProgressMonitor.NULL);
-
-                // MC ++
-                if (_AmorgosData) {
-                    _corrlatitude.writePixels(0, y, width, 1, corrlatitude, ProgressMonitor.NULL);
-                    _corrlongitude.writePixels(0, y, width, 1, corrlongitude, ProgressMonitor.NULL);
-                }
-                // MC --
-
-                // Notify process listeners about processing progress and
-                // check whether or not processing shall be terminated
-                pm.worked(1);
-                if (pm.isCanceled()) {
-                    // Processing terminated!
-                    // --> Completely remove output product
-                    _outputProduct.getProductWriter().deleteOutput();
-                    // Immediately terminate now
-                    _logger.info(ProcessorConstants.LOG_MSG_PROC_CANCELED);
-                    _logger.info("The output product is completely removed.");
-                    setCurrentStatus(ProcessorConstants.STATUS_ABORTED);
-                    return;
-                }
+            //Write all the other bands
+            _reflectanceBlueBand.writePixels(0, y, width, lines, strip.blue_reflectance, ProgressMonitor.NULL);
+            _reflectanceRedBand.writePixels(0, y, width, lines, strip.red_reflectance, ProgressMonitor.NULL);
+            _reflectanceNirBand.writePixels(0, y, width, lines, strip.nir_reflectance, ProgressMonitor.NULL);
 
+            // MC ++
+            if (_AmorgosData) {
+                _corrlatitude.writePixels(0, y, width, lines, strip.corrlatitude, ProgressMonitor.NULL);
+                _corrlongitude.writePixels(0, y, width, lines, strip.corrlongitude, ProgressMonitor.NULL);
             }
-        } finally {
-            pm.done();
+            // MC --
         }
-
-        _flag.writePixels(0, 0, width, height, flg, ProgressMonitor.NULL);
-        _logger.info(ProcessorConstants.LOG_MSG_PROC_SUCCESS);
-
     }
 }
 